@@ -0,0 +1,106 @@
+package com.cloudwebrtc.webrtc;
+
+import android.content.Context;
+import android.util.Size;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.cloudwebrtc.webrtc.video.FlutterVideoRecorder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import io.flutter.plugin.common.BinaryMessenger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on a device: the recorder needs EGL and MediaCodec.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FlutterVideoRecorderTest {
+    private static final long RECORD_MS = 500;
+
+    private File dir;
+    private FlutterVideoRecorder recorder;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dir = new File(context.getCacheDir(), "FlutterVideoRecorderTest");
+        deleteRecursively(dir);
+        GetUserMediaImpl getUserMediaImpl = new GetUserMediaImpl(null, context, null);
+        recorder = new FlutterVideoRecorder(1, null, null, new Size(320, 240), "mpeg4",
+                new NullMessenger(), getUserMediaImpl, false);
+    }
+
+    @After
+    public void tearDown() {
+        recorder.dispose();
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void restartedRecordingWritesNewFile() throws Exception {
+        File first = new File(dir, "first.mp4");
+        File second = new File(dir, "second.mp4");
+
+        record(first);
+        long firstLength = first.length();
+        record(second);
+
+        assertTrue("second recording has its own muxer", second.exists());
+        assertEquals("first recording is left alone", firstLength, first.length());
+    }
+
+    @Test
+    public void recordingAfterStreamingWritesFile() throws Exception {
+        File file = new File(dir, "after_stream.mp4");
+
+        // Nothing listens there, the publisher just fails to connect
+        recorder.startStreaming("rtmp://127.0.0.1:1/live/key");
+        Thread.sleep(RECORD_MS);
+        recorder.stopRecording();
+        record(file);
+
+        assertTrue("recorded to the file instead of the old stream", file.exists());
+    }
+
+    private void record(File file) throws Exception {
+        recorder.startRecording(file);
+        Thread.sleep(RECORD_MS);
+        recorder.stopRecording();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static class NullMessenger implements BinaryMessenger {
+        @Override
+        public void send(String channel, ByteBuffer message) {
+        }
+
+        @Override
+        public void send(String channel, ByteBuffer message, BinaryReply callback) {
+        }
+
+        @Override
+        public void setMessageHandler(String channel, BinaryMessageHandler handler) {
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.cloudwebrtc.webrtc.record;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.webrtc.VideoFrame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs on a device: the queue hands frames to a Looper thread.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameQueueTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread thread;
+    private Handler handler;
+    // Holds the render thread, so that offered frames stay queued
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private final List<Long> rendered = Collections.synchronizedList(new ArrayList<Long>());
+    private CountDownLatch renderedLatch;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        thread = new HandlerThread("FrameQueueTest");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(() -> {
+            try {
+                unblock.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        unblock.countDown();
+        thread.quitSafely();
+    }
+
+    @Test
+    public void dropOldestKeepsLatestFrames() throws InterruptedException {
+        FrameQueue queue = newQueue(2, FrameQueue.DropPolicy.DROP_OLDEST, 2);
+        TestBuffer[] buffers = offer(queue, 4);
+
+        assertEquals(2, queue.getDroppedFrames());
+        assertEquals("dropped frames are released at once", 1, buffers[0].refs.get());
+        assertEquals(1, buffers[1].refs.get());
+        unblock.countDown();
+
+        assertTrue(renderedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(2L, (long) rendered.get(0));
+        assertEquals(3L, (long) rendered.get(1));
+        assertEquals(2, queue.getRenderedFrames());
+        for (TestBuffer buffer : buffers) {
+            assertEquals(1, buffer.refs.get());
+        }
+    }
+
+    @Test
+    public void dropNewestKeepsQueuedFrames() throws InterruptedException {
+        FrameQueue queue = newQueue(2, FrameQueue.DropPolicy.DROP_NEWEST, 2);
+        TestBuffer[] buffers = offer(queue, 4);
+
+        assertEquals(2, queue.getDroppedFrames());
+        assertEquals("rejected frames are never retained", 1, buffers[3].refs.get());
+        unblock.countDown();
+
+        assertTrue(renderedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0L, (long) rendered.get(0));
+        assertEquals(1L, (long) rendered.get(1));
+    }
+
+    @Test
+    public void releaseReleasesQueuedFramesAndRejectsNew() {
+        FrameQueue queue = newQueue(3, FrameQueue.DropPolicy.DROP_OLDEST, 0);
+        TestBuffer[] buffers = offer(queue, 2);
+        assertEquals(2, buffers[0].refs.get());
+
+        queue.release();
+        TestBuffer late = offer(queue, 1)[0];
+
+        assertEquals(1, buffers[0].refs.get());
+        assertEquals(1, buffers[1].refs.get());
+        assertEquals(1, late.refs.get());
+        assertEquals(0, queue.getDroppedFrames());
+    }
+
+    @Test
+    public void reportsDropsAtMostOncePerInterval() {
+        FrameQueue queue = newQueue(1, FrameQueue.DropPolicy.DROP_OLDEST, 0);
+        AtomicInteger reports = new AtomicInteger();
+        List<Long> reportedDrops = new ArrayList<>();
+        queue.setDropListener((droppedFrames, renderedFrames) -> {
+            reports.incrementAndGet();
+            reportedDrops.add(droppedFrames);
+        });
+
+        offer(queue, 2);
+        assertEquals(1, reports.get());
+        assertEquals(1L, (long) reportedDrops.get(0));
+        assertFalse(queue.hasUnreportedDrops());
+
+        offer(queue, 3);
+        assertEquals("within the interval", 1, reports.get());
+        assertEquals(4, queue.getDroppedFrames());
+        assertTrue(queue.hasUnreportedDrops());
+        queue.release();
+    }
+
+    private FrameQueue newQueue(int capacity, FrameQueue.DropPolicy policy, int expectedFrames) {
+        renderedLatch = new CountDownLatch(expectedFrames);
+        return new FrameQueue(handler, capacity, policy, frame -> {
+            rendered.add(frame.getTimestampNs());
+            frame.release();
+            renderedLatch.countDown();
+        });
+    }
+
+    /**
+     * Offers |count| frames, timestamped by their index.
+     */
+    private TestBuffer[] offer(FrameQueue queue, int count) {
+        TestBuffer[] buffers = new TestBuffer[count];
+        for (int i = 0; i < count; i++) {
+            buffers[i] = new TestBuffer();
+            queue.offer(new VideoFrame(buffers[i], 0, i));
+        }
+        return buffers;
+    }
+
+    private static class TestBuffer implements VideoFrame.Buffer {
+        // The caller's reference, kept for the whole test
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        @Override
+        public int getWidth() {
+            return 2;
+        }
+
+        @Override
+        public int getHeight() {
+            return 2;
+        }
+
+        @Override
+        public VideoFrame.I420Buffer toI420() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void retain() {
+            refs.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            refs.decrementAndGet();
+        }
+
+        @Override
+        public VideoFrame.Buffer cropAndScale(int cropX, int cropY, int cropWidth, int cropHeight,
+                                              int scaleWidth, int scaleHeight) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -49,6 +49,8 @@ import java.util.concurrent.TimeUnit;
 public class BlurEglRenderer implements VideoSink {
     private static final String TAG = "BlurEglRenderer";
     private static final long LOG_INTERVAL_SEC = 4;
+    // A snapshot waiting for a frame fails after this long, e.g. while the track is muted
+    private static final long SNAPSHOT_TIMEOUT_MS = 1000;
 
     public interface FrameListener {
         int getId();
@@ -144,6 +146,10 @@ public class BlurEglRenderer implements VideoSink {
     // on |handlerLock|.
     private final Object handlerLock = new Object();
     @Nullable private Handler renderThreadHandler;
+    // Set before init() to render on a shared thread instead of one of our own
+    @Nullable private RenderThreadPool renderThreadPool;
+    @Nullable private RenderThreadPool.RenderThread pooledThread;
+    private final Runnable renderFrameRunnable = this::renderFrameOnRenderThread;
 
     private final ArrayList<FrameListenerAndParams> frameListeners = new ArrayList<>();
 
@@ -212,6 +218,12 @@ public class BlurEglRenderer implements VideoSink {
 
     private GlTextureFrameBuffer snapshotTextureFramebuffer =
             new GlTextureFrameBuffer(GLES20.GL_RGBA);
+    // Render thread only. Frames are drawn into |snapshotTextureFramebuffer| only when blur, frame
+    // listeners or snapshot() need them, otherwise straight to the surface. |snapshotTextureCurrent|
+    // tells if it holds the last frame drawn, |pendingSnapshots| waits for the next one if not,
+    // up to SNAPSHOT_TIMEOUT_MS.
+    private boolean snapshotTextureCurrent;
+    private final ArrayList<EglRenderer2.BitmapDataCallback> pendingSnapshots = new ArrayList<>();
 
     // clang-format off
     private static final float[] IDENTITY_MATRIX = {
@@ -250,6 +262,17 @@ public class BlurEglRenderer implements VideoSink {
         this.frameDrawer = videoFrameDrawer;
     }
 
+    /**
+     * Renders on a thread of |pool| from the next init(), when the pool accepts its shared context
+     * and config. Frames are then drawn on the next vsync of that thread, along with those of the
+     * other renderers sharing it.
+     */
+    public void setRenderThreadPool(@Nullable RenderThreadPool pool) {
+        synchronized (handlerLock) {
+            renderThreadPool = pool;
+        }
+    }
+
     /**
      * Initialize this class, sharing resources with |sharedContext|. The custom |drawer| will be used
      * for drawing frames on the EGLSurface. This class is responsible for calling release() on
@@ -286,10 +309,17 @@ public class BlurEglRenderer implements VideoSink {
             }
             this.snapshotTextureFramebuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
 
-            final HandlerThread renderThread = new HandlerThread(name + "BlurEglRenderer");
-            renderThread.start();
+            final Looper renderLooper;
+            if (renderThreadPool != null && renderThreadPool.accepts(sharedContext, configAttributes)) {
+                pooledThread = renderThreadPool.acquire();
+                renderLooper = pooledThread.getLooper();
+            } else {
+                final HandlerThread renderThread = new HandlerThread(name + "BlurEglRenderer");
+                renderThread.start();
+                renderLooper = renderThread.getLooper();
+            }
             renderThreadHandler =
-                    new HandlerWithExceptionCallback(renderThread.getLooper(), new Runnable() {
+                    new HandlerWithExceptionCallback(renderLooper, new Runnable() {
                         @Override
                         public void run() {
                             synchronized (handlerLock) {
@@ -300,9 +330,15 @@ public class BlurEglRenderer implements VideoSink {
             // Create EGL context on the newly created render thread. It should be possibly to create the
             // context on this thread and make it current on the render thread, but this causes failure on
             // some Marvel based JB devices. https://bugs.chromium.org/p/webrtc/issues/detail?id=6350.
+            final RenderThreadPool.RenderThread thread = pooledThread;
             ThreadUtils.invokeAtFrontUninterruptibly(renderThreadHandler, () -> {
-                logD("EglBase.create shared context");
-                eglBase = EglBase.create(sharedContext, configAttributes);
+                if (thread != null) {
+                    logD("EglBase on pooled render thread");
+                    eglBase = thread.createEglBase();
+                } else {
+                    logD("EglBase.create shared context");
+                    eglBase = EglBase.create(sharedContext, configAttributes);
+                }
             });
             renderThreadHandler.post(eglSurfaceCreationRunnable);
             final long currentTimeNs = System.nanoTime();
@@ -344,11 +380,14 @@ public class BlurEglRenderer implements VideoSink {
     public void release() {
         logD("Releasing.");
         final CountDownLatch eglCleanupBarrier = new CountDownLatch(1);
+        final RenderThreadPool.RenderThread thread;
         synchronized (handlerLock) {
             if (renderThreadHandler == null) {
                 logD("Already released");
                 return;
             }
+            thread = pooledThread;
+            pooledThread = null;
             renderThreadHandler.removeCallbacks(logStatisticsRunnable);
             // Release EGL and GL resources on render thread.
             renderThreadHandler.postAtFrontOfQueue(() -> {
@@ -397,19 +436,29 @@ public class BlurEglRenderer implements VideoSink {
                     eglBase = null;
                 }
                 frameListeners.clear();
+                failPendingSnapshots();
+                snapshotTextureCurrent = false;
+                if (thread != null) {
+                    thread.cancelRender(renderFrameRunnable);
+                }
                 eglCleanupBarrier.countDown();
             });
-            final Looper renderLooper = renderThreadHandler.getLooper();
-            // TODO(magjed): Replace this post() with renderLooper.quitSafely() when API support >= 18.
-            renderThreadHandler.post(() -> {
-                logD("Quitting render thread.");
-                renderLooper.quit();
-            });
+            if (thread == null) {
+                final Looper renderLooper = renderThreadHandler.getLooper();
+                // TODO(magjed): Replace this post() with renderLooper.quitSafely() when API support >= 18.
+                renderThreadHandler.post(() -> {
+                    logD("Quitting render thread.");
+                    renderLooper.quit();
+                });
+            }
             // Don't accept any more frames or messages to the render thread.
             renderThreadHandler = null;
         }
         // Make sure the EGL/GL cleanup posted above is executed.
         ThreadUtils.awaitUninterruptibly(eglCleanupBarrier);
+        if (thread != null) {
+            thread.release();
+        }
         synchronized (frameLock) {
             if (pendingFrame != null) {
                 pendingFrame.release();
@@ -655,7 +704,11 @@ public class BlurEglRenderer implements VideoSink {
                 }
                 pendingFrame = frame;
                 pendingFrame.retain();
-                renderThreadHandler.post(this ::renderFrameOnRenderThread);
+                if (pooledThread != null) {
+                    pooledThread.requestRender(renderFrameRunnable);
+                } else {
+                    renderThreadHandler.post(renderFrameRunnable);
+                }
             }
         }
         if (dropOldFrame) {
@@ -702,6 +755,8 @@ public class BlurEglRenderer implements VideoSink {
     private void clearSurfaceOnRenderThread(float r, float g, float b, float a) {
         if (eglBase != null && eglBase.hasSurface()) {
             logD("clearSurface");
+            // The surface of another renderer may be current on a pooled thread
+            eglBase.makeCurrent();
             GLES20.glClearColor(r, g, b, a);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
             eglBase.swapBuffers();
@@ -745,6 +800,8 @@ public class BlurEglRenderer implements VideoSink {
             frame.release();
             return;
         }
+        // The surface of another renderer may be current on a pooled thread
+        eglBase.makeCurrent();
         // Check if fps reduction is active.
         final boolean shouldRenderFrame;
         synchronized (fpsReductionLock) {
@@ -795,17 +852,17 @@ public class BlurEglRenderer implements VideoSink {
 
         try {
             if (shouldRenderFrame) {
-                snapshotTextureFramebuffer.setSize(frame.getRotatedWidth(), frame.getRotatedHeight());
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, snapshotTextureFramebuffer.getFrameBufferId());
-
-                GLES20.glClearColor(0 /* red */, 0 /* green */, 0 /* blue */, 0 /* alpha */);
-                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-                frameDrawer.drawFrame(frame, drawer, drawMatrix, 0 /* viewportX */, 0 /* viewportY */,
-                        eglBase.surfaceWidth(), eglBase.surfaceHeight());
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                GlUtil.checkNoGLES2Error("EglRenderer2.notifyCallbacks");
-                if (blur) {
+                final boolean blurFrame;
+                synchronized (blurLock) {
+                    blurFrame = blur;
+                }
+                if (blurFrame || !frameListeners.isEmpty() || !pendingSnapshots.isEmpty()) {
+                    drawSnapshotTexture(frame);
+                } else {
+                    // Single pass: nothing reads the offscreen copy of this frame
+                    snapshotTextureCurrent = false;
+                }
+                if (blurFrame) {
                     secondTextureFramebuffer.setSize(frame.getRotatedWidth(), frame.getRotatedHeight());
 
                     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, secondTextureFramebuffer.getFrameBufferId());
@@ -839,6 +896,10 @@ public class BlurEglRenderer implements VideoSink {
                     renderTimeNs += (currentTimeNs - startTimeNs);
                     renderSwapBufferTimeNs += (currentTimeNs - swapBuffersStartTimeNs);
                 }
+                for (EglRenderer2.BitmapDataCallback callback : pendingSnapshots) {
+                    readSnapshot(callback);
+                }
+                pendingSnapshots.clear();
             }
             notifyCallbacks(frame, shouldRenderFrame);
         } catch (GlUtil.GlOutOfMemoryException e) {
@@ -855,6 +916,7 @@ public class BlurEglRenderer implements VideoSink {
             firstTextureFramebuffer.release();
             secondTextureFramebuffer.release();
             snapshotTextureFramebuffer.release();
+            snapshotTextureCurrent = false;
             // Continue here on purpose and retry again for next frame. In worst case, this is a continous
             // problem and no more frames will be drawn.
         } finally {
@@ -870,6 +932,24 @@ public class BlurEglRenderer implements VideoSink {
         }
     }
 
+    /**
+     * Draws |frame| into |snapshotTextureFramebuffer| with the current |drawMatrix|, for the blur
+     * passes, the frame listeners and snapshot() to read from.
+     */
+    private void drawSnapshotTexture(VideoFrame frame) {
+        snapshotTextureFramebuffer.setSize(frame.getRotatedWidth(), frame.getRotatedHeight());
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, snapshotTextureFramebuffer.getFrameBufferId());
+
+        GLES20.glClearColor(0 /* red */, 0 /* green */, 0 /* blue */, 0 /* alpha */);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        frameDrawer.drawFrame(frame, drawer, drawMatrix, 0 /* viewportX */, 0 /* viewportY */,
+                eglBase.surfaceWidth(), eglBase.surfaceHeight());
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GlUtil.checkNoGLES2Error("EglRenderer2.notifyCallbacks");
+        snapshotTextureCurrent = true;
+    }
+
     private void renderSnapshot(VideoFrame frame) {
         drawMatrix.reset();
         drawMatrix.preTranslate(0.5f, 0.5f);
@@ -892,19 +972,51 @@ public class BlurEglRenderer implements VideoSink {
         GlUtil.checkNoGLES2Error("EglRenderer2.notifyCallbacks");
     }
 
+    /**
+     * Reads the last frame drawn, or the next one if it went straight to the surface. |callback|
+     * gets null if there is no frame to read within SNAPSHOT_TIMEOUT_MS or the renderer is
+     * released first.
+     */
     public void snapshot(final EglRenderer2.BitmapDataCallback callback) {
         synchronized (handlerLock) {
             if (renderThreadHandler == null) {
+                callback.onBitmapData(null);
                 return;
             }
-            renderThreadHandler.post(() -> {
-                final int scaledWidth = snapshotTextureFramebuffer.getWidth();
-                final int scaledHeight = snapshotTextureFramebuffer.getHeight();
-                if (scaledWidth == 0 || scaledHeight == 0) {
+            final Handler handler = renderThreadHandler;
+            handler.post(() -> {
+                if (snapshotTextureCurrent) {
+                    readSnapshot(callback);
                     return;
                 }
-                firstTextureFramebuffer.setSize(scaledWidth, scaledHeight);
-                secondTextureFramebuffer.setSize(scaledWidth, scaledHeight);
+                // The last frame went straight to the surface, read the next one
+                pendingSnapshots.add(callback);
+                handler.postDelayed(() -> {
+                    if (pendingSnapshots.remove(callback)) {
+                        logD("No frame to snapshot");
+                        callback.onBitmapData(null);
+                    }
+                }, SNAPSHOT_TIMEOUT_MS);
+            });
+        }
+    }
+
+    private void failPendingSnapshots() {
+        for (EglRenderer2.BitmapDataCallback callback : pendingSnapshots) {
+            callback.onBitmapData(null);
+        }
+        pendingSnapshots.clear();
+    }
+
+    private void readSnapshot(final EglRenderer2.BitmapDataCallback callback) {
+        final int scaledWidth = snapshotTextureFramebuffer.getWidth();
+        final int scaledHeight = snapshotTextureFramebuffer.getHeight();
+        if (scaledWidth == 0 || scaledHeight == 0) {
+            callback.onBitmapData(null);
+            return;
+        }
+        firstTextureFramebuffer.setSize(scaledWidth, scaledHeight);
+        secondTextureFramebuffer.setSize(scaledWidth, scaledHeight);
 
 
 //                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, secondTextureFramebuffer.getFrameBufferId());
@@ -920,42 +1032,40 @@ public class BlurEglRenderer implements VideoSink {
 //                eglBase.swapBuffers();
 
 
-                drawMatrix.reset();
-                drawMatrix.preTranslate(0.5f, 0.5f);
-                drawMatrix.preScale(1.0f, -1.0f); // We want the output to be upside down for Bitmap.
-                drawMatrix.preTranslate(-0.5f, -0.5f);
+        drawMatrix.reset();
+        drawMatrix.preTranslate(0.5f, 0.5f);
+        drawMatrix.preScale(1.0f, -1.0f); // We want the output to be upside down for Bitmap.
+        drawMatrix.preTranslate(-0.5f, -0.5f);
 
-                float[] finalGlMatrix = RendererCommon.convertMatrixFromAndroidGraphicsMatrix(drawMatrix);
+        float[] finalGlMatrix = RendererCommon.convertMatrixFromAndroidGraphicsMatrix(drawMatrix);
 
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, firstTextureFramebuffer.getFrameBufferId());
-                GlUtil.checkNoGLES2Error("BlurEglRenderer.renderFrameOnRenderThread");
-                firstPassBlurDrawer.drawRgb(snapshotTextureFramebuffer.getTextureId(), finalGlMatrix, scaledWidth, scaledHeight, 0, 0, scaledWidth, scaledHeight);
-                GlUtil.checkNoGLES2Error("BlurEglRenderer.renderFrameOnRenderThread");
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, firstTextureFramebuffer.getFrameBufferId());
+        GlUtil.checkNoGLES2Error("BlurEglRenderer.renderFrameOnRenderThread");
+        firstPassBlurDrawer.drawRgb(snapshotTextureFramebuffer.getTextureId(), finalGlMatrix, scaledWidth, scaledHeight, 0, 0, scaledWidth, scaledHeight);
+        GlUtil.checkNoGLES2Error("BlurEglRenderer.renderFrameOnRenderThread");
 
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, secondTextureFramebuffer.getFrameBufferId());
-                GlUtil.checkNoGLES2Error("BlurEglRenderer.renderFrameOnRenderThread");
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, secondTextureFramebuffer.getFrameBufferId());
+        GlUtil.checkNoGLES2Error("BlurEglRenderer.renderFrameOnRenderThread");
 
 
 
 
-                secondPassBlurDrawer.drawRgb(firstTextureFramebuffer.getTextureId(), IDENTITY_MATRIX, scaledWidth, scaledHeight, 0, 0, scaledWidth, scaledHeight);
-                GlUtil.checkNoGLES2Error("BlurEglRenderer.renderFrameOnRenderThread");
+        secondPassBlurDrawer.drawRgb(firstTextureFramebuffer.getTextureId(), IDENTITY_MATRIX, scaledWidth, scaledHeight, 0, 0, scaledWidth, scaledHeight);
+        GlUtil.checkNoGLES2Error("BlurEglRenderer.renderFrameOnRenderThread");
 
 
-                final ByteBuffer bitmapBuffer = ByteBuffer.allocateDirect(scaledWidth * scaledHeight * 4);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                        GLES20.GL_TEXTURE_2D, secondTextureFramebuffer.getTextureId(), 0);
-                GLES20.glViewport(0, 0, scaledWidth, scaledHeight);
-                GLES20.glReadPixels(
-                        0, 0, scaledWidth, scaledHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, bitmapBuffer);
+        final ByteBuffer bitmapBuffer = ByteBuffer.allocateDirect(scaledWidth * scaledHeight * 4);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, secondTextureFramebuffer.getTextureId(), 0);
+        GLES20.glViewport(0, 0, scaledWidth, scaledHeight);
+        GLES20.glReadPixels(
+                0, 0, scaledWidth, scaledHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, bitmapBuffer);
 
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-                GlUtil.checkNoGLES2Error("EglRenderer2.notifyCallbacks");
-                logD("BITMAP WIDTH: " + scaledWidth
-                        + " BITMAP HEIGHT: " + scaledHeight);
-                callback.onBitmapData(new EglRenderer2.BitmapData(bitmapBuffer.array(), scaledWidth,  scaledHeight));
-            });
-        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GlUtil.checkNoGLES2Error("EglRenderer2.notifyCallbacks");
+        logD("BITMAP WIDTH: " + scaledWidth
+                + " BITMAP HEIGHT: " + scaledHeight);
+        callback.onBitmapData(new EglRenderer2.BitmapData(bitmapBuffer.array(), scaledWidth,  scaledHeight));
     }
 
     private void notifyCallbacks(VideoFrame frame, boolean wasRendered) {
@@ -966,8 +1076,10 @@ public class BlurEglRenderer implements VideoSink {
         final int frameWidth = frame.getRotatedWidth();
         final int frameHeight = frame.getRotatedHeight();
         final float frameAspectRatio = (float) frameWidth / (float) frameHeight;
-
-
+        if (!snapshotTextureCurrent) {
+            // A listener was added while frames went straight to the surface
+            drawSnapshotTexture(frame);
+        }
 
         Iterator<FrameListenerAndParams> it = frameListeners.iterator();
         while (it.hasNext()) {
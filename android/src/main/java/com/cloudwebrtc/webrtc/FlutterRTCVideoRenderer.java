@@ -282,6 +282,8 @@ public class FlutterRTCVideoRenderer implements EventChannel.StreamHandler, GetU
         if (surfaceTextureRenderer == null) {
             surfaceTextureRenderer = new SurfaceTextureRenderer(entry.surfaceTexture());
             surfaceTextureRenderer.setMirror(mirror);
+            // A gallery of renderers shares a few render threads instead of one thread each
+            surfaceTextureRenderer.setRenderThreadPool(RenderThreadPool.getInstance(sharedContext));
         }
         surfaceTextureRenderer.init(sharedContext, rendererEvents);
         for (BlurEglRenderer.FrameListener listener : frameListeners.values()) {
@@ -333,7 +335,13 @@ public class FlutterRTCVideoRenderer implements EventChannel.StreamHandler, GetU
             @Override
             public void onBitmapData(EglRenderer2.BitmapData bitmapData) {
                 if (bitmapData == null) {
-                    result.error("", "No bitmap found", null);
+                    handler.post(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    result.error("", "No bitmap found", null);
+                                }
+                            });
                     return;
                 }
                 HashMap map = new HashMap<>();
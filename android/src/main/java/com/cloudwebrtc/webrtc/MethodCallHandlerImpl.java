@@ -15,24 +15,30 @@ import android.util.SparseArray;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.cloudwebrtc.webrtc.audio.PcmStreamer;
+import com.cloudwebrtc.webrtc.muxer.CodecCapabilityCache;
+import com.cloudwebrtc.webrtc.muxer.EncoderPool;
 import com.cloudwebrtc.webrtc.record.AudioChannel;
+import com.cloudwebrtc.webrtc.record.AudioOnlyRecorder;
 import com.cloudwebrtc.webrtc.record.AudioSamplesInterceptor;
 import com.cloudwebrtc.webrtc.record.Connection;
 import com.cloudwebrtc.webrtc.record.ConnectionType;
 import com.cloudwebrtc.webrtc.record.FlutterRecorder;
 import com.cloudwebrtc.webrtc.record.FrameCapturer;
+import com.cloudwebrtc.webrtc.record.FrameSampler;
 import com.cloudwebrtc.webrtc.record.MediaRecorderImpl;
 import com.cloudwebrtc.webrtc.record.RTCRecorder;
+import com.cloudwebrtc.webrtc.record.SharedEncoders;
 import com.cloudwebrtc.webrtc.utils.AnyThreadResult;
 import com.cloudwebrtc.webrtc.utils.ConstraintsArray;
 import com.cloudwebrtc.webrtc.utils.ConstraintsMap;
 import com.cloudwebrtc.webrtc.utils.EglUtils;
 import com.cloudwebrtc.webrtc.utils.ObjectType;
 import com.cloudwebrtc.webrtc.video.FlutterVideoRecorder;
+import com.cloudwebrtc.webrtc.video.TeeVideoDecoderFactory;
+import com.cloudwebrtc.webrtc.video.TeeVideoEncoderFactory;
 
 import org.webrtc.AudioTrack;
-import org.webrtc.DefaultVideoDecoderFactory;
-import org.webrtc.DefaultVideoEncoderFactory;
 import org.webrtc.DtmfSender;
 import org.webrtc.EglBase;
 import org.webrtc.IceCandidate;
@@ -62,7 +68,6 @@ import org.webrtc.RtpTransceiver;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.SessionDescription.Type;
-import org.webrtc.VideoCodecInfo;
 import org.webrtc.VideoDecoderFactory;
 import org.webrtc.VideoEncoderFactory;
 import org.webrtc.VideoTrack;
@@ -128,6 +133,11 @@ public class MethodCallHandlerImpl implements MethodCallHandler, StateProvider {
 
   private AudioDeviceModule audioDeviceModule;
 
+  // Lets recorders reuse the bitstream encoded for sending
+  private TeeVideoEncoderFactory videoEncoderFactory;
+  // Lets recorders reuse the bitstream received, before it is decoded
+  private TeeVideoDecoderFactory videoDecoderFactory;
+
   private Activity activity;
 
 
@@ -135,6 +145,14 @@ public class MethodCallHandlerImpl implements MethodCallHandler, StateProvider {
   private AudioSamplesInterceptor playbackSamplesInterceptor = new AudioSamplesInterceptor();;
 
   public Map<Integer, FlutterRecorder> rtcRecorders;
+  // Shared by mixed recorders created with prewarmEncoders; created on first use.
+  private EncoderPool encoderPool;
+  // Encode sessions shared by the recorders of a track
+  private final SharedEncoders sharedEncoders = new SharedEncoders();
+  // Periodic samplers of video tracks, by sampler id
+  private final Map<Integer, FrameSampler> frameSamplers = new HashMap<>();
+  // PCM streams to Dart, by stream id
+  private final Map<Integer, PcmStreamer> pcmStreams = new HashMap<>();
   private Handler handler;
 
 
@@ -154,6 +172,18 @@ public class MethodCallHandlerImpl implements MethodCallHandler, StateProvider {
 
   void dispose() {
     mPeerConnectionObservers.clear();
+    for (FrameSampler sampler : frameSamplers.values()) {
+      sampler.release();
+    }
+    frameSamplers.clear();
+    for (PcmStreamer stream : pcmStreams.values()) {
+      stream.release();
+    }
+    pcmStreams.clear();
+    if (encoderPool != null) {
+      encoderPool.release();
+      encoderPool = null;
+    }
   }
 
   private void ensureInitialized() {
@@ -171,12 +201,12 @@ public class MethodCallHandlerImpl implements MethodCallHandler, StateProvider {
     // Initialize EGL contexts required for HW acceleration.
     EglBase.Context eglContext = EglUtils.getRootEglBaseContext();
 
-    encoderFactory = new DefaultVideoEncoderFactory(eglContext, true /* enableIntelVp8Encoder */, enableH264HighProfile);
-    VideoCodecInfo[] supportedCodecs = encoderFactory.getSupportedCodecs();
-    for (VideoCodecInfo codec : supportedCodecs) {
-      Log.d(TAG, "SUPPORTED CODEC: " + codec.name + "\n");
-    }
-    decoderFactory = new DefaultVideoDecoderFactory(eglContext);
+    videoEncoderFactory = new TeeVideoEncoderFactory(eglContext, true /* enableIntelVp8Encoder */, enableH264HighProfile);
+    encoderFactory = videoEncoderFactory;
+    // Probe the device encoders off the main thread; recorders pick theirs from the cache.
+    CodecCapabilityCache.prefetch();
+    videoDecoderFactory = new TeeVideoDecoderFactory(eglContext);
+    decoderFactory = videoDecoderFactory;
     audioDeviceModule = JavaAudioDeviceModule.builder(context)
             .setUseHardwareAcousticEchoCanceler(true)
             .setUseHardwareNoiseSuppressor(true)
@@ -613,7 +643,24 @@ public class MethodCallHandlerImpl implements MethodCallHandler, StateProvider {
             return;
           }
           Integer recorderId = call.argument("recorderId");
-          RTCRecorder recorder = new RTCRecorder(recorderId, new Size(-1,  -1), getUserMediaImpl, messenger, audioOnly);
+          if (videoTrack == null) {
+            AudioOnlyRecorder recorder = new AudioOnlyRecorder(recorderId, recordSamplesInterceptor, null, null, messenger);
+            recorder.startRecording(new File(path));
+            rtcRecorders.put(recorderId, recorder);
+            result.success(null);
+            return;
+          }
+          RTCRecorder recorder = new RTCRecorder(recorderId, new Size(-1,  -1), getUserMediaImpl, messenger, audioOnly, recordSamplesInterceptor);
+          Number frameQueueSize = call.argument("frameQueueSize");
+          recorder.setFrameQueue(frameQueueSize != null ? frameQueueSize.intValue() : 0, call.argument("frameDropPolicy"));
+          if (Boolean.TRUE.equals(call.argument("reuseSendEncoder"))) {
+            recorder.setSendEncoderFactory(videoEncoderFactory);
+          }
+          if (Boolean.TRUE.equals(call.argument("shareEncoder"))) {
+            Number videoBitrate = call.argument("videoBitrate");
+            recorder.setVideoBitrate(videoBitrate != null ? videoBitrate.intValue() : 0);
+            recorder.setSharedEncoders(sharedEncoders);
+          }
           boolean isMirror = false;
           if (videoTrack != null) {
             GetUserMediaImpl.VideoCapturerDesc desc = getUserMediaImpl.getVideoCapturerDesc(videoTrack.id());
@@ -649,7 +696,14 @@ public class MethodCallHandlerImpl implements MethodCallHandler, StateProvider {
         if (videoTrackId != null) {
           MediaStreamTrack track = getTrackForId(videoTrackId);
           if (track instanceof VideoTrack) {
-            new FrameCapturer((VideoTrack) track, new File(path), result);
+            Number quality = call.argument("quality");
+            Number width = call.argument("width");
+            Number height = call.argument("height");
+            new FrameCapturer((VideoTrack) track, new File(path), result, call.argument("format"),
+                quality != null ? quality.intValue() : FrameCapturer.DEFAULT_QUALITY,
+                width != null ? width.intValue() : 0,
+                height != null ? height.intValue() : 0,
+                Boolean.TRUE.equals(call.argument("mirror")));
           } else {
             resultError("captureFrame", "It's not video track", result);
           }
@@ -658,21 +712,124 @@ public class MethodCallHandlerImpl implements MethodCallHandler, StateProvider {
         }
         break;
       }
+      case "createFrameSampler": {
+        Integer samplerId = call.argument("samplerId");
+        String videoTrackId = call.argument("trackId");
+        MediaStreamTrack track = videoTrackId != null ? getTrackForId(videoTrackId) : null;
+        if (!(track instanceof VideoTrack)) {
+          resultError("createFrameSampler", "It's not video track", result);
+          break;
+        }
+        Number intervalMs = call.argument("intervalMs");
+        Number width = call.argument("width");
+        Number height = call.argument("height");
+        Number quality = call.argument("quality");
+        Number maxFiles = call.argument("maxFiles");
+        String directory = call.argument("directory");
+        // The new sampler registers its event channel under the same name, release the old one first
+        FrameSampler previous = frameSamplers.remove(samplerId);
+        if (previous != null) {
+          previous.release();
+        }
+        FrameSampler sampler = new FrameSampler(samplerId, (VideoTrack) track, messenger,
+            intervalMs != null ? intervalMs.longValue() : 0,
+            width != null ? width.intValue() : 0,
+            height != null ? height.intValue() : 0);
+        sampler.setOutput(call.argument("format"),
+            quality != null ? quality.intValue() : FrameSampler.DEFAULT_QUALITY,
+            Boolean.TRUE.equals(call.argument("mirror")));
+        sampler.setDirectory(directory != null ? new File(directory) : null,
+            maxFiles != null ? maxFiles.intValue() : FrameSampler.DEFAULT_MAX_FILES);
+        frameSamplers.put(samplerId, sampler);
+        sampler.start();
+        result.success(null);
+        break;
+      }
+      case "disposeFrameSampler": {
+        Integer samplerId = call.argument("samplerId");
+        FrameSampler sampler = frameSamplers.remove(samplerId);
+        if (sampler != null) {
+          sampler.release();
+        }
+        result.success(null);
+        break;
+      }
+      case "createPcmStream": {
+        Integer streamId = call.argument("streamId");
+        String source = call.argument("source");
+        Number sampleRate = call.argument("sampleRate");
+        Number channels = call.argument("channels");
+        Number chunkMs = call.argument("chunkMs");
+        Number credits = call.argument("credits");
+        PcmStreamer.Source streamSource;
+        if ("playback".equals(source)) {
+          streamSource = PcmStreamer.Source.PLAYBACK;
+        } else if ("mixed".equals(source)) {
+          streamSource = PcmStreamer.Source.MIXED;
+        } else {
+          streamSource = PcmStreamer.Source.RECORD;
+        }
+        int maxCredits = credits != null ? Math.max(1, credits.intValue()) : 4;
+        // The new stream registers its channel under the same name, release the old one first
+        PcmStreamer previous = pcmStreams.remove(streamId);
+        if (previous != null) {
+          previous.release();
+        }
+        PcmStreamer stream = new PcmStreamer(streamId, messenger, streamSource,
+            recordSamplesInterceptor, playbackSamplesInterceptor,
+            sampleRate != null ? sampleRate.intValue() : 16000,
+            channels != null ? channels.intValue() : 1,
+            chunkMs != null ? chunkMs.intValue() : 100,
+            maxCredits);
+        pcmStreams.put(streamId, stream);
+        // Dart starts with as many credits as there are buffers
+        stream.grant(maxCredits);
+        try {
+          stream.start();
+        } catch (Exception e) {
+          pcmStreams.remove(streamId);
+          stream.release();
+          resultError("createPcmStream", e.getMessage(), result);
+          break;
+        }
+        result.success(null);
+        break;
+      }
+      case "disposePcmStream": {
+        Integer streamId = call.argument("streamId");
+        PcmStreamer stream = pcmStreams.remove(streamId);
+        if (stream != null) {
+          stream.release();
+        }
+        result.success(null);
+        break;
+      }
       case "createMultiPartyRecorder": {
-        double width = call.argument("width");
-        double height = call.argument("height");
+        Number width = call.argument("width");
+        Number height = call.argument("height");
         String format = call.argument("format");
-        boolean audioOnly = call.argument("audioOnly");
+        boolean audioOnly = Boolean.TRUE.equals(call.argument("audioOnly"));
         String mediaRecorderType = call.argument("type");
         ConnectionType type = Connection.connectionTypeFromString(mediaRecorderType);
 
         Integer recorderId = call.argument("recorderId");
-        Size videoSize = new Size((int) width, (int) height);
+        Size videoSize = new Size(width != null ? width.intValue() : 0, height != null ? height.intValue() : 0);
         FlutterRecorder recorder = null;
-        if (type == ConnectionType.LOCAL) {
-          recorder = new RTCRecorder(recorderId, null, getUserMediaImpl, messenger, audioOnly);
+        if (audioOnly) {
+          // Only a local recorder leaves the remote audio out
+          recorder = new AudioOnlyRecorder(recorderId, recordSamplesInterceptor,
+              type == ConnectionType.LOCAL ? null : playbackSamplesInterceptor, format, messenger);
+        } else if (type == ConnectionType.LOCAL) {
+          recorder = new RTCRecorder(recorderId, null, getUserMediaImpl, messenger, audioOnly, recordSamplesInterceptor);
         } else if (type == ConnectionType.MIXED) {
-          recorder = new FlutterVideoRecorder(recorderId, recordSamplesInterceptor, playbackSamplesInterceptor, videoSize, format, messenger, getUserMediaImpl, audioOnly);
+          FlutterVideoRecorder videoRecorder = new FlutterVideoRecorder(recorderId, recordSamplesInterceptor, playbackSamplesInterceptor, videoSize, format, messenger, getUserMediaImpl, audioOnly);
+          if (Boolean.TRUE.equals(call.argument("prewarmEncoders"))) {
+            if (encoderPool == null) {
+              encoderPool = new EncoderPool();
+            }
+            videoRecorder.setEncoderPool(encoderPool);
+          }
+          recorder = videoRecorder;
         }
         if (recorder != null) {
           rtcRecorders.put(recorderId, recorder);
@@ -764,7 +921,36 @@ public class MethodCallHandlerImpl implements MethodCallHandler, StateProvider {
           FlutterRecorder recorder = rtcRecorders.get(recorderId);
           if (recorder != null) {
             String path = call.argument("path");
-            recorder.startRecording(new File(path));
+            Number segmentDurationMs = call.argument("segmentDurationMs");
+            Number maxSegmentBytes = call.argument("maxSegmentBytes");
+            Number replayDurationMs = call.argument("replayDurationMs");
+            if (recorder instanceof FlutterVideoRecorder) {
+              ((FlutterVideoRecorder) recorder).setSegmentation(
+                  segmentDurationMs != null ? segmentDurationMs.longValue() * 1000 : 0,
+                  maxSegmentBytes != null ? maxSegmentBytes.longValue() : 0);
+              ((FlutterVideoRecorder) recorder).setReplayWindow(
+                  replayDurationMs != null ? replayDurationMs.longValue() * 1000 : 0);
+              ((FlutterVideoRecorder) recorder).setFastStart(Boolean.TRUE.equals(call.argument("fastStart")));
+            } else if (recorder instanceof RTCRecorder) {
+              Number frameQueueSize = call.argument("frameQueueSize");
+              ((RTCRecorder) recorder).setFrameQueue(frameQueueSize != null ? frameQueueSize.intValue() : 0, call.argument("frameDropPolicy"));
+              ((RTCRecorder) recorder).setSendEncoderFactory(
+                  Boolean.TRUE.equals(call.argument("reuseSendEncoder")) ? videoEncoderFactory : null);
+              ((RTCRecorder) recorder).setReceiveDecoderFactory(
+                  Boolean.TRUE.equals(call.argument("reuseReceivedStream")) ? videoDecoderFactory : null,
+                  playbackSamplesInterceptor);
+              Number videoBitrate = call.argument("videoBitrate");
+              ((RTCRecorder) recorder).setVideoBitrate(videoBitrate != null ? videoBitrate.intValue() : 0);
+              ((RTCRecorder) recorder).setSharedEncoders(
+                  Boolean.TRUE.equals(call.argument("shareEncoder")) ? sharedEncoders : null);
+            } else if (recorder instanceof AudioOnlyRecorder) {
+              ((AudioOnlyRecorder) recorder).setSplitSources(Boolean.TRUE.equals(call.argument("splitAudioSources")));
+            }
+            if (path.startsWith("rtmp://") && recorder instanceof FlutterVideoRecorder) {
+              ((FlutterVideoRecorder) recorder).startStreaming(path);
+            } else {
+              recorder.startRecording(new File(path));
+            }
             result.success(null);
           } else {
             resultError("0", "Media recorder not found", null);
@@ -774,6 +960,16 @@ public class MethodCallHandlerImpl implements MethodCallHandler, StateProvider {
         }
         break;
       }
+      case "saveMultiPartyRecorderReplay": {
+        Integer recorderId = call.argument("recorderId");
+        FlutterRecorder recorder = rtcRecorders.get(recorderId);
+        if (recorder instanceof FlutterVideoRecorder) {
+          ((FlutterVideoRecorder) recorder).saveReplay(call.argument("path"), result);
+        } else {
+          resultError("saveMultiPartyRecorderReplay", "Mixed recorder not found", result);
+        }
+        break;
+      }
       case "stopMultiPartyRecorder": {
         try {
           Integer recorderId = call.argument("recorderId");
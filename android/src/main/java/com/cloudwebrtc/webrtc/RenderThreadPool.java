@@ -0,0 +1,433 @@
+package com.cloudwebrtc.webrtc;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.Surface;
+
+import org.webrtc.EglBase;
+import org.webrtc.EglBase14;
+import org.webrtc.Logging;
+import org.webrtc.ThreadUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A small fixed set of render threads shared by the video renderers, instead of a thread and an
+ * EGL context per renderer.
+ * <p/>
+ * Each thread owns one EGL context, shared with the root context, and gives each of its renderers
+ * an {@link EglBase} that only owns the renderer's window surface. Renders requested on a thread
+ * are batched and run together once per vsync. Renderers are spread over the threads by load; a
+ * thread and its context are created for its first renderer and torn down after its last.
+ */
+public class RenderThreadPool {
+    private static final String TAG = "RenderThreadPool";
+    private static final int MAX_THREADS = 4;
+
+    private static RenderThreadPool instance;
+
+    private final EglBase.Context sharedContext;
+    private final int[] configAttributes;
+    private final RenderThread[] threads;
+
+    public RenderThreadPool(EglBase.Context sharedContext, int[] configAttributes, int threadCount) {
+        this.sharedContext = sharedContext;
+        this.configAttributes = configAttributes;
+        this.threads = new RenderThread[Math.max(1, threadCount)];
+    }
+
+    /**
+     * The pool of the renderers sharing |sharedContext|, normally the root context, with
+     * {@link EglBase#CONFIG_PLAIN}, with a thread per big core. A new pool replaces the previous
+     * one when the context changes; renderers still on the previous pool keep it until released.
+     */
+    public static synchronized RenderThreadPool getInstance(EglBase.Context sharedContext) {
+        if (instance == null || !instance.accepts(sharedContext, EglBase.CONFIG_PLAIN)) {
+            instance = new RenderThreadPool(sharedContext, EglBase.CONFIG_PLAIN,
+                    Math.min(MAX_THREADS, getBigCoreCount()));
+        }
+        return instance;
+    }
+
+    /**
+     * Whether renderers sharing |context| with |configAttributes| can use this pool.
+     */
+    public boolean accepts(EglBase.Context context, int[] configAttributes) {
+        return isSameContext(context, sharedContext) && Arrays.equals(configAttributes, this.configAttributes);
+    }
+
+    /**
+     * EglBase14 hands out a new Context wrapper on each call, so contexts are compared by their
+     * native handle.
+     */
+    private static boolean isSameContext(EglBase.Context a, EglBase.Context b) {
+        if (a instanceof EglBase14.Context && b instanceof EglBase14.Context) {
+            return ((EglBase14.Context) a).getNativeEglContext() == ((EglBase14.Context) b).getNativeEglContext();
+        }
+        return a == b;
+    }
+
+    /**
+     * Number of cores running at the highest maximum frequency, or half of the cores when the
+     * frequencies can't be read.
+     */
+    static int getBigCoreCount() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long maxFrequency = 0;
+        int bigCores = 0;
+        for (int i = 0; i < cores; i++) {
+            long frequency = readLong("/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq");
+            if (frequency > maxFrequency) {
+                maxFrequency = frequency;
+                bigCores = 1;
+            } else if (frequency == maxFrequency && frequency > 0) {
+                bigCores++;
+            }
+        }
+        return bigCores > 0 ? bigCores : Math.max(1, cores / 2);
+    }
+
+    private static long readLong(String path) {
+        File file = new File(path);
+        if (!file.canRead()) {
+            return 0;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            return line != null ? Long.parseLong(line.trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the least loaded thread, starting it if needed. Every call must be matched by
+     * {@link #release(RenderThread)}.
+     */
+    public synchronized RenderThread acquire() {
+        int index = 0;
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i] == null) {
+                index = i;
+                break;
+            }
+            if (threads[i].users < threads[index].users) {
+                index = i;
+            }
+        }
+        if (threads[index] == null) {
+            threads[index] = new RenderThread(TAG + index);
+        }
+        threads[index].users++;
+        return threads[index];
+    }
+
+    public synchronized void release(RenderThread thread) {
+        if (--thread.users > 0) {
+            return;
+        }
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i] == thread) {
+                threads[i] = null;
+            }
+        }
+        thread.quit();
+    }
+
+    /**
+     * A render thread with its EGL context.
+     */
+    public class RenderThread implements Choreographer.FrameCallback {
+        private final HandlerThread thread;
+        private final Handler handler;
+        // Guarded by RenderThreadPool.this
+        private int users;
+
+        // Render thread only
+        private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+        private EGLConfig config;
+        private EGLContext context = EGL14.EGL_NO_CONTEXT;
+        // Keeps the context current when no renderer surface is
+        private EGLSurface idleSurface = EGL14.EGL_NO_SURFACE;
+        private Choreographer choreographer;
+
+        private final Object renderLock = new Object();
+        private ArrayList<Runnable> pendingRenders = new ArrayList<>();
+        private ArrayList<Runnable> runningRenders = new ArrayList<>();
+        private boolean frameScheduled;
+        private final Runnable scheduleFrame = () -> choreographer.postFrameCallback(this);
+
+        private RenderThread(String name) {
+            thread = new HandlerThread(name);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            ThreadUtils.invokeAtFrontUninterruptibly(handler, this::createContext);
+        }
+
+        public Looper getLooper() {
+            return thread.getLooper();
+        }
+
+        /**
+         * Gives the thread back to its pool, see {@link RenderThreadPool#release(RenderThread)}.
+         */
+        public void release() {
+            RenderThreadPool.this.release(this);
+        }
+
+        private void createContext() {
+            display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+            int[] version = new int[2];
+            if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+                throw new RuntimeException("Unable to initialize EGL: 0x" + Integer.toHexString(EGL14.eglGetError()));
+            }
+            EGLConfig[] configs = new EGLConfig[1];
+            int[] numConfigs = new int[1];
+            if (!EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, configs.length, numConfigs, 0)
+                    || numConfigs[0] <= 0) {
+                throw new RuntimeException("Unable to find an EGL config: 0x" + Integer.toHexString(EGL14.eglGetError()));
+            }
+            config = configs[0];
+            EGLContext shared = sharedContext instanceof EglBase14.Context
+                    ? ((EglBase14.Context) sharedContext).getRawContext() : EGL14.EGL_NO_CONTEXT;
+            int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION,
+                    EglBase.getOpenGlesVersionFromConfig(configAttributes), EGL14.EGL_NONE};
+            synchronized (EglBase.lock) {
+                context = EGL14.eglCreateContext(display, config, shared, contextAttributes, 0);
+            }
+            if (context == EGL14.EGL_NO_CONTEXT) {
+                throw new RuntimeException("Unable to create EGL context: 0x" + Integer.toHexString(EGL14.eglGetError()));
+            }
+            idleSurface = EGL14.eglCreatePbufferSurface(display, config,
+                    new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+            makeCurrent(idleSurface);
+            choreographer = Choreographer.getInstance();
+        }
+
+        private void makeCurrent(EGLSurface surface) {
+            if (EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW).equals(surface)) {
+                return;
+            }
+            synchronized (EglBase.lock) {
+                if (!EGL14.eglMakeCurrent(display, surface, surface, context)) {
+                    throw new RuntimeException("eglMakeCurrent failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+                }
+            }
+        }
+
+        /**
+         * Creates the {@link EglBase} of a renderer on this thread. Must be called on this thread.
+         */
+        public EglBase createEglBase() {
+            return new SurfaceEglBase();
+        }
+
+        /**
+         * Runs |render| on the next vsync along with the other renders requested on this thread.
+         * Requesting it again before then runs it only once.
+         */
+        public void requestRender(Runnable render) {
+            synchronized (renderLock) {
+                if (!pendingRenders.contains(render)) {
+                    pendingRenders.add(render);
+                }
+                if (!frameScheduled) {
+                    frameScheduled = true;
+                    handler.post(scheduleFrame);
+                }
+            }
+        }
+
+        /**
+         * Drops a render requested with {@link #requestRender(Runnable)} that hasn't run yet.
+         */
+        public void cancelRender(Runnable render) {
+            synchronized (renderLock) {
+                pendingRenders.remove(render);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            ArrayList<Runnable> renders;
+            synchronized (renderLock) {
+                renders = pendingRenders;
+                pendingRenders = runningRenders;
+                runningRenders = renders;
+                frameScheduled = false;
+            }
+            for (Runnable render : renders) {
+                try {
+                    render.run();
+                } catch (RuntimeException e) {
+                    Logging.e(TAG, "Render failed", e);
+                }
+            }
+            renders.clear();
+        }
+
+        private void quit() {
+            handler.post(() -> {
+                choreographer.removeFrameCallback(this);
+                synchronized (EglBase.lock) {
+                    EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+                    EGL14.eglDestroySurface(display, idleSurface);
+                    EGL14.eglDestroyContext(display, context);
+                }
+                EGL14.eglReleaseThread();
+                EGL14.eglTerminate(display);
+                context = EGL14.EGL_NO_CONTEXT;
+                display = EGL14.EGL_NO_DISPLAY;
+                thread.quitSafely();
+            });
+        }
+
+        private class SharedContext implements EglBase14.Context {
+            private final EGLContext rawContext;
+
+            private SharedContext(EGLContext rawContext) {
+                this.rawContext = rawContext;
+            }
+
+            @Override
+            public EGLContext getRawContext() {
+                return rawContext;
+            }
+
+            @Override
+            public long getNativeEglContext() {
+                return rawContext.getNativeHandle();
+            }
+        }
+
+        /**
+         * The surface of one renderer, drawn with the context of the thread. Releasing it only
+         * destroys the surface.
+         */
+        private class SurfaceEglBase implements EglBase14 {
+            private EGLSurface surface = EGL14.EGL_NO_SURFACE;
+
+            @Override
+            public void createSurface(Surface surface) {
+                createWindowSurface(surface);
+            }
+
+            @Override
+            public void createSurface(SurfaceTexture surfaceTexture) {
+                createWindowSurface(surfaceTexture);
+            }
+
+            private void createWindowSurface(Object nativeWindow) {
+                if (surface != EGL14.EGL_NO_SURFACE) {
+                    throw new RuntimeException("Already has an EGLSurface");
+                }
+                surface = EGL14.eglCreateWindowSurface(display, config, nativeWindow, new int[]{EGL14.EGL_NONE}, 0);
+                if (surface == EGL14.EGL_NO_SURFACE) {
+                    throw new RuntimeException("Failed to create window surface: 0x" + Integer.toHexString(EGL14.eglGetError()));
+                }
+            }
+
+            @Override
+            public void createDummyPbufferSurface() {
+                createPbufferSurface(1, 1);
+            }
+
+            @Override
+            public void createPbufferSurface(int width, int height) {
+                if (surface != EGL14.EGL_NO_SURFACE) {
+                    throw new RuntimeException("Already has an EGLSurface");
+                }
+                surface = EGL14.eglCreatePbufferSurface(display, config,
+                        new int[]{EGL14.EGL_WIDTH, width, EGL14.EGL_HEIGHT, height, EGL14.EGL_NONE}, 0);
+                if (surface == EGL14.EGL_NO_SURFACE) {
+                    throw new RuntimeException("Failed to create pixel buffer surface: 0x" + Integer.toHexString(EGL14.eglGetError()));
+                }
+            }
+
+            @Override
+            public EglBase.Context getEglBaseContext() {
+                return new SharedContext(context);
+            }
+
+            @Override
+            public boolean hasSurface() {
+                return surface != EGL14.EGL_NO_SURFACE;
+            }
+
+            @Override
+            public int surfaceWidth() {
+                return query(EGL14.EGL_WIDTH);
+            }
+
+            @Override
+            public int surfaceHeight() {
+                return query(EGL14.EGL_HEIGHT);
+            }
+
+            private int query(int attribute) {
+                int[] value = new int[1];
+                EGL14.eglQuerySurface(display, surface, attribute, value, 0);
+                return value[0];
+            }
+
+            @Override
+            public void releaseSurface() {
+                if (surface != EGL14.EGL_NO_SURFACE) {
+                    // The other renderers of the thread keep using the context
+                    detachCurrent();
+                    EGL14.eglDestroySurface(display, surface);
+                    surface = EGL14.EGL_NO_SURFACE;
+                }
+            }
+
+            @Override
+            public void release() {
+                releaseSurface();
+            }
+
+            @Override
+            public void makeCurrent() {
+                if (surface == EGL14.EGL_NO_SURFACE) {
+                    throw new RuntimeException("No EGLSurface - can't make current");
+                }
+                RenderThread.this.makeCurrent(surface);
+            }
+
+            @Override
+            public void detachCurrent() {
+                if (EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW).equals(surface)) {
+                    RenderThread.this.makeCurrent(idleSurface);
+                }
+            }
+
+            @Override
+            public void swapBuffers() {
+                synchronized (EglBase.lock) {
+                    EGL14.eglSwapBuffers(display, surface);
+                }
+            }
+
+            @Override
+            public void swapBuffers(long presentationTimeStampNs) {
+                synchronized (EglBase.lock) {
+                    EGLExt.eglPresentationTimeANDROID(display, surface, presentationTimeStampNs);
+                    EGL14.eglSwapBuffers(display, surface);
+                }
+            }
+        }
+    }
+}
@@ -33,6 +33,7 @@ public class AudioMixerController {
     //private AudioFrame frameForMixing;
     private boolean running = false;
     private MixerFrameCallback receiver;
+    private SourceFrameCallback sourceReceiver;
     private AudioMixer mixer;
     private HandlerThread renderThread;
     private Handler renderThreadHandler;
@@ -231,6 +232,9 @@ public class AudioMixerController {
                 int key = sources.keyAt(i);
                 MixerSinkCallback obj = sources.get(key);
                 byte[] data = obj.readData();
+                if (sourceReceiver != null) {
+                    sourceReceiver.onSourceBuffer(obj.ssrc(), data);
+                }
                 mixer.addRecordedData(obj.ssrc(), data);
             }
             ByteBuffer buffer = mixer.mix();
@@ -256,6 +260,7 @@ public class AudioMixerController {
                 //sources.clear();
                 eventListeners.clear();
                 this.receiver = null;
+                this.sourceReceiver = null;
                 mixer.release();
                 renderThread.quit();
                 cleanupBarrier.countDown();
@@ -269,6 +274,14 @@ public class AudioMixerController {
         postToRenderThread(() -> this.receiver = receiver);
     }
 
+    /**
+     * |receiver| gets the samples read from each source before they are mixed, on the mixer
+     * thread.
+     */
+    public void setSourceOutputReceiver(final SourceFrameCallback receiver) {
+        postToRenderThread(() -> this.sourceReceiver = receiver);
+    }
+
     public int getSampleRate() {
         return sampleRate;
     }
@@ -379,6 +392,10 @@ public class AudioMixerController {
         void onBuffer(ByteBuffer buffer);
     }
 
+    public static interface SourceFrameCallback {
+        void onSourceBuffer(int ssrc, byte[] data);
+    }
+
     public static interface AudioMixerEvent {
         void onMixerInitialized(AudioMixerController mixerController);
 
@@ -13,6 +13,7 @@ import androidx.annotation.Nullable;
 
 import com.cloudwebrtc.webrtc.muxer.AudioEncoder;
 import com.cloudwebrtc.webrtc.muxer.BaseMuxer;
+import com.cloudwebrtc.webrtc.muxer.MediaClock;
 
 import org.webrtc.AudioMixer;
 import org.webrtc.Logging;
@@ -53,6 +54,7 @@ public class AudioMixerController3 {
     private boolean initialized;
     private MediaCodec mMediaCodec;
     private AudioEncoder mAudioEnc;
+    private volatile MediaClock mediaClock = new MediaClock();
     private SparseArray<MixerSinkCallback> sources = new SparseArray();
     //private MixerConfig mixerConfig;
     private final Runnable frameGrabberRunnabele = new Runnable() {
@@ -403,6 +405,13 @@ public class AudioMixerController3 {
         void onBuffer(ByteBuffer buffer);
     }
 
+    /**
+     * Stamps the mixed audio with the session clock shared with the other encoders.
+     */
+    public void setMediaClock(MediaClock clock) {
+        mediaClock = clock;
+    }
+
     public static interface AudioMixerEvent {
         void onMixerInitialized(AudioMixerController3 mixerController);
 
@@ -415,8 +424,6 @@ public class AudioMixerController3 {
     private  class AudioRecordThread extends Thread {
         private volatile boolean keepAlive = true;
         long audioAbsolutePtsUs;
-        long startPTS = 0;
-        long totalSamplesNum = 0;
 
         public AudioRecordThread(String name) {
             super(name);
@@ -471,8 +478,11 @@ public class AudioMixerController3 {
                     if (DEBUG) Log.d(TAG, "Encode AudioFrame Buffer Remaining: " + audioInputLength);
                     if (DEBUG) Log.d(TAG, "Bytes Read : " + audioInputLength);
 
-                    audioAbsolutePtsUs = (System.nanoTime()) / 1000L;
-                    audioAbsolutePtsUs = getJitterFreePTS(audioAbsolutePtsUs, audioInputLength / 2);
+                    // Audio samples are 16bit
+                    long ptsUs = endOfStream ? -1 : mediaClock.getAudioPts(audioInputLength / (2 * channels), sampleRate);
+                    if (ptsUs >= 0) {
+                        audioAbsolutePtsUs = ptsUs;
+                    }
 
                     if (audioInputLength == AudioRecord.ERROR_INVALID_OPERATION)
                         Log.e(TAG, "Audio read error: invalid operation");
@@ -514,25 +524,5 @@ public class AudioMixerController3 {
 
             }
         }
-
-        private long getJitterFreePTS(long bufferPts, long bufferSamplesNum) {
-            long correctedPts = 0;
-            long bufferDuration = (1000000 * bufferSamplesNum) / (sampleRate);
-            bufferPts -= bufferDuration; // accounts for the delay of acquiring the audio buffer
-            if (totalSamplesNum == 0) {
-                // reset
-                startPTS = bufferPts;
-                totalSamplesNum = 0;
-            }
-            correctedPts = startPTS + (1000000 * totalSamplesNum) / (sampleRate);
-            if (bufferPts - correctedPts >= 2 * bufferDuration) {
-                // reset
-                startPTS = bufferPts;
-                totalSamplesNum = 0;
-                correctedPts = startPTS;
-            }
-            totalSamplesNum += bufferSamplesNum;
-            return correctedPts;
-        }
     }
 }
\ No newline at end of file
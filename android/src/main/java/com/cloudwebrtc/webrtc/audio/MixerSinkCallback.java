@@ -41,6 +41,13 @@ public class MixerSinkCallback extends AudioMixer.AudioMixerSource implements Ja
 //        return emptyBytes;
     }
 
+    /**
+     * Drops the samples not mixed yet, e.g. those captured before a pause.
+     */
+    public void clear() {
+        sampleBuffer.clear();
+    }
+
     public void onWebRtcAudioRecordSamplesReady(JavaAudioDeviceModule.AudioSamples samples) {
         if (mixerController != null) {
             if (sampleBuffer.size() == CAPACITY) {
@@ -0,0 +1,138 @@
+package com.cloudwebrtc.webrtc.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts 16 bit little endian PCM to a fixed sample rate and channel count, resampling with
+ * linear interpolation. Good enough for speech models and level meters, not for playback.
+ * <p/>
+ * Interpolation carries over from one buffer to the next, so buffers of any size can be
+ * converted in a row. The output goes to a reused array that only grows when a larger buffer
+ * comes in.
+ * <p/>
+ * Pure Java: no Android dependencies, so it can be exercised on a plain JVM.
+ */
+public class PcmConverter {
+    private final int outputRate;
+    private final int outputChannels;
+    private int inputRate = -1;
+    private int inputChannels = -1;
+    private double step;
+    // Position of the next output frame, in input frames from the start of the next buffer. -1
+    // is the last frame of the previous buffer.
+    private double position;
+    private final short[] previous;
+    private short[] output = new short[0];
+
+    // Buffer being converted
+    private byte[] data;
+    private ByteBuffer buffer;
+
+    public PcmConverter(int outputRate, int outputChannels) {
+        this.outputRate = outputRate;
+        this.outputChannels = outputChannels;
+        this.previous = new short[outputChannels];
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    public int getOutputChannels() {
+        return outputChannels;
+    }
+
+    /**
+     * Samples written by the last conversion, interleaved.
+     */
+    public short[] getOutput() {
+        return output;
+    }
+
+    /**
+     * Converts |data|, returning the number of samples written to {@link #getOutput()}.
+     */
+    public int convert(byte[] data, int inputRate, int inputChannels) {
+        this.data = data;
+        try {
+            return convert(data.length / 2 / inputChannels, inputRate, inputChannels);
+        } finally {
+            this.data = null;
+        }
+    }
+
+    /**
+     * Converts the bytes of |buffer| up to its limit, returning the number of samples written to
+     * {@link #getOutput()}.
+     */
+    public int convert(ByteBuffer buffer, int inputRate, int inputChannels) {
+        this.buffer = buffer;
+        try {
+            return convert(buffer.limit() / 2 / inputChannels, inputRate, inputChannels);
+        } finally {
+            this.buffer = null;
+        }
+    }
+
+    private int convert(int frames, int rate, int channels) {
+        if (rate != inputRate || channels != inputChannels) {
+            inputRate = rate;
+            inputChannels = channels;
+            step = (double) rate / outputRate;
+            position = 0;
+        }
+        if (frames == 0) {
+            return 0;
+        }
+        int capacity = ((int) Math.ceil((frames - position) / step) + 1) * outputChannels;
+        if (output.length < capacity) {
+            output = new short[capacity];
+        }
+        int count = 0;
+        while (position <= frames - 1) {
+            int index = (int) Math.floor(position);
+            double fraction = position - index;
+            for (int channel = 0; channel < outputChannels; channel++) {
+                int current = index < 0 ? previous[channel] : sample(index, channel);
+                if (fraction == 0) {
+                    output[count++] = (short) current;
+                } else {
+                    int next = sample(index + 1, channel);
+                    output[count++] = (short) Math.round(current + (next - current) * fraction);
+                }
+            }
+            position += step;
+        }
+        for (int channel = 0; channel < outputChannels; channel++) {
+            previous[channel] = (short) sample(frames - 1, channel);
+        }
+        position -= frames;
+        return count;
+    }
+
+    /**
+     * Sample of output |channel| at input |frame|: the average of the input channels when
+     * downmixing to mono, the first one when upmixing mono.
+     */
+    private int sample(int frame, int channel) {
+        if (inputChannels == outputChannels) {
+            return read(frame * inputChannels + channel);
+        }
+        if (outputChannels == 1) {
+            int sum = 0;
+            for (int i = 0; i < inputChannels; i++) {
+                sum += read(frame * inputChannels + i);
+            }
+            return sum / inputChannels;
+        }
+        return read(frame * inputChannels + Math.min(channel, inputChannels - 1));
+    }
+
+    private int read(int sample) {
+        int offset = sample * 2;
+        if (data != null) {
+            return (short) ((data[offset] & 0xff) | (data[offset + 1] << 8));
+        }
+        return (short) ((buffer.get(offset) & 0xff) | (buffer.get(offset + 1) << 8));
+    }
+}
@@ -0,0 +1,215 @@
+package com.cloudwebrtc.webrtc.audio;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.cloudwebrtc.webrtc.record.AudioSamplesInterceptor;
+
+import org.webrtc.audio.JavaAudioDeviceModule;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.flutter.plugin.common.BinaryMessenger;
+
+/**
+ * Streams the microphone, the remote audio played out or their mix to Dart as chunks of 16 bit
+ * PCM, e.g. for keyword spotting, on the binary channel "FlutterWebRTC/pcmStream/|id|".
+ * <p/>
+ * Each message is a 16 byte little endian header (capture time in ms since the epoch as int64,
+ * sequence number and chunks dropped so far as int32) followed by the samples. Chunks are built
+ * in a fixed set of direct buffers and only sent while Dart has credits: it grants some when
+ * the stream is created, then one per chunk it has handled, by sending an int32 on the same
+ * channel. A chunk completed without credit or free buffer is dropped, not queued, so a slow
+ * listener loses audio instead of falling behind.
+ */
+public class PcmStreamer implements JavaAudioDeviceModule.SamplesReadyCallback {
+    private static final String TAG = "PcmStreamer";
+    private static final int HEADER_SIZE = 16;
+    // Rate and channels of the mix, as the audio only recorder mixes them
+    private static final int MIXER_SAMPLE_RATE = 48000;
+    private static final int MIXER_CHANNELS = 1;
+
+    public enum Source {
+        RECORD,
+        PLAYBACK,
+        MIXED,
+    }
+
+    private final int id;
+    private final String channelName;
+    private final BinaryMessenger messenger;
+    private final AudioSamplesInterceptor recordSamplesInterceptor;
+    private final AudioSamplesInterceptor playbackSamplesInterceptor;
+    private final Source source;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger credits = new AtomicInteger();
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private final ArrayBlockingQueue<ByteBuffer> readyBuffers;
+    private final Runnable sendReady = this::sendReady;
+    private volatile boolean released;
+
+    // Producer thread only: the audio thread of the source, or the mixer thread
+    private final PcmConverter converter;
+    private ByteBuffer chunk;
+    private int sequence;
+    private int dropped;
+
+    private AudioMixerController mixerController;
+
+    /**
+     * @param chunkMs    duration of each chunk.
+     * @param maxCredits chunks that can be on their way to Dart at once, which is also the
+     *                   number of buffers allocated.
+     */
+    public PcmStreamer(int id, BinaryMessenger messenger, Source source,
+                       AudioSamplesInterceptor recordSamplesInterceptor,
+                       AudioSamplesInterceptor playbackSamplesInterceptor,
+                       int sampleRate, int channels, int chunkMs, int maxCredits) {
+        this.id = id;
+        this.channelName = "FlutterWebRTC/pcmStream/" + id;
+        this.messenger = messenger;
+        this.source = source;
+        this.recordSamplesInterceptor = recordSamplesInterceptor;
+        this.playbackSamplesInterceptor = playbackSamplesInterceptor;
+        this.converter = new PcmConverter(sampleRate, channels);
+        int chunkBytes = HEADER_SIZE + sampleRate * chunkMs / 1000 * channels * 2;
+        // One more than the credits for the chunk being filled
+        freeBuffers = new ArrayBlockingQueue<>(maxCredits + 1);
+        readyBuffers = new ArrayBlockingQueue<>(maxCredits + 1);
+        for (int i = 0; i < maxCredits; i++) {
+            freeBuffers.offer(ByteBuffer.allocateDirect(chunkBytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        chunk = ByteBuffer.allocateDirect(chunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.position(HEADER_SIZE);
+        messenger.setMessageHandler(channelName, (message, reply) -> {
+            if (message != null && message.remaining() >= 4) {
+                grant(message.order(ByteOrder.LITTLE_ENDIAN).getInt(message.position()));
+            }
+            reply.reply(null);
+        });
+    }
+
+    public void grant(int count) {
+        if (count > 0) {
+            credits.addAndGet(count);
+        }
+    }
+
+    public void start() throws Exception {
+        switch (source) {
+            case RECORD:
+                recordSamplesInterceptor.attachCallback(id, this);
+                break;
+            case PLAYBACK:
+                playbackSamplesInterceptor.attachCallback(id, this);
+                break;
+            case MIXED:
+                startMixer();
+                break;
+        }
+    }
+
+    private void startMixer() throws Exception {
+        mixerController = new AudioMixerController(MIXER_CHANNELS, MIXER_SAMPLE_RATE);
+        if (recordSamplesInterceptor != null) {
+            recordSamplesInterceptor.attachCallback(id, new MixerSinkCallback(1, MIXER_CHANNELS, 5.0f, MIXER_SAMPLE_RATE, mixerController, true));
+        }
+        if (playbackSamplesInterceptor != null) {
+            playbackSamplesInterceptor.attachCallback(id, new MixerSinkCallback(2, MIXER_CHANNELS, 5.0f, MIXER_SAMPLE_RATE, mixerController, false));
+        }
+        mixerController.setMixerOutputReceiver(buffer -> {
+            if (released) {
+                return;
+            }
+            buffer.rewind();
+            append(converter.convert(buffer, MIXER_SAMPLE_RATE, MIXER_CHANNELS));
+        });
+        mixerController.start();
+    }
+
+    @Override
+    public void onWebRtcAudioRecordSamplesReady(JavaAudioDeviceModule.AudioSamples samples) {
+        if (released) {
+            return;
+        }
+        append(converter.convert(samples.getData(), samples.getSampleRate(), samples.getChannelCount()));
+    }
+
+    private void append(int count) {
+        short[] samples = converter.getOutput();
+        for (int i = 0; i < count; i++) {
+            chunk.putShort(samples[i]);
+            if (!chunk.hasRemaining()) {
+                completeChunk();
+            }
+        }
+    }
+
+    private void completeChunk() {
+        chunk.putLong(0, System.currentTimeMillis());
+        chunk.putInt(8, sequence++);
+        ByteBuffer next = freeBuffers.poll();
+        if (next != null && !takeCredit()) {
+            freeBuffers.offer(next);
+            next = null;
+        }
+        if (next == null) {
+            dropped++;
+            chunk.position(HEADER_SIZE);
+            return;
+        }
+        chunk.putInt(12, dropped);
+        // Flutter sends the bytes before the position, so it is left at the end of the chunk
+        readyBuffers.offer(chunk);
+        mainHandler.post(sendReady);
+        next.clear();
+        next.position(HEADER_SIZE);
+        chunk = next;
+    }
+
+    private boolean takeCredit() {
+        while (true) {
+            int available = credits.get();
+            if (available <= 0) {
+                return false;
+            }
+            if (credits.compareAndSet(available, available - 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Main thread: the messenger copies the message before send returns
+    private void sendReady() {
+        ByteBuffer buffer;
+        while ((buffer = readyBuffers.poll()) != null) {
+            if (!released) {
+                messenger.send(channelName, buffer);
+            }
+            freeBuffers.offer(buffer);
+        }
+    }
+
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        messenger.setMessageHandler(channelName, null);
+        if (recordSamplesInterceptor != null) {
+            recordSamplesInterceptor.detachCallback(id);
+        }
+        if (playbackSamplesInterceptor != null) {
+            playbackSamplesInterceptor.detachCallback(id);
+        }
+        if (mixerController != null) {
+            mixerController.release();
+            mixerController = null;
+        }
+        Log.d(TAG, "Released stream " + id + ", " + sequence + " chunks, " + dropped + " dropped");
+    }
+}
@@ -8,12 +8,14 @@ import android.util.Log;
 
 import com.cloudwebrtc.webrtc.muxer.AudioEncoder;
 import com.cloudwebrtc.webrtc.muxer.BaseMuxer;
+import com.cloudwebrtc.webrtc.muxer.MediaClock;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by peerwaya on 19/06/2017.
@@ -26,6 +28,10 @@ public class RecAudioRecorder implements Runnable, AudioMixerController.MixerFra
     private long numDroppedFrames = 0L;
 
     private final static int MAX_NUM_FRAMES = 100;
+    // How long the encode loop parks waiting for mixed audio when the encoder runs asynchronously
+    private final static long ASYNC_FRAME_WAIT_MS = 10;
+    // No audio comes in while the clock is paused, so there is no need to wake up as often
+    private final static long PAUSED_FRAME_WAIT_MS = 100;
 
     private ArrayBlockingQueue<byte[]> mixQueue = new ArrayBlockingQueue(MAX_NUM_FRAMES);
 
@@ -48,11 +54,26 @@ public class RecAudioRecorder implements Runnable, AudioMixerController.MixerFra
     int audioInputLength;
     long audioAbsolutePtsUs;
     private byte[] currentFrame;
+    private byte[] pendingFrame;
     private int mSampleRate;
+    private int mNumChannels;
+    private volatile MediaClock mMediaClock = new MediaClock();
 
     public RecAudioRecorder(BaseMuxer muxer, int bitRate, int sampleRate, int numChannels) throws IOException {
+        this(muxer, bitRate, sampleRate, numChannels, false);
+    }
+
+    public RecAudioRecorder(BaseMuxer muxer, int bitRate, int sampleRate, int numChannels, boolean asyncEncoding) throws IOException {
+        this(new AudioEncoder(numChannels, bitRate, sampleRate, muxer, asyncEncoding), sampleRate);
+    }
+
+    /**
+     * Feeds an already started |encoder|, e.g. one taken from an EncoderPool and bound to its muxer.
+     */
+    public RecAudioRecorder(AudioEncoder encoder, int sampleRate) {
         this.mSampleRate = sampleRate;
-        mAudioEnc = new AudioEncoder(numChannels, bitRate, sampleRate, muxer);
+        mNumChannels = encoder.getChannelCount();
+        mAudioEnc = encoder;
         mMediaCodec = mAudioEnc.getMediaCodec();
         mThreadReady = false;
         mThreadRunning = false;
@@ -62,6 +83,14 @@ public class RecAudioRecorder implements Runnable, AudioMixerController.MixerFra
     }
 
 
+    /**
+     * Stamps the audio with the session clock shared with the other encoders. Without one, the
+     * audio timeline starts with the first buffer.
+     */
+    public void setMediaClock(MediaClock clock) {
+        mMediaClock = clock;
+    }
+
     public void stopRecording() {
         Log.i(TAG, "stopRecording");
         synchronized (mRecordingFence) {
@@ -71,8 +100,6 @@ public class RecAudioRecorder implements Runnable, AudioMixerController.MixerFra
 
     private void doStartRecording() {
         synchronized (mRecordingFence) {
-            totalSamplesNum = 0;
-            startPTS = 0;
             mRecordingRequested = true;
             mRecordingFence.notify();
             hasReceivdFirstFrame = true;
@@ -164,8 +191,7 @@ public class RecAudioRecorder implements Runnable, AudioMixerController.MixerFra
         if (TRACE) Trace.beginSection("drainAudioFinal");
         mAudioEnc.drainEncoder(true);
         if (TRACE) Trace.endSection();
-        mMediaCodec.stop();
-        mMediaCodec.release();
+        mAudioEnc.release();
         mThreadRunning = false;
         synchronized (mRecordingFence) {
             onEndNotify();
@@ -176,13 +202,34 @@ public class RecAudioRecorder implements Runnable, AudioMixerController.MixerFra
     private void sendAudioToEncoder(boolean endOfStream) {
         // send current frame data to encoder
         if (DEBUG) Log.i(TAG, "sendAudioToEncoder");
-        while (!mixQueue.isEmpty()) {
-            currentFrame = mixQueue.poll();
+        if (!endOfStream && mAudioEnc.isAsync() && mixQueue.isEmpty()) {
+            // Output is delivered by the codec callback, so there is no drain to pace this loop:
+            // park until the mixer hands us a frame instead of spinning.
+            try {
+                long waitMs = mMediaClock.isPaused() ? PAUSED_FRAME_WAIT_MS : ASYNC_FRAME_WAIT_MS;
+                pendingFrame = mixQueue.poll(waitMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        if (endOfStream && pendingFrame == null && mixQueue.isEmpty()) {
+            queueEndOfStream();
+            return;
+        }
+        while (pendingFrame != null || !mixQueue.isEmpty()) {
+            currentFrame = pendingFrame != null ? pendingFrame : mixQueue.poll();
+            pendingFrame = null;
             if (currentFrame == null) {
                 return;
             }
+            // Audio samples are 16bit
+            long ptsUs = mMediaClock.getAudioPts(currentFrame.length / (2 * mNumChannels), mSampleRate);
+            if (ptsUs < 0 && !endOfStream) {
+                // Paused
+                continue;
+            }
             try {
-                audioInputBufferIndex = mMediaCodec.dequeueInputBuffer(0);
+                audioInputBufferIndex = mAudioEnc.dequeueInputBuffer(0);
                 if (audioInputBufferIndex >= 0) {
                     ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(audioInputBufferIndex);
                     int bytesRead = currentFrame.length;
@@ -192,10 +239,9 @@ public class RecAudioRecorder implements Runnable, AudioMixerController.MixerFra
 
                     audioInputLength = bytesRead;
 
-                    audioAbsolutePtsUs = (System.nanoTime()) / 1000L;
-                    // We divide audioInputLength by 2 because audio samples are
-                    // 16bit.
-                    audioAbsolutePtsUs = getJitterFreePTS(audioAbsolutePtsUs, audioInputLength / 2);
+                    if (ptsUs >= 0) {
+                        audioAbsolutePtsUs = ptsUs;
+                    }
                     if (DEBUG) Log.d(TAG, "AUDIO LENGTH: " + audioInputLength);
                     if (DEBUG) Log.d(TAG, "AUDIO PTS: " + audioAbsolutePtsUs / 1000);
 
@@ -226,6 +272,19 @@ public class RecAudioRecorder implements Runnable, AudioMixerController.MixerFra
         if (VERBOSE) Log.i(TAG, "sendAudioToEncoder done");
     }
 
+    /**
+     * Queues an empty buffer flagged BUFFER_FLAG_END_OF_STREAM, used when no audio is pending
+     * at the time the recording stops.
+     */
+    private void queueEndOfStream() {
+        int index = mAudioEnc.dequeueInputBuffer(10000);
+        if (index >= 0) {
+            mMediaCodec.queueInputBuffer(index, 0, 0, audioAbsolutePtsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        } else {
+            Log.w(TAG, "No input buffer available to signal EOS");
+        }
+    }
+
 
     private ByteBuffer getInputBuffer(MediaCodec codec, int index) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -244,36 +303,6 @@ public class RecAudioRecorder implements Runnable, AudioMixerController.MixerFra
 
     }
 
-    long startPTS = 0;
-    long totalSamplesNum = 0;
-
-    /**
-     * Ensures that each audio pts differs by a constant amount from the previous one.
-     *
-     * @param bufferPts        presentation timestamp in us
-     * @param bufferSamplesNum the number of samples of the buffer's frame
-     * @return
-     */
-    private long getJitterFreePTS(long bufferPts, long bufferSamplesNum) {
-        long correctedPts = 0;
-        long bufferDuration = (1000000 * bufferSamplesNum) / (mSampleRate);
-        bufferPts -= bufferDuration; // accounts for the delay of acquiring the audio buffer
-        if (totalSamplesNum == 0) {
-            // reset
-            startPTS = bufferPts;
-            totalSamplesNum = 0;
-        }
-        correctedPts = startPTS + (1000000 * totalSamplesNum) / (mSampleRate);
-        if (bufferPts - correctedPts >= 2 * bufferDuration) {
-            // reset
-            startPTS = bufferPts;
-            totalSamplesNum = 0;
-            correctedPts = startPTS;
-        }
-        totalSamplesNum += bufferSamplesNum;
-        return correctedPts;
-    }
-
 
     public void addAudioRecordListener(AudioRecordListener listener) {
         synchronized (mRecordingFence) {
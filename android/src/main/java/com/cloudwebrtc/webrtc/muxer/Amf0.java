@@ -0,0 +1,176 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal AMF0 encoder/decoder for RTMP command and data messages.
+ * Numbers map to Double, strings to String, objects and ECMA arrays to Map, null/undefined to null.
+ * @hide
+ */
+public final class Amf0 {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int NUMBER = 0x00;
+    private static final int BOOLEAN = 0x01;
+    private static final int STRING = 0x02;
+    private static final int OBJECT = 0x03;
+    private static final int NULL = 0x05;
+    private static final int UNDEFINED = 0x06;
+    private static final int ECMA_ARRAY = 0x08;
+    private static final int OBJECT_END = 0x09;
+    private static final int STRICT_ARRAY = 0x0a;
+
+    private Amf0() {
+    }
+
+    public static class Writer {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream(256);
+
+        public Writer number(double value) {
+            mOut.write(NUMBER);
+            long bits = Double.doubleToLongBits(value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mOut.write((int) (bits >> shift));
+            }
+            return this;
+        }
+
+        public Writer bool(boolean value) {
+            mOut.write(BOOLEAN);
+            mOut.write(value ? 1 : 0);
+            return this;
+        }
+
+        public Writer string(String value) {
+            mOut.write(STRING);
+            putUtf8(value);
+            return this;
+        }
+
+        public Writer nul() {
+            mOut.write(NULL);
+            return this;
+        }
+
+        public Writer object(Map<String, Object> properties) {
+            mOut.write(OBJECT);
+            putProperties(properties);
+            return this;
+        }
+
+        public Writer ecmaArray(Map<String, Object> properties) {
+            mOut.write(ECMA_ARRAY);
+            int count = properties.size();
+            mOut.write(count >> 24);
+            mOut.write(count >> 16);
+            mOut.write(count >> 8);
+            mOut.write(count);
+            putProperties(properties);
+            return this;
+        }
+
+        public Writer value(Object value) {
+            if (value == null) {
+                return nul();
+            } else if (value instanceof Number) {
+                return number(((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                return bool((Boolean) value);
+            } else if (value instanceof Map<?, ?>) {
+                Map<String, Object> properties = new LinkedHashMap<>();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    properties.put(String.valueOf(entry.getKey()), entry.getValue());
+                }
+                return object(properties);
+            }
+            return string(value.toString());
+        }
+
+        private void putProperties(Map<String, Object> properties) {
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                putUtf8(entry.getKey());
+                value(entry.getValue());
+            }
+            mOut.write(0);
+            mOut.write(0);
+            mOut.write(OBJECT_END);
+        }
+
+        private void putUtf8(String value) {
+            byte[] bytes = value.getBytes(UTF_8);
+            mOut.write(bytes.length >> 8);
+            mOut.write(bytes.length);
+            mOut.write(bytes, 0, bytes.length);
+        }
+
+        public byte[] toByteArray() {
+            return mOut.toByteArray();
+        }
+    }
+
+    /**
+     * Decodes all values in |buf| from its position to its limit.
+     */
+    public static List<Object> decodeAll(ByteBuffer buf) {
+        List<Object> values = new ArrayList<>();
+        while (buf.hasRemaining()) {
+            values.add(decode(buf));
+        }
+        return values;
+    }
+
+    public static Object decode(ByteBuffer buf) {
+        int type = buf.get() & 0xff;
+        switch (type) {
+            case NUMBER:
+                return buf.getDouble();
+            case BOOLEAN:
+                return buf.get() != 0;
+            case STRING:
+                return readUtf8(buf);
+            case OBJECT:
+                return readProperties(buf);
+            case NULL:
+            case UNDEFINED:
+                return null;
+            case ECMA_ARRAY:
+                buf.getInt();
+                return readProperties(buf);
+            case STRICT_ARRAY: {
+                int count = buf.getInt();
+                List<Object> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(decode(buf));
+                }
+                return list;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported AMF0 type " + type);
+        }
+    }
+
+    private static Map<String, Object> readProperties(ByteBuffer buf) {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        while (true) {
+            String key = readUtf8(buf);
+            if (key.isEmpty() && (buf.get(buf.position()) & 0xff) == OBJECT_END) {
+                buf.get();
+                return properties;
+            }
+            properties.put(key, decode(buf));
+        }
+    }
+
+    private static String readUtf8(ByteBuffer buf) {
+        int length = buf.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
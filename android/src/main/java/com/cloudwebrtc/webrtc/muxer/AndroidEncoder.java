@@ -2,13 +2,19 @@ package com.cloudwebrtc.webrtc.muxer;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AndroidEncoder {
     private  String name = "VideoEncoder";
-    protected BaseMuxer mMuxer;
+    protected volatile BaseMuxer mMuxer;
     protected MediaCodec mEncoder;
     protected MediaCodec.BufferInfo mBufferInfo;
     protected int mTrackIndex;
@@ -16,18 +22,92 @@ public abstract class AndroidEncoder {
 
     int mEosSpinCount = 0;
     final int MAX_EOS_SPINS = 10;
-    
+
+    // Asynchronous (MediaCodec.Callback) mode. Output buffers are handed to the muxer on
+    // |mCallbackThread| as soon as the codec produces them, so producers never poll for output.
+    private static final long EOS_TIMEOUT_MS = 1000;
+    protected boolean mAsync;
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
+    private final LinkedBlockingQueue<Integer> mFreeInputBuffers = new LinkedBlockingQueue<>();
+    private final CountDownLatch mEosLatch = new CountDownLatch(1);
+    private volatile boolean mReleased;
+    // Set once a buffer flagged EOS went to the muxer, so the track is only finished once
+    private boolean mEndOfTrackSignalled;
+    // Output format reported before a muxer was bound, see setMuxer(). Guarded by |this|.
+    private MediaFormat mPendingOutputFormat;
+
     protected AndroidEncoder(String name) {
         this.name = name;
     }
-    
+
+    protected AndroidEncoder(String name, boolean async) {
+        this.name = name;
+        // MediaCodec#setCallback(Callback, Handler) is only available from Marshmallow on.
+        this.mAsync = async && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
     private final static boolean VERBOSE = false;
- 
+
     public void signalEndOfStream() {
         mForceEos = true;
     }
 
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * Binds the muxer of an encoder that was created ahead of time, before any input is fed.
+     */
+    public void setMuxer(BaseMuxer muxer) {
+        MediaFormat pendingFormat;
+        synchronized (this) {
+            mMuxer = muxer;
+            pendingFormat = mPendingOutputFormat;
+            mPendingOutputFormat = null;
+        }
+        if (pendingFormat != null) {
+            synchronized (muxer) {
+                mTrackIndex = muxer.addTrack(pendingFormat);
+            }
+        }
+    }
+
+    /**
+     * Configures |mEncoder| for encoding. In asynchronous mode the codec callback is installed
+     * first, on a dedicated callback thread, as required by MediaCodec.
+     */
+    protected void configureEncoder(MediaFormat format) {
+        if (mAsync) {
+            mCallbackThread = new HandlerThread(name + "Callback");
+            mCallbackThread.start();
+            mCallbackHandler = new Handler(mCallbackThread.getLooper());
+            mEncoder.setCallback(mEncoderCallback, mCallbackHandler);
+        }
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    /**
+     * Returns the index of an input buffer ready to be filled, or a negative value if none became
+     * available within |timeoutUs|. Works in both synchronous and asynchronous mode.
+     */
+    public int dequeueInputBuffer(long timeoutUs) {
+        if (!mAsync) {
+            return mEncoder.dequeueInputBuffer(timeoutUs);
+        }
+        try {
+            Integer index = timeoutUs > 0
+                    ? mFreeInputBuffers.poll(timeoutUs, TimeUnit.MICROSECONDS)
+                    : mFreeInputBuffers.poll();
+            return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+        } catch (InterruptedException e) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+    }
+
     public void release(){
+        mReleased = true;
         if(mMuxer != null)
             mMuxer.onEncoderReleased(mTrackIndex);
         if (mEncoder != null) {
@@ -36,10 +116,19 @@ public abstract class AndroidEncoder {
             mEncoder = null;
             if (VERBOSE) Log.i(name, "Released encoder");
         }
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+            mCallbackHandler = null;
+        }
     }
 
 
     public void drainEncoder(boolean endOfStream) {
+        if (mAsync) {
+            drainEncoderAsync(endOfStream);
+            return;
+        }
         final int TIMEOUT_USEC = 10000;
         Log.d(name, "drainEncoder(" + endOfStream + ")");
 
@@ -54,7 +143,7 @@ public abstract class AndroidEncoder {
                     ByteBuffer encodedData = mEncoder.getOutputBuffer(outputBufferId);
                     try {
                         if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                            mEncoder.releaseOutputBuffer(outputBufferId, false);
+                            writeEndOfStream(mMuxer, mEncoder, outputBufferId, encodedData, mBufferInfo);
                             break;
                         }
                         if (encodedData == null) {
@@ -64,8 +153,10 @@ public abstract class AndroidEncoder {
                         }
                         if (mForceEos) {
                             mBufferInfo.flags = mBufferInfo.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                            mEndOfTrackSignalled = true;
                             Log.i(name, "Forcing EOS");
                         }
+                        notifyEncodedOutput(mBufferInfo);
                         mMuxer.writeSampleData(mEncoder, mTrackIndex, outputBufferId, encodedData, mBufferInfo);
                     } catch (Exception e) {
                         Log.wtf(name, e);
@@ -83,5 +174,125 @@ public abstract class AndroidEncoder {
         }
     }
 
+    /**
+     * In asynchronous mode output is delivered by |mEncoderCallback|, so there is nothing to poll.
+     * Only the final drain blocks, waiting (bounded) for the codec to emit its EOS buffer.
+     */
+    private void drainEncoderAsync(boolean endOfStream) {
+        if (!endOfStream) {
+            return;
+        }
+        Log.d(name, "drainEncoder(true)");
+        if (isSurfaceInputEncoder()) {
+            Log.d(name, "sending EOS to encoder");
+            mEncoder.signalEndOfInputStream();
+        }
+        try {
+            if (!mEosLatch.await(EOS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(name, "Timed out waiting for encoder EOS");
+            }
+        } catch (InterruptedException e) {
+            Log.w(name, "Interrupted while waiting for encoder EOS");
+        }
+    }
+
+    private final MediaCodec.Callback mEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            mFreeInputBuffers.offer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            BaseMuxer muxer = mMuxer;
+            if (mReleased) {
+                return;
+            }
+            if (muxer == null) {
+                // Not bound yet, no input has been fed so this carries nothing to keep
+                codec.releaseOutputBuffer(index, false);
+                return;
+            }
+            synchronized (muxer) {
+                try {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        try {
+                            writeEndOfStream(muxer, codec, index, codec.getOutputBuffer(index), info);
+                        } finally {
+                            mEosLatch.countDown();
+                        }
+                        return;
+                    }
+                    ByteBuffer encodedData = codec.getOutputBuffer(index);
+                    if (encodedData == null) {
+                        Log.e(name, "encoderOutputBuffer " + index + " was null");
+                        codec.releaseOutputBuffer(index, false);
+                        return;
+                    }
+                    if (mForceEos) {
+                        info.flags = info.flags | MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                        mEndOfTrackSignalled = true;
+                        Log.i(name, "Forcing EOS");
+                    }
+                    notifyEncodedOutput(info);
+                    muxer.writeSampleData(codec, mTrackIndex, index, encodedData, info);
+                } catch (Exception e) {
+                    Log.wtf(name, e);
+                }
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(name, "encoder error: " + e.getDiagnosticInfo(), e);
+            if (!e.isTransient()) {
+                mEosLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            Log.d(name, "encoder output format changed: " + format);
+            BaseMuxer muxer;
+            synchronized (AndroidEncoder.this) {
+                muxer = mMuxer;
+                if (muxer == null) {
+                    mPendingOutputFormat = format;
+                    return;
+                }
+            }
+            synchronized (muxer) {
+                // now that we have the Magic Goodies, start the muxer
+                mTrackIndex = muxer.addTrack(format);
+            }
+        }
+    };
+
+    /**
+     * Hands the EOS buffer of the codec to |muxer|, which releases it and counts the track as
+     * finished, unless a forced EOS already did. Called with the muxer locked.
+     */
+    private void writeEndOfStream(BaseMuxer muxer, MediaCodec codec, int index, ByteBuffer encodedData, MediaCodec.BufferInfo info) {
+        if (mEndOfTrackSignalled) {
+            codec.releaseOutputBuffer(index, false);
+            return;
+        }
+        mEndOfTrackSignalled = true;
+        muxer.writeSampleData(codec, mTrackIndex, index, encodedData, info);
+    }
+
+    private void notifyEncodedOutput(MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+            onEncodedOutput(info);
+        }
+    }
+
+    /**
+     * Called for every encoded access unit, before it is handed to the muxer. Runs on the draining
+     * thread in synchronous mode and on the callback thread in asynchronous mode.
+     */
+    protected void onEncodedOutput(MediaCodec.BufferInfo info) {
+    }
+
     protected abstract boolean isSurfaceInputEncoder();
-}
\ No newline at end of file
+}
@@ -4,47 +4,173 @@ package com.cloudwebrtc.webrtc.muxer;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Bundle;
 import android.util.Log;
 import android.util.SparseArray;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
+ * MediaMuxer backed MP4/WebM muxer.
+ * <p/>
+ * Optionally rolls the output over into numbered files, e.g. /sdcard/app/uuid/rec.mp4 becomes
+ * rec_0.mp4, rec_1.mp4, ... Once a segment reaches its maximum duration or size, a sync frame is
+ * requested from the video encoder and the next file starts with it. The encoders keep running
+ * across segments; only the MediaMuxer is replaced. Each finished file is reported to the
+ * {@link SegmentListener}.
  * @hide
  */
-public class AndroidMuxer extends BaseMuxer {
+public class AndroidMuxer extends BaseMuxer implements MuxerWriter.PacketSink, MuxerWriter.StatsListener {
     private static final String TAG = "AndroidMuxer";
     private static final boolean VERBOSE = false;
+    private static final long WRITER_STATS_INTERVAL_MS = 5000;
 
     private MediaMuxer mMuxer;
-    private boolean mStarted;
+    private volatile boolean mStarted;
     private SparseArray<MediaFormat> trackFormats = new SparseArray<MediaFormat>();
+    // Optional dedicated I/O stage. When set, MediaMuxer is only touched from the writer thread.
+    private MuxerWriter mWriter;
+    private final MediaCodec.BufferInfo mWriterBufferInfo = new MediaCodec.BufferInfo();
+    // Tracks that lost a packet to writer backpressure and must resume on a sync frame
+    private boolean[] mAwaitingSyncFrame;
+
+    // Segmentation, disabled when both limits are 0
+    private final long mSegmentDurationUs;
+    private final long mMaxSegmentBytes;
+    private SegmentListener mSegmentListener;
+    private boolean mHasVideo;
+    // Written by the thread performing MediaMuxer writes, read by the encoder threads
+    private volatile int mSegmentIndex;
+    private volatile long mSegmentStartUs = -1;
+    private volatile long mSegmentBytes;
+    private long mLastPtsUs;
+    // Segment for which a sync frame was already requested from the video encoder
+    private int mSyncFrameRequestedSegment = -1;
+    private int mOrientationHintDegrees;
+
     private AndroidMuxer(String outputFile, FORMAT format, int expectedNumTracks){
+        this(outputFile, format, expectedNumTracks, false);
+    }
+
+    private AndroidMuxer(String outputFile, FORMAT format, int expectedNumTracks, boolean useWriterThread){
+        this(outputFile, format, expectedNumTracks, useWriterThread, 0, 0);
+    }
+
+    private AndroidMuxer(String outputFile, FORMAT format, int expectedNumTracks, boolean useWriterThread,
+                         long segmentDurationUs, long maxSegmentBytes){
         super(outputFile, format, expectedNumTracks);
+        mSegmentDurationUs = segmentDurationUs;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMuxer = createMediaMuxer(isSegmented() ? getSegmentPath(0) : outputFile);
+        mStarted = false;
+        if (useWriterThread) {
+            mAwaitingSyncFrame = new boolean[expectedNumTracks];
+            mWriter = new MuxerWriter(TAG + "Writer", this);
+            mWriter.setStatsListener(this, WRITER_STATS_INTERVAL_MS);
+            mWriter.setErrorListener(e -> Log.e(TAG, "Writer task failed", e));
+            mWriter.start();
+        }
+    }
+
+    public static AndroidMuxer create(String outputFile, FORMAT format) {
+        return new AndroidMuxer(outputFile, format, DEFAULT_NUM_TRACKS);
+    }
+
+    public static AndroidMuxer create(String outputFile, FORMAT format, int expectedNumTracks) {
+        return new AndroidMuxer(outputFile, format, expectedNumTracks);
+    }
+
+    /**
+     * @param useWriterThread copy encoded packets into a pooled queue and perform all
+     *                        MediaMuxer writes on a dedicated I/O thread.
+     */
+    public static AndroidMuxer create(String outputFile, FORMAT format, int expectedNumTracks, boolean useWriterThread) {
+        return new AndroidMuxer(outputFile, format, expectedNumTracks, useWriterThread);
+    }
+
+    /**
+     * Splits the recording into files named after |outputFile| with the segment index appended.
+     * A new segment starts on the first video sync frame (any packet for audio only recordings)
+     * after the current one reached |segmentDurationUs| or |maxSegmentBytes|; 0 disables a limit.
+     */
+    public static AndroidMuxer createSegmented(String outputFile, FORMAT format, int expectedNumTracks, boolean useWriterThread,
+                                               long segmentDurationUs, long maxSegmentBytes) {
+        if (segmentDurationUs <= 0 && maxSegmentBytes <= 0) {
+            throw new IllegalArgumentException("No segment limit set");
+        }
+        return new AndroidMuxer(outputFile, format, expectedNumTracks, useWriterThread, segmentDurationUs, maxSegmentBytes);
+    }
+
+    /**
+     * |listener| is called once a segment file is finalized, including the last one on stop.
+     */
+    public void setSegmentListener(SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    public boolean isSegmented() {
+        return mSegmentDurationUs > 0 || mMaxSegmentBytes > 0;
+    }
+
+    /**
+     * Returns the path of segment |index|, e.g. /sdcard/app/uuid/rec_2.mp4 for rec.mp4.
+     */
+    public String getSegmentPath(int index) {
+        File file = new File(mOutputPath);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String segmentName = dot > 0
+                ? name.substring(0, dot) + "_" + index + name.substring(dot)
+                : name + "_" + index;
+        return new File(file.getParentFile(), segmentName).getAbsolutePath();
+    }
+
+    /**
+     * Sets the rotation players apply to the video track. Must be called before the last track
+     * is added.
+     */
+    public void setOrientationHint(int degrees) {
+        if (mStarted) {
+            throw new IllegalStateException("Orientation hint set after start");
+        }
+        mOrientationHintDegrees = degrees;
+        if (mFormat == FORMAT.MPEG4) {
+            mMuxer.setOrientationHint(degrees);
+        }
+    }
+
+    private MediaMuxer createMediaMuxer(String path) {
         try {
-            switch(format){
+            switch(mFormat){
                 case MPEG4:
-                    mMuxer = new MediaMuxer(outputFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                    break;
+                    MediaMuxer muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    if (mOrientationHintDegrees != 0) {
+                        muxer.setOrientationHint(mOrientationHintDegrees);
+                    }
+                    return muxer;
                 case WEBM:
-                    mMuxer = new MediaMuxer(outputFile, MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM);
-                    break;
+                    return new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM);
                 default:
                     throw new IllegalArgumentException("Unrecognized format!");
             }
         } catch (IOException e) {
             throw new RuntimeException("MediaMuxer creation failed", e);
         }
-        mStarted = false;
     }
 
-    public static AndroidMuxer create(String outputFile, FORMAT format) {
-        return new AndroidMuxer(outputFile, format, DEFAULT_NUM_TRACKS);
+    /**
+     * Returns queue-depth and write-latency metrics of the writer thread, or null when
+     * this muxer writes inline.
+     */
+    public MuxerWriter.Stats getWriterStats() {
+        return mWriter != null ? mWriter.getStats() : null;
     }
 
-    public static AndroidMuxer create(String outputFile, FORMAT format, int expectedNumTracks) {
-        return new AndroidMuxer(outputFile, format, expectedNumTracks);
+    @Override
+    public int getPendingPacketCount() {
+        return mWriter != null ? mWriter.getQueueDepth() : 0;
     }
 
     @Override
@@ -54,6 +180,7 @@ public class AndroidMuxer extends BaseMuxer {
             throw new RuntimeException("format changed twice");
         int track = mMuxer.addTrack(trackFormat);
         trackFormats.append(track, trackFormat);
+        mHasVideo |= isVideoTrack(track);
         if(allTracksAdded()){
             start();
         }
@@ -74,15 +201,40 @@ public class AndroidMuxer extends BaseMuxer {
         }
         mMuxer.stop();
         mStarted = false;
+        if (isSegmented() && mSegmentStartUs >= 0) {
+            notifySegmentFinished(mSegmentIndex, mLastPtsUs - mSegmentStartUs);
+        }
     }
 
     @Override
     public void release() {
         super.release();
+        if (mWriter != null) {
+            // Flush everything already handed to the writer, then finalize the file on it
+            mWriter.post(this::stopOnRelease);
+            mWriter.quit();
+            Log.i(TAG, "Writer finished. " + mWriter.getStats());
+        } else {
+            stopOnRelease();
+        }
         mMuxer.release();
         mStarted = false;
     }
 
+    /**
+     * Stops the muxer if no end of stream did, so that the last segment is reported too.
+     * Runs on the thread performing MediaMuxer writes.
+     */
+    private void stopOnRelease() {
+        try {
+            stop();
+        } catch (IllegalStateException e) {
+            // e.g. no sample was written; MediaMuxer#release() must not try to stop again
+            Log.e(TAG, "Failed to stop muxer", e);
+            mStarted = false;
+        }
+    }
+
     @Override
     public boolean isStarted() {
         return mStarted;
@@ -101,6 +253,8 @@ public class AndroidMuxer extends BaseMuxer {
         if(bufferInfo.size == 0){
             if(VERBOSE) Log.d(TAG, "ignoring zero size buffer");
             encoder.releaseOutputBuffer(bufferIndex, false);
+            // Usually the EOS buffer of the last track
+            stopIfFinished();
             return;
         }
         if (!mStarted) {
@@ -110,18 +264,179 @@ public class AndroidMuxer extends BaseMuxer {
         }
 
         bufferInfo.presentationTimeUs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        if (isSegmented() && isVideoTrack(trackIndex)) {
+            requestSyncFrameIfDue(encoder, bufferInfo.presentationTimeUs);
+        }
 
-        mMuxer.writeSampleData(trackIndex, encodedData, bufferInfo);
+        if (mWriter != null) {
+            submitToWriter(trackIndex, encodedData, bufferInfo);
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            stopIfFinished();
+            return;
+        }
+
+        writeToMuxer(trackIndex, encodedData, bufferInfo);
 
         encoder.releaseOutputBuffer(bufferIndex, false);
 
-        if(allTracksFinished()){
+        stopIfFinished();
+    }
+
+    private void stopIfFinished() {
+        if (!allTracksFinished()) {
+            return;
+        }
+        if (mWriter != null) {
+            // After the packets already queued
+            mWriter.post(this::stop);
+        } else {
             stop();
         }
     }
 
+    @Override
+    public void writeEncodedData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0) {
+            return;
+        }
+        if (!mStarted) {
+            if (VERBOSE) Log.d(TAG, "writeEncodedData called before muxer started. Ignoring packet. Track index: " + trackIndex);
+            return;
+        }
+        bufferInfo.presentationTimeUs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        if (mWriter != null) {
+            // Copied into the writer's pool, the caller may reuse encodedData right away
+            submitToWriter(trackIndex, encodedData, bufferInfo);
+            return;
+        }
+        writeToMuxer(trackIndex, encodedData, bufferInfo);
+    }
+
+    private void submitToWriter(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        boolean syncFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mAwaitingSyncFrame[trackIndex] && !syncFrame) {
+            return;
+        }
+        mAwaitingSyncFrame[trackIndex] = false;
+        if (!mWriter.submit(trackIndex, encodedData, bufferInfo.offset, bufferInfo.size,
+                bufferInfo.presentationTimeUs, bufferInfo.flags)) {
+            Log.w(TAG, "Writer backlog, dropped packet on track " + trackIndex);
+            // Everything up to the next sync frame would reference the lost packet
+            mAwaitingSyncFrame[trackIndex] = isVideoTrack(trackIndex);
+        }
+    }
+
+    /**
+     * Asks the video encoder for an IDR once the current segment is full, so that the next
+     * segment doesn't have to wait for the regular key frame interval.
+     */
+    private void requestSyncFrameIfDue(MediaCodec encoder, long ptsUs) {
+        int segment = mSegmentIndex;
+        if (mSyncFrameRequestedSegment == segment || !isSegmentFull(ptsUs)) {
+            return;
+        }
+        mSyncFrameRequestedSegment = segment;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Sync frame request failed", e);
+        }
+    }
+
+    private boolean isSegmentFull(long ptsUs) {
+        long startUs = mSegmentStartUs;
+        if (startUs < 0) {
+            return false;
+        }
+        return (mSegmentDurationUs > 0 && ptsUs - startUs >= mSegmentDurationUs)
+                || (mMaxSegmentBytes > 0 && mSegmentBytes >= mMaxSegmentBytes);
+    }
+
+    /**
+     * Writes one packet, rolling over to the next segment first if this packet can start it.
+     * Called on the writer thread, or on the encoder thread when writing inline.
+     */
+    private void writeToMuxer(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        if (isSegmented()) {
+            long ptsUs = bufferInfo.presentationTimeUs;
+            boolean cutPoint = !mHasVideo
+                    || (isVideoTrack(trackIndex) && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            if (mSegmentStartUs < 0) {
+                mSegmentStartUs = ptsUs;
+            } else if (cutPoint && isSegmentFull(ptsUs)) {
+                rotateSegment(ptsUs);
+            }
+            mSegmentBytes += bufferInfo.size;
+            mLastPtsUs = Math.max(mLastPtsUs, ptsUs);
+        }
+        mMuxer.writeSampleData(trackIndex, encodedData, bufferInfo);
+    }
+
+    /**
+     * Finalizes the current segment file and continues in a new one with the same tracks.
+     */
+    private void rotateSegment(long ptsUs) {
+        int finishedIndex = mSegmentIndex;
+        long durationUs = ptsUs - mSegmentStartUs;
+        mMuxer.stop();
+        mMuxer.release();
+        mMuxer = createMediaMuxer(getSegmentPath(finishedIndex + 1));
+        // Tracks are re-added in index order, so they keep their indices
+        for (int i = 0; i < trackFormats.size(); i++) {
+            mMuxer.addTrack(trackFormats.valueAt(i));
+        }
+        mMuxer.start();
+        mSegmentIndex = finishedIndex + 1;
+        mSegmentStartUs = ptsUs;
+        mSegmentBytes = 0;
+        if (VERBOSE) Log.d(TAG, "Started segment " + mSegmentIndex + " at " + ptsUs + "us");
+        notifySegmentFinished(finishedIndex, durationUs);
+    }
+
+    private void notifySegmentFinished(int index, long durationUs) {
+        Log.i(TAG, "Segment " + index + " finished, " + durationUs / 1000 + " ms");
+        SegmentListener listener = mSegmentListener;
+        if (listener != null) {
+            listener.onSegmentFinished(getSegmentPath(index), index, durationUs);
+        }
+    }
+
+    private boolean isVideoTrack(int trackIndex) {
+        MediaFormat format = trackFormats.get(trackIndex);
+        String mime = format != null ? format.getString(MediaFormat.KEY_MIME) : null;
+        return mime != null && mime.startsWith("video/");
+    }
+
+    /**
+     * Called on the writer thread.
+     */
+    @Override
+    public void writePacket(EncodedPacket packet) {
+        if (!mStarted) {
+            return;
+        }
+        mWriterBufferInfo.set(0, packet.size, packet.presentationTimeUs, packet.flags);
+        try {
+            writeToMuxer(packet.trackIndex, packet.data, mWriterBufferInfo);
+        } catch (Exception e) {
+            Log.e(TAG, "writeSampleData failed on track " + packet.trackIndex, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void onWriterStats(MuxerWriter.Stats stats) {
+        if (VERBOSE || stats.packetsDropped > 0) Log.d(TAG, stats.toString());
+    }
+
     @Override
     public void forceStop() {
+        if (mWriter != null) {
+            mWriter.post(this::stop);
+            return;
+        }
         stop();
     }
 }
\ No newline at end of file
@@ -21,13 +21,35 @@ public class AudioEncoder extends AndroidEncoder {
 
     // Configurable options
     protected int mChannelConfig;
+    protected int mNumChannels;
     protected int mSampleRate;
 
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
      */
     public AudioEncoder(int numChannels, int bitRate, int sampleRate, BaseMuxer muxer) throws IOException {
-        super(TAG);
+        this(numChannels, bitRate, sampleRate, muxer, false);
+    }
+
+    /**
+     * Configures encoder and muxer state.
+     *
+     * @param async when true, input buffers must be obtained through
+     *              {@link #dequeueInputBuffer(long)} and output is delivered to the muxer from a
+     *              MediaCodec callback thread.
+     */
+    public AudioEncoder(int numChannels, int bitRate, int sampleRate, BaseMuxer muxer, boolean async) throws IOException {
+        this(numChannels, bitRate, sampleRate, muxer.mFormat, async);
+        setMuxer(muxer);
+    }
+
+    /**
+     * Configures and starts an encoder for output of |muxerFormat| without binding a muxer.
+     * {@link #setMuxer(BaseMuxer)} must be called before any input is queued.
+     */
+    public AudioEncoder(int numChannels, int bitRate, int sampleRate, BaseMuxer.FORMAT muxerFormat, boolean async) throws IOException {
+        super(TAG, async);
+        mNumChannels = numChannels;
         switch (numChannels) {
             case 1:
                 mChannelConfig = AudioFormat.CHANNEL_IN_MONO;
@@ -38,21 +60,8 @@ public class AudioEncoder extends AndroidEncoder {
             default:
                 throw new IllegalArgumentException("Invalid channel count. Must be 1 or 2");
         }
-        String mimeType;
-
-
-        switch(muxer.mFormat){
-            case MPEG4:
-                mimeType = AAC_MIME_TYPE;
-                break;
-            case WEBM:
-                mimeType = OPUS_MIME_TYPE;
-                break;
-            default:
-                throw new IllegalArgumentException("Unrecognized format!");
-        }
+        String mimeType = getMimeType(muxerFormat);
         mSampleRate = sampleRate;
-        mMuxer = muxer;
         mBufferInfo = new MediaCodec.BufferInfo();
 
         MediaFormat format = MediaFormat.createAudioFormat(mimeType, mSampleRate, mChannelConfig);
@@ -61,13 +70,38 @@ public class AudioEncoder extends AndroidEncoder {
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(mimeType);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder = CodecCapabilityCache.createEncoder(mimeType, 0, 0, 0);
+        configureEncoder(format);
         mEncoder.start();
 
         mTrackIndex = -1;
     }
 
+    public int getChannelCount() {
+        return mNumChannels;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Returns the audio mime type encoded for |muxerFormat|.
+     */
+    public static String getMimeType(BaseMuxer.FORMAT muxerFormat) {
+        switch(muxerFormat){
+            case MPEG4:
+            case HLS:
+            case RTMP:
+                return AAC_MIME_TYPE;
+            case WEBM:
+            case OGG:
+                return OPUS_MIME_TYPE;
+            default:
+                throw new IllegalArgumentException("Unrecognized format!");
+        }
+    }
+
     /**
      * Depending on this method ties AudioEncoderCore
      * to a MediaCodec-based implementation.
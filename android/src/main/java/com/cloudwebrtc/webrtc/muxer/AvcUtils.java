@@ -0,0 +1,205 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for H.264 elementary streams as produced by MediaCodec (Annex B, start-code delimited).
+ * @hide
+ */
+public final class AvcUtils {
+    public static final int NAL_TYPE_NON_IDR = 1;
+    public static final int NAL_TYPE_IDR = 5;
+    public static final int NAL_TYPE_SEI = 6;
+    public static final int NAL_TYPE_SPS = 7;
+    public static final int NAL_TYPE_PPS = 8;
+    public static final int NAL_TYPE_AUD = 9;
+
+    private AvcUtils() {
+    }
+
+    /**
+     * Returns the index of the first byte after the next start code (00 00 01 or 00 00 00 01)
+     * found in [from, limit), or -1 if there is none.
+     */
+    public static int findNalStart(ByteBuffer buf, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0) {
+                byte third = buf.get(i + 2);
+                if (third == 1) {
+                    return i + 3;
+                }
+                if (third == 0 && i + 3 < limit && buf.get(i + 3) == 1) {
+                    return i + 4;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end (exclusive) of the NAL unit starting at |nalStart|, i.e. the position of
+     * the next start code with trailing zero bytes stripped, or |limit|.
+     */
+    public static int findNalEnd(ByteBuffer buf, int nalStart, int limit) {
+        int next = findNalStart(buf, nalStart, limit);
+        if (next < 0) {
+            return limit;
+        }
+        int end = next - 3;
+        while (end > nalStart && buf.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    public static boolean isAnnexB(ByteBuffer buf, int offset, int size) {
+        if (size < 4) {
+            return false;
+        }
+        return buf.get(offset) == 0 && buf.get(offset + 1) == 0
+                && (buf.get(offset + 2) == 1 || (buf.get(offset + 2) == 0 && buf.get(offset + 3) == 1));
+    }
+
+    /**
+     * Returns the first NAL unit of the given type in an Annex B buffer, without start code,
+     * or null if absent.
+     */
+    public static byte[] findNal(ByteBuffer buf, int offset, int size, int nalType) {
+        int limit = offset + size;
+        int start = findNalStart(buf, offset, limit);
+        while (start >= 0 && start < limit) {
+            int end = findNalEnd(buf, start, limit);
+            if ((buf.get(start) & 0x1f) == nalType) {
+                byte[] nal = new byte[end - start];
+                for (int i = 0; i < nal.length; i++) {
+                    nal[i] = buf.get(start + i);
+                }
+                return nal;
+            }
+            start = findNalStart(buf, end, limit);
+        }
+        return null;
+    }
+
+    /**
+     * Strips a leading start code, as found in MediaFormat "csd-0"/"csd-1" buffers.
+     */
+    public static byte[] stripStartCode(ByteBuffer csd) {
+        ByteBuffer buf = csd.duplicate();
+        int offset = buf.position();
+        int limit = buf.limit();
+        int start = isAnnexB(buf, offset, limit - offset) ? findNalStart(buf, offset, limit) : offset;
+        byte[] nal = new byte[findNalEnd(buf, start, limit) - start];
+        buf.position(start);
+        buf.get(nal);
+        return nal;
+    }
+
+    /**
+     * Returns the number of bytes {@link #annexBToAvcc} will write for this access unit.
+     */
+    public static int avccSize(ByteBuffer src, int offset, int size) {
+        if (!isAnnexB(src, offset, size)) {
+            return size;
+        }
+        int limit = offset + size;
+        int total = 0;
+        int start = findNalStart(src, offset, limit);
+        while (start >= 0 && start < limit) {
+            int end = findNalEnd(src, start, limit);
+            if (keepInSample(src.get(start) & 0x1f) && end > start) {
+                total += 4 + end - start;
+            }
+            start = findNalStart(src, end, limit);
+        }
+        return total;
+    }
+
+    /**
+     * Converts an Annex B access unit to 4-byte length prefixed NAL units (ISO/IEC 14496-15),
+     * writing into |dst| at its position. Parameter sets and access unit delimiters are dropped
+     * since they are carried out of band. Input that is already length prefixed is copied as is.
+     *
+     * @return the number of bytes written
+     */
+    public static int annexBToAvcc(ByteBuffer src, int offset, int size, ByteBuffer dst) {
+        if (!isAnnexB(src, offset, size)) {
+            ByteBuffer view = src.duplicate();
+            view.limit(offset + size);
+            view.position(offset);
+            dst.put(view);
+            return size;
+        }
+        int limit = offset + size;
+        int written = 0;
+        int start = findNalStart(src, offset, limit);
+        while (start >= 0 && start < limit) {
+            int end = findNalEnd(src, start, limit);
+            if (keepInSample(src.get(start) & 0x1f) && end > start) {
+                dst.putInt(end - start);
+                for (int i = start; i < end; i++) {
+                    dst.put(src.get(i));
+                }
+                written += 4 + end - start;
+            }
+            start = findNalStart(src, end, limit);
+        }
+        return written;
+    }
+
+    /**
+     * Returns true if the access unit's first slice has nal_ref_idc == 0, i.e. no other frame
+     * references it and it can be dropped without breaking decoding of the following frames.
+     */
+    public static boolean isNonReferenceFrame(ByteBuffer buf, int offset, int size) {
+        int limit = offset + size;
+        if (!isAnnexB(buf, offset, size)) {
+            // Length prefixed
+            int position = offset;
+            while (position + 4 < limit) {
+                int header = buf.get(position + 4);
+                if (isSlice(header & 0x1f)) {
+                    return (header & 0x60) == 0;
+                }
+                position += 4 + buf.getInt(position);
+            }
+            return false;
+        }
+        int start = findNalStart(buf, offset, limit);
+        while (start >= 0 && start < limit) {
+            int header = buf.get(start);
+            if (isSlice(header & 0x1f)) {
+                return (header & 0x60) == 0;
+            }
+            start = findNalStart(buf, start, limit);
+        }
+        return false;
+    }
+
+    private static boolean isSlice(int nalType) {
+        return nalType >= NAL_TYPE_NON_IDR && nalType <= NAL_TYPE_IDR;
+    }
+
+    private static boolean keepInSample(int nalType) {
+        return nalType != NAL_TYPE_SPS && nalType != NAL_TYPE_PPS && nalType != NAL_TYPE_AUD;
+    }
+
+    /**
+     * Builds an AVCDecoderConfigurationRecord (avcC payload) from a single SPS and PPS.
+     */
+    public static byte[] buildAvcDecoderConfigurationRecord(byte[] sps, byte[] pps) {
+        ByteBuffer record = ByteBuffer.allocate(11 + sps.length + pps.length);
+        record.put((byte) 1);           // configurationVersion
+        record.put(sps[1]);             // AVCProfileIndication
+        record.put(sps[2]);             // profile_compatibility
+        record.put(sps[3]);             // AVCLevelIndication
+        record.put((byte) 0xff);        // 6 bits reserved + lengthSizeMinusOne = 3
+        record.put((byte) 0xe1);        // 3 bits reserved + numOfSequenceParameterSets = 1
+        record.putShort((short) sps.length);
+        record.put(sps);
+        record.put((byte) 1);           // numOfPictureParameterSets
+        record.putShort((short) pps.length);
+        record.put(pps);
+        return record.array();
+    }
+}
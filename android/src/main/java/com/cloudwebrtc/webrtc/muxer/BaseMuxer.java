@@ -21,7 +21,18 @@ public abstract class BaseMuxer {
         return mExpectedNumTracks;
     }
 
-    public static enum FORMAT { MPEG4, HLS, RTMP, WEBM }
+    public static enum FORMAT { MPEG4, HLS, RTMP, WEBM, OGG }
+
+    /**
+     * Notified by muxers that split their output into several files.
+     */
+    public interface SegmentListener {
+        /**
+         * Called once segment |index| is complete on disk.
+         * Invoked on the thread writing the stream; don't block.
+         */
+        void onSegmentFinished(String segmentPath, int index, long durationUs);
+    }
 
     private int mExpectedNumTracks = 2;           // TODO: Make this configurable?
 
@@ -29,6 +40,7 @@ public abstract class BaseMuxer {
     protected String mOutputPath;
     protected int mNumTracks;
     protected int mNumTracksFinished;
+    // Origin of the output timeline; -1 until the first packet when not set explicitly
     protected long mFirstPts;
     protected long mLastPts[];
 
@@ -38,15 +50,24 @@ public abstract class BaseMuxer {
         mFormat = format;
         mNumTracks = 0;
         mNumTracksFinished = 0;
-        mFirstPts = 0;
+        mFirstPts = -1;
         mExpectedNumTracks = expectedNumTracks;
         mLastPts = new long[mExpectedNumTracks];
         for(int i=0; i< mLastPts.length; i++) {
-            mLastPts[i] = 0;
+            mLastPts[i] = -1;
         }
     }
 
 
+    /**
+     * Sets the input pts that maps to 0 in the output, e.g. 0 when all encoders are stamped by a
+     * {@link MediaClock}. By default the pts of the first packet of any track is used, which
+     * offsets tracks that start later than the first one arrived.
+     */
+    public void setPtsOrigin(long originUs) {
+        mFirstPts = originUs;
+    }
+
     /**
      * Returns the absolute output path.
      *
@@ -85,6 +106,14 @@ public abstract class BaseMuxer {
         return false;
     }
 
+    /**
+     * Number of encoded packets accepted by this muxer but not yet written out.
+     * Muxers that write inline always return 0.
+     */
+    public int getPendingPacketCount(){
+        return 0;
+    }
+
     /**
      * Write the MediaCodec output buffer. This method <b>must</b>
      * be overridden by subclasses to release encodedData, transferring
@@ -100,6 +129,19 @@ public abstract class BaseMuxer {
         }
     }
 
+    /**
+     * Write an encoded packet that doesn't come from a MediaCodec owned by this muxer's
+     * pipeline, e.g. the output of the WebRTC send encoder. encodedData is only read during the
+     * call, and bufferInfo.presentationTimeUs is in the same time base as the encoder output.
+     *
+     * @param trackIndex
+     * @param encodedData
+     * @param bufferInfo
+     */
+    public void writeEncodedData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo){
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " only accepts MediaCodec output");
+    }
+
     public abstract void forceStop();
 
     protected boolean allTracksFinished(){
@@ -156,11 +198,10 @@ public abstract class BaseMuxer {
      * be called once per call to {@link #writeSampleData(MediaCodec, int, int, ByteBuffer, MediaCodec.BufferInfo)}.
      */
     protected long getNextRelativePts(long absPts, int trackIndex) {
-        if (mFirstPts == 0) {
+        if (mFirstPts < 0) {
             mFirstPts = absPts;
-            return 0;
         }
-        return getSafePts(absPts - mFirstPts, trackIndex);
+        return getSafePts(Math.max(0, absPts - mFirstPts), trackIndex);
     }
 
     /**
@@ -169,9 +210,9 @@ public abstract class BaseMuxer {
      */
     private long getSafePts(long pts, int trackIndex) {
         if (mLastPts[trackIndex] >= pts) {
-            // Enforce a non-zero minimum spacing
-            // between pts
-            mLastPts[trackIndex] += 9643;
+            // Timestamps from a MediaClock never collide, keep the output valid if they do anyway
+            Log.w(TAG, "Non-increasing pts " + pts + " on track " + trackIndex);
+            mLastPts[trackIndex]++;
             return mLastPts[trackIndex];
         }
         mLastPts[trackIndex] = pts;
@@ -0,0 +1,173 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+/**
+ * Adapts the video encoder bitrate while recording.
+ * <p/>
+ * The starting point is a layout target that grows with the number of tiles being mixed, so a
+ * grid of screen shares gets more bits than a single talking head. Every evaluation interval
+ * (measured in presentation time) the target is corrected from what the encoder actually
+ * produced: content that leaves the budget unused lowers it, content that keeps saturating it
+ * raises it, up to a multiple of the layout target.
+ * A growing muxer backlog overrides both and backs the bitrate off. The result is kept within
+ * [floor, ceiling] and only applied when it moved noticeably.
+ * <p/>
+ * Pure Java: no Android dependencies.
+ * @hide
+ */
+public class BitrateController {
+
+    public interface Listener {
+        /**
+         * Called with the new bitrate in bits per second, on the thread that reported the
+         * encoded frame or layout change.
+         */
+        void onBitrateChanged(int bitrate);
+    }
+
+    public interface QueueDepthSource {
+        int getPendingPacketCount();
+    }
+
+    private static final long EVALUATION_INTERVAL_US = 1000000;
+    // Extra bitrate per additional tile, relative to the single tile bitrate
+    private static final float TILE_WEIGHT = 0.5f;
+    // Measured/configured ratios that classify the content
+    private static final float UNDERSHOOT_RATIO = 0.6f;
+    private static final float SATURATION_RATIO = 0.9f;
+    // Bitrate kept above what simple content actually needs
+    private static final float UNDERSHOOT_HEADROOM = 1.5f;
+    private static final float INCREASE_STEP = 1.25f;
+    // An encoder meets any budget it is given, so a single saturated window says little.
+    // Increases need several in a row and stay within a multiple of the layout target.
+    private static final int SATURATED_WINDOWS = 3;
+    private static final float MAX_LAYOUT_RATIO = 2f;
+    private static final float CONGESTION_STEP = 0.8f;
+    private static final int CONGESTION_QUEUE_DEPTH = 8;
+    // Changes smaller than this are not worth a codec reconfiguration
+    private static final float MIN_CHANGE_RATIO = 0.1f;
+
+    private final int mBaseBitrate;
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private Listener mListener;
+    private QueueDepthSource mQueueDepthSource;
+
+    private volatile int mTileCount = 1;
+    private int mAppliedTileCount = 1;
+    private int mBitrate;
+    private long mWindowStartUs = -1;
+    private long mWindowBytes;
+    private int mSaturatedWindows;
+
+    /**
+     * @param baseBitrate bitrate for a single tile, used as the starting point.
+     * @param minBitrate  floor.
+     * @param maxBitrate  ceiling.
+     */
+    public BitrateController(int baseBitrate, int minBitrate, int maxBitrate) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate) {
+            throw new IllegalArgumentException("Invalid bitrate limits " + minBitrate + ".." + maxBitrate);
+        }
+        mBaseBitrate = baseBitrate;
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mBitrate = clamp(baseBitrate);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setQueueDepthSource(QueueDepthSource source) {
+        mQueueDepthSource = source;
+    }
+
+    /**
+     * Number of tiles currently mixed into the frame. Takes effect with the next encoded frame.
+     */
+    public void setTileCount(int tileCount) {
+        mTileCount = Math.max(1, tileCount);
+    }
+
+    public synchronized int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * Target for the current layout before any content or congestion correction.
+     */
+    public int getLayoutBitrate() {
+        return clamp((int) (mBaseBitrate * (1 + TILE_WEIGHT * (mTileCount - 1))));
+    }
+
+    /**
+     * Reports one encoded access unit.
+     */
+    public void onEncodedFrame(int size, long presentationTimeUs) {
+        int changed = 0;
+        synchronized (this) {
+            int tileCount = mTileCount;
+            if (tileCount != mAppliedTileCount) {
+                // Layout changes are applied at once, measurement restarts with the new layout
+                mAppliedTileCount = tileCount;
+                changed = update(getLayoutBitrate(), true);
+                mWindowStartUs = -1;
+                mSaturatedWindows = 0;
+            }
+            if (mWindowStartUs < 0 || presentationTimeUs < mWindowStartUs) {
+                mWindowStartUs = presentationTimeUs;
+                mWindowBytes = 0;
+            }
+            mWindowBytes += size;
+            long elapsedUs = presentationTimeUs - mWindowStartUs;
+            if (changed == 0 && elapsedUs >= EVALUATION_INTERVAL_US) {
+                long measured = mWindowBytes * 8 * 1000000L / elapsedUs;
+                changed = update(evaluate(measured), false);
+                mWindowStartUs = presentationTimeUs;
+                mWindowBytes = 0;
+            }
+        }
+        Listener listener = mListener;
+        if (changed > 0 && listener != null) {
+            listener.onBitrateChanged(changed);
+        }
+    }
+
+    private int evaluate(long measured) {
+        int queueDepth = mQueueDepthSource != null ? mQueueDepthSource.getPendingPacketCount() : 0;
+        boolean saturated = measured >= mBitrate * SATURATION_RATIO && queueDepth == 0;
+        mSaturatedWindows = saturated ? mSaturatedWindows + 1 : 0;
+        if (queueDepth >= CONGESTION_QUEUE_DEPTH) {
+            return (int) (mBitrate * CONGESTION_STEP);
+        }
+        if (measured < mBitrate * UNDERSHOOT_RATIO) {
+            return (int) (measured * UNDERSHOOT_HEADROOM);
+        }
+        if (mSaturatedWindows >= SATURATED_WINDOWS) {
+            // Let complex content grow past the layout target, but not up to the ceiling
+            mSaturatedWindows = 0;
+            int limit = (int) (getLayoutBitrate() * MAX_LAYOUT_RATIO);
+            return Math.max(mBitrate, Math.min(limit, (int) (mBitrate * INCREASE_STEP)));
+        }
+        return mBitrate;
+    }
+
+    /**
+     * Returns the new bitrate if it was changed, 0 otherwise.
+     */
+    private int update(int target, boolean force) {
+        target = clamp(target);
+        if (target == mBitrate) {
+            return 0;
+        }
+        if (!force && Math.abs(target - mBitrate) < mBitrate * MIN_CHANGE_RATIO) {
+            return 0;
+        }
+        mBitrate = target;
+        return target;
+    }
+
+    private int clamp(int bitrate) {
+        return Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+    }
+}
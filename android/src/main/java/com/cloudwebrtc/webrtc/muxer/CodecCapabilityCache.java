@@ -0,0 +1,251 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide snapshot of the encoders available on the device.
+ * <p/>
+ * Querying MediaCodecList is slow (it instantiates codec components on some devices), so the
+ * probe runs once, ideally in the background via {@link #prefetch()} when the plugin starts.
+ * Recorders then pick an encoder by name instead of taking whatever
+ * MediaCodec#createEncoderByType returns first, which on some devices is a software codec.
+ * @hide
+ */
+public final class CodecCapabilityCache {
+    private static final String TAG = "CodecCapabilityCache";
+    private static final boolean VERBOSE = false;
+    // Android 10. MediaCodecInfo#isAlias, isHardwareAccelerated and isSoftwareOnly are newer than
+    // the compile SDK, so they are called through reflection.
+    private static final int API_Q = 29;
+
+    // Component name prefixes of the software codecs shipped with the platform
+    private static final String[] SOFTWARE_CODEC_PREFIXES = {
+            "OMX.google.", "c2.android.", "c2.google.", "OMX.ffmpeg."
+    };
+
+    private static FutureTask<CodecCapabilityCache> sProbe;
+
+    /**
+     * Capabilities of one encoder for one mime type.
+     */
+    public static final class EncoderInfo {
+        public final String name;
+        public final String mimeType;
+        public final boolean hardwareAccelerated;
+        public final int[] profiles;
+        public final int[] colorFormats;
+        // 0 for audio encoders
+        public final int maxWidth;
+        public final int maxHeight;
+        private final MediaCodecInfo.VideoCapabilities mVideoCapabilities;
+
+        private EncoderInfo(String name, String mimeType, boolean hardwareAccelerated,
+                            MediaCodecInfo.CodecCapabilities capabilities) {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.hardwareAccelerated = hardwareAccelerated;
+            MediaCodecInfo.CodecProfileLevel[] profileLevels = capabilities.profileLevels;
+            profiles = new int[profileLevels != null ? profileLevels.length : 0];
+            for (int i = 0; i < profiles.length; i++) {
+                profiles[i] = profileLevels[i].profile;
+            }
+            colorFormats = capabilities.colorFormats != null ? capabilities.colorFormats : new int[0];
+            mVideoCapabilities = capabilities.getVideoCapabilities();
+            if (mVideoCapabilities != null) {
+                maxWidth = upper(mVideoCapabilities.getSupportedWidths());
+                maxHeight = upper(mVideoCapabilities.getSupportedHeights());
+            } else {
+                maxWidth = 0;
+                maxHeight = 0;
+            }
+        }
+
+        public boolean supportsProfile(int profile) {
+            for (int p : profiles) {
+                if (p == profile) return true;
+            }
+            return false;
+        }
+
+        public boolean supportsColorFormat(int colorFormat) {
+            for (int c : colorFormats) {
+                if (c == colorFormat) return true;
+            }
+            return false;
+        }
+
+        public boolean isSizeSupported(int width, int height) {
+            return mVideoCapabilities == null || mVideoCapabilities.isSizeSupported(width, height);
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + mimeType + (hardwareAccelerated ? ", hw" : ", sw")
+                    + (maxWidth > 0 ? ", max " + maxWidth + "x" + maxHeight : "")
+                    + ", " + profiles.length + " profiles, " + colorFormats.length + " color formats]";
+        }
+
+        private static int upper(Range<Integer> range) {
+            return range != null ? range.getUpper() : 0;
+        }
+    }
+
+    private final List<EncoderInfo> mEncoders;
+
+    private CodecCapabilityCache(List<EncoderInfo> encoders) {
+        mEncoders = Collections.unmodifiableList(encoders);
+    }
+
+    /**
+     * Starts probing the device codecs on a background thread, if not done yet.
+     */
+    public static synchronized void prefetch() {
+        if (sProbe != null) {
+            return;
+        }
+        sProbe = new FutureTask<>(CodecCapabilityCache::probe);
+        Thread thread = new Thread(sProbe, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Returns the cache, waiting for a running probe or probing on the calling thread if
+     * {@link #prefetch()} was never called.
+     */
+    public static CodecCapabilityCache getInstance() {
+        FutureTask<CodecCapabilityCache> probe;
+        boolean runInline = false;
+        synchronized (CodecCapabilityCache.class) {
+            if (sProbe == null) {
+                sProbe = new FutureTask<>(CodecCapabilityCache::probe);
+                runInline = true;
+            }
+            probe = sProbe;
+        }
+        if (runInline) {
+            probe.run();
+        }
+        try {
+            return probe.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Codec probe failed", e.getCause());
+        }
+        return new CodecCapabilityCache(new ArrayList<>());
+    }
+
+    /**
+     * Creates the best encoder for |mimeType|: a hardware encoder supporting the given size and
+     * input color format if there is one, in MediaCodecList order otherwise. Falls back to
+     * MediaCodec#createEncoderByType when no cached encoder matches or can be instantiated.
+     *
+     * @param width       frame width, or 0 for audio.
+     * @param height      frame height, or 0 for audio.
+     * @param colorFormat required input color format, or 0 for none.
+     */
+    public static MediaCodec createEncoder(String mimeType, int width, int height, int colorFormat) throws IOException {
+        EncoderInfo info = getInstance().findEncoder(mimeType, width, height, colorFormat);
+        if (info != null) {
+            try {
+                if (VERBOSE) Log.d(TAG, "Creating encoder " + info);
+                return MediaCodec.createByCodecName(info.name);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Failed to create " + info.name + ", falling back to default encoder", e);
+            }
+        }
+        return MediaCodec.createEncoderByType(mimeType);
+    }
+
+    public List<EncoderInfo> getEncoders() {
+        return mEncoders;
+    }
+
+    /**
+     * Returns the preferred encoder for the given constraints, or null if none matches.
+     * See {@link #createEncoder(String, int, int, int)} for the arguments.
+     */
+    public EncoderInfo findEncoder(String mimeType, int width, int height, int colorFormat) {
+        EncoderInfo fallback = null;
+        for (EncoderInfo info : mEncoders) {
+            if (!info.mimeType.equalsIgnoreCase(mimeType)) continue;
+            if (width > 0 && height > 0 && !info.isSizeSupported(width, height)) continue;
+            if (colorFormat != 0 && !info.supportsColorFormat(colorFormat)) continue;
+            if (info.hardwareAccelerated) {
+                return info;
+            }
+            if (fallback == null) {
+                fallback = info;
+            }
+        }
+        return fallback;
+    }
+
+    private static CodecCapabilityCache probe() {
+        long startNs = System.nanoTime();
+        List<EncoderInfo> encoders = new ArrayList<>();
+        for (MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!codecInfo.isEncoder()) continue;
+            if (Boolean.TRUE.equals(invokeQueryQ(codecInfo, "isAlias"))) continue;
+            boolean hardware = isHardwareAccelerated(codecInfo);
+            for (String type : codecInfo.getSupportedTypes()) {
+                try {
+                    MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(type);
+                    encoders.add(new EncoderInfo(codecInfo.getName(), type, hardware, capabilities));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "No capabilities for " + codecInfo.getName() + " " + type);
+                }
+            }
+        }
+        Log.i(TAG, "Found " + encoders.size() + " encoders in "
+                + (System.nanoTime() - startNs) / 1000000 + " ms");
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            for (EncoderInfo info : encoders) {
+                Log.v(TAG, "Encoder " + info);
+            }
+        }
+        return new CodecCapabilityCache(encoders);
+    }
+
+    private static boolean isHardwareAccelerated(MediaCodecInfo codecInfo) {
+        Boolean hardware = invokeQueryQ(codecInfo, "isHardwareAccelerated");
+        Boolean softwareOnly = invokeQueryQ(codecInfo, "isSoftwareOnly");
+        if (hardware != null && softwareOnly != null) {
+            return hardware && !softwareOnly;
+        }
+        String name = codecInfo.getName();
+        for (String prefix : SOFTWARE_CODEC_PREFIXES) {
+            if (name.startsWith(prefix)) return false;
+        }
+        return !name.contains(".sw.");
+    }
+
+    /**
+     * Calls the boolean MediaCodecInfo query |method| added in Android 10, returning null below
+     * it or if the call fails.
+     */
+    private static Boolean invokeQueryQ(MediaCodecInfo codecInfo, String method) {
+        if (Build.VERSION.SDK_INT < API_Q) {
+            return null;
+        }
+        try {
+            return (Boolean) MediaCodecInfo.class.getMethod(method).invoke(codecInfo);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            Log.w(TAG, "MediaCodecInfo#" + method + " failed", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A copy of one encoded access unit, detached from the MediaCodec output buffer it came from.
+ * Instances are owned by an {@link EncodedPacketPool} and recycled once written.
+ * @hide
+ */
+public class EncodedPacket {
+    ByteBuffer data;
+    int trackIndex;
+    long presentationTimeUs;
+    int flags;
+    int size;
+    long enqueueTimeNs;
+    // Non-null for control packets, which run this task on the writer thread instead of writing.
+    Runnable task;
+
+    EncodedPacket(int capacity) {
+        data = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Copies |size| bytes of |src| starting at |offset| into this packet, growing the backing
+     * direct buffer when needed. The position and limit of |src| are left untouched.
+     */
+    void set(int trackIndex, ByteBuffer src, int offset, int size, long presentationTimeUs, int flags) {
+        if (data.capacity() < size) {
+            data = ByteBuffer.allocateDirect(Math.max(size, data.capacity() * 2));
+        }
+        ByteBuffer view = src.duplicate();
+        view.limit(offset + size);
+        view.position(offset);
+        data.clear();
+        data.put(view);
+        data.flip();
+        this.trackIndex = trackIndex;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+
+    /**
+     * Clears the packet for filling in place and returns its buffer, grown to hold at least
+     * |capacity| bytes. The caller flips the buffer and sets |size| once done.
+     */
+    ByteBuffer reset(int capacity) {
+        if (data.capacity() < capacity) {
+            data = ByteBuffer.allocateDirect(Math.max(capacity, data.capacity() * 2));
+        }
+        data.clear();
+        return data;
+    }
+
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public int getTrackIndex() {
+        return trackIndex;
+    }
+
+    public long getPresentationTimeUs() {
+        return presentationTimeUs;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
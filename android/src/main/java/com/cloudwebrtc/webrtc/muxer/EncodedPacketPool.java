@@ -0,0 +1,55 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.util.ArrayDeque;
+
+/**
+ * Fixed-size pool of {@link EncodedPacket}s backed by direct buffers, so that steady-state
+ * muxing does not allocate. Buffers only grow when a packet larger than any seen before arrives.
+ * @hide
+ */
+public class EncodedPacketPool {
+    private final ArrayDeque<EncodedPacket> mFree;
+    private final int mCapacity;
+
+    public EncodedPacketPool(int numPackets, int initialPacketSize) {
+        mCapacity = numPackets;
+        mFree = new ArrayDeque<>(numPackets);
+        for (int i = 0; i < numPackets; i++) {
+            mFree.add(new EncodedPacket(initialPacketSize));
+        }
+    }
+
+    /**
+     * Returns a free packet, waiting up to |timeoutMs| for one to be recycled.
+     * Returns null if the pool is still exhausted after the timeout.
+     */
+    public synchronized EncodedPacket acquire(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mFree.isEmpty()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        return mFree.poll();
+    }
+
+    public synchronized void recycle(EncodedPacket packet) {
+        packet.task = null;
+        mFree.push(packet);
+        notify();
+    }
+
+    public synchronized int available() {
+        return mFree.size();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+}
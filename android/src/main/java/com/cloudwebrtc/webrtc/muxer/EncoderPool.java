@@ -0,0 +1,236 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Keeps one configured and started video/audio encoder pair ready for the next recording.
+ * <p/>
+ * Creating, configuring and starting both codecs (and the input surface) takes hundreds of
+ * milliseconds on many devices. {@link #prepare(Config)} does that work on the pool thread ahead
+ * of time, so {@link #acquire(Config)} can hand the pair out at once; the recorder then binds its
+ * muxer with {@link AndroidEncoder#setMuxer(BaseMuxer)}. A pair that is not acquired within the
+ * idle timeout is released, since hardware codec instances are a scarce system resource.
+ * @hide
+ */
+public class EncoderPool {
+    private static final String TAG = "EncoderPool";
+    private static final boolean VERBOSE = false;
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
+    // Upper bound on waiting for a pair that is still being prepared
+    private static final long ACQUIRE_TIMEOUT_MS = 1000;
+
+    /**
+     * Encoder settings of a recording. Pairs are only handed out for matching settings.
+     */
+    public static class Config {
+        public final int width;
+        public final int height;
+        public final int videoBitrate;
+        public final int frameRate;
+        public final int audioChannels;
+        public final int audioBitrate;
+        public final int sampleRate;
+        public final BaseMuxer.FORMAT format;
+        public final boolean async;
+
+        public Config(int width, int height, int videoBitrate, int frameRate,
+                      int audioChannels, int audioBitrate, int sampleRate,
+                      BaseMuxer.FORMAT format, boolean async) {
+            this.width = width;
+            this.height = height;
+            this.videoBitrate = videoBitrate;
+            this.frameRate = frameRate;
+            this.audioChannels = audioChannels;
+            this.audioBitrate = audioBitrate;
+            this.sampleRate = sampleRate;
+            this.format = format;
+            this.async = async;
+        }
+
+        /**
+         * Muxer formats sharing the same codecs (e.g. MPEG4 and RTMP) are interchangeable.
+         */
+        boolean isCompatible(Config other) {
+            return width == other.width && height == other.height
+                    && videoBitrate == other.videoBitrate && frameRate == other.frameRate
+                    && audioChannels == other.audioChannels && audioBitrate == other.audioBitrate
+                    && sampleRate == other.sampleRate && async == other.async
+                    && VideoEncoder.getMimeType(format).equals(VideoEncoder.getMimeType(other.format))
+                    && AudioEncoder.getMimeType(format).equals(AudioEncoder.getMimeType(other.format));
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + frameRate + " " + videoBitrate + "bps, "
+                    + audioChannels + "ch " + sampleRate + "Hz " + audioBitrate + "bps, " + format;
+        }
+    }
+
+    public static class EncoderPair {
+        public final VideoEncoder videoEncoder;
+        public final AudioEncoder audioEncoder;
+        final Config config;
+
+        EncoderPair(Config config, VideoEncoder videoEncoder, AudioEncoder audioEncoder) {
+            this.config = config;
+            this.videoEncoder = videoEncoder;
+            this.audioEncoder = audioEncoder;
+        }
+
+        void release() {
+            videoEncoder.release();
+            audioEncoder.release();
+        }
+    }
+
+    private final long mIdleTimeoutMs;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    // Guarded by |mLock|
+    private EncoderPair mWarmPair;
+    private Config mPreparingConfig;
+    private boolean mReleased;
+
+    private final Runnable mIdleTimeout = new Runnable() {
+        @Override
+        public void run() {
+            EncoderPair pair;
+            synchronized (mLock) {
+                pair = mWarmPair;
+                mWarmPair = null;
+            }
+            if (pair != null) {
+                Log.i(TAG, "Releasing idle encoders " + pair.config);
+                pair.release();
+            }
+        }
+    };
+
+    public EncoderPool() {
+        this(DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public EncoderPool(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Starts preparing a pair for |config| in the background, replacing a warm pair prepared for
+     * different settings. Does nothing if a matching pair is warm or being prepared.
+     */
+    public void prepare(final Config config) {
+        synchronized (mLock) {
+            if (mReleased) {
+                return;
+            }
+            if (mPreparingConfig != null && mPreparingConfig.isCompatible(config)) {
+                return;
+            }
+            if (mWarmPair != null && mWarmPair.config.isCompatible(config)) {
+                return;
+            }
+            mPreparingConfig = config;
+        }
+        mHandler.post(() -> {
+            mHandler.removeCallbacks(mIdleTimeout);
+            EncoderPair stale;
+            synchronized (mLock) {
+                stale = mWarmPair;
+                mWarmPair = null;
+            }
+            if (stale != null) {
+                stale.release();
+            }
+            EncoderPair pair = createPair(config);
+            synchronized (mLock) {
+                if (mPreparingConfig == config) {
+                    mPreparingConfig = null;
+                }
+                if (pair != null && !mReleased) {
+                    mWarmPair = pair;
+                    pair = null;
+                }
+                mLock.notifyAll();
+            }
+            if (pair != null) {
+                pair.release();
+                return;
+            }
+            mHandler.postDelayed(mIdleTimeout, mIdleTimeoutMs);
+        });
+    }
+
+    /**
+     * Hands out the warm pair if it matches |config|, waiting briefly for one still being
+     * prepared. Returns null otherwise, in which case the caller creates its own encoders.
+     */
+    public EncoderPair acquire(Config config) {
+        EncoderPair pair = null;
+        synchronized (mLock) {
+            long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MS;
+            while (mWarmPair == null && mPreparingConfig != null && mPreparingConfig.isCompatible(config)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (mWarmPair != null && mWarmPair.config.isCompatible(config)) {
+                pair = mWarmPair;
+                mWarmPair = null;
+            }
+        }
+        if (pair != null) {
+            mHandler.removeCallbacks(mIdleTimeout);
+            if (VERBOSE) Log.d(TAG, "Acquired warm encoders " + config);
+        } else {
+            Log.i(TAG, "No warm encoders for " + config);
+        }
+        return pair;
+    }
+
+    /**
+     * Releases the warm pair and stops the pool thread. Pairs already handed out are unaffected.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mLock.notifyAll();
+        }
+        mHandler.removeCallbacks(mIdleTimeout);
+        mHandler.post(mIdleTimeout);
+        mThread.quitSafely();
+    }
+
+    private EncoderPair createPair(Config config) {
+        long startNs = System.nanoTime();
+        VideoEncoder videoEncoder = null;
+        try {
+            videoEncoder = new VideoEncoder(config.width, config.height, config.videoBitrate,
+                    config.frameRate, config.format, config.async);
+            AudioEncoder audioEncoder = new AudioEncoder(config.audioChannels, config.audioBitrate,
+                    config.sampleRate, config.format, config.async);
+            Log.i(TAG, "Prepared encoders " + config + " in "
+                    + (System.nanoTime() - startNs) / 1000000 + " ms");
+            return new EncoderPair(config, videoEncoder, audioEncoder);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to prepare encoders " + config, e);
+            if (videoEncoder != null) {
+                videoEncoder.release();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds FLV tag bodies (Adobe FLV v10.1, E.4.2/E.4.3) for H.264 and AAC, as carried in the
+ * payload of RTMP audio and video messages.
+ * <p/>
+ * Pure Java: no Android dependencies.
+ * @hide
+ */
+public final class FlvPacketizer {
+    public static final int TAG_TYPE_AUDIO = 8;
+    public static final int TAG_TYPE_VIDEO = 9;
+    public static final int TAG_TYPE_SCRIPT = 18;
+
+    public static final int VIDEO_CODEC_ID_AVC = 7;
+    public static final int AUDIO_CODEC_ID_AAC = 10;
+
+    private static final int FRAME_TYPE_KEY = 1;
+    private static final int FRAME_TYPE_INTER = 2;
+    private static final int AVC_PACKET_SEQUENCE_HEADER = 0;
+    private static final int AVC_PACKET_NALU = 1;
+    // AAC, 44 kHz, 16 bit, stereo: the fixed values the spec mandates for AAC
+    private static final byte AAC_SOUND_HEADER = (byte) 0xaf;
+    private static final int AAC_PACKET_SEQUENCE_HEADER = 0;
+    private static final int AAC_PACKET_RAW = 1;
+
+    private FlvPacketizer() {
+    }
+
+    /**
+     * Size of the video tag body {@link #putAvcFrame} produces.
+     */
+    public static int avcFrameSize(ByteBuffer src, int offset, int size) {
+        return 5 + AvcUtils.avccSize(src, offset, size);
+    }
+
+    public static void putAvcSequenceHeader(ByteBuffer dst, byte[] sps, byte[] pps) {
+        dst.put((byte) ((FRAME_TYPE_KEY << 4) | VIDEO_CODEC_ID_AVC));
+        dst.put((byte) AVC_PACKET_SEQUENCE_HEADER);
+        putInt24(dst, 0);
+        dst.put(AvcUtils.buildAvcDecoderConfigurationRecord(sps, pps));
+    }
+
+    /**
+     * Writes the video tag header followed by the access unit as length prefixed NAL units.
+     * Frames are encoded without B-frames, so the composition time offset is always 0.
+     */
+    public static void putAvcFrame(ByteBuffer dst, ByteBuffer src, int offset, int size, boolean keyFrame) {
+        dst.put((byte) (((keyFrame ? FRAME_TYPE_KEY : FRAME_TYPE_INTER) << 4) | VIDEO_CODEC_ID_AVC));
+        dst.put((byte) AVC_PACKET_NALU);
+        putInt24(dst, 0);
+        AvcUtils.annexBToAvcc(src, offset, size, dst);
+    }
+
+    public static void putAacSequenceHeader(ByteBuffer dst, byte[] audioSpecificConfig) {
+        dst.put(AAC_SOUND_HEADER);
+        dst.put((byte) AAC_PACKET_SEQUENCE_HEADER);
+        dst.put(audioSpecificConfig);
+    }
+
+    public static void putAacFrame(ByteBuffer dst, ByteBuffer src, int offset, int size) {
+        dst.put(AAC_SOUND_HEADER);
+        dst.put((byte) AAC_PACKET_RAW);
+        ByteBuffer view = src.duplicate();
+        view.limit(offset + size);
+        view.position(offset);
+        dst.put(view);
+    }
+
+    private static void putInt24(ByteBuffer dst, int value) {
+        dst.put((byte) (value >> 16));
+        dst.put((byte) (value >> 8));
+        dst.put((byte) value);
+    }
+}
@@ -0,0 +1,239 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Muxer writing H.264/AAC to fragmented MP4 with {@link FragmentedMp4Writer}.
+ * <p/>
+ * Unlike {@link AndroidMuxer}, whose MediaMuxer only writes the moov on stop(), the output is
+ * playable up to the last completed fragment at any time, and memory is bounded by the fragment
+ * duration instead of growing with the recording.
+ * @hide
+ */
+public class FragmentedMp4Muxer extends BaseMuxer implements MuxerWriter.PacketSink {
+    private static final String TAG = "FragmentedMp4Muxer";
+    private static final boolean VERBOSE = false;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private final FragmentedMp4Writer mMp4Writer;
+    private volatile boolean mStarted;
+    private boolean mFinished;
+    // Optional dedicated I/O stage, see AndroidMuxer
+    private MuxerWriter mWriter;
+    private boolean[] mAwaitingSyncFrame;
+    private boolean[] mVideoTrack;
+
+    private FragmentedMp4Muxer(String outputFile, int expectedNumTracks, long fragmentDurationUs, boolean useWriterThread) {
+        super(outputFile, FORMAT.MPEG4, expectedNumTracks);
+        try {
+            mFile = new RandomAccessFile(outputFile, "rw");
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+        } catch (IOException e) {
+            throw new RuntimeException("Output file creation failed", e);
+        }
+        mMp4Writer = new FragmentedMp4Writer(mChannel, fragmentDurationUs, FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+        mVideoTrack = new boolean[expectedNumTracks];
+        if (useWriterThread) {
+            mAwaitingSyncFrame = new boolean[expectedNumTracks];
+            mWriter = new MuxerWriter(TAG + "Writer", this);
+            mWriter.setErrorListener(e -> Log.e(TAG, "Writer task failed", e));
+            mWriter.start();
+        }
+    }
+
+    public static FragmentedMp4Muxer create(String outputFile, int expectedNumTracks) {
+        return new FragmentedMp4Muxer(outputFile, expectedNumTracks, FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US, false);
+    }
+
+    /**
+     * @param fragmentDurationUs minimum duration of a fragment; fragments are cut on video sync frames.
+     * @param useWriterThread    perform file writes on a dedicated I/O thread.
+     */
+    public static FragmentedMp4Muxer create(String outputFile, int expectedNumTracks, long fragmentDurationUs, boolean useWriterThread) {
+        return new FragmentedMp4Muxer(outputFile, expectedNumTracks, fragmentDurationUs, useWriterThread);
+    }
+
+    public MuxerWriter.Stats getWriterStats() {
+        return mWriter != null ? mWriter.getStats() : null;
+    }
+
+    @Override
+    public int getPendingPacketCount() {
+        return mWriter != null ? mWriter.getQueueDepth() : 0;
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        if (mStarted)
+            throw new RuntimeException("format changed twice");
+        super.addTrack(trackFormat);
+        String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+        int track;
+        if ("video/avc".equals(mime)) {
+            byte[] sps = AvcUtils.stripStartCode(trackFormat.getByteBuffer("csd-0"));
+            byte[] pps = AvcUtils.stripStartCode(trackFormat.getByteBuffer("csd-1"));
+            track = mMp4Writer.addVideoTrack(trackFormat.getInteger(MediaFormat.KEY_WIDTH),
+                    trackFormat.getInteger(MediaFormat.KEY_HEIGHT), sps, pps);
+            mVideoTrack[track] = true;
+        } else if ("audio/mp4a-latm".equals(mime)) {
+            ByteBuffer csd = trackFormat.getByteBuffer("csd-0").duplicate();
+            byte[] audioSpecificConfig = new byte[csd.remaining()];
+            csd.get(audioSpecificConfig);
+            track = mMp4Writer.addAudioTrack(trackFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    trackFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT), audioSpecificConfig);
+        } else {
+            throw new IllegalArgumentException("Unsupported track format for fragmented MP4: " + mime);
+        }
+        if (allTracksAdded()) {
+            start();
+        }
+        return track;
+    }
+
+    protected void start() {
+        if (mStarted) {
+            return;
+        }
+        if (mWriter != null) {
+            mWriter.post(this::writeHeader);
+        } else {
+            writeHeader();
+        }
+        mStarted = true;
+    }
+
+    private void writeHeader() {
+        try {
+            mMp4Writer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write file header", e);
+        }
+    }
+
+    protected void stop() {
+        if (mFinished || !mMp4Writer.isStarted()) {
+            return;
+        }
+        try {
+            mMp4Writer.finish();
+            mChannel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write last fragment", e);
+        }
+        mFinished = true;
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        if (mWriter != null) {
+            mWriter.post(this::stop);
+            mWriter.quit();
+            Log.i(TAG, "Writer finished. " + mWriter.getStats());
+        } else {
+            stop();
+        }
+        try {
+            mChannel.close();
+            mFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close output file", e);
+        }
+        mStarted = false;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // Codec config is carried in the sample descriptions, taken from addTrack
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return;
+        }
+        if (bufferInfo.size == 0) {
+            if (VERBOSE) Log.d(TAG, "ignoring zero size buffer");
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            finishIfDone();
+            return;
+        }
+        if (!mStarted) {
+            Log.e(TAG, "writeSampleData called before muxer started. Ignoring packet. Track index: " + trackIndex + " tracks added: " + mNumTracks);
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return;
+        }
+
+        long pts = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+
+        if (mWriter != null) {
+            submitToWriter(trackIndex, encodedData, bufferInfo, pts);
+        } else {
+            try {
+                mMp4Writer.writeSample(trackIndex, encodedData, bufferInfo.offset, bufferInfo.size, pts,
+                        (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            } catch (IOException e) {
+                Log.e(TAG, "writeSample failed on track " + trackIndex, e);
+            }
+        }
+        encoder.releaseOutputBuffer(bufferIndex, false);
+        finishIfDone();
+    }
+
+    private void finishIfDone() {
+        if (!allTracksFinished()) {
+            return;
+        }
+        if (mWriter != null) {
+            mWriter.post(this::stop);
+        } else {
+            stop();
+        }
+    }
+
+    private void submitToWriter(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo, long pts) {
+        boolean syncFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mAwaitingSyncFrame[trackIndex] && !syncFrame) {
+            return;
+        }
+        mAwaitingSyncFrame[trackIndex] = false;
+        if (!mWriter.submit(trackIndex, encodedData, bufferInfo.offset, bufferInfo.size, pts, bufferInfo.flags)) {
+            Log.w(TAG, "Writer backlog, dropped packet on track " + trackIndex);
+            mAwaitingSyncFrame[trackIndex] = mVideoTrack[trackIndex];
+        }
+    }
+
+    /**
+     * Called on the writer thread.
+     */
+    @Override
+    public void writePacket(EncodedPacket packet) throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mMp4Writer.writeSample(packet.trackIndex, packet.data, 0, packet.size, packet.presentationTimeUs,
+                (packet.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+    }
+
+    @Override
+    public void forceStop() {
+        if (mWriter != null) {
+            mWriter.post(this::stop);
+            return;
+        }
+        stop();
+    }
+}
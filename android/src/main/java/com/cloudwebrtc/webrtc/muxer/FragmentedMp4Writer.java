@@ -0,0 +1,552 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Writes H.264/AAC elementary streams as fragmented MP4 (ISO/IEC 14496-12, ftyp+moov followed by
+ * moof+mdat pairs) through a {@link FileChannel}.
+ * <p/>
+ * The header carries no sample tables, and every fragment is self-describing, so the file is
+ * playable up to the last completed fragment at any point, e.g. after the process is killed.
+ * Only the samples of the current fragment are held in memory.
+ * <p/>
+ * Pure Java: no Android dependencies, so it can be exercised on a plain JVM.
+ * @hide
+ */
+public class FragmentedMp4Writer {
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 2000000;
+    // Hard cap on buffered sample data; a fragment is flushed early once exceeded
+    public static final int DEFAULT_MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final int mMaxFragmentBytes;
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+    private ByteBuffer mBoxBuffer = ByteBuffer.allocate(64 * 1024);
+    private boolean mStarted;
+    private int mSequenceNumber;
+    private long mFragmentStartUs = -1;
+    private int mBufferedBytes;
+    private long mBytesWritten;
+
+    private static class Track {
+        final int id;
+        final boolean video;
+        final int timescale;
+        // video
+        int width;
+        int height;
+        byte[] sps;
+        byte[] pps;
+        // audio
+        int sampleRate;
+        int channelCount;
+        byte[] audioSpecificConfig;
+
+        ByteBuffer data = ByteBuffer.allocateDirect(256 * 1024);
+        int sampleCount;
+        int[] sizes = new int[64];
+        long[] ptsUs = new long[64];
+        boolean[] sync = new boolean[64];
+        long lastDurationUs;
+
+        Track(int id, boolean video, int timescale) {
+            this.id = id;
+            this.video = video;
+            this.timescale = timescale;
+        }
+
+        void ensureSampleCapacity() {
+            if (sampleCount < sizes.length) {
+                return;
+            }
+            int capacity = sizes.length * 2;
+            sizes = java.util.Arrays.copyOf(sizes, capacity);
+            ptsUs = java.util.Arrays.copyOf(ptsUs, capacity);
+            sync = java.util.Arrays.copyOf(sync, capacity);
+        }
+
+        void ensureDataCapacity(int extra) {
+            if (data.remaining() >= extra) {
+                return;
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(data.capacity() * 2, data.position() + extra));
+            data.flip();
+            grown.put(data);
+            data = grown;
+        }
+
+        long toTimescale(long us) {
+            return us * timescale / 1000000L;
+        }
+    }
+
+    public FragmentedMp4Writer(FileChannel channel) {
+        this(channel, DEFAULT_FRAGMENT_DURATION_US, DEFAULT_MAX_FRAGMENT_BYTES);
+    }
+
+    public FragmentedMp4Writer(FileChannel channel, long fragmentDurationUs, int maxFragmentBytes) {
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+        mMaxFragmentBytes = maxFragmentBytes;
+    }
+
+    /**
+     * Adds an H.264 track. |sps| and |pps| are raw NAL units without start code.
+     *
+     * @return the track index to pass to {@link #writeSample}
+     */
+    public int addVideoTrack(int width, int height, byte[] sps, byte[] pps) {
+        checkNotStarted();
+        Track track = new Track(mTracks.size() + 1, true, VIDEO_TIMESCALE);
+        track.width = width;
+        track.height = height;
+        track.sps = sps;
+        track.pps = pps;
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Adds an AAC track described by its AudioSpecificConfig.
+     *
+     * @return the track index to pass to {@link #writeSample}
+     */
+    public int addAudioTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        checkNotStarted();
+        Track track = new Track(mTracks.size() + 1, false, sampleRate);
+        track.sampleRate = sampleRate;
+        track.channelCount = channelCount;
+        track.audioSpecificConfig = audioSpecificConfig;
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) {
+            throw new IllegalStateException("Tracks can't be added after start()");
+        }
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Writes the file header (ftyp + moov).
+     */
+    public void start() throws IOException {
+        if (mStarted) {
+            return;
+        }
+        ByteBuffer out = boxBuffer();
+        writeFtyp(out);
+        writeMoov(out);
+        out.flip();
+        writeFully(out);
+        mStarted = true;
+    }
+
+    /**
+     * Buffers one access unit. H.264 samples may be Annex B; they are converted to length
+     * prefixed NAL units. A new fragment is started at the first video sync sample after the
+     * fragment duration has elapsed (or on any audio sample for audio-only files).
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, int offset, int size, long presentationTimeUs, boolean syncSample) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("writeSample() called before start()");
+        }
+        Track track = mTracks.get(trackIndex);
+        if (shouldStartFragment(track, presentationTimeUs, syncSample)) {
+            flushFragment();
+        }
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = presentationTimeUs;
+        }
+        int sampleSize;
+        if (track.video) {
+            track.ensureDataCapacity(AvcUtils.avccSize(data, offset, size));
+            sampleSize = AvcUtils.annexBToAvcc(data, offset, size, track.data);
+        } else {
+            track.ensureDataCapacity(size);
+            ByteBuffer view = data.duplicate();
+            view.limit(offset + size);
+            view.position(offset);
+            track.data.put(view);
+            sampleSize = size;
+        }
+        track.ensureSampleCapacity();
+        int i = track.sampleCount++;
+        track.sizes[i] = sampleSize;
+        track.ptsUs[i] = presentationTimeUs;
+        track.sync[i] = syncSample || !track.video;
+        mBufferedBytes += sampleSize;
+    }
+
+    private boolean shouldStartFragment(Track track, long presentationTimeUs, boolean syncSample) {
+        if (mFragmentStartUs < 0 || mBufferedBytes == 0) {
+            return false;
+        }
+        if (mBufferedBytes >= mMaxFragmentBytes) {
+            return true;
+        }
+        boolean cutTrack = track.video || !hasVideo();
+        return cutTrack && (syncSample || !track.video)
+                && presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs;
+    }
+
+    private boolean hasVideo() {
+        for (Track track : mTracks) {
+            if (track.video) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the buffered samples as one moof+mdat pair.
+     */
+    public void flushFragment() throws IOException {
+        if (mBufferedBytes == 0) {
+            return;
+        }
+        mSequenceNumber++;
+        ByteBuffer out = boxBuffer();
+        int moofStart = out.position();
+        int moof = beginBox(out, "moof");
+        int mfhd = beginFullBox(out, "mfhd", 0, 0);
+        out.putInt(mSequenceNumber);
+        endBox(out, mfhd);
+
+        int[] dataOffsetPositions = new int[mTracks.size()];
+        for (int t = 0; t < mTracks.size(); t++) {
+            Track track = mTracks.get(t);
+            dataOffsetPositions[t] = -1;
+            if (track.sampleCount == 0) {
+                continue;
+            }
+            int traf = beginBox(out, "traf");
+            // default-base-is-moof: data offsets are relative to the start of the moof box
+            int tfhd = beginFullBox(out, "tfhd", 0, 0x020000);
+            out.putInt(track.id);
+            endBox(out, tfhd);
+            int tfdt = beginFullBox(out, "tfdt", 1, 0);
+            out.putLong(track.toTimescale(track.ptsUs[0]));
+            endBox(out, tfdt);
+            // data-offset, sample-duration, sample-size and sample-flags present
+            int trun = beginFullBox(out, "trun", 0, 0x000701);
+            out.putInt(track.sampleCount);
+            dataOffsetPositions[t] = out.position();
+            out.putInt(0);
+            for (int i = 0; i < track.sampleCount; i++) {
+                out.putInt(sampleDuration(track, i));
+                out.putInt(track.sizes[i]);
+                out.putInt(track.sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            endBox(out, trun);
+            endBox(out, traf);
+        }
+        endBox(out, moof);
+
+        int moofSize = out.position() - moofStart;
+        int dataOffset = moofSize + 8;
+        for (int t = 0; t < mTracks.size(); t++) {
+            if (dataOffsetPositions[t] >= 0) {
+                out.putInt(dataOffsetPositions[t], dataOffset);
+                dataOffset += mTracks.get(t).data.position();
+            }
+        }
+        out.putInt(8 + mBufferedBytes);
+        out.put(fourcc("mdat"));
+        out.flip();
+        writeFully(out);
+
+        for (Track track : mTracks) {
+            track.data.flip();
+            writeFully(track.data);
+            track.data.clear();
+            track.sampleCount = 0;
+        }
+        mBufferedBytes = 0;
+        mFragmentStartUs = -1;
+    }
+
+    /**
+     * Duration of sample |i| in the track timescale. The last sample of a fragment reuses the
+     * previous sample duration since its successor is not known yet.
+     */
+    private int sampleDuration(Track track, int i) {
+        long durationUs;
+        if (i + 1 < track.sampleCount) {
+            durationUs = track.ptsUs[i + 1] - track.ptsUs[i];
+            track.lastDurationUs = durationUs;
+        } else if (track.lastDurationUs > 0) {
+            durationUs = track.lastDurationUs;
+        } else if (track.video) {
+            durationUs = 33333;
+        } else {
+            durationUs = AAC_SAMPLES_PER_FRAME * 1000000L / track.sampleRate;
+        }
+        return (int) (track.toTimescale(track.ptsUs[i] + durationUs) - track.toTimescale(track.ptsUs[i]));
+    }
+
+    /**
+     * Flushes the last fragment. The channel is left open.
+     */
+    public void finish() throws IOException {
+        if (mStarted) {
+            flushFragment();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(buffer);
+        }
+    }
+
+    private ByteBuffer boxBuffer() {
+        int needed = 4096;
+        for (Track track : mTracks) {
+            needed += track.sampleCount * 12 + 256;
+        }
+        if (mBoxBuffer.capacity() < needed) {
+            mBoxBuffer = ByteBuffer.allocate(needed);
+        }
+        mBoxBuffer.clear();
+        return mBoxBuffer;
+    }
+
+    // ----- header boxes -----
+
+    private void writeFtyp(ByteBuffer out) {
+        int ftyp = beginBox(out, "ftyp");
+        out.put(fourcc("iso6"));
+        out.putInt(0);
+        out.put(fourcc("iso6"));
+        out.put(fourcc("isom"));
+        out.put(fourcc("iso2"));
+        out.put(fourcc("avc1"));
+        out.put(fourcc("mp41"));
+        endBox(out, ftyp);
+    }
+
+    private void writeMoov(ByteBuffer out) {
+        int moov = beginBox(out, "moov");
+        int mvhd = beginFullBox(out, "mvhd", 0, 0);
+        out.putInt(0);                      // creation_time
+        out.putInt(0);                      // modification_time
+        out.putInt(MOVIE_TIMESCALE);
+        out.putInt(0);                      // duration: unknown, given by the fragments
+        out.putInt(0x00010000);             // rate 1.0
+        out.putShort((short) 0x0100);       // volume 1.0
+        out.put(new byte[10]);              // reserved
+        putMatrix(out);
+        out.put(new byte[24]);              // pre_defined
+        out.putInt(mTracks.size() + 1);     // next_track_ID
+        endBox(out, mvhd);
+
+        for (Track track : mTracks) {
+            writeTrak(out, track);
+        }
+
+        int mvex = beginBox(out, "mvex");
+        for (Track track : mTracks) {
+            int trex = beginFullBox(out, "trex", 0, 0);
+            out.putInt(track.id);
+            out.putInt(1);                  // default_sample_description_index
+            out.putInt(0);                  // default_sample_duration
+            out.putInt(0);                  // default_sample_size
+            out.putInt(0);                  // default_sample_flags
+            endBox(out, trex);
+        }
+        endBox(out, mvex);
+        endBox(out, moov);
+    }
+
+    private void writeTrak(ByteBuffer out, Track track) {
+        int trak = beginBox(out, "trak");
+        // track_enabled | track_in_movie
+        int tkhd = beginFullBox(out, "tkhd", 0, 0x000003);
+        out.putInt(0);                      // creation_time
+        out.putInt(0);                      // modification_time
+        out.putInt(track.id);
+        out.putInt(0);                      // reserved
+        out.putInt(0);                      // duration
+        out.put(new byte[8]);               // reserved
+        out.putShort((short) 0);            // layer
+        out.putShort((short) 0);            // alternate_group
+        out.putShort((short) (track.video ? 0 : 0x0100));
+        out.putShort((short) 0);            // reserved
+        putMatrix(out);
+        out.putInt(track.video ? track.width << 16 : 0);
+        out.putInt(track.video ? track.height << 16 : 0);
+        endBox(out, tkhd);
+
+        int mdia = beginBox(out, "mdia");
+        int mdhd = beginFullBox(out, "mdhd", 0, 0);
+        out.putInt(0);                      // creation_time
+        out.putInt(0);                      // modification_time
+        out.putInt(track.timescale);
+        out.putInt(0);                      // duration
+        out.putShort((short) 0x55c4);       // language: und
+        out.putShort((short) 0);            // pre_defined
+        endBox(out, mdhd);
+
+        int hdlr = beginFullBox(out, "hdlr", 0, 0);
+        out.putInt(0);                      // pre_defined
+        out.put(fourcc(track.video ? "vide" : "soun"));
+        out.put(new byte[12]);              // reserved
+        out.put((track.video ? "VideoHandler" : "SoundHandler").getBytes());
+        out.put((byte) 0);
+        endBox(out, hdlr);
+
+        int minf = beginBox(out, "minf");
+        if (track.video) {
+            int vmhd = beginFullBox(out, "vmhd", 0, 1);
+            out.put(new byte[8]);           // graphicsmode + opcolor
+            endBox(out, vmhd);
+        } else {
+            int smhd = beginFullBox(out, "smhd", 0, 0);
+            out.putInt(0);                  // balance + reserved
+            endBox(out, smhd);
+        }
+        int dinf = beginBox(out, "dinf");
+        int dref = beginFullBox(out, "dref", 0, 0);
+        out.putInt(1);
+        int url = beginFullBox(out, "url ", 0, 1);  // media is in the same file
+        endBox(out, url);
+        endBox(out, dref);
+        endBox(out, dinf);
+
+        int stbl = beginBox(out, "stbl");
+        int stsd = beginFullBox(out, "stsd", 0, 0);
+        out.putInt(1);
+        if (track.video) {
+            writeAvc1(out, track);
+        } else {
+            writeMp4a(out, track);
+        }
+        endBox(out, stsd);
+        // Empty sample tables: all samples live in movie fragments
+        int stts = beginFullBox(out, "stts", 0, 0);
+        out.putInt(0);
+        endBox(out, stts);
+        int stsc = beginFullBox(out, "stsc", 0, 0);
+        out.putInt(0);
+        endBox(out, stsc);
+        int stsz = beginFullBox(out, "stsz", 0, 0);
+        out.putInt(0);
+        out.putInt(0);
+        endBox(out, stsz);
+        int stco = beginFullBox(out, "stco", 0, 0);
+        out.putInt(0);
+        endBox(out, stco);
+        endBox(out, stbl);
+        endBox(out, minf);
+        endBox(out, mdia);
+        endBox(out, trak);
+    }
+
+    private void writeAvc1(ByteBuffer out, Track track) {
+        int avc1 = beginBox(out, "avc1");
+        out.put(new byte[6]);               // reserved
+        out.putShort((short) 1);            // data_reference_index
+        out.put(new byte[16]);              // pre_defined + reserved
+        out.putShort((short) track.width);
+        out.putShort((short) track.height);
+        out.putInt(0x00480000);             // horizresolution 72 dpi
+        out.putInt(0x00480000);             // vertresolution 72 dpi
+        out.putInt(0);                      // reserved
+        out.putShort((short) 1);            // frame_count
+        out.put(new byte[32]);              // compressorname
+        out.putShort((short) 0x0018);       // depth
+        out.putShort((short) -1);           // pre_defined
+        int avcC = beginBox(out, "avcC");
+        out.put(AvcUtils.buildAvcDecoderConfigurationRecord(track.sps, track.pps));
+        endBox(out, avcC);
+        endBox(out, avc1);
+    }
+
+    private void writeMp4a(ByteBuffer out, Track track) {
+        int mp4a = beginBox(out, "mp4a");
+        out.put(new byte[6]);               // reserved
+        out.putShort((short) 1);            // data_reference_index
+        out.put(new byte[8]);               // reserved
+        out.putShort((short) track.channelCount);
+        out.putShort((short) 16);           // samplesize
+        out.putInt(0);                      // pre_defined + reserved
+        out.putInt(track.sampleRate << 16);
+        int esds = beginFullBox(out, "esds", 0, 0);
+        byte[] asc = track.audioSpecificConfig;
+        // ES_Descriptor
+        out.put((byte) 0x03);
+        out.put((byte) (23 + asc.length));
+        out.putShort((short) track.id);     // ES_ID
+        out.put((byte) 0);                  // flags
+        // DecoderConfigDescriptor
+        out.put((byte) 0x04);
+        out.put((byte) (15 + asc.length));
+        out.put((byte) 0x40);               // objectTypeIndication: MPEG-4 audio
+        out.put((byte) 0x15);               // streamType audio, upstream 0, reserved 1
+        out.put(new byte[3]);               // bufferSizeDB
+        out.putInt(0);                      // maxBitrate
+        out.putInt(0);                      // avgBitrate
+        // DecoderSpecificInfo
+        out.put((byte) 0x05);
+        out.put((byte) asc.length);
+        out.put(asc);
+        // SLConfigDescriptor
+        out.put((byte) 0x06);
+        out.put((byte) 1);
+        out.put((byte) 0x02);
+        endBox(out, esds);
+        endBox(out, mp4a);
+    }
+
+    // ----- box helpers -----
+
+    private static void putMatrix(ByteBuffer out) {
+        for (int value : UNITY_MATRIX) {
+            out.putInt(value);
+        }
+    }
+
+    static byte[] fourcc(String type) {
+        return new byte[]{(byte) type.charAt(0), (byte) type.charAt(1), (byte) type.charAt(2), (byte) type.charAt(3)};
+    }
+
+    private static int beginBox(ByteBuffer out, String type) {
+        int start = out.position();
+        out.putInt(0);
+        out.put(fourcc(type));
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer out, String type, int version, int flags) {
+        int start = beginBox(out, type);
+        out.putInt((version << 24) | (flags & 0xffffff));
+        return start;
+    }
+
+    private static void endBox(ByteBuffer out, int start) {
+        out.putInt(start, out.position() - start);
+    }
+}
@@ -0,0 +1,392 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * HLS muxer: writes H.264/AAC as MPEG-TS segments next to a playlist at the output path,
+ * e.g. /sdcard/app/uuid/index.m3u8 with index_0.ts, index_1.ts, ...
+ * <p/>
+ * Segments are cut on video IDR frames once the target duration is reached and written
+ * incrementally. The video encoder is asked for an IDR at that point, so that segments don't run
+ * into the next regular key frame and EXT-X-TARGETDURATION can stay fixed as RFC 8216 requires. The playlist is rewritten atomically each time a segment completes, and the
+ * {@link SegmentListener} is notified so finished segments can be uploaded during the recording.
+ * @hide
+ */
+public class HlsMuxer extends BaseMuxer implements MuxerWriter.PacketSink {
+    private static final String TAG = "HlsMuxer";
+    private static final boolean VERBOSE = false;
+
+    public static final long DEFAULT_TARGET_DURATION_US = 6000000;
+
+    private static class Segment {
+        final int index;
+        final String name;
+        final long durationUs;
+
+        Segment(int index, String name, long durationUs) {
+            this.index = index;
+            this.name = name;
+            this.durationUs = durationUs;
+        }
+    }
+
+    private final File mPlaylistFile;
+    private final String mBaseName;
+    private final long mTargetDurationUs;
+    private final int mPlaylistSize;
+    private final ArrayDeque<Segment> mPlaylistSegments = new ArrayDeque<>();
+    private SegmentListener mSegmentListener;
+
+    private MpegTsWriter mTsWriter;
+    private boolean mHasVideo;
+    private boolean mHasAudio;
+    private boolean[] mVideoTrack;
+    private MediaFormat[] mTrackFormats;
+    private volatile boolean mStarted;
+    private boolean mFinished;
+
+    private RandomAccessFile mSegmentFile;
+    // Written on the writer thread, read on the encoder thread to request sync frames
+    private volatile int mSegmentIndex = -1;
+    private volatile long mSegmentStartUs;
+    private long mLastPtsUs;
+    private long mLastFrameDurationUs;
+    // Encoder thread only
+    private int mSyncFrameRequestedSegment = -1;
+
+    // Optional dedicated I/O stage, see AndroidMuxer
+    private MuxerWriter mWriter;
+    private boolean[] mAwaitingSyncFrame;
+
+    private HlsMuxer(String playlistPath, int expectedNumTracks, long targetDurationUs, int playlistSize, boolean useWriterThread) {
+        super(playlistPath, FORMAT.HLS, expectedNumTracks);
+        mPlaylistFile = new File(playlistPath);
+        String name = mPlaylistFile.getName();
+        int dot = name.lastIndexOf('.');
+        mBaseName = dot > 0 ? name.substring(0, dot) : name;
+        mTargetDurationUs = targetDurationUs;
+        mPlaylistSize = playlistSize;
+        mVideoTrack = new boolean[expectedNumTracks];
+        mTrackFormats = new MediaFormat[expectedNumTracks];
+        if (useWriterThread) {
+            mAwaitingSyncFrame = new boolean[expectedNumTracks];
+            mWriter = new MuxerWriter(TAG + "Writer", this);
+            mWriter.start();
+        }
+    }
+
+    public static HlsMuxer create(String playlistPath, int expectedNumTracks) {
+        return new HlsMuxer(playlistPath, expectedNumTracks, DEFAULT_TARGET_DURATION_US, 0, false);
+    }
+
+    /**
+     * @param targetDurationUs minimum segment duration; segments are cut on the next IDR after it.
+     * @param playlistSize     number of segments kept in a rolling live playlist, or 0 to list
+     *                         every segment (EVENT playlist).
+     * @param useWriterThread  perform file writes on a dedicated I/O thread.
+     */
+    public static HlsMuxer create(String playlistPath, int expectedNumTracks, long targetDurationUs, int playlistSize, boolean useWriterThread) {
+        return new HlsMuxer(playlistPath, expectedNumTracks, targetDurationUs, playlistSize, useWriterThread);
+    }
+
+    /**
+     * |listener| is called once a segment is complete on disk and listed in the playlist.
+     */
+    public void setSegmentListener(SegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    public MuxerWriter.Stats getWriterStats() {
+        return mWriter != null ? mWriter.getStats() : null;
+    }
+
+    @Override
+    public int getPendingPacketCount() {
+        return mWriter != null ? mWriter.getQueueDepth() : 0;
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        if (mStarted)
+            throw new RuntimeException("format changed twice");
+        int track = super.addTrack(trackFormat);
+        String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+        if ("video/avc".equals(mime)) {
+            mHasVideo = true;
+            mVideoTrack[track] = true;
+        } else if ("audio/mp4a-latm".equals(mime)) {
+            mHasAudio = true;
+        } else {
+            throw new IllegalArgumentException("Unsupported track format for HLS: " + mime);
+        }
+        mTrackFormats[track] = trackFormat;
+        if (allTracksAdded()) {
+            start();
+        }
+        return track;
+    }
+
+    private void start() {
+        mTsWriter = new MpegTsWriter(mHasVideo, mHasAudio);
+        for (MediaFormat format : mTrackFormats) {
+            configure(format);
+        }
+        mStarted = true;
+    }
+
+    private void configure(MediaFormat format) {
+        if ("video/avc".equals(format.getString(MediaFormat.KEY_MIME))) {
+            mTsWriter.setVideoConfig(AvcUtils.stripStartCode(format.getByteBuffer("csd-0")),
+                    AvcUtils.stripStartCode(format.getByteBuffer("csd-1")));
+        } else {
+            ByteBuffer csd = format.getByteBuffer("csd-0").duplicate();
+            byte[] audioSpecificConfig = new byte[csd.remaining()];
+            csd.get(audioSpecificConfig);
+            // AAC in MPEG-TS is carried with ADTS headers, see formatRequiresADTS()
+            mTsWriter.setAudioConfig(audioSpecificConfig);
+        }
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // SPS/PPS are taken from the output format and repeated before every IDR
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return;
+        }
+        if (bufferInfo.size == 0) {
+            if (VERBOSE) Log.d(TAG, "ignoring zero size buffer");
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            finishIfDone();
+            return;
+        }
+        if (!mStarted) {
+            Log.e(TAG, "writeSampleData called before muxer started. Ignoring packet. Track index: " + trackIndex + " tracks added: " + mNumTracks);
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return;
+        }
+
+        long pts = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        if (mVideoTrack[trackIndex]) {
+            requestSyncFrameIfDue(encoder, pts);
+        }
+
+        if (mWriter != null) {
+            submitToWriter(trackIndex, encodedData, bufferInfo, pts);
+        } else {
+            try {
+                writeSample(trackIndex, encodedData, bufferInfo.offset, bufferInfo.size, pts, bufferInfo.flags);
+            } catch (IOException e) {
+                Log.e(TAG, "write failed on track " + trackIndex, e);
+            }
+        }
+        encoder.releaseOutputBuffer(bufferIndex, false);
+        finishIfDone();
+    }
+
+    /**
+     * Asks the video encoder for an IDR once the current segment reached the target duration, so
+     * that it doesn't wait for the regular key frame interval. See AndroidMuxer.
+     */
+    private void requestSyncFrameIfDue(MediaCodec encoder, long ptsUs) {
+        int segment = mSegmentIndex;
+        if (segment < 0 || mSyncFrameRequestedSegment == segment || ptsUs - mSegmentStartUs < mTargetDurationUs) {
+            return;
+        }
+        mSyncFrameRequestedSegment = segment;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            encoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Sync frame request failed", e);
+        }
+    }
+
+    private void submitToWriter(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo, long pts) {
+        boolean syncFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mAwaitingSyncFrame[trackIndex] && !syncFrame) {
+            return;
+        }
+        mAwaitingSyncFrame[trackIndex] = false;
+        if (!mWriter.submit(trackIndex, encodedData, bufferInfo.offset, bufferInfo.size, pts, bufferInfo.flags)) {
+            Log.w(TAG, "Writer backlog, dropped packet on track " + trackIndex);
+            mAwaitingSyncFrame[trackIndex] = mVideoTrack[trackIndex];
+        }
+    }
+
+    /**
+     * Called on the writer thread.
+     */
+    @Override
+    public void writePacket(EncodedPacket packet) throws IOException {
+        writeSample(packet.trackIndex, packet.data, 0, packet.size, packet.presentationTimeUs, packet.flags);
+    }
+
+    private void writeSample(int trackIndex, ByteBuffer data, int offset, int size, long ptsUs, int flags) throws IOException {
+        if (mFinished) {
+            return;
+        }
+        boolean video = mVideoTrack[trackIndex];
+        boolean keyFrame = (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mSegmentFile == null) {
+            if (mHasVideo && !(video && keyFrame)) {
+                // Every segment must start with an IDR to be decodable on its own
+                return;
+            }
+            openSegment(ptsUs);
+        } else if ((video && keyFrame || !mHasVideo) && ptsUs - mSegmentStartUs >= mTargetDurationUs) {
+            closeSegment(ptsUs);
+            openSegment(ptsUs);
+        }
+        if (video) {
+            mTsWriter.writeVideo(data, offset, size, ptsUs, keyFrame);
+        } else {
+            mTsWriter.writeAudio(data, offset, size, ptsUs);
+        }
+        if (video || !mHasVideo) {
+            if (ptsUs > mLastPtsUs) {
+                mLastFrameDurationUs = ptsUs - mLastPtsUs;
+                mLastPtsUs = ptsUs;
+            }
+        }
+    }
+
+    private void openSegment(long startUs) throws IOException {
+        mSegmentIndex++;
+        mSegmentStartUs = startUs;
+        mLastPtsUs = startUs;
+        mSegmentFile = new RandomAccessFile(segmentFile(mSegmentIndex), "rw");
+        mSegmentFile.setLength(0);
+        mTsWriter.startSegment(mSegmentFile.getChannel());
+    }
+
+    private void closeSegment(long endUs) throws IOException {
+        mTsWriter.flush();
+        FileChannel channel = mSegmentFile.getChannel();
+        channel.force(false);
+        mSegmentFile.close();
+        mSegmentFile = null;
+
+        long durationUs = endUs - mSegmentStartUs;
+        File file = segmentFile(mSegmentIndex);
+        mPlaylistSegments.add(new Segment(mSegmentIndex, file.getName(), durationUs));
+        if (mPlaylistSize > 0 && mPlaylistSegments.size() > mPlaylistSize) {
+            mPlaylistSegments.poll();
+        }
+        if (Math.round(durationUs / 1000000.0) > getTargetDurationSeconds()) {
+            Log.w(TAG, "Segment " + mSegmentIndex + " exceeds the target duration: " + durationUs + "us");
+        }
+        writePlaylist(false);
+        if (mSegmentListener != null) {
+            mSegmentListener.onSegmentFinished(file.getAbsolutePath(), mSegmentIndex, durationUs);
+        }
+    }
+
+    private File segmentFile(int index) {
+        return new File(mPlaylistFile.getParentFile(), mBaseName + "_" + index + ".ts");
+    }
+
+    /**
+     * Writes the playlist to a temporary file and renames it over the old one, so readers never
+     * observe a partially written playlist.
+     */
+    private void writePlaylist(boolean endList) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:3\n");
+        // Must not change during the recording
+        sb.append("#EXT-X-TARGETDURATION:").append(getTargetDurationSeconds()).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(mPlaylistSegments.isEmpty() ? 0 : mPlaylistSegments.peek().index).append('\n');
+        if (mPlaylistSize == 0) {
+            sb.append("#EXT-X-PLAYLIST-TYPE:").append(endList ? "VOD" : "EVENT").append('\n');
+        }
+        for (Segment segment : mPlaylistSegments) {
+            sb.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationUs / 1000000.0));
+            sb.append(segment.name).append('\n');
+        }
+        if (endList) {
+            sb.append("#EXT-X-ENDLIST\n");
+        }
+        File tmp = new File(mPlaylistFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(sb.toString().getBytes(Charset.forName("UTF-8")));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(mPlaylistFile)) {
+            throw new IOException("Failed to replace playlist " + mPlaylistFile);
+        }
+    }
+
+    private long getTargetDurationSeconds() {
+        return (mTargetDurationUs + 999999) / 1000000;
+    }
+
+    private void finishIfDone() {
+        if (!allTracksFinished()) {
+            return;
+        }
+        if (mWriter != null) {
+            mWriter.post(this::stop);
+        } else {
+            stop();
+        }
+    }
+
+    protected void stop() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        try {
+            if (mSegmentFile != null) {
+                closeSegment(mLastPtsUs + mLastFrameDurationUs);
+            }
+            writePlaylist(true);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to finish HLS output", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        if (mWriter != null) {
+            mWriter.post(this::stop);
+            mWriter.quit();
+            Log.i(TAG, "Writer finished. " + mWriter.getStats());
+        } else {
+            stop();
+        }
+        mStarted = false;
+    }
+
+    @Override
+    public void forceStop() {
+        if (mWriter != null) {
+            mWriter.post(this::stop);
+            return;
+        }
+        stop();
+    }
+}
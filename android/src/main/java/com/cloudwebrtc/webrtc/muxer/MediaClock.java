@@ -0,0 +1,207 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+/**
+ * Shared timeline of one recording session, used to stamp both audio and video so that every
+ * track is expressed in the same time base, starting at 0 when the session starts.
+ * <p/>
+ * Audio time is derived from the number of samples encoded, which is exact and jitter free, and
+ * is slowly steered towards the session time to absorb the drift between the audio clock and the
+ * system clock. Larger gaps (e.g. dropped buffers) are resynchronized at once. Video time is
+ * snapped to the frame grid of the target frame rate; a frame rendered into an already used slot
+ * is rejected instead of getting a colliding or made-up timestamp. Time spent paused is removed
+ * from the timeline.
+ * <p/>
+ * All methods are thread-safe. Pure Java: no Android dependencies.
+ * @hide
+ */
+public class MediaClock {
+
+    /**
+     * Source of monotonic time in nanoseconds.
+     */
+    public interface TimeSource {
+        long nanoTime();
+    }
+
+    public static class Stats {
+        // Audio time minus session time at the last audio buffer; positive when audio is ahead
+        public long audioDriftUs;
+        public long maxAudioDriftUs;
+        public int audioResyncs;
+        public int videoFrames;
+        // Frames rejected because their slot was already used
+        public int videoFramesRejected;
+        // Slots left empty because rendering fell behind
+        public int videoSlotsSkipped;
+        public long pausedUs;
+
+        @Override
+        public String toString() {
+            return "audio drift " + audioDriftUs / 1000 + " ms (max " + maxAudioDriftUs / 1000
+                    + " ms, " + audioResyncs + " resyncs), video " + videoFrames + " frames ("
+                    + videoFramesRejected + " rejected, " + videoSlotsSkipped + " slots skipped), paused "
+                    + pausedUs / 1000 + " ms";
+        }
+    }
+
+    // Audio drift beyond which the audio timeline jumps to the session time
+    private static final long MAX_AUDIO_DRIFT_US = 100000;
+    // Audio drift beyond which the audio timeline is steered towards the session time
+    private static final long AUDIO_SLEW_THRESHOLD_US = 20000;
+    // Maximum steering per buffer, as a fraction of the buffer duration
+    private static final int AUDIO_SLEW_DIVISOR = 100;
+
+    private final TimeSource mTimeSource;
+    private long mStartNs = -1;
+    private long mPausedAtNs = -1;
+    private long mPausedNs;
+    private long mResumedAtNs = -1;
+
+    private boolean mAudioStarted;
+    private long mAudioBaseUs;
+    private long mAudioSamples;
+    private long mLastAudioPtsUs = -1;
+
+    private long mLastVideoSlot = -1;
+
+    private final Stats mStats = new Stats();
+
+    public MediaClock() {
+        this(System::nanoTime);
+    }
+
+    public MediaClock(TimeSource timeSource) {
+        mTimeSource = timeSource;
+    }
+
+    /**
+     * Starts the session timeline. Called implicitly by the first timestamp request.
+     */
+    public synchronized void start() {
+        if (mStartNs < 0) {
+            mStartNs = mTimeSource.nanoTime();
+        }
+    }
+
+    public synchronized boolean isStarted() {
+        return mStartNs >= 0;
+    }
+
+    public synchronized void pause() {
+        if (mPausedAtNs < 0) {
+            start();
+            mPausedAtNs = mTimeSource.nanoTime();
+        }
+    }
+
+    public synchronized void resume() {
+        if (mPausedAtNs >= 0) {
+            mResumedAtNs = mTimeSource.nanoTime();
+            mPausedNs += mResumedAtNs - mPausedAtNs;
+            mPausedAtNs = -1;
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return mPausedAtNs >= 0;
+    }
+
+    /**
+     * Session time in microseconds, excluding pauses. Frozen while paused.
+     */
+    public synchronized long getMediaTimeUs() {
+        start();
+        long nowNs = mPausedAtNs >= 0 ? mPausedAtNs : mTimeSource.nanoTime();
+        return (nowNs - mStartNs - mPausedNs) / 1000;
+    }
+
+    /**
+     * Converts a System.nanoTime based capture time, e.g. the timestamp of a WebRTC video frame,
+     * to session time in microseconds. Returns -1 while paused, or if |nanoTime| precedes the
+     * session start or the last resume.
+     */
+    public synchronized long toMediaTimeUs(long nanoTime) {
+        if (isPaused()) {
+            return -1;
+        }
+        start();
+        if (nanoTime < mStartNs || nanoTime < mResumedAtNs) {
+            return -1;
+        }
+        return (nanoTime - mStartNs - mPausedNs) / 1000;
+    }
+
+    /**
+     * Returns the presentation time of an audio buffer of |samples| frames that has just been
+     * captured, or -1 while paused, in which case the buffer should be discarded.
+     */
+    public synchronized long getAudioPts(int samples, int sampleRate) {
+        if (isPaused()) {
+            return -1;
+        }
+        long bufferDurationUs = samples * 1000000L / sampleRate;
+        // The buffer was being captured during the last |bufferDurationUs|
+        long captureUs = Math.max(0, getMediaTimeUs() - bufferDurationUs);
+        if (!mAudioStarted) {
+            mAudioStarted = true;
+            mAudioBaseUs = captureUs;
+            mAudioSamples = 0;
+        }
+        long ptsUs = mAudioBaseUs + mAudioSamples * 1000000L / sampleRate;
+        long driftUs = ptsUs - captureUs;
+        if (driftUs < -MAX_AUDIO_DRIFT_US) {
+            // Audio went missing, don't stretch the remaining audio over the gap
+            mAudioBaseUs = captureUs;
+            mAudioSamples = 0;
+            ptsUs = captureUs;
+            mStats.audioResyncs++;
+        } else if (Math.abs(driftUs) > AUDIO_SLEW_THRESHOLD_US) {
+            long stepUs = Math.max(1, bufferDurationUs / AUDIO_SLEW_DIVISOR);
+            mAudioBaseUs += driftUs < 0 ? stepUs : -stepUs;
+            ptsUs = mAudioBaseUs + mAudioSamples * 1000000L / sampleRate;
+        }
+        if (ptsUs <= mLastAudioPtsUs) {
+            ptsUs = mLastAudioPtsUs + 1;
+        }
+        mAudioSamples += samples;
+        mLastAudioPtsUs = ptsUs;
+        mStats.audioDriftUs = ptsUs - captureUs;
+        mStats.maxAudioDriftUs = Math.max(mStats.maxAudioDriftUs, Math.abs(mStats.audioDriftUs));
+        return ptsUs;
+    }
+
+    /**
+     * Returns the presentation time of a video frame rendered now, snapped to the frame grid of
+     * |frameRate|, or -1 if the frame should not be encoded: while paused, or when a frame was
+     * already produced for the current slot.
+     */
+    public synchronized long getVideoPts(int frameRate) {
+        if (isPaused()) {
+            return -1;
+        }
+        long nowUs = getMediaTimeUs();
+        long slot = (nowUs * frameRate + 500000) / 1000000;
+        if (slot <= mLastVideoSlot) {
+            mStats.videoFramesRejected++;
+            return -1;
+        }
+        if (mLastVideoSlot >= 0) {
+            mStats.videoSlotsSkipped += slot - mLastVideoSlot - 1;
+        }
+        mLastVideoSlot = slot;
+        mStats.videoFrames++;
+        return slot * 1000000L / frameRate;
+    }
+
+    public synchronized Stats getStats() {
+        Stats stats = new Stats();
+        stats.audioDriftUs = mStats.audioDriftUs;
+        stats.maxAudioDriftUs = mStats.maxAudioDriftUs;
+        stats.audioResyncs = mStats.audioResyncs;
+        stats.videoFrames = mStats.videoFrames;
+        stats.videoFramesRejected = mStats.videoFramesRejected;
+        stats.videoSlotsSkipped = mStats.videoSlotsSkipped;
+        stats.pausedUs = (mPausedNs + (mPausedAtNs >= 0 ? mTimeSource.nanoTime() - mPausedAtNs : 0)) / 1000;
+        return stats;
+    }
+}
@@ -0,0 +1,263 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves the 'moov' box of an MP4 in front of the media data, so that players can start
+ * progressive playback before the whole file is downloaded. MediaMuxer writes it last.
+ * <p/>
+ * Boxes are copied with FileChannel#transferTo and the chunk offset tables (stco/co64) of the
+ * relocated 'moov' are patched in place through a fixed size buffer, so memory use doesn't depend
+ * on the length of the recording. Files whose 32-bit chunk offsets would overflow are left alone.
+ * <p/>
+ * Pure Java: no Android dependencies.
+ * @hide
+ */
+public final class Mp4FastStart {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int TYPE_MOOV = fourCc("moov");
+    private static final int TYPE_MDAT = fourCc("mdat");
+    private static final int TYPE_STCO = fourCc("stco");
+    private static final int TYPE_CO64 = fourCc("co64");
+    // Boxes on the path from 'moov' to the chunk offset tables
+    private static final int[] CONTAINER_TYPES = {
+            fourCc("trak"), fourCc("mdia"), fourCc("minf"), fourCc("stbl")
+    };
+
+    private Mp4FastStart() {
+    }
+
+    /**
+     * Rewrites |file| with 'moov' first, through a temporary file next to it.
+     *
+     * @return false if the file was left untouched: already fast start, or not relocatable.
+     */
+    public static boolean process(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".faststart");
+        try {
+            boolean processed = process(file, tmp);
+            if (processed && !tmp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+            return processed;
+        } finally {
+            if (tmp.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a copy of |input| with 'moov' first to |output|.
+     *
+     * @return false, without writing |output|, if the input is already fast start or not
+     * relocatable.
+     */
+    public static boolean process(File input, File output) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(input, "r")) {
+            FileChannel src = in.getChannel();
+            long fileSize = src.size();
+            ByteBuffer header = ByteBuffer.allocate(16);
+
+            long moovStart = -1;
+            long moovSize = 0;
+            long firstMdat = -1;
+            long pos = 0;
+            while (pos < fileSize) {
+                long[] box = readBoxHeader(src, pos, fileSize, header);
+                if (box == null) {
+                    return false;
+                }
+                if (box[1] == TYPE_MOOV) {
+                    moovStart = pos;
+                    moovSize = box[0];
+                } else if (box[1] == TYPE_MDAT && firstMdat < 0) {
+                    firstMdat = pos;
+                }
+                pos += box[0];
+            }
+            if (moovStart < 0 || firstMdat < 0 || moovStart < firstMdat) {
+                return false;
+            }
+
+            boolean patched;
+            try (RandomAccessFile out = new RandomAccessFile(output, "rw")) {
+                FileChannel dst = out.getChannel();
+                dst.truncate(0);
+                long outPos = transfer(src, 0, firstMdat, dst, 0);
+                long newMoovStart = outPos;
+                outPos = transfer(src, moovStart, moovSize, dst, outPos);
+                outPos = transfer(src, firstMdat, moovStart - firstMdat, dst, outPos);
+                transfer(src, moovStart + moovSize, fileSize - moovStart - moovSize, dst, outPos);
+
+                patched = patchChunkOffsets(dst, newMoovStart, moovSize, firstMdat, moovStart, moovSize);
+                if (patched) {
+                    dst.force(false);
+                }
+            }
+            if (!patched) {
+                //noinspection ResultOfMethodCallIgnored
+                output.delete();
+            }
+            return patched;
+        }
+    }
+
+    /**
+     * Returns {size, type} of the box at |pos|, or null if the header is invalid.
+     */
+    private static long[] readBoxHeader(FileChannel channel, long pos, long end, ByteBuffer header) throws IOException {
+        header.clear().limit(8);
+        if (end - pos < 8 || readFully(channel, header, pos) < 8) {
+            return null;
+        }
+        long size = header.getInt(0) & 0xffffffffL;
+        int type = header.getInt(4);
+        if (size == 1) {
+            header.clear().limit(8);
+            if (readFully(channel, header, pos + 8) < 8) {
+                return null;
+            }
+            size = header.getLong(0);
+        } else if (size == 0) {
+            size = end - pos;
+        }
+        if (size < 8 || pos + size > end) {
+            return null;
+        }
+        return new long[] {size, type};
+    }
+
+    private static int headerSize(FileChannel channel, long pos, ByteBuffer header) throws IOException {
+        header.clear().limit(4);
+        readFully(channel, header, pos);
+        return header.getInt(0) == 1 ? 16 : 8;
+    }
+
+    /**
+     * Shifts every chunk offset pointing before the old 'moov' position by |shift|. Walks the
+     * relocated 'moov' at |pos| of |size| bytes in |channel|.
+     */
+    private static boolean patchChunkOffsets(FileChannel channel, long pos, long size,
+                                             long mediaStart, long oldMoovStart, long shift) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        return patchContainer(channel, pos + headerSize(channel, pos, header), pos + size,
+                mediaStart, oldMoovStart, shift, header, buffer);
+    }
+
+    private static boolean patchContainer(FileChannel channel, long pos, long end, long mediaStart,
+                                          long oldMoovStart, long shift, ByteBuffer header, ByteBuffer buffer) throws IOException {
+        while (pos < end) {
+            long[] box = readBoxHeader(channel, pos, end, header);
+            if (box == null) {
+                return false;
+            }
+            long boxSize = box[0];
+            int type = (int) box[1];
+            long body = pos + headerSize(channel, pos, header);
+            if (type == TYPE_STCO || type == TYPE_CO64) {
+                if (!patchTable(channel, body, pos + boxSize, type == TYPE_CO64 ? 8 : 4,
+                        mediaStart, oldMoovStart, shift, header, buffer)) {
+                    return false;
+                }
+            } else if (isContainer(type)) {
+                if (!patchContainer(channel, body, pos + boxSize, mediaStart, oldMoovStart, shift, header, buffer)) {
+                    return false;
+                }
+            }
+            pos += boxSize;
+        }
+        return true;
+    }
+
+    private static boolean patchTable(FileChannel channel, long body, long end, int entrySize, long mediaStart,
+                                      long oldMoovStart, long shift, ByteBuffer header, ByteBuffer buffer) throws IOException {
+        // Full box: version and flags, then the entry count
+        header.clear().limit(8);
+        if (readFully(channel, header, body) < 8) {
+            return false;
+        }
+        long count = header.getInt(4) & 0xffffffffL;
+        long pos = body + 8;
+        if (pos + count * entrySize > end) {
+            return false;
+        }
+        int entriesPerBuffer = buffer.capacity() / entrySize;
+        while (count > 0) {
+            int n = (int) Math.min(count, entriesPerBuffer);
+            buffer.clear().limit(n * entrySize);
+            if (readFully(channel, buffer, pos) < n * entrySize) {
+                return false;
+            }
+            for (int i = 0; i < n; i++) {
+                int index = i * entrySize;
+                if (entrySize == 4) {
+                    long offset = buffer.getInt(index) & 0xffffffffL;
+                    if (offset >= mediaStart && offset < oldMoovStart) {
+                        offset += shift;
+                        if (offset > 0xffffffffL) {
+                            // Would need a co64 table, which changes the size of 'moov'
+                            return false;
+                        }
+                        buffer.putInt(index, (int) offset);
+                    }
+                } else {
+                    long offset = buffer.getLong(index);
+                    if (offset >= mediaStart && offset < oldMoovStart) {
+                        buffer.putLong(index, offset + shift);
+                    }
+                }
+            }
+            buffer.position(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, pos + buffer.position());
+            }
+            pos += n * entrySize;
+            count -= n;
+        }
+        return true;
+    }
+
+    private static boolean isContainer(int type) {
+        for (int t : CONTAINER_TYPES) {
+            if (t == type) return true;
+        }
+        return false;
+    }
+
+    private static long transfer(FileChannel src, long pos, long count, FileChannel dst, long dstPos) throws IOException {
+        dst.position(dstPos);
+        long done = 0;
+        while (done < count) {
+            long n = src.transferTo(pos + done, count - done, dst);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            done += n;
+        }
+        return dstPos + count;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static int fourCc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
@@ -0,0 +1,315 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Packetizes H.264 (Annex B) and AAC access units into an MPEG-2 transport stream
+ * (ISO/IEC 13818-1), one PES packet per access unit.
+ * <p/>
+ * The output channel can be switched between segments with {@link #startSegment(FileChannel)};
+ * every segment starts with PAT/PMT so it can be decoded on its own. Packets are staged in a
+ * small buffer and written as it fills, so a segment is written incrementally.
+ * <p/>
+ * Pure Java: no Android dependencies.
+ * @hide
+ */
+public class MpegTsWriter {
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_PAYLOAD_SIZE = 184;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x100;
+    private static final int AUDIO_PID = 0x101;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_TYPE_AAC = 0x0f;
+    private static final int STREAM_ID_VIDEO = 0xe0;
+    private static final int STREAM_ID_AUDIO = 0xc0;
+    // Timestamps are shifted so the PCR, taken from the unshifted time, always leads the PTS
+    private static final long PTS_OFFSET = 63000;
+    private static final byte[] AUD = {0, 0, 0, 1, 9, (byte) 0xf0};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final boolean mHasVideo;
+    private final boolean mHasAudio;
+    private byte[] mSps;
+    private byte[] mPps;
+    private byte[] mAudioSpecificConfig;
+    private final int[] mContinuity = new int[0x2000];
+
+    private FileChannel mChannel;
+    private final ByteBuffer mOut = ByteBuffer.allocateDirect(TS_PACKET_SIZE * 128);
+    private final byte[] mPesHeader = new byte[512];
+    private long mBytesWritten;
+
+    public MpegTsWriter(boolean hasVideo, boolean hasAudio) {
+        mHasVideo = hasVideo;
+        mHasAudio = hasAudio;
+    }
+
+    /**
+     * SPS and PPS without start code; they are repeated in front of every IDR that does not
+     * carry them in-band.
+     */
+    public void setVideoConfig(byte[] sps, byte[] pps) {
+        mSps = sps;
+        mPps = pps;
+    }
+
+    public void setAudioConfig(byte[] audioSpecificConfig) {
+        mAudioSpecificConfig = audioSpecificConfig;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Flushes pending packets to the current channel, then directs output to |channel| and
+     * writes the program tables. The previous channel is not closed.
+     */
+    public void startSegment(FileChannel channel) throws IOException {
+        flush();
+        mChannel = channel;
+        writePat();
+        writePmt();
+    }
+
+    public void flush() throws IOException {
+        if (mChannel == null) {
+            mOut.clear();
+            return;
+        }
+        mOut.flip();
+        while (mOut.hasRemaining()) {
+            mBytesWritten += mChannel.write(mOut);
+        }
+        mOut.clear();
+    }
+
+    public void writeVideo(ByteBuffer data, int offset, int size, long presentationTimeUs, boolean keyFrame) throws IOException {
+        int headerLength = 0;
+        if (!AvcUtils.isAnnexB(data, offset, size) || (data.get(AvcUtils.findNalStart(data, offset, offset + size)) & 0x1f) != AvcUtils.NAL_TYPE_AUD) {
+            System.arraycopy(AUD, 0, mPesHeader, 14, AUD.length);
+            headerLength += AUD.length;
+        }
+        if (keyFrame && mSps != null && AvcUtils.findNal(data, offset, size, AvcUtils.NAL_TYPE_SPS) == null) {
+            headerLength = putNal(mSps, 14 + headerLength) - 14;
+            headerLength = putNal(mPps, 14 + headerLength) - 14;
+        }
+        writePes(VIDEO_PID, STREAM_ID_VIDEO, headerLength, data, offset, size, toPts(presentationTimeUs), true, keyFrame);
+    }
+
+    public void writeAudio(ByteBuffer data, int offset, int size, long presentationTimeUs) throws IOException {
+        putAdtsHeader(14, size + 7);
+        writePes(AUDIO_PID, STREAM_ID_AUDIO, 7, data, offset, size, toPts(presentationTimeUs), !mHasVideo, !mHasVideo);
+    }
+
+    private static long toPts(long presentationTimeUs) {
+        return presentationTimeUs * 9 / 100 + PTS_OFFSET;
+    }
+
+    private int putNal(byte[] nal, int position) {
+        System.arraycopy(START_CODE, 0, mPesHeader, position, START_CODE.length);
+        System.arraycopy(nal, 0, mPesHeader, position + START_CODE.length, nal.length);
+        return position + START_CODE.length + nal.length;
+    }
+
+    /**
+     * Writes an ADTS header (ISO/IEC 14496-3, 1.A.2.2) derived from the AudioSpecificConfig.
+     */
+    private void putAdtsHeader(int position, int frameLength) {
+        int objectType = (mAudioSpecificConfig[0] & 0xff) >> 3;
+        int frequencyIndex = ((mAudioSpecificConfig[0] & 0x07) << 1) | ((mAudioSpecificConfig[1] & 0x80) >> 7);
+        int channelConfig = (mAudioSpecificConfig[1] & 0x78) >> 3;
+        byte[] h = mPesHeader;
+        h[position] = (byte) 0xff;
+        h[position + 1] = (byte) 0xf1;     // MPEG-4, layer 0, no CRC
+        h[position + 2] = (byte) (((objectType - 1) << 6) | (frequencyIndex << 2) | (channelConfig >> 2));
+        h[position + 3] = (byte) (((channelConfig & 3) << 6) | (frameLength >> 11));
+        h[position + 4] = (byte) (frameLength >> 3);
+        h[position + 5] = (byte) (((frameLength & 7) << 5) | 0x1f);
+        h[position + 6] = (byte) 0xfc;
+    }
+
+    /**
+     * Writes one PES packet whose payload is |prefixLength| bytes staged in |mPesHeader| at
+     * offset 14, followed by |size| bytes of |data|.
+     */
+    private void writePes(int pid, int streamId, int prefixLength, ByteBuffer data, int offset, int size,
+                          long pts, boolean withPcr, boolean randomAccess) throws IOException {
+        byte[] h = mPesHeader;
+        int payloadLength = 8 + prefixLength + size;
+        // PES_packet_length may be 0 (unbounded) for video only
+        int pesLength = streamId == STREAM_ID_VIDEO || payloadLength > 0xffff ? 0 : payloadLength;
+        h[0] = 0;
+        h[1] = 0;
+        h[2] = 1;
+        h[3] = (byte) streamId;
+        h[4] = (byte) (pesLength >> 8);
+        h[5] = (byte) pesLength;
+        h[6] = (byte) 0x80;                 // marker bits
+        h[7] = (byte) 0x80;                 // PTS only
+        h[8] = 5;                           // PES_header_data_length
+        h[9] = (byte) (0x21 | ((pts >> 29) & 0x0e));
+        h[10] = (byte) (pts >> 22);
+        h[11] = (byte) (((pts >> 14) & 0xfe) | 1);
+        h[12] = (byte) (pts >> 7);
+        h[13] = (byte) (((pts << 1) & 0xfe) | 1);
+        // The PES header is 14 bytes; the prefix was staged right after it
+        int headerTotal = 14 + prefixLength;
+        int total = headerTotal + size;
+
+        int written = 0;
+        boolean first = true;
+        while (written < total) {
+            boolean pcr = first && withPcr;
+            boolean rai = first && randomAccess;
+            int adaptationLength = pcr || rai ? 2 + (pcr ? 6 : 0) : 0;
+            int remaining = total - written;
+            if (remaining < TS_PAYLOAD_SIZE - adaptationLength) {
+                adaptationLength += TS_PAYLOAD_SIZE - adaptationLength - remaining;
+            }
+            int chunk = TS_PAYLOAD_SIZE - adaptationLength;
+
+            ensureSpace();
+            putPacketHeader(pid, first, adaptationLength > 0);
+            if (adaptationLength > 0) {
+                int end = mOut.position() + adaptationLength;
+                mOut.put((byte) (adaptationLength - 1));
+                if (adaptationLength > 1) {
+                    mOut.put((byte) ((rai ? 0x40 : 0) | (pcr ? 0x10 : 0)));
+                    if (pcr) {
+                        putPcr(pts - PTS_OFFSET);
+                    }
+                    while (mOut.position() < end) {
+                        mOut.put((byte) 0xff);
+                    }
+                }
+            }
+            int fromHeader = Math.max(0, Math.min(chunk, headerTotal - written));
+            if (fromHeader > 0) {
+                mOut.put(h, written, fromHeader);
+            }
+            int fromData = chunk - fromHeader;
+            if (fromData > 0) {
+                int dataOffset = offset + written + fromHeader - headerTotal;
+                ByteBuffer view = data.duplicate();
+                view.limit(dataOffset + fromData);
+                view.position(dataOffset);
+                mOut.put(view);
+            }
+            written += chunk;
+            first = false;
+        }
+    }
+
+    private void putPcr(long pcrBase) {
+        mOut.put((byte) (pcrBase >> 25));
+        mOut.put((byte) (pcrBase >> 17));
+        mOut.put((byte) (pcrBase >> 9));
+        mOut.put((byte) (pcrBase >> 1));
+        mOut.put((byte) (((pcrBase & 1) << 7) | 0x7e));
+        mOut.put((byte) 0);
+    }
+
+    private void putPacketHeader(int pid, boolean payloadUnitStart, boolean adaptationField) {
+        mOut.put((byte) 0x47);
+        mOut.put((byte) ((payloadUnitStart ? 0x40 : 0) | ((pid >> 8) & 0x1f)));
+        mOut.put((byte) pid);
+        mOut.put((byte) ((adaptationField ? 0x30 : 0x10) | mContinuity[pid]));
+        mContinuity[pid] = (mContinuity[pid] + 1) & 0x0f;
+    }
+
+    private void ensureSpace() throws IOException {
+        if (mOut.remaining() < TS_PACKET_SIZE) {
+            flush();
+        }
+    }
+
+    private void writePat() throws IOException {
+        byte[] section = new byte[12];
+        section[0] = 0;                     // table_id
+        section[3] = 0;                     // transport_stream_id
+        section[4] = 1;
+        section[8] = 0;                     // program_number 1
+        section[9] = 1;
+        section[10] = (byte) (0xe0 | (PMT_PID >> 8));
+        section[11] = (byte) PMT_PID;
+        writeSection(0, section);
+    }
+
+    private void writePmt() throws IOException {
+        int streams = (mHasVideo ? 1 : 0) + (mHasAudio ? 1 : 0);
+        byte[] section = new byte[12 + streams * 5];
+        int pcrPid = mHasVideo ? VIDEO_PID : AUDIO_PID;
+        section[0] = 2;                     // table_id
+        section[3] = 0;                     // program_number 1
+        section[4] = 1;
+        section[8] = (byte) (0xe0 | (pcrPid >> 8));
+        section[9] = (byte) pcrPid;
+        section[10] = (byte) 0xf0;          // program_info_length 0
+        section[11] = 0;
+        int position = 12;
+        if (mHasVideo) {
+            position = putStream(section, position, STREAM_TYPE_H264, VIDEO_PID);
+        }
+        if (mHasAudio) {
+            putStream(section, position, STREAM_TYPE_AAC, AUDIO_PID);
+        }
+        writeSection(PMT_PID, section);
+    }
+
+    private static int putStream(byte[] section, int position, int streamType, int pid) {
+        section[position] = (byte) streamType;
+        section[position + 1] = (byte) (0xe0 | (pid >> 8));
+        section[position + 2] = (byte) pid;
+        section[position + 3] = (byte) 0xf0;    // ES_info_length 0
+        section[position + 4] = 0;
+        return position + 5;
+    }
+
+    /**
+     * Completes the common section header fields of |section| (everything but table_id and the
+     * table specific bytes 3..4 and 8..), appends the CRC and writes it as a single TS packet.
+     */
+    private void writeSection(int pid, byte[] section) throws IOException {
+        int sectionLength = section.length - 3 + 4;
+        section[1] = (byte) (0xb0 | (sectionLength >> 8));
+        section[2] = (byte) sectionLength;
+        section[5] = (byte) 0xc1;           // version 0, current_next_indicator 1
+        section[6] = 0;                     // section_number
+        section[7] = 0;                     // last_section_number
+        int crc = crc32(section);
+
+        ensureSpace();
+        int start = mOut.position();
+        putPacketHeader(pid, true, false);
+        mOut.put((byte) 0);                 // pointer_field
+        mOut.put(section);
+        mOut.putInt(crc);
+        while (mOut.position() - start < TS_PACKET_SIZE) {
+            mOut.put((byte) 0xff);
+        }
+    }
+
+    static int crc32(byte[] data) {
+        int crc = 0xffffffff;
+        for (byte b : data) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xff];
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,276 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single I/O thread that performs the actual container writes for a muxer.
+ * <p/>
+ * Encoder threads copy each encoded access unit into a pooled {@link EncodedPacket} and return
+ * the codec buffer immediately; packets are then written in submission order on the writer
+ * thread, so a slow storage write never backs up into the encoders. Queue depth and write
+ * latency are tracked and can be reported periodically through a {@link StatsListener}.
+ * @hide
+ */
+public class MuxerWriter implements Runnable {
+
+    public interface PacketSink {
+        /**
+         * Writes the packet to the output. Called on the writer thread only.
+         */
+        void writePacket(EncodedPacket packet) throws Exception;
+    }
+
+    public interface StatsListener {
+        void onWriterStats(Stats stats);
+    }
+
+    public interface ErrorListener {
+        /**
+         * A task posted with {@link #post(Runnable)} threw |e|. Called on the writer thread, which
+         * goes on with the next packet.
+         */
+        void onTaskFailed(RuntimeException e);
+    }
+
+    public static class Stats {
+        public int queueDepth;
+        public int maxQueueDepth;
+        public long packetsWritten;
+        public long bytesWritten;
+        public long packetsDropped;
+        public long writeErrors;
+        public long taskErrors;
+        public long avgWriteLatencyUs;
+        public long maxWriteLatencyUs;
+        public long avgQueueLatencyUs;
+
+        @Override
+        public String toString() {
+            return "MuxerWriter.Stats: depth " + queueDepth + " (max " + maxQueueDepth + ")"
+                    + ", written " + packetsWritten + " packets / " + bytesWritten + " bytes"
+                    + ", dropped " + packetsDropped + ", errors " + writeErrors + " (tasks " + taskErrors + ")"
+                    + ", write latency avg " + avgWriteLatencyUs + " us max " + maxWriteLatencyUs + " us"
+                    + ", queue latency avg " + avgQueueLatencyUs + " us";
+        }
+    }
+
+    public static final int DEFAULT_POOL_SIZE = 64;
+    public static final int DEFAULT_PACKET_SIZE = 64 * 1024;
+    // How long a producer may wait for a free packet before the packet is dropped.
+    private static final long ACQUIRE_TIMEOUT_MS = 20;
+
+    private final String mName;
+    private final PacketSink mSink;
+    private final EncodedPacketPool mPool;
+    private final LinkedBlockingQueue<EncodedPacket> mQueue = new LinkedBlockingQueue<>();
+    private final Object mStatsLock = new Object();
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+    private Thread mThread;
+    private volatile boolean mQuitRequested;
+
+    private StatsListener mStatsListener;
+    private ErrorListener mErrorListener;
+    private long mStatsIntervalNs;
+    private long mLastStatsTimeNs;
+
+    // Guarded by |mStatsLock|
+    private int mMaxQueueDepth;
+    private long mPacketsWritten;
+    private long mBytesWritten;
+    private long mPacketsDropped;
+    private long mWriteErrors;
+    private long mTaskErrors;
+    private long mTotalWriteLatencyNs;
+    private long mMaxWriteLatencyNs;
+    private long mTotalQueueLatencyNs;
+
+    public MuxerWriter(String name, PacketSink sink) {
+        this(name, sink, DEFAULT_POOL_SIZE, DEFAULT_PACKET_SIZE);
+    }
+
+    public MuxerWriter(String name, PacketSink sink, int poolSize, int packetSize) {
+        mName = name;
+        mSink = sink;
+        mPool = new EncodedPacketPool(poolSize, packetSize);
+    }
+
+    public void setStatsListener(StatsListener listener, long intervalMs) {
+        mStatsListener = listener;
+        mStatsIntervalNs = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+    }
+
+    public void setErrorListener(ErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mLastStatsTimeNs = System.nanoTime();
+        mThread = new Thread(this, mName);
+        mThread.start();
+    }
+
+    /**
+     * Copies the encoded sample and queues it for writing. Returns false if the packet had to be
+     * dropped because the pool stayed exhausted, i.e. the writer is too far behind.
+     */
+    public boolean submit(int trackIndex, ByteBuffer data, int offset, int size, long presentationTimeUs, int flags) {
+        if (mQuitRequested) {
+            return false;
+        }
+        EncodedPacket packet = mPool.acquire(ACQUIRE_TIMEOUT_MS);
+        if (packet == null) {
+            synchronized (mStatsLock) {
+                mPacketsDropped++;
+            }
+            return false;
+        }
+        packet.set(trackIndex, data, offset, size, presentationTimeUs, flags);
+        enqueue(packet);
+        return true;
+    }
+
+    /**
+     * Runs |task| on the writer thread once every packet submitted before it has been written.
+     */
+    public void post(Runnable task) {
+        EncodedPacket packet = new EncodedPacket(0);
+        packet.task = task;
+        enqueue(packet);
+    }
+
+    private void enqueue(EncodedPacket packet) {
+        packet.enqueueTimeNs = System.nanoTime();
+        mQueue.offer(packet);
+        int depth = mQueue.size();
+        synchronized (mStatsLock) {
+            if (depth > mMaxQueueDepth) {
+                mMaxQueueDepth = depth;
+            }
+        }
+    }
+
+    /**
+     * Writes all pending packets, then stops the writer thread. Blocks until done.
+     */
+    public void quit() {
+        synchronized (this) {
+            if (mThread == null || mQuitRequested) {
+                return;
+            }
+            mQuitRequested = true;
+        }
+        post(() -> { });
+        try {
+            mFinished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.queueDepth = mQueue.size();
+        synchronized (mStatsLock) {
+            stats.maxQueueDepth = mMaxQueueDepth;
+            stats.packetsWritten = mPacketsWritten;
+            stats.bytesWritten = mBytesWritten;
+            stats.packetsDropped = mPacketsDropped;
+            stats.writeErrors = mWriteErrors;
+            stats.taskErrors = mTaskErrors;
+            stats.maxWriteLatencyUs = TimeUnit.NANOSECONDS.toMicros(mMaxWriteLatencyNs);
+            if (mPacketsWritten > 0) {
+                stats.avgWriteLatencyUs = TimeUnit.NANOSECONDS.toMicros(mTotalWriteLatencyNs / mPacketsWritten);
+                stats.avgQueueLatencyUs = TimeUnit.NANOSECONDS.toMicros(mTotalQueueLatencyNs / mPacketsWritten);
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                EncodedPacket packet;
+                try {
+                    packet = mQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (packet.task != null) {
+                    runTask(packet.task);
+                    if (mQuitRequested && mQueue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                long startNs = System.nanoTime();
+                boolean written = true;
+                try {
+                    mSink.writePacket(packet);
+                } catch (Exception e) {
+                    written = false;
+                }
+                long endNs = System.nanoTime();
+                synchronized (mStatsLock) {
+                    if (written) {
+                        long writeLatencyNs = endNs - startNs;
+                        mPacketsWritten++;
+                        mBytesWritten += packet.size;
+                        mTotalWriteLatencyNs += writeLatencyNs;
+                        mTotalQueueLatencyNs += startNs - packet.enqueueTimeNs;
+                        if (writeLatencyNs > mMaxWriteLatencyNs) {
+                            mMaxWriteLatencyNs = writeLatencyNs;
+                        }
+                    } else {
+                        mWriteErrors++;
+                    }
+                }
+                mPool.recycle(packet);
+                maybeReportStats(endNs);
+            }
+        } finally {
+            // Producers must not wait on a writer that is gone
+            mQuitRequested = true;
+            EncodedPacket packet;
+            while ((packet = mQueue.poll()) != null) {
+                if (packet.task == null) {
+                    mPool.recycle(packet);
+                }
+            }
+            mFinished.countDown();
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            synchronized (mStatsLock) {
+                mTaskErrors++;
+            }
+            ErrorListener listener = mErrorListener;
+            if (listener != null) {
+                listener.onTaskFailed(e);
+            }
+        }
+    }
+
+    private void maybeReportStats(long nowNs) {
+        StatsListener listener = mStatsListener;
+        if (listener == null || nowNs - mLastStatsTimeNs < mStatsIntervalNs) {
+            return;
+        }
+        mLastStatsTimeNs = nowNs;
+        listener.onWriterStats(getStats());
+    }
+}
@@ -0,0 +1,159 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Single track muxer writing Opus audio to an Ogg file with {@link OggOpusWriter}, for audio only
+ * recordings.
+ * <p/>
+ * Pages are about a second long, so writes are small and infrequent enough to be done inline on
+ * the encoder thread.
+ * @hide
+ */
+public class OggOpusMuxer extends BaseMuxer {
+    private static final String TAG = "OggOpusMuxer";
+    private static final boolean VERBOSE = false;
+    private static final String OPUS_MIME_TYPE = "audio/opus";
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private OggOpusWriter mOggWriter;
+    private volatile boolean mStarted;
+    private boolean mFinished;
+
+    private OggOpusMuxer(String outputFile) {
+        super(outputFile, FORMAT.OGG, 1);
+        try {
+            mFile = new RandomAccessFile(outputFile, "rw");
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+        } catch (IOException e) {
+            throw new RuntimeException("Output file creation failed", e);
+        }
+    }
+
+    public static OggOpusMuxer create(String outputFile) {
+        return new OggOpusMuxer(outputFile);
+    }
+
+    @Override
+    public synchronized int addTrack(MediaFormat trackFormat) {
+        if (mStarted)
+            throw new RuntimeException("format changed twice");
+        String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+        if (!OPUS_MIME_TYPE.equals(mime)) {
+            throw new IllegalArgumentException("Unsupported track format for Ogg: " + mime);
+        }
+        int track = super.addTrack(trackFormat);
+        mOggWriter = new OggOpusWriter(mChannel, getOpusHead(trackFormat), new Random().nextInt());
+        try {
+            mOggWriter.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write Ogg headers", e);
+        }
+        mStarted = true;
+        return track;
+    }
+
+    /**
+     * The OpusHead reported by the encoder as csd-0, or one built from the format with the
+     * encoder delay from csd-1 (in nanoseconds) when it doesn't report one.
+     */
+    private static byte[] getOpusHead(MediaFormat format) {
+        ByteBuffer csd0 = format.getByteBuffer("csd-0");
+        if (csd0 != null && csd0.remaining() >= 19) {
+            byte[] head = new byte[csd0.remaining()];
+            csd0.duplicate().get(head);
+            if ("OpusHead".equals(new String(head, 0, 8))) {
+                return head;
+            }
+        }
+        int preSkip = OggOpusWriter.DEFAULT_PRE_SKIP;
+        ByteBuffer csd1 = format.getByteBuffer("csd-1");
+        if (csd1 != null && csd1.remaining() == 8) {
+            long delayNs = csd1.duplicate().order(ByteOrder.LITTLE_ENDIAN).getLong();
+            preSkip = (int) (delayNs * 48000 / 1000000000L);
+        }
+        return OggOpusWriter.createOpusHead(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), preSkip,
+                format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+    }
+
+    @Override
+    public synchronized void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The headers are built from the track format, taken from addTrack
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return;
+        }
+        if (bufferInfo.size == 0) {
+            if (VERBOSE) Log.d(TAG, "ignoring zero size buffer");
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            if (allTracksFinished()) {
+                stop();
+            }
+            return;
+        }
+        if (!mStarted || mFinished) {
+            Log.e(TAG, "writeSampleData called while muxer not running. Ignoring packet.");
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return;
+        }
+        try {
+            mOggWriter.writePacket(encodedData, bufferInfo.offset, bufferInfo.size);
+        } catch (IOException e) {
+            Log.e(TAG, "writePacket failed", e);
+        }
+        encoder.releaseOutputBuffer(bufferIndex, false);
+        if (allTracksFinished()) {
+            stop();
+        }
+    }
+
+    protected synchronized void stop() {
+        if (mFinished || mOggWriter == null) {
+            return;
+        }
+        try {
+            mOggWriter.finish();
+            mChannel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write last page", e);
+        }
+        mFinished = true;
+        Log.i(TAG, "Finished " + mOutputPath + ", " + mOggWriter.getBytesWritten() + " bytes");
+    }
+
+    @Override
+    public synchronized void release() {
+        super.release();
+        stop();
+        try {
+            mChannel.close();
+            mFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close output file", e);
+        }
+        mStarted = false;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public void forceStop() {
+        stop();
+    }
+}
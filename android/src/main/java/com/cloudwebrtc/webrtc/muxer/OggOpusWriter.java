@@ -0,0 +1,244 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an Opus stream as Ogg (RFC 3533 pages, RFC 7845 encapsulation) through a
+ * {@link FileChannel}.
+ * <p/>
+ * The identification and comment headers go on their own pages, then packets are gathered into
+ * pages of up to a second, so the page overhead stays negligible and at most the last second is
+ * lost if the process is killed. Granule positions are counted from the TOC byte of each packet,
+ * in 48 kHz samples, and don't rely on the encoder timestamps.
+ * <p/>
+ * Pure Java: no Android dependencies, so it can be exercised on a plain JVM.
+ * @hide
+ */
+public class OggOpusWriter {
+    // Encoder delay of libopus at 48 kHz, used when the encoder doesn't report it
+    public static final int DEFAULT_PRE_SKIP = 312;
+
+    private static final int HEADER_TYPE_BOS = 0x02;
+    private static final int HEADER_TYPE_EOS = 0x04;
+    private static final int PAGE_HEADER_SIZE = 27;
+    private static final int MAX_SEGMENTS = 255;
+    private static final int MAX_PAGE_SAMPLES = 48000;
+    private static final String VENDOR = "flutter-webrtc";
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final byte[] mOpusHead;
+    private final int mSerialNumber;
+    private boolean mStarted;
+    private boolean mFinished;
+    private int mPageSequence;
+    private long mGranulePosition;
+    private long mBytesWritten;
+
+    // Packets of the page being gathered
+    private final byte[] mSegments = new byte[MAX_SEGMENTS];
+    private int mSegmentCount;
+    private ByteBuffer mPageData = ByteBuffer.allocate(16 * 1024);
+    private int mPageSamples;
+    private final ByteBuffer mPage = ByteBuffer.allocate(PAGE_HEADER_SIZE + MAX_SEGMENTS + MAX_SEGMENTS * 255)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * @param opusHead identification header, see {@link #createOpusHead(int, int, int)}.
+     */
+    public OggOpusWriter(FileChannel channel, byte[] opusHead, int serialNumber) {
+        if (opusHead.length < 19 || !"OpusHead".equals(new String(opusHead, 0, 8))) {
+            throw new IllegalArgumentException("Not an OpusHead");
+        }
+        mChannel = channel;
+        mOpusHead = opusHead;
+        mSerialNumber = serialNumber;
+    }
+
+    /**
+     * Returns an identification header for a channel mapping family 0 stream (mono or stereo).
+     */
+    public static byte[] createOpusHead(int channelCount, int preSkip, int inputSampleRate) {
+        ByteBuffer head = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN);
+        head.put("OpusHead".getBytes());
+        head.put((byte) 1);                   // version
+        head.put((byte) channelCount);
+        head.putShort((short) preSkip);
+        head.putInt(inputSampleRate);
+        head.putShort((short) 0);             // output gain
+        head.put((byte) 0);                   // channel mapping family
+        return head.array();
+    }
+
+    /**
+     * Number of 48 kHz samples in |size| bytes of Opus packet at |offset|, from its TOC byte
+     * (RFC 6716 section 3.1). Returns 0 for a malformed packet.
+     */
+    public static int getPacketSamples(ByteBuffer packet, int offset, int size) {
+        if (size < 1) {
+            return 0;
+        }
+        int toc = packet.get(offset) & 0xff;
+        int config = toc >> 3;
+        int frameSamples;
+        if (config < 12) {
+            // SILK: 10, 20, 40, 60 ms
+            frameSamples = new int[]{480, 960, 1920, 2880}[config & 3];
+        } else if (config < 16) {
+            // Hybrid: 10, 20 ms
+            frameSamples = (config & 1) == 0 ? 480 : 960;
+        } else {
+            // CELT: 2.5, 5, 10, 20 ms
+            frameSamples = 120 << (config & 3);
+        }
+        int frames;
+        switch (toc & 3) {
+            case 0:
+                frames = 1;
+                break;
+            case 1:
+            case 2:
+                frames = 2;
+                break;
+            default:
+                if (size < 2) {
+                    return 0;
+                }
+                frames = packet.get(offset + 1) & 0x3f;
+                break;
+        }
+        return frames * frameSamples;
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Writes the identification and comment header pages.
+     */
+    public void start() throws IOException {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        writePage(HEADER_TYPE_BOS, 0, mOpusHead, 0, mOpusHead.length);
+        byte[] vendor = VENDOR.getBytes();
+        ByteBuffer tags = ByteBuffer.allocate(8 + 4 + vendor.length + 4).order(ByteOrder.LITTLE_ENDIAN);
+        tags.put("OpusTags".getBytes());
+        tags.putInt(vendor.length);
+        tags.put(vendor);
+        tags.putInt(0);                       // user comment list length
+        writePage(0, 0, tags.array(), 0, tags.position());
+    }
+
+    /**
+     * Appends one Opus packet, |size| bytes of |data| at |offset|.
+     */
+    public void writePacket(ByteBuffer data, int offset, int size) throws IOException {
+        if (!mStarted || mFinished) {
+            return;
+        }
+        int segments = size / 255 + 1;
+        if (mSegmentCount + segments > MAX_SEGMENTS || mPageSamples >= MAX_PAGE_SAMPLES) {
+            flushPage(0);
+        }
+        for (int i = 0; i < segments - 1; i++) {
+            mSegments[mSegmentCount++] = (byte) 255;
+        }
+        mSegments[mSegmentCount++] = (byte) (size % 255);
+        if (mPageData.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(mPageData.capacity() * 2, mPageData.position() + size));
+            mPageData.flip();
+            grown.put(mPageData);
+            mPageData = grown;
+        }
+        ByteBuffer packet = data.duplicate();
+        packet.limit(offset + size).position(offset);
+        mPageData.put(packet);
+        int samples = getPacketSamples(data, offset, size);
+        mPageSamples += samples;
+        mGranulePosition += samples;
+    }
+
+    /**
+     * Writes the last page, flagged as the end of the stream.
+     */
+    public void finish() throws IOException {
+        if (!mStarted || mFinished) {
+            return;
+        }
+        flushPage(HEADER_TYPE_EOS);
+        mFinished = true;
+    }
+
+    private void flushPage(int headerType) throws IOException {
+        if (mSegmentCount == 0 && headerType == 0) {
+            return;
+        }
+        writePage(headerType, mGranulePosition, mPageData.array(), 0, mPageData.position(), mSegments, mSegmentCount);
+        mSegmentCount = 0;
+        mPageData.clear();
+        mPageSamples = 0;
+    }
+
+    /**
+     * Writes a page holding the single packet |data|, which must fit in one page.
+     */
+    private void writePage(int headerType, long granulePosition, byte[] data, int offset, int size) throws IOException {
+        int segments = size / 255 + 1;
+        byte[] lacing = new byte[segments];
+        for (int i = 0; i < segments - 1; i++) {
+            lacing[i] = (byte) 255;
+        }
+        lacing[segments - 1] = (byte) (size % 255);
+        writePage(headerType, granulePosition, data, offset, size, lacing, segments);
+    }
+
+    private void writePage(int headerType, long granulePosition, byte[] data, int offset, int size,
+                           byte[] lacing, int segmentCount) throws IOException {
+        mPage.clear();
+        mPage.put("OggS".getBytes());
+        mPage.put((byte) 0);                  // version
+        mPage.put((byte) headerType);
+        mPage.putLong(granulePosition);
+        mPage.putInt(mSerialNumber);
+        mPage.putInt(mPageSequence++);
+        int crcPosition = mPage.position();
+        mPage.putInt(0);
+        mPage.put((byte) segmentCount);
+        mPage.put(lacing, 0, segmentCount);
+        mPage.put(data, offset, size);
+        mPage.putInt(crcPosition, crc(mPage.array(), mPage.position()));
+        mPage.flip();
+        while (mPage.hasRemaining()) {
+            mBytesWritten += mChannel.write(mPage);
+        }
+    }
+
+    private static int crc(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,421 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Instant replay: keeps the most recent encoded audio and video in memory and writes them to an
+ * MP4 on request, e.g. to save the last minute of a session without recording all of it.
+ * <p/>
+ * Packets are copied into a single direct buffer allocated up front and used as a ring, so the
+ * steady state allocates nothing. Eviction happens a whole GOP at a time, which keeps the buffer
+ * starting on a video sync frame; the oldest GOP goes once the next one is older than the replay
+ * window, or earlier when the memory runs out. {@link #save(String, SaveCallback)} copies the
+ * buffered packets out one at a time on a separate thread while recording continues. Packets not
+ * copied yet are never evicted: if recording needs their room meanwhile, incoming packets are
+ * dropped up to the next sync point instead.
+ * @hide
+ */
+public class ReplayBufferMuxer extends BaseMuxer {
+    private static final String TAG = "ReplayBufferMuxer";
+    private static final boolean VERBOSE = false;
+
+    public static final long DEFAULT_WINDOW_US = 60000000;
+    // Packet slots per second of window: 30 fps video plus 48 kHz AAC leaves plenty of margin
+    private static final int PACKETS_PER_SECOND = 128;
+
+    public interface SaveCallback {
+        void onReplaySaved(String path, long durationUs);
+
+        void onReplayFailed(String path, String error);
+    }
+
+    private final long mWindowUs;
+    private final ByteBuffer mData;
+    private MediaFormat[] mTrackFormats;
+    private boolean[] mVideoTrack;
+    private boolean mHasVideo;
+    private volatile boolean mStarted;
+
+    // Packet ring, guarded by |this|
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPtsUs;
+    private final int[] mFlags;
+    private final int[] mTracks;
+    private int mFirst;
+    private int mCount;
+    // Sequence number of the oldest packet; packet i is at slot (mFirst + i - mFirstSeq) % length
+    private long mFirstSeq;
+    private int mWritePos;
+    private long mEvictedForSpace;
+    // Packets from this sequence number on are still to be saved, -1 when no save runs
+    private long mPinnedSeq = -1;
+    private boolean mWaitingForSyncPoint;
+    private long mDroppedWhileSaving;
+
+    private Thread mSaveThread;
+
+    private ReplayBufferMuxer(String outputPath, int expectedNumTracks, long windowUs, int capacityBytes) {
+        super(outputPath, FORMAT.MPEG4, expectedNumTracks);
+        mWindowUs = windowUs;
+        mData = ByteBuffer.allocateDirect(capacityBytes);
+        int slots = (int) Math.max(PACKETS_PER_SECOND, windowUs * PACKETS_PER_SECOND / 1000000);
+        mOffsets = new int[slots];
+        mSizes = new int[slots];
+        mPtsUs = new long[slots];
+        mFlags = new int[slots];
+        mTracks = new int[slots];
+        mTrackFormats = new MediaFormat[expectedNumTracks];
+        mVideoTrack = new boolean[expectedNumTracks];
+    }
+
+    /**
+     * @param outputPath    default path for {@link #save(String, SaveCallback)}.
+     * @param windowUs      how much of the most recent media to keep.
+     * @param capacityBytes memory reserved for the packets; when the content needs more, the
+     *                      replay is shorter than |windowUs|.
+     */
+    public static ReplayBufferMuxer create(String outputPath, int expectedNumTracks, long windowUs, int capacityBytes) {
+        return new ReplayBufferMuxer(outputPath, expectedNumTracks, windowUs, capacityBytes);
+    }
+
+    /**
+     * Memory needed to hold |windowUs| of media at |bitsPerSecond|, with headroom for rate spikes.
+     */
+    public static int getCapacityFor(long windowUs, int bitsPerSecond) {
+        return (int) Math.min(Integer.MAX_VALUE, windowUs / 1000 * bitsPerSecond / 8000 * 5 / 4);
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        if (mStarted)
+            throw new RuntimeException("format changed twice");
+        int track = super.addTrack(trackFormat);
+        String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+        mVideoTrack[track] = mime != null && mime.startsWith("video/");
+        mHasVideo |= mVideoTrack[track];
+        mTrackFormats[track] = trackFormat;
+        if (allTracksAdded()) {
+            mStarted = true;
+        }
+        return track;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Duration currently buffered.
+     */
+    public synchronized long getBufferedDurationUs() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return mPtsUs[slot(mCount - 1)] - mPtsUs[mFirst];
+    }
+
+    @Override
+    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // MediaMuxer gets the codec config info from the track format on save
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return;
+        }
+        if (bufferInfo.size == 0 || !mStarted) {
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return;
+        }
+        long ptsUs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex);
+        synchronized (this) {
+            append(trackIndex, encodedData, bufferInfo.offset, bufferInfo.size, ptsUs, bufferInfo.flags);
+        }
+        encoder.releaseOutputBuffer(bufferIndex, false);
+    }
+
+    private void append(int trackIndex, ByteBuffer src, int offset, int size, long ptsUs, int flags) {
+        if (mWaitingForSyncPoint) {
+            if (!isSyncPoint(trackIndex, flags)) {
+                mDroppedWhileSaving++;
+                return;
+            }
+            mWaitingForSyncPoint = false;
+        }
+        if (mCount == 0 && !isSyncPoint(trackIndex, flags)) {
+            // The buffer always starts with something a decoder can start from
+            return;
+        }
+        if (size > mData.capacity()) {
+            if (mPinnedSeq >= 0) {
+                dropUntilSyncPoint();
+                return;
+            }
+            Log.w(TAG, "Packet of " + size + " bytes exceeds the replay buffer, clearing it");
+            clear();
+            return;
+        }
+        if (mCount == mOffsets.length && !evictOldestGop()) {
+            dropUntilSyncPoint();
+            return;
+        }
+        int pos = allocate(size);
+        while (pos < 0) {
+            if (!evictOldestGop()) {
+                dropUntilSyncPoint();
+                return;
+            }
+            mEvictedForSpace++;
+            if (mCount == 0 && !isSyncPoint(trackIndex, flags)) {
+                return;
+            }
+            pos = allocate(size);
+        }
+        ByteBuffer view = src.duplicate();
+        view.limit(offset + size);
+        view.position(offset);
+        ByteBuffer dst = mData.duplicate();
+        dst.position(pos);
+        dst.put(view);
+        mWritePos = pos + size;
+
+        int slot = slot(mCount);
+        mOffsets[slot] = pos;
+        mSizes[slot] = size;
+        mPtsUs[slot] = ptsUs;
+        mFlags[slot] = flags;
+        mTracks[slot] = trackIndex;
+        mCount++;
+
+        // Drop the oldest GOP once the rest still covers the window
+        while (true) {
+            int next = findNextSyncPoint();
+            if (next < 0 || ptsUs - mPtsUs[slot(next)] < mWindowUs) {
+                break;
+            }
+            if (!evictOldestGop()) {
+                // Still being saved, the window is trimmed once the save has moved on
+                break;
+            }
+        }
+    }
+
+    /**
+     * Drops the current packet and the ones depending on it, because a save holds the room.
+     */
+    private void dropUntilSyncPoint() {
+        mDroppedWhileSaving++;
+        mWaitingForSyncPoint = true;
+    }
+
+    /**
+     * Returns the offset at which |size| contiguous bytes are free, or -1.
+     */
+    private int allocate(int size) {
+        if (mCount == 0) {
+            return 0;
+        }
+        int head = mOffsets[mFirst];
+        if (mWritePos > head) {
+            if (mData.capacity() - mWritePos >= size) {
+                return mWritePos;
+            }
+            // Wrap around, the tail end stays unused
+            return head >= size ? 0 : -1;
+        }
+        return head - mWritePos >= size ? mWritePos : -1;
+    }
+
+    /**
+     * Removes packets up to, but excluding, the next sync point. Returns false, removing nothing,
+     * if some of them are still to be saved.
+     */
+    private boolean evictOldestGop() {
+        int next = findNextSyncPoint();
+        int evicted = next < 0 ? mCount : next;
+        if (mPinnedSeq >= 0 && mFirstSeq + evicted > mPinnedSeq) {
+            return false;
+        }
+        mFirst = (mFirst + evicted) % mOffsets.length;
+        mCount -= evicted;
+        mFirstSeq += evicted;
+        if (mCount == 0) {
+            mWritePos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the position in the ring of the first sync point after the oldest packet, or -1.
+     */
+    private int findNextSyncPoint() {
+        for (int i = 1; i < mCount; i++) {
+            int slot = slot(i);
+            if (isSyncPoint(mTracks[slot], mFlags[slot])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isSyncPoint(int trackIndex, int flags) {
+        if (!mHasVideo) {
+            return true;
+        }
+        return mVideoTrack[trackIndex] && (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    private int slot(int i) {
+        return (mFirst + i) % mOffsets.length;
+    }
+
+    private void clear() {
+        mFirstSeq += mCount;
+        mFirst = 0;
+        mCount = 0;
+        mWritePos = 0;
+    }
+
+    /**
+     * Writes the buffered media to an MP4 at |path|, or at the output path if null, on a
+     * background thread. Recording continues meanwhile; packets buffered after the call are not
+     * included, and the ones included stay buffered until they are written. Only one save runs at
+     * a time.
+     */
+    public void save(String path, SaveCallback callback) {
+        final String outputPath = path != null ? path : mOutputPath;
+        final long firstSeq;
+        final long endSeq;
+        synchronized (this) {
+            if (mSaveThread != null && mSaveThread.isAlive()) {
+                callback.onReplayFailed(outputPath, "A replay is already being saved");
+                return;
+            }
+            if (!mStarted || mCount == 0) {
+                callback.onReplayFailed(outputPath, "Replay buffer is empty");
+                return;
+            }
+            firstSeq = mFirstSeq;
+            endSeq = mFirstSeq + mCount;
+            mPinnedSeq = firstSeq;
+            mSaveThread = new Thread(() -> writeReplay(outputPath, firstSeq, endSeq, callback), TAG + "Save");
+            mSaveThread.start();
+        }
+    }
+
+    private void writeReplay(String path, long firstSeq, long endSeq, SaveCallback callback) {
+        long startNs = System.nanoTime();
+        MediaMuxer muxer = null;
+        boolean muxerStarted = false;
+        try {
+            muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            for (MediaFormat format : mTrackFormats) {
+                muxer.addTrack(format);
+            }
+            muxer.start();
+            muxerStarted = true;
+
+            int maxSize = 0;
+            synchronized (this) {
+                for (int i = 0; i < mCount; i++) {
+                    maxSize = Math.max(maxSize, mSizes[slot(i)]);
+                }
+            }
+            ByteBuffer packet = ByteBuffer.allocateDirect(Math.max(1, maxSize));
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long firstPtsUs = -1;
+            long lastPtsUs = 0;
+            for (long seq = firstSeq; seq < endSeq; seq++) {
+                int track;
+                synchronized (this) {
+                    if (seq < mFirstSeq) {
+                        throw new IllegalStateException("Replay was overwritten while saving");
+                    }
+                    int slot = slot((int) (seq - mFirstSeq));
+                    int size = mSizes[slot];
+                    if (packet.capacity() < size) {
+                        packet = ByteBuffer.allocateDirect(size);
+                    }
+                    ByteBuffer src = mData.duplicate();
+                    src.limit(mOffsets[slot] + size);
+                    src.position(mOffsets[slot]);
+                    packet.clear();
+                    packet.put(src);
+                    packet.flip();
+                    track = mTracks[slot];
+                    info.set(0, size, mPtsUs[slot], mFlags[slot]);
+                    mPinnedSeq = seq + 1;
+                }
+                muxer.writeSampleData(track, packet, info);
+                if (firstPtsUs < 0) {
+                    firstPtsUs = info.presentationTimeUs;
+                }
+                lastPtsUs = Math.max(lastPtsUs, info.presentationTimeUs);
+            }
+            muxer.stop();
+            muxerStarted = false;
+            long durationUs = lastPtsUs - firstPtsUs;
+            Log.i(TAG, "Saved " + (endSeq - firstSeq) + " packets, " + durationUs / 1000 + " ms to " + path
+                    + " in " + (System.nanoTime() - startNs) / 1000000 + " ms");
+            callback.onReplaySaved(path, durationUs);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to save replay to " + path, e);
+            if (muxerStarted) {
+                try {
+                    muxer.stop();
+                } catch (RuntimeException ignored) {
+                }
+            }
+            callback.onReplayFailed(path, e.getMessage());
+        } finally {
+            synchronized (this) {
+                mPinnedSeq = -1;
+            }
+            if (muxer != null) {
+                muxer.release();
+            }
+        }
+    }
+
+    /**
+     * Stops buffering. A save in progress is completed first.
+     */
+    @Override
+    public void release() {
+        super.release();
+        mStarted = false;
+        Thread saveThread;
+        synchronized (this) {
+            saveThread = mSaveThread;
+        }
+        if (saveThread != null) {
+            try {
+                saveThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (mEvictedForSpace > 0) {
+                Log.i(TAG, "Evicted " + mEvictedForSpace + " GOPs early for lack of memory");
+            }
+            if (mDroppedWhileSaving > 0) {
+                Log.i(TAG, "Dropped " + mDroppedWhileSaving + " packets with no room left while saving");
+            }
+            clear();
+        }
+    }
+
+    @Override
+    public void forceStop() {
+        mStarted = false;
+    }
+}
@@ -0,0 +1,186 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Live-streams H.264/AAC encoder output to an RTMP server through an {@link RtmpPublisher}.
+ * The output path is the publish url, e.g. rtmp://host/app/streamKey.
+ * <p/>
+ * The connection is opened as soon as the muxer is created, so it is usually established by the
+ * time the encoders produce their first frames; anything produced earlier is queued. Packets are
+ * copied and the codec buffer is released immediately; network writes happen on the publisher
+ * thread.
+ * @hide
+ */
+public class RtmpMuxer extends BaseMuxer implements RtmpPublisher.ConnectionListener {
+    private static final String TAG = "RtmpMuxer";
+    private static final boolean VERBOSE = false;
+
+    private final RtmpPublisher mPublisher;
+    private RtmpPublisher.ConnectionListener mConnectionListener;
+    private MediaFormat[] mTrackFormats;
+    private boolean[] mVideoTrack;
+    private volatile boolean mStarted;
+    private boolean mStopped;
+
+    private RtmpMuxer(String url, int expectedNumTracks, int maxQueueBytes) {
+        super(url, FORMAT.RTMP, expectedNumTracks);
+        mTrackFormats = new MediaFormat[expectedNumTracks];
+        mVideoTrack = new boolean[expectedNumTracks];
+        mPublisher = new RtmpPublisher(url, maxQueueBytes);
+        mPublisher.setConnectionListener(this);
+        mPublisher.start();
+    }
+
+    public static RtmpMuxer create(String url, int expectedNumTracks) {
+        return new RtmpMuxer(url, expectedNumTracks, RtmpPublisher.DEFAULT_MAX_QUEUE_BYTES);
+    }
+
+    /**
+     * @param maxQueueBytes bound of the send queue; beyond it video frames are dropped.
+     */
+    public static RtmpMuxer create(String url, int expectedNumTracks, int maxQueueBytes) {
+        return new RtmpMuxer(url, expectedNumTracks, maxQueueBytes);
+    }
+
+    public void setConnectionListener(RtmpPublisher.ConnectionListener listener) {
+        mConnectionListener = listener;
+    }
+
+    public RtmpPublisher.Stats getPublisherStats() {
+        return mPublisher.getStats();
+    }
+
+    @Override
+    public int getPendingPacketCount() {
+        return mPublisher.getQueuedPacketCount();
+    }
+
+    @Override
+    public int addTrack(MediaFormat trackFormat) {
+        if (mStarted)
+            throw new RuntimeException("format changed twice");
+        int track = super.addTrack(trackFormat);
+        String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+        if ("video/avc".equals(mime)) {
+            mVideoTrack[track] = true;
+        } else if (!"audio/mp4a-latm".equals(mime)) {
+            throw new IllegalArgumentException("Unsupported track format for RTMP: " + mime);
+        }
+        mTrackFormats[track] = trackFormat;
+        if (allTracksAdded()) {
+            start();
+        }
+        return track;
+    }
+
+    private void start() {
+        Map<String, Object> metaData = new LinkedHashMap<>();
+        for (MediaFormat format : mTrackFormats) {
+            if ("video/avc".equals(format.getString(MediaFormat.KEY_MIME))) {
+                metaData.put("width", format.getInteger(MediaFormat.KEY_WIDTH));
+                metaData.put("height", format.getInteger(MediaFormat.KEY_HEIGHT));
+                metaData.put("videocodecid", FlvPacketizer.VIDEO_CODEC_ID_AVC);
+            } else {
+                metaData.put("audiocodecid", FlvPacketizer.AUDIO_CODEC_ID_AAC);
+                metaData.put("audiosamplerate", format.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+                metaData.put("audiochannels", format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+            }
+        }
+        mPublisher.sendMetaData(metaData);
+        for (MediaFormat format : mTrackFormats) {
+            if ("video/avc".equals(format.getString(MediaFormat.KEY_MIME))) {
+                mPublisher.sendAvcSequenceHeader(AvcUtils.stripStartCode(format.getByteBuffer("csd-0")),
+                        AvcUtils.stripStartCode(format.getByteBuffer("csd-1")));
+            } else {
+                ByteBuffer csd = format.getByteBuffer("csd-0").duplicate();
+                byte[] audioSpecificConfig = new byte[csd.remaining()];
+                csd.get(audioSpecificConfig);
+                mPublisher.sendAacSequenceHeader(audioSpecificConfig);
+            }
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // Sent as FLV sequence headers, taken from the output format
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            return;
+        }
+        if (bufferInfo.size == 0 || !mStarted) {
+            encoder.releaseOutputBuffer(bufferIndex, false);
+            finishIfDone();
+            return;
+        }
+
+        long timestampMs = getNextRelativePts(bufferInfo.presentationTimeUs, trackIndex) / 1000;
+        boolean sent;
+        if (mVideoTrack[trackIndex]) {
+            sent = mPublisher.sendVideo(encodedData, bufferInfo.offset, bufferInfo.size, timestampMs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } else {
+            sent = mPublisher.sendAudio(encodedData, bufferInfo.offset, bufferInfo.size, timestampMs);
+        }
+        if (!sent && VERBOSE) Log.d(TAG, "Dropped packet on track " + trackIndex + ". " + mPublisher.getStats());
+        encoder.releaseOutputBuffer(bufferIndex, false);
+        finishIfDone();
+    }
+
+    private void finishIfDone() {
+        if (allTracksFinished()) {
+            stop();
+        }
+    }
+
+    protected synchronized void stop() {
+        if (mStopped) {
+            return;
+        }
+        mStopped = true;
+        mPublisher.stop();
+        Log.i(TAG, "Publisher finished. " + mPublisher.getStats());
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        stop();
+        mStarted = false;
+    }
+
+    @Override
+    public void forceStop() {
+        stop();
+    }
+
+    @Override
+    public void onConnected() {
+        Log.i(TAG, "Publishing to " + mOutputPath);
+        if (mConnectionListener != null) {
+            mConnectionListener.onConnected();
+        }
+    }
+
+    @Override
+    public void onDisconnected(String reason) {
+        Log.e(TAG, "RTMP connection lost: " + reason);
+        if (mConnectionListener != null) {
+            mConnectionListener.onDisconnected(reason);
+        }
+    }
+}
@@ -0,0 +1,792 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Publishes H.264/AAC as FLV over RTMP (rtmp://host[:port]/app/streamKey).
+ * <p/>
+ * Frames are packetized into pooled {@link EncodedPacket}s and sent by a dedicated thread, which
+ * also performs the handshake and connect/createStream/publish sequence, so callers never block
+ * on the network. The send queue is bounded: under congestion non-reference video frames are
+ * dropped first, then video is dropped until the next key frame. Codec configuration is never
+ * dropped.
+ * <p/>
+ * Pure Java: no Android dependencies.
+ * @hide
+ */
+public class RtmpPublisher implements Runnable {
+
+    public interface ConnectionListener {
+        void onConnected();
+
+        /**
+         * Called once when connecting fails or an established connection is lost.
+         */
+        void onDisconnected(String reason);
+    }
+
+    public static class Stats {
+        public int queuedPackets;
+        public int queuedBytes;
+        public long packetsSent;
+        public long bytesSent;
+        public long videoFramesDropped;
+        public long audioFramesDropped;
+
+        @Override
+        public String toString() {
+            return "RtmpPublisher.Stats: queued " + queuedPackets + " packets / " + queuedBytes + " bytes"
+                    + ", sent " + packetsSent + " packets / " + bytesSent + " bytes"
+                    + ", dropped video " + videoFramesDropped + ", audio " + audioFramesDropped;
+        }
+    }
+
+    public static final int DEFAULT_PORT = 1935;
+    public static final int DEFAULT_MAX_QUEUE_BYTES = 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int STOP_TIMEOUT_MS = 2000;
+    private static final int POOL_SIZE = 256;
+    private static final int INITIAL_PACKET_SIZE = 8 * 1024;
+    private static final int OUT_CHUNK_SIZE = 4096;
+    private static final int HANDSHAKE_SIZE = 1536;
+
+    private static final int CSID_PROTOCOL = 2;
+    private static final int CSID_COMMAND = 3;
+    private static final int CSID_AUDIO = 4;
+    private static final int CSID_VIDEO = 6;
+    private static final int CSID_DATA = 5;
+
+    private static final int MSG_SET_CHUNK_SIZE = 1;
+    private static final int MSG_ACK = 3;
+    private static final int MSG_USER_CONTROL = 4;
+    private static final int MSG_WINDOW_ACK_SIZE = 5;
+    private static final int MSG_COMMAND_AMF0 = 20;
+
+    private static final int USER_CONTROL_PING_REQUEST = 6;
+    private static final int USER_CONTROL_PING_RESPONSE = 7;
+
+    // EncodedPacket.flags
+    private static final int FLAG_KEY_FRAME = 1;
+    private static final int FLAG_DISPOSABLE = 2;
+    private static final int FLAG_CONFIG = 4;
+
+    private final String mHost;
+    private final int mPort;
+    private final String mApp;
+    private final String mStreamKey;
+    private final String mTcUrl;
+    private final int mMaxQueueBytes;
+    private ConnectionListener mListener;
+
+    private final EncodedPacketPool mPool = new EncodedPacketPool(POOL_SIZE, INITIAL_PACKET_SIZE);
+    private final ArrayDeque<EncodedPacket> mQueue = new ArrayDeque<>();
+    private final Object mQueueLock = new Object();
+    // Guarded by |mQueueLock|
+    private int mQueuedBytes;
+    private boolean mAwaitingKeyFrame;
+    private boolean mQuit;
+    private boolean mClosed;
+    private final Stats mStats = new Stats();
+
+    private Thread mSendThread;
+    private Thread mReadThread;
+    private Socket mSocket;
+    private DataInputStream mIn;
+    private OutputStream mOut;
+    private final Object mOutLock = new Object();
+    private final byte[] mChunkScratch = new byte[OUT_CHUNK_SIZE];
+    private final ByteBuffer mHeaderScratch = ByteBuffer.allocate(32);
+    private int mStreamId;
+    private double mTransactionId;
+
+    // Reader state
+    private int mInChunkSize = 128;
+    private long mWindowAckSize = 2500000;
+    private long mBytesRead;
+    private long mLastAckBytes;
+    private final Map<Integer, ChunkStream> mChunkStreams = new LinkedHashMap<>();
+
+    private static class ChunkStream {
+        long timestamp;
+        int length;
+        int typeId;
+        int streamId;
+        boolean extendedTimestamp;
+        byte[] payload;
+        int received;
+    }
+
+    private static class Message {
+        final int typeId;
+        final ByteBuffer payload;
+
+        Message(int typeId, byte[] payload) {
+            this.typeId = typeId;
+            this.payload = ByteBuffer.wrap(payload);
+        }
+    }
+
+    public RtmpPublisher(String url) {
+        this(url, DEFAULT_MAX_QUEUE_BYTES);
+    }
+
+    public RtmpPublisher(String url, int maxQueueBytes) {
+        URI uri = URI.create(url);
+        if (!"rtmp".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+            throw new IllegalArgumentException("Invalid RTMP url: " + url);
+        }
+        String path = uri.getRawPath();
+        int slash = path != null ? path.lastIndexOf('/') : -1;
+        if (slash <= 0 || slash == path.length() - 1) {
+            throw new IllegalArgumentException("RTMP url must be rtmp://host/app/streamKey: " + url);
+        }
+        mHost = uri.getHost();
+        mPort = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+        mApp = path.substring(1, slash);
+        String key = path.substring(slash + 1);
+        mStreamKey = uri.getRawQuery() != null ? key + "?" + uri.getRawQuery() : key;
+        mTcUrl = "rtmp://" + mHost + ":" + mPort + "/" + mApp;
+        mMaxQueueBytes = maxQueueBytes;
+    }
+
+    public void setConnectionListener(ConnectionListener listener) {
+        mListener = listener;
+    }
+
+    public synchronized void start() {
+        if (mSendThread != null) {
+            return;
+        }
+        mSendThread = new Thread(this, "RtmpPublisher");
+        mSendThread.start();
+    }
+
+    /**
+     * Queues stream properties to be sent as onMetaData, ahead of the sequence headers.
+     */
+    public void sendMetaData(Map<String, Object> metaData) {
+        byte[] body = new Amf0.Writer().string("@setDataFrame").string("onMetaData").ecmaArray(metaData).toByteArray();
+        EncodedPacket packet = new EncodedPacket(body.length);
+        packet.reset(body.length).put(body);
+        enqueue(packet, FlvPacketizer.TAG_TYPE_SCRIPT, 0, FLAG_CONFIG);
+    }
+
+    public void sendAvcSequenceHeader(byte[] sps, byte[] pps) {
+        EncodedPacket packet = mPool.acquire(0);
+        if (packet == null) {
+            packet = new EncodedPacket(INITIAL_PACKET_SIZE);
+        }
+        FlvPacketizer.putAvcSequenceHeader(packet.reset(16 + sps.length + pps.length), sps, pps);
+        enqueue(packet, FlvPacketizer.TAG_TYPE_VIDEO, 0, FLAG_CONFIG | FLAG_KEY_FRAME);
+    }
+
+    public void sendAacSequenceHeader(byte[] audioSpecificConfig) {
+        EncodedPacket packet = mPool.acquire(0);
+        if (packet == null) {
+            packet = new EncodedPacket(INITIAL_PACKET_SIZE);
+        }
+        FlvPacketizer.putAacSequenceHeader(packet.reset(2 + audioSpecificConfig.length), audioSpecificConfig);
+        enqueue(packet, FlvPacketizer.TAG_TYPE_AUDIO, 0, FLAG_CONFIG);
+    }
+
+    /**
+     * Packetizes and queues an H.264 access unit. Returns false if the frame was dropped.
+     */
+    public boolean sendVideo(ByteBuffer data, int offset, int size, long timestampMs, boolean keyFrame) {
+        int flags = keyFrame ? FLAG_KEY_FRAME : 0;
+        if (!keyFrame && AvcUtils.isNonReferenceFrame(data, offset, size)) {
+            flags |= FLAG_DISPOSABLE;
+        }
+        synchronized (mQueueLock) {
+            if (mAwaitingKeyFrame && !keyFrame || mQuit) {
+                mStats.videoFramesDropped++;
+                return false;
+            }
+        }
+        EncodedPacket packet = mPool.acquire(0);
+        if (packet == null) {
+            synchronized (mQueueLock) {
+                mStats.videoFramesDropped++;
+                mAwaitingKeyFrame = true;
+            }
+            return false;
+        }
+        FlvPacketizer.putAvcFrame(packet.reset(FlvPacketizer.avcFrameSize(data, offset, size)), data, offset, size, keyFrame);
+        return enqueue(packet, FlvPacketizer.TAG_TYPE_VIDEO, timestampMs, flags);
+    }
+
+    /**
+     * Queues a raw AAC frame. Returns false if the frame was dropped.
+     */
+    public boolean sendAudio(ByteBuffer data, int offset, int size, long timestampMs) {
+        EncodedPacket packet = mPool.acquire(0);
+        if (packet == null) {
+            synchronized (mQueueLock) {
+                mStats.audioFramesDropped++;
+            }
+            return false;
+        }
+        FlvPacketizer.putAacFrame(packet.reset(2 + size), data, offset, size);
+        return enqueue(packet, FlvPacketizer.TAG_TYPE_AUDIO, timestampMs, 0);
+    }
+
+    private boolean enqueue(EncodedPacket packet, int tagType, long timestampMs, int flags) {
+        packet.data.flip();
+        packet.size = packet.data.limit();
+        packet.trackIndex = tagType;
+        packet.presentationTimeUs = timestampMs;
+        packet.flags = flags;
+        boolean video = tagType == FlvPacketizer.TAG_TYPE_VIDEO;
+        synchronized (mQueueLock) {
+            if (mQuit) {
+                mPool.recycle(packet);
+                return false;
+            }
+            if ((flags & FLAG_CONFIG) == 0 && mQueuedBytes + packet.size > mMaxQueueBytes) {
+                if (!makeRoom(packet, video)) {
+                    mPool.recycle(packet);
+                    return false;
+                }
+            }
+            if (video && (flags & FLAG_KEY_FRAME) != 0) {
+                mAwaitingKeyFrame = false;
+            }
+            mQueue.add(packet);
+            mQueuedBytes += packet.size;
+            mQueueLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Applies the congestion policy for |packet|. Returns false if |packet| itself is dropped.
+     * Called with |mQueueLock| held.
+     */
+    private boolean makeRoom(EncodedPacket packet, boolean video) {
+        if (video && (packet.flags & FLAG_DISPOSABLE) != 0) {
+            mStats.videoFramesDropped++;
+            return false;
+        }
+        // Queued frames nothing else depends on go first
+        dropQueued(FLAG_DISPOSABLE);
+        if (mQueuedBytes + packet.size <= mMaxQueueBytes) {
+            return true;
+        }
+        if (!video) {
+            mStats.audioFramesDropped++;
+            return false;
+        }
+        if ((packet.flags & FLAG_KEY_FRAME) != 0) {
+            // A key frame supersedes every queued video frame
+            dropQueued(0);
+            return true;
+        }
+        // Everything up to the next key frame would reference this frame
+        mStats.videoFramesDropped++;
+        mAwaitingKeyFrame = true;
+        return false;
+    }
+
+    /**
+     * Drops queued, not yet sent video frames having all of |requiredFlags|, except codec config.
+     */
+    private void dropQueued(int requiredFlags) {
+        Iterator<EncodedPacket> it = mQueue.iterator();
+        while (it.hasNext()) {
+            EncodedPacket queued = it.next();
+            if (queued.trackIndex == FlvPacketizer.TAG_TYPE_VIDEO && (queued.flags & FLAG_CONFIG) == 0
+                    && (queued.flags & requiredFlags) == requiredFlags) {
+                it.remove();
+                mQueuedBytes -= queued.size;
+                mStats.videoFramesDropped++;
+                mPool.recycle(queued);
+            }
+        }
+    }
+
+    public int getQueuedPacketCount() {
+        synchronized (mQueueLock) {
+            return mQueue.size();
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        synchronized (mQueueLock) {
+            stats.queuedPackets = mQueue.size();
+            stats.queuedBytes = mQueuedBytes;
+            stats.packetsSent = mStats.packetsSent;
+            stats.bytesSent = mStats.bytesSent;
+            stats.videoFramesDropped = mStats.videoFramesDropped;
+            stats.audioFramesDropped = mStats.audioFramesDropped;
+        }
+        return stats;
+    }
+
+    /**
+     * Sends what is still queued (waiting at most STOP_TIMEOUT_MS), unpublishes and closes the
+     * connection.
+     */
+    public void stop() {
+        Thread sendThread;
+        synchronized (mQueueLock) {
+            mQuit = true;
+            mQueueLock.notifyAll();
+        }
+        synchronized (this) {
+            sendThread = mSendThread;
+        }
+        if (sendThread == null) {
+            return;
+        }
+        try {
+            sendThread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeSocket();
+        try {
+            sendThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        String failure = null;
+        try {
+            connect();
+            if (mListener != null) {
+                mListener.onConnected();
+            }
+            mReadThread = new Thread(this::readLoop, "RtmpPublisherReader");
+            mReadThread.start();
+            sendLoop();
+            sendCommand(mStreamId, "FCUnpublish", mStreamKey);
+            sendCommand(0, "deleteStream", mStreamId);
+        } catch (IOException e) {
+            failure = e.getMessage() != null ? e.getMessage() : e.toString();
+        } finally {
+            synchronized (mQueueLock) {
+                mQuit = true;
+                while (!mQueue.isEmpty()) {
+                    mPool.recycle(mQueue.poll());
+                }
+                mQueuedBytes = 0;
+            }
+            boolean wasClosed = closeSocket();
+            if (failure != null && !wasClosed && mListener != null) {
+                mListener.onDisconnected(failure);
+            }
+        }
+    }
+
+    private void sendLoop() throws IOException {
+        while (true) {
+            EncodedPacket packet;
+            synchronized (mQueueLock) {
+                while (mQueue.isEmpty() && !mQuit) {
+                    try {
+                        mQueueLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                packet = mQueue.poll();
+                if (packet == null) {
+                    return;
+                }
+                mQueuedBytes -= packet.size;
+            }
+            try {
+                int csid;
+                switch (packet.trackIndex) {
+                    case FlvPacketizer.TAG_TYPE_VIDEO:
+                        csid = CSID_VIDEO;
+                        break;
+                    case FlvPacketizer.TAG_TYPE_AUDIO:
+                        csid = CSID_AUDIO;
+                        break;
+                    default:
+                        csid = CSID_DATA;
+                        break;
+                }
+                writeMessage(csid, packet.trackIndex, packet.presentationTimeUs, mStreamId, packet.data, packet.size);
+                synchronized (mQueueLock) {
+                    mStats.packetsSent++;
+                    mStats.bytesSent += packet.size;
+                }
+            } finally {
+                mPool.recycle(packet);
+            }
+        }
+    }
+
+    // ----- connection setup -----
+
+    private void connect() throws IOException {
+        Socket socket = new Socket();
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Publisher stopped");
+            }
+            mSocket = socket;
+        }
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+        socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+        mIn = new DataInputStream(new CountingInputStream(new BufferedInputStream(socket.getInputStream())));
+        mOut = new BufferedOutputStream(socket.getOutputStream(), OUT_CHUNK_SIZE + 64);
+
+        handshake();
+
+        ByteBuffer chunkSize = ByteBuffer.allocate(4).putInt(0, OUT_CHUNK_SIZE);
+        writeMessage(CSID_PROTOCOL, MSG_SET_CHUNK_SIZE, 0, 0, chunkSize, 4);
+
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("app", mApp);
+        properties.put("type", "nonprivate");
+        properties.put("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
+        properties.put("tcUrl", mTcUrl);
+        double connectId = sendCommand(0, "connect", properties);
+        awaitResult(connectId);
+
+        sendCommand(0, "releaseStream", null, mStreamKey);
+        sendCommand(0, "FCPublish", null, mStreamKey);
+        List<Object> created = awaitResult(sendCommand(0, "createStream", (Object) null));
+        mStreamId = created.size() > 3 && created.get(3) instanceof Double ? ((Double) created.get(3)).intValue() : 1;
+
+        sendCommand(mStreamId, "publish", null, mStreamKey, "live");
+        awaitPublishStart();
+
+        socket.setSoTimeout(0);
+    }
+
+    private void handshake() throws IOException {
+        byte[] c0c1 = new byte[1 + HANDSHAKE_SIZE];
+        c0c1[0] = 3;                        // RTMP version
+        // C1: time (4 bytes), zero (4 bytes), random
+        byte[] random = new byte[HANDSHAKE_SIZE - 8];
+        new Random().nextBytes(random);
+        System.arraycopy(random, 0, c0c1, 9, random.length);
+        synchronized (mOutLock) {
+            mOut.write(c0c1);
+            mOut.flush();
+        }
+        int version = mIn.readUnsignedByte();
+        if (version != 3) {
+            throw new IOException("Unsupported RTMP version " + version);
+        }
+        byte[] s1 = new byte[HANDSHAKE_SIZE];
+        mIn.readFully(s1);
+        synchronized (mOutLock) {
+            // C2 echoes S1
+            mOut.write(s1);
+            mOut.flush();
+        }
+        mIn.readFully(new byte[HANDSHAKE_SIZE]);
+    }
+
+    private List<Object> awaitResult(double transactionId) throws IOException {
+        while (true) {
+            List<Object> command = readCommand();
+            String name = (String) command.get(0);
+            double id = command.size() > 1 && command.get(1) instanceof Double ? (Double) command.get(1) : -1;
+            if (id != transactionId) {
+                continue;
+            }
+            if ("_error".equals(name)) {
+                throw new IOException("RTMP command failed: " + describe(command));
+            }
+            if ("_result".equals(name)) {
+                return command;
+            }
+        }
+    }
+
+    private void awaitPublishStart() throws IOException {
+        while (true) {
+            List<Object> command = readCommand();
+            if (!"onStatus".equals(command.get(0))) {
+                continue;
+            }
+            Map<?, ?> info = statusInfo(command);
+            if (info != null && "NetStream.Publish.Start".equals(info.get("code"))) {
+                return;
+            }
+            if ("error".equals(statusLevel(command))) {
+                throw new IOException("Publish rejected: " + describe(command));
+            }
+        }
+    }
+
+    private static Map<?, ?> statusInfo(List<Object> command) {
+        return command.size() > 3 && command.get(3) instanceof Map ? (Map<?, ?>) command.get(3) : null;
+    }
+
+    private static Object statusLevel(List<Object> command) {
+        Map<?, ?> info = statusInfo(command);
+        return info != null ? info.get("level") : null;
+    }
+
+    private static String describe(List<Object> command) {
+        for (Object value : command) {
+            if (value instanceof Map) {
+                Map<?, ?> info = (Map<?, ?>) value;
+                if (info.containsKey("code")) {
+                    return info.get("code") + (info.containsKey("description") ? " (" + info.get("description") + ")" : "");
+                }
+            }
+        }
+        return command.toString();
+    }
+
+    /**
+     * Reads messages until a command arrives, handling protocol control messages on the way.
+     */
+    private List<Object> readCommand() throws IOException {
+        while (true) {
+            Message message = readMessage();
+            if (message.typeId == MSG_COMMAND_AMF0) {
+                return Amf0.decodeAll(message.payload);
+            }
+        }
+    }
+
+    private double sendCommand(int streamId, String name, Object... args) throws IOException {
+        double transactionId = ++mTransactionId;
+        Amf0.Writer writer = new Amf0.Writer().string(name).number(transactionId);
+        for (Object arg : args) {
+            writer.value(arg);
+        }
+        byte[] body = writer.toByteArray();
+        writeMessage(CSID_COMMAND, MSG_COMMAND_AMF0, 0, streamId, ByteBuffer.wrap(body), body.length);
+        return transactionId;
+    }
+
+    // ----- reading -----
+
+    private void readLoop() {
+        try {
+            while (true) {
+                Message message = readMessage();
+                if (message.typeId == MSG_COMMAND_AMF0) {
+                    List<Object> command = Amf0.decodeAll(message.payload);
+                    if ("onStatus".equals(command.get(0)) && "error".equals(statusLevel(command))) {
+                        throw new IOException(describe(command));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            if (!closeSocket() && mListener != null) {
+                mListener.onDisconnected(e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+            synchronized (mQueueLock) {
+                mQuit = true;
+                mQueueLock.notifyAll();
+            }
+        }
+    }
+
+    private Message readMessage() throws IOException {
+        while (true) {
+            int basic = mIn.readUnsignedByte();
+            int fmt = basic >> 6;
+            int csid = basic & 0x3f;
+            if (csid == 0) {
+                csid = 64 + mIn.readUnsignedByte();
+            } else if (csid == 1) {
+                csid = 64 + mIn.readUnsignedByte() + (mIn.readUnsignedByte() << 8);
+            }
+            ChunkStream stream = mChunkStreams.get(csid);
+            if (stream == null) {
+                stream = new ChunkStream();
+                mChunkStreams.put(csid, stream);
+            }
+            if (fmt <= 2) {
+                long timestamp = readInt24();
+                if (fmt <= 1) {
+                    stream.length = (int) readInt24();
+                    stream.typeId = mIn.readUnsignedByte();
+                    if (fmt == 0) {
+                        stream.streamId = Integer.reverseBytes(mIn.readInt());
+                    }
+                }
+                stream.extendedTimestamp = timestamp == 0xffffff;
+                if (stream.extendedTimestamp) {
+                    timestamp = mIn.readInt() & 0xffffffffL;
+                }
+                stream.timestamp = fmt == 0 ? timestamp : stream.timestamp + timestamp;
+            } else if (stream.extendedTimestamp) {
+                mIn.readInt();
+            }
+            if (stream.payload == null || stream.received == 0) {
+                stream.payload = new byte[stream.length];
+                stream.received = 0;
+            }
+            int chunk = Math.min(mInChunkSize, stream.length - stream.received);
+            mIn.readFully(stream.payload, stream.received, chunk);
+            stream.received += chunk;
+            maybeSendAck();
+            if (stream.received < stream.length) {
+                continue;
+            }
+            stream.received = 0;
+            Message message = new Message(stream.typeId, stream.payload);
+            if (!handleControl(message)) {
+                return message;
+            }
+        }
+    }
+
+    private long readInt24() throws IOException {
+        return (mIn.readUnsignedByte() << 16) | (mIn.readUnsignedByte() << 8) | mIn.readUnsignedByte();
+    }
+
+    /**
+     * Returns true if |message| was a protocol control message and has been handled.
+     */
+    private boolean handleControl(Message message) throws IOException {
+        ByteBuffer payload = message.payload;
+        switch (message.typeId) {
+            case MSG_SET_CHUNK_SIZE:
+                mInChunkSize = payload.getInt(0) & 0x7fffffff;
+                return true;
+            case MSG_WINDOW_ACK_SIZE:
+                mWindowAckSize = payload.getInt(0) & 0xffffffffL;
+                return true;
+            case MSG_USER_CONTROL:
+                if (payload.remaining() >= 6 && payload.getShort(0) == USER_CONTROL_PING_REQUEST) {
+                    ByteBuffer pong = ByteBuffer.allocate(6);
+                    pong.putShort((short) USER_CONTROL_PING_RESPONSE).putInt(payload.getInt(2));
+                    writeMessage(CSID_PROTOCOL, MSG_USER_CONTROL, 0, 0, pong, 6);
+                }
+                return true;
+            case MSG_ACK:
+            case 6:     // Set Peer Bandwidth
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void maybeSendAck() throws IOException {
+        if (mBytesRead - mLastAckBytes < mWindowAckSize) {
+            return;
+        }
+        mLastAckBytes = mBytesRead;
+        ByteBuffer ack = ByteBuffer.allocate(4).putInt(0, (int) mBytesRead);
+        writeMessage(CSID_PROTOCOL, MSG_ACK, 0, 0, ack, 4);
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mBytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            mBytesRead += n;
+            return n;
+        }
+    }
+
+    // ----- writing -----
+
+    /**
+     * Writes |size| bytes of |body| (from position 0) as one RTMP message, split into chunks.
+     * Every message starts with a type 0 chunk header.
+     */
+    private void writeMessage(int csid, int typeId, long timestamp, int streamId, ByteBuffer body, int size) throws IOException {
+        synchronized (mOutLock) {
+            boolean extended = timestamp >= 0xffffff;
+            ByteBuffer header = mHeaderScratch;
+            header.clear();
+            header.put((byte) csid);
+            putInt24(header, extended ? 0xffffff : (int) timestamp);
+            putInt24(header, size);
+            header.put((byte) typeId);
+            header.putInt(Integer.reverseBytes(streamId));
+            if (extended) {
+                header.putInt((int) timestamp);
+            }
+            mOut.write(header.array(), 0, header.position());
+
+            ByteBuffer view = body.duplicate();
+            view.position(0);
+            view.limit(size);
+            while (true) {
+                int chunk = Math.min(OUT_CHUNK_SIZE, view.remaining());
+                view.get(mChunkScratch, 0, chunk);
+                mOut.write(mChunkScratch, 0, chunk);
+                if (!view.hasRemaining()) {
+                    break;
+                }
+                mOut.write(0xc0 | csid);
+                if (extended) {
+                    mOut.write((int) (timestamp >> 24));
+                    mOut.write((int) (timestamp >> 16));
+                    mOut.write((int) (timestamp >> 8));
+                    mOut.write((int) timestamp);
+                }
+            }
+            mOut.flush();
+        }
+    }
+
+    private static void putInt24(ByteBuffer dst, int value) {
+        dst.put((byte) (value >> 16));
+        dst.put((byte) (value >> 8));
+        dst.put((byte) value);
+    }
+
+    /**
+     * Closes the socket. Returns true if it had already been closed, i.e. the disconnect was
+     * requested or already reported.
+     */
+    private synchronized boolean closeSocket() {
+        if (mClosed) {
+            return true;
+        }
+        mClosed = true;
+        if (mSocket != null) {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        return false;
+    }
+}
@@ -3,6 +3,8 @@ package com.cloudwebrtc.webrtc.muxer;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
 
@@ -30,29 +32,37 @@ public class VideoEncoder extends AndroidEncoder {
     private static final int IFRAME_INTERVAL = 5;
 
     private Surface mInputSurface;
+    private BitrateController mBitrateController;
 
 
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
      */
     public VideoEncoder(int width, int height, int bitRate, int frameRate, BaseMuxer muxer) throws IOException {
-        super(TAG);
-        mMuxer = muxer;
-        mBufferInfo = new MediaCodec.BufferInfo();
+        this(width, height, bitRate, frameRate, muxer, false);
+    }
 
-        String mimeType;
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param async when true, encoded output is delivered to the muxer from a MediaCodec callback
+     *              thread and {@link #drainEncoder(boolean)} never blocks the rendering thread.
+     */
+    public VideoEncoder(int width, int height, int bitRate, int frameRate, BaseMuxer muxer, boolean async) throws IOException {
+        this(width, height, bitRate, frameRate, muxer.mFormat, async);
+        setMuxer(muxer);
+    }
 
+    /**
+     * Configures and starts an encoder for output of |muxerFormat| without binding a muxer, and
+     * prepares the input Surface. {@link #setMuxer(BaseMuxer)} must be called before the first
+     * frame is rendered to the surface.
+     */
+    public VideoEncoder(int width, int height, int bitRate, int frameRate, BaseMuxer.FORMAT muxerFormat, boolean async) throws IOException {
+        super(TAG, async);
+        mBufferInfo = new MediaCodec.BufferInfo();
 
-        switch(muxer.mFormat){
-            case MPEG4:
-                mimeType = H264_MIME_TYPE;
-                break;
-            case WEBM:
-                mimeType = VP8_MIME_TYPE;
-                break;
-            default:
-                throw new IllegalArgumentException("Unrecognized format!");
-        }
+        String mimeType = getMimeType(muxerFormat);
         MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
 
         // Set some properties.  Failing to specify some of these can cause the MediaCodec
@@ -66,14 +76,31 @@ public class VideoEncoder extends AndroidEncoder {
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(mimeType);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder = CodecCapabilityCache.createEncoder(mimeType, width, height,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        configureEncoder(format);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
 
         mTrackIndex = -1;
     }
 
+    /**
+     * Returns the video mime type encoded for |muxerFormat|.
+     */
+    public static String getMimeType(BaseMuxer.FORMAT muxerFormat) {
+        switch(muxerFormat){
+            case MPEG4:
+            case HLS:
+            case RTMP:
+                return H264_MIME_TYPE;
+            case WEBM:
+                return VP8_MIME_TYPE;
+            default:
+                throw new IllegalArgumentException("Unrecognized format!");
+        }
+    }
+
     /**
      * Returns the encoder's input surface.
      */
@@ -81,6 +108,66 @@ public class VideoEncoder extends AndroidEncoder {
         return mInputSurface;
     }
 
+    /**
+     * Lets |controller| adjust the bitrate from the encoded output and the muxer backlog.
+     * Has no effect before KitKat, where the bitrate of a running codec cannot be changed.
+     */
+    public void setBitrateController(BitrateController controller) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            Log.w(TAG, "Adaptive bitrate requires API 19");
+            return;
+        }
+        if (controller != null) {
+            controller.setListener(this::setBitrate);
+            controller.setQueueDepthSource(() -> {
+                BaseMuxer muxer = mMuxer;
+                return muxer != null ? muxer.getPendingPacketCount() : 0;
+            });
+        }
+        mBitrateController = controller;
+    }
+
+    /**
+     * Changes the target bitrate of the running encoder.
+     */
+    public void setBitrate(int bitRate) {
+        if (mEncoder == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        if (VERBOSE) Log.d(TAG, "setBitrate(" + bitRate + ")");
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            mEncoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to update bitrate", e);
+        }
+    }
+
+    /**
+     * Asks the running encoder to make the next frame a sync frame.
+     */
+    public void requestSyncFrame() {
+        if (mEncoder == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            mEncoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Sync frame request failed", e);
+        }
+    }
+
+    @Override
+    protected void onEncodedOutput(MediaCodec.BufferInfo info) {
+        BitrateController controller = mBitrateController;
+        if (controller != null) {
+            controller.onEncodedFrame(info.size, info.presentationTimeUs);
+        }
+    }
+
     @Override
     protected boolean isSurfaceInputEncoder() {
         return true;
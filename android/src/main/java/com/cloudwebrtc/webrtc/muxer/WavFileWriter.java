@@ -0,0 +1,167 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes 16 bit PCM to a WAV file through memory mappings of the file.
+ * <p/>
+ * The file is grown and mapped a chunk at a time, so writing a frame is a copy into the mapping
+ * without allocations or system calls. The header is patched with the data size each time a
+ * chunk is complete, and with the exact size on {@link #finish()}. Mapped pages are written back
+ * by the kernel even if the process dies, so at most the chunk being written is missing from a
+ * file that was never finished.
+ * <p/>
+ * Pure Java: no Android dependencies, so it can be exercised on a plain JVM.
+ * @hide
+ */
+public class WavFileWriter {
+    // About 43 seconds of 48 kHz mono audio
+    public static final int DEFAULT_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 44;
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mHeader;
+    private final int mChunkBytes;
+    private MappedByteBuffer mChunk;
+    // File offset of |mChunk|
+    private long mChunkOffset;
+    private long mDataBytes;
+    private boolean mFinished;
+
+    public WavFileWriter(File file, int sampleRate, int channelCount) throws IOException {
+        this(file, sampleRate, channelCount, DEFAULT_CHUNK_BYTES);
+    }
+
+    public WavFileWriter(File file, int sampleRate, int channelCount, int chunkBytes) throws IOException {
+        mChunkBytes = chunkBytes;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            // Mapping past the end of the file grows it
+            mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            mHeader.order(ByteOrder.LITTLE_ENDIAN);
+            writeHeader(sampleRate, channelCount);
+            mapChunk(HEADER_SIZE);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    private void writeHeader(int sampleRate, int channelCount) {
+        int blockAlign = channelCount * 2;
+        mHeader.put("RIFF".getBytes());
+        mHeader.putInt(36);                   // RIFF size, patched as data is written
+        mHeader.put("WAVE".getBytes());
+        mHeader.put("fmt ".getBytes());
+        mHeader.putInt(16);
+        mHeader.putShort((short) 1);          // PCM
+        mHeader.putShort((short) channelCount);
+        mHeader.putInt(sampleRate);
+        mHeader.putInt(sampleRate * blockAlign);
+        mHeader.putShort((short) blockAlign);
+        mHeader.putShort((short) 16);         // bits per sample
+        mHeader.put("data".getBytes());
+        mHeader.putInt(0);                    // data size, patched as data is written
+    }
+
+    private void mapChunk(long offset) throws IOException {
+        mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE, offset, mChunkBytes);
+        mChunkOffset = offset;
+    }
+
+    private void nextChunk() throws IOException {
+        // Everything before the new chunk is complete
+        patchHeader();
+        mapChunk(mChunkOffset + mChunkBytes);
+    }
+
+    private void patchHeader() {
+        patchHeader(0);
+    }
+
+    /**
+     * |padBytes| follow the data and count in the RIFF size only.
+     */
+    private void patchHeader(int padBytes) {
+        mHeader.putInt(4, (int) Math.min(MAX_RIFF_SIZE, 36 + mDataBytes + padBytes));
+        mHeader.putInt(40, (int) Math.min(MAX_RIFF_SIZE, mDataBytes));
+    }
+
+    public long getDataBytes() {
+        return mDataBytes;
+    }
+
+    /**
+     * Appends the remaining bytes of |pcm|, consuming them.
+     */
+    public void write(ByteBuffer pcm) throws IOException {
+        if (mFinished) {
+            return;
+        }
+        while (pcm.hasRemaining()) {
+            if (!mChunk.hasRemaining()) {
+                nextChunk();
+            }
+            int count = Math.min(pcm.remaining(), mChunk.remaining());
+            int limit = pcm.limit();
+            pcm.limit(pcm.position() + count);
+            mChunk.put(pcm);
+            pcm.limit(limit);
+            mDataBytes += count;
+        }
+    }
+
+    /**
+     * Appends |length| bytes of |pcm| at |offset|.
+     */
+    public void write(byte[] pcm, int offset, int length) throws IOException {
+        if (mFinished) {
+            return;
+        }
+        while (length > 0) {
+            if (!mChunk.hasRemaining()) {
+                nextChunk();
+            }
+            int count = Math.min(length, mChunk.remaining());
+            mChunk.put(pcm, offset, count);
+            offset += count;
+            length -= count;
+            mDataBytes += count;
+        }
+    }
+
+    /**
+     * Patches the header with the final size, trims the unused part of the last chunk and closes
+     * the file. An odd sized data chunk is followed by a pad byte, as RIFF chunks are word aligned.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        try {
+            int padBytes = (int) (mDataBytes & 1);
+            patchHeader(padBytes);
+            mHeader.force();
+            mChunk.force();
+            mChunk = null;
+            mChannel.truncate(HEADER_SIZE + mDataBytes);
+            if (padBytes > 0) {
+                mChannel.write(ByteBuffer.allocate(padBytes), HEADER_SIZE + mDataBytes);
+            }
+        } finally {
+            mFile.close();
+        }
+    }
+}
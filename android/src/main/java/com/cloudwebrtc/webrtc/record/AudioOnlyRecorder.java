@@ -0,0 +1,368 @@
+package com.cloudwebrtc.webrtc.record;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.cloudwebrtc.webrtc.audio.AudioMixerController;
+import com.cloudwebrtc.webrtc.audio.MixerSinkCallback;
+import com.cloudwebrtc.webrtc.audio.RecAudioRecorder;
+import com.cloudwebrtc.webrtc.muxer.AndroidMuxer;
+import com.cloudwebrtc.webrtc.muxer.BaseMuxer;
+import com.cloudwebrtc.webrtc.muxer.MediaClock;
+import com.cloudwebrtc.webrtc.muxer.OggOpusMuxer;
+import com.cloudwebrtc.webrtc.muxer.WavFileWriter;
+import com.cloudwebrtc.webrtc.utils.AnyThreadSink;
+import com.cloudwebrtc.webrtc.utils.ConstraintsMap;
+
+import org.webrtc.VideoTrack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Records the microphone and the remote audio played out, mixed, to an M4A (AAC), Ogg (Opus) or
+ * WAV (16 bit PCM) file.
+ * <p/>
+ * Audio only recordings don't need what {@link com.cloudwebrtc.webrtc.video.FlutterVideoRecorder}
+ * sets up for video: there is no EGL context, render thread or video mixer, just the audio mixer,
+ * one {@link com.cloudwebrtc.webrtc.muxer.AudioEncoder} and a single track muxer. Video tracks
+ * added to it are ignored.
+ * <p/>
+ * WAV skips the encoder: the mixed samples, or those of each source when split, are copied into
+ * memory mapped files by {@link WavFileWriter} on the mixer thread.
+ */
+public class AudioOnlyRecorder implements FlutterRecorder {
+    private static final String TAG = "AudioOnlyRecorder";
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 1;
+    private static final int AAC_BITRATE = 96000;
+    // Opus needs far less than AAC for the same speech quality
+    private static final int OPUS_BITRATE = 48000;
+    // MediaCodec has an Opus encoder from Android 10 on
+    private static final int OPUS_MIN_SDK = 29;
+    // Encode from MediaCodec callback threads, as the mixed recorder does
+    private static final boolean ASYNC_ENCODING = true;
+    private static final long AUDIO_END_TIMEOUT_MS = 2000;
+    private static final int RECORD_SSRC = 1;
+    private static final int PLAYBACK_SSRC = 2;
+
+    private final Integer id;
+    private final AudioSamplesInterceptor recordSamplesInterceptor;
+    private final AudioSamplesInterceptor playbackSamplesInterceptor;
+    // "ogg" or "opus" records Opus in Ogg, "wav" PCM in WAV, anything else AAC in MPEG-4. When
+    // null, the file extension picks Opus or WAV.
+    private final String format;
+    private final BinaryMessenger messenger;
+    // Dart listens to the events of every multi party recorder
+    private EventChannel eventChannel;
+    private EventChannel.EventSink eventSink;
+    private final Object mixerLock = new Object();
+
+    private boolean isRunning;
+    private boolean disposed;
+    private File recordFile;
+    private BaseMuxer muxer;
+    private MediaClock mediaClock;
+    private AudioMixerController mixerController;
+    private MixerSinkCallback recordSink;
+    private MixerSinkCallback playbackSink;
+    private RecAudioRecorder audioRecorder;
+    private CountDownLatch audioEnded;
+    // WAV only: one file per source instead of the mix
+    private boolean splitSources;
+    private WavFileWriter wavWriter;
+    private WavFileWriter playbackWavWriter;
+
+    public AudioOnlyRecorder(Integer id, AudioSamplesInterceptor recordSamplesInterceptor, AudioSamplesInterceptor playbackSamplesInterceptor, String format, BinaryMessenger messenger) {
+        this.id = id;
+        this.recordSamplesInterceptor = recordSamplesInterceptor;
+        this.playbackSamplesInterceptor = playbackSamplesInterceptor;
+        this.format = format;
+        this.messenger = messenger;
+        registerEventChannel();
+    }
+
+    private void registerEventChannel() {
+        eventChannel = new EventChannel(messenger, "FlutterWebRTC/mediaRecorderEvents/" + this.id);
+        eventChannel.setStreamHandler(
+                new EventChannel.StreamHandler() {
+                    @Override
+                    public void onListen(Object arguments, EventChannel.EventSink eventSink) {
+                        AudioOnlyRecorder.this.eventSink = new AnyThreadSink(eventSink);
+                    }
+
+                    @Override
+                    public void onCancel(Object arguments) {
+                        AudioOnlyRecorder.this.eventSink = null;
+                    }
+                });
+    }
+
+    private boolean isOpus() {
+        if (format == null) {
+            String name = recordFile.getName().toLowerCase();
+            return name.endsWith(".ogg") || name.endsWith(".opus");
+        }
+        return "ogg".equalsIgnoreCase(format) || "opus".equalsIgnoreCase(format);
+    }
+
+    private boolean isWav() {
+        if (format == null) {
+            return recordFile.getName().toLowerCase().endsWith(".wav");
+        }
+        return "wav".equalsIgnoreCase(format);
+    }
+
+    /**
+     * WAV only: writes the microphone to the record file and the remote audio to
+     * "|name|_remote.wav" next to it instead of mixing them. Call before
+     * {@link #startRecording(File)}.
+     */
+    public void setSplitSources(boolean splitSources) {
+        this.splitSources = splitSources;
+    }
+
+    /**
+     * The file the remote audio is written to when the sources are split.
+     */
+    public File getPlaybackFile() {
+        if (recordFile == null || !isWav() || !splitSources || playbackSamplesInterceptor == null) {
+            return null;
+        }
+        String name = recordFile.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(recordFile.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + "_remote.wav");
+    }
+
+    @Override
+    public void startRecording(File file) throws Exception {
+        if (isRunning)
+            return;
+        recordFile = file;
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        mediaClock = new MediaClock();
+        if (isOpus() && Build.VERSION.SDK_INT < OPUS_MIN_SDK) {
+            throw new IllegalArgumentException("Recording Opus needs Android 10, record AAC or WAV instead");
+        }
+        try {
+            if (isWav()) {
+                startWav(file);
+            } else {
+                startEncoded(file);
+            }
+        } catch (Exception e) {
+            // Undo what was set up before the failure: sinks, mixer, encoder and files
+            releaseRecording();
+            throw e;
+        }
+        mediaClock.start();
+        isRunning = true;
+    }
+
+    private void startEncoded(File file) throws IOException {
+        if (isOpus()) {
+            muxer = OggOpusMuxer.create(file.getAbsolutePath());
+        } else {
+            muxer = AndroidMuxer.create(file.getAbsolutePath(), BaseMuxer.FORMAT.MPEG4, 1, true);
+        }
+        muxer.setPtsOrigin(0);
+        synchronized (mixerLock) {
+            mixerController = new AudioMixerController(CHANNELS, SAMPLE_RATE);
+            attachSinks();
+            audioRecorder = new RecAudioRecorder(muxer, isOpus() ? OPUS_BITRATE : AAC_BITRATE, SAMPLE_RATE, CHANNELS, ASYNC_ENCODING);
+            audioRecorder.setMediaClock(mediaClock);
+            final CountDownLatch ended = new CountDownLatch(1);
+            audioRecorder.addAudioRecordListener(new RecAudioRecorder.AudioRecordListener() {
+                @Override
+                public void onAudioRecordStarted() {
+                }
+
+                @Override
+                public void onAudioRecordEnded() {
+                    ended.countDown();
+                }
+            });
+            audioEnded = ended;
+            mixerController.setMixerOutputReceiver(audioRecorder);
+            mixerController.start();
+        }
+    }
+
+    private void startWav(File file) throws IOException {
+        wavWriter = new WavFileWriter(file, SAMPLE_RATE, CHANNELS);
+        File playbackFile = getPlaybackFile();
+        if (playbackFile != null) {
+            playbackWavWriter = new WavFileWriter(playbackFile, SAMPLE_RATE, CHANNELS);
+        }
+        synchronized (mixerLock) {
+            mixerController = new AudioMixerController(CHANNELS, SAMPLE_RATE);
+            attachSinks();
+            if (splitSources) {
+                mixerController.setSourceOutputReceiver((ssrc, data) -> {
+                    if (mediaClock.isPaused()) {
+                        return;
+                    }
+                    writeWav(ssrc == PLAYBACK_SSRC ? playbackWavWriter : wavWriter, data);
+                });
+            } else {
+                mixerController.setMixerOutputReceiver(buffer -> {
+                    if (mediaClock.isPaused()) {
+                        return;
+                    }
+                    buffer.rewind();
+                    try {
+                        wavWriter.write(buffer);
+                    } catch (IOException e) {
+                        onWavError(e);
+                    }
+                });
+            }
+            mixerController.start();
+        }
+    }
+
+    private void writeWav(WavFileWriter writer, byte[] data) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(data, 0, data.length);
+        } catch (IOException e) {
+            onWavError(e);
+        }
+    }
+
+    private void onWavError(IOException e) {
+        Log.e(TAG, "Failed to write WAV data", e);
+        EventChannel.EventSink sink = eventSink;
+        if (sink != null) {
+            ConstraintsMap params = new ConstraintsMap();
+            params.putString("eventType", "error");
+            params.putString("errorDescription", e.getMessage());
+            sink.success(params.toMap());
+        }
+    }
+
+    private void attachSinks() {
+        if (recordSamplesInterceptor != null) {
+            recordSink = new MixerSinkCallback(RECORD_SSRC, CHANNELS, 5.0f, SAMPLE_RATE, mixerController, true);
+            recordSamplesInterceptor.attachCallback(id, recordSink);
+        }
+        if (playbackSamplesInterceptor != null) {
+            playbackSink = new MixerSinkCallback(PLAYBACK_SSRC, CHANNELS, 5.0f, SAMPLE_RATE, mixerController, false);
+            playbackSamplesInterceptor.attachCallback(id, playbackSink);
+        }
+    }
+
+    @Override
+    public void setPaused(boolean paused) {
+        if (!isRunning)
+            return;
+        if (paused) {
+            mediaClock.pause();
+        } else {
+            mediaClock.resume();
+        }
+    }
+
+    @Override
+    public void addVideoTrack(VideoTrack videoTrack, boolean isLocal, boolean isMirror, String label) {
+        Log.w(TAG, "Ignoring video track " + videoTrack.id() + " of audio only recorder");
+    }
+
+    @Override
+    public void removeVideoTrack(VideoTrack videoTrack, boolean isLocal, boolean isMirror, String label) {
+    }
+
+    @Override
+    public File getRecordFile() {
+        return recordFile;
+    }
+
+    @Override
+    public void stopRecording() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        releaseRecording();
+        Log.d(TAG, "Media clock: " + mediaClock.getStats());
+    }
+
+    /**
+     * Detaches the sinks and releases whatever of the mixer, encoder and files exists.
+     */
+    private void releaseRecording() {
+        synchronized (mixerLock) {
+            if (recordSamplesInterceptor != null) {
+                recordSamplesInterceptor.detachCallback(id);
+            }
+            if (playbackSamplesInterceptor != null) {
+                playbackSamplesInterceptor.detachCallback(id);
+            }
+            recordSink = null;
+            playbackSink = null;
+            if (mixerController != null) {
+                mixerController.release();
+                mixerController = null;
+            }
+        }
+        if (audioRecorder != null) {
+            // The encode loop only runs once the first mixed frame arrived
+            boolean started = audioRecorder.isRecording();
+            audioRecorder.stopRecording();
+            if (started) {
+                try {
+                    // Let the end of stream reach the muxer before it is released
+                    if (!audioEnded.await(AUDIO_END_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        Log.w(TAG, "Audio encoder did not finish in time");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            audioRecorder = null;
+        }
+        // The mixer thread is gone, nothing writes to the WAV files anymore
+        finishWav(wavWriter);
+        finishWav(playbackWavWriter);
+        wavWriter = null;
+        playbackWavWriter = null;
+        if (muxer != null) {
+            synchronized (muxer) {
+                muxer.release();
+            }
+            muxer = null;
+        }
+    }
+
+    private void finishWav(WavFileWriter writer) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.finish();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to finish WAV file", e);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (disposed) {
+            return;
+        }
+        disposed = true;
+        eventSink = null;
+        if (eventChannel != null) {
+            eventChannel.setStreamHandler(null);
+        }
+        stopRecording();
+    }
+}
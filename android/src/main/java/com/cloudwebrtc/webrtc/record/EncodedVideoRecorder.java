@@ -0,0 +1,337 @@
+package com.cloudwebrtc.webrtc.record;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cloudwebrtc.webrtc.audio.RecAudioRecorder;
+import com.cloudwebrtc.webrtc.muxer.AndroidMuxer;
+import com.cloudwebrtc.webrtc.muxer.AvcUtils;
+import com.cloudwebrtc.webrtc.muxer.BaseMuxer;
+import com.cloudwebrtc.webrtc.muxer.MediaClock;
+import com.cloudwebrtc.webrtc.video.EncodedFrameSink;
+
+import org.webrtc.EncodedImage;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioSamples;
+import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Records a video track by muxing the H.264 bitstream WebRTC already has for it: the one encoded
+ * to send a local track, or the one received for a remote track. Unlike {@link RTCFileRenderer},
+ * the frames are not rendered and encoded a second time.
+ * <p/>
+ * Encoded frames are matched to the track by their timestamps, which this class learns by also
+ * being a sink of the track. Audio is taken from the samples WebRTC captures or plays out for the
+ * call. The muxer is created on the first key frame, once it is known whether audio is coming.
+ */
+class EncodedVideoRecorder implements VideoSink, EncodedFrameSink, SamplesReadyCallback {
+    private static final String TAG = "EncodedVideoRecorder";
+    private static final String CODEC_H264 = "H264";
+    private static final int AUDIO_BITRATE = 128000;
+    // How long the video waits for the first audio samples before it is recorded without audio
+    private static final long AUDIO_START_TIMEOUT_MS = 2000;
+    private static final long KEY_FRAME_REQUEST_INTERVAL_MS = 200;
+    // Capture timestamps of the recent frames of the track
+    private static final int TIMESTAMP_HISTORY = 32;
+
+    interface ErrorListener {
+        void onRecordError(String description);
+    }
+
+    private final String outputFile;
+    private final boolean withAudio;
+    private final ErrorListener errorListener;
+    private final MediaClock mediaClock = new MediaClock();
+    private final long startMs = SystemClock.elapsedRealtime();
+
+    private final long[] timestampsUs = new long[TIMESTAMP_HISTORY];
+    private int timestampCount;
+
+    private final Object lock = new Object();
+    // Guarded by |lock|
+    private AndroidMuxer muxer;
+    private RecAudioRecorder audioRecorder;
+    private int videoTrackIndex = -1;
+    // Parameter sets of the video track
+    private byte[] trackSps;
+    private byte[] trackPps;
+    // False until a key frame is written, and again after a pause or an encoder switch
+    private boolean videoStarted;
+    private boolean keyFrameRequested = true;
+    private long lastKeyFrameRequestMs;
+    private int audioSampleRate;
+    private int audioChannels;
+    private boolean failed;
+    private boolean released;
+
+    EncodedVideoRecorder(String outputFile, boolean withAudio, ErrorListener errorListener) {
+        this.outputFile = outputFile;
+        this.withAudio = withAudio;
+        this.errorListener = errorListener;
+        mediaClock.start();
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        // The encoders see the timestamps with microsecond precision
+        long timestampUs = frame.getTimestampNs() / 1000;
+        synchronized (timestampsUs) {
+            timestampsUs[timestampCount++ % TIMESTAMP_HISTORY] = timestampUs;
+        }
+    }
+
+    @Override
+    public boolean isRecordedFrame(long timestampNs) {
+        long timestampUs = timestampNs / 1000;
+        synchronized (timestampsUs) {
+            for (int i = Math.min(timestampCount, TIMESTAMP_HISTORY) - 1; i >= 0; i--) {
+                if (timestampsUs[i] == timestampUs) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean needsKeyFrame() {
+        synchronized (lock) {
+            if (!keyFrameRequested || failed || released || mediaClock.isPaused()) {
+                return false;
+            }
+            long nowMs = SystemClock.elapsedRealtime();
+            if (nowMs - lastKeyFrameRequestMs < KEY_FRAME_REQUEST_INTERVAL_MS) {
+                return false;
+            }
+            lastKeyFrameRequestMs = nowMs;
+            return true;
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage image, String codecName, long timestampNs) {
+        String error = null;
+        synchronized (lock) {
+            if (failed || released) {
+                return;
+            }
+            if (!CODEC_H264.equals(codecName)) {
+                failed = true;
+                error = "Recording the encoded video needs H264, the track is coded as " + codecName;
+            } else {
+                error = writeFrame(image, timestampNs);
+            }
+        }
+        if (error != null) {
+            Log.e(TAG, error);
+            errorListener.onRecordError(error);
+        }
+    }
+
+    /**
+     * Returns an error description if recording failed.
+     */
+    private String writeFrame(EncodedImage image, long timestampNs) {
+        boolean keyFrame = image.frameType == EncodedImage.FrameType.VideoFrameKey;
+        long ptsUs = mediaClock.toMediaTimeUs(timestampNs);
+        if (ptsUs < 0) {
+            // Paused, or captured before the recording started or resumed
+            return null;
+        }
+        if (muxer == null) {
+            if (!keyFrame) {
+                return null;
+            }
+            if (withAudio && audioSampleRate == 0
+                    && SystemClock.elapsedRealtime() - startMs < AUDIO_START_TIMEOUT_MS) {
+                // Wait for the audio format, another key frame will be requested
+                keyFrameRequested = true;
+                return null;
+            }
+            try {
+                createMuxer(image);
+            } catch (IOException | RuntimeException e) {
+                failed = true;
+                return "Failed to start recording: " + e.getMessage();
+            }
+        }
+        if (!videoStarted) {
+            if (!keyFrame || !muxer.isStarted()) {
+                // Waiting for the audio track, or for a key frame after a pause or a switch
+                keyFrameRequested = true;
+                return null;
+            }
+            checkParameterSets(image);
+            videoStarted = true;
+        }
+        if (keyFrame) {
+            keyFrameRequested = false;
+        }
+        ByteBuffer buffer = image.buffer;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(buffer.position(), buffer.remaining(), ptsUs, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxer.writeEncodedData(videoTrackIndex, buffer, info);
+        return null;
+    }
+
+    private void createMuxer(EncodedImage image) throws IOException {
+        ByteBuffer buffer = image.buffer;
+        byte[] sps = AvcUtils.findNal(buffer, buffer.position(), buffer.remaining(), AvcUtils.NAL_TYPE_SPS);
+        byte[] pps = AvcUtils.findNal(buffer, buffer.position(), buffer.remaining(), AvcUtils.NAL_TYPE_PPS);
+        if (sps == null || pps == null) {
+            throw new IOException("No SPS/PPS in key frame");
+        }
+        boolean recordAudio = audioSampleRate > 0;
+        muxer = AndroidMuxer.create(outputFile, BaseMuxer.FORMAT.MPEG4, recordAudio ? 2 : 1, true);
+        muxer.setOrientationHint(image.rotation);
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", image.encodedWidth, image.encodedHeight);
+        format.setByteBuffer("csd-0", withStartCode(sps));
+        format.setByteBuffer("csd-1", withStartCode(pps));
+        trackSps = sps;
+        trackPps = pps;
+        if (recordAudio) {
+            audioRecorder = new RecAudioRecorder(muxer, AUDIO_BITRATE, audioSampleRate, audioChannels);
+            audioRecorder.setMediaClock(mediaClock);
+        } else if (withAudio) {
+            Log.w(TAG, "No audio samples received, recording video only");
+        }
+        videoTrackIndex = muxer.addTrack(format);
+        Log.i(TAG, "Recording " + image.encodedWidth + "x" + image.encodedHeight + " H264 to " + outputFile);
+    }
+
+    /**
+     * Warns if a key frame from another encoder changes the parameter sets of the track. The track
+     * header keeps the first ones, the key frame carries the new ones in band.
+     */
+    private void checkParameterSets(EncodedImage image) {
+        ByteBuffer buffer = image.buffer;
+        byte[] sps = AvcUtils.findNal(buffer, buffer.position(), buffer.remaining(), AvcUtils.NAL_TYPE_SPS);
+        byte[] pps = AvcUtils.findNal(buffer, buffer.position(), buffer.remaining(), AvcUtils.NAL_TYPE_PPS);
+        if (sps == null || pps == null) {
+            Log.w(TAG, "Key frame without SPS/PPS, assuming those of the track");
+        } else if (!Arrays.equals(sps, trackSps) || !Arrays.equals(pps, trackPps)) {
+            Log.w(TAG, "Parameter sets changed at " + image.encodedWidth + "x" + image.encodedHeight
+                    + ", players that ignore in-band SPS/PPS may not decode the rest");
+        }
+    }
+
+    private static ByteBuffer withStartCode(byte[] nal) {
+        ByteBuffer csd = ByteBuffer.allocate(nal.length + 4);
+        csd.put(new byte[] {0, 0, 0, 1}).put(nal);
+        csd.flip();
+        return csd;
+    }
+
+    @Override
+    public void onWebRtcAudioRecordSamplesReady(AudioSamples samples) {
+        RecAudioRecorder recorder;
+        synchronized (lock) {
+            if (released) {
+                return;
+            }
+            if (audioSampleRate == 0) {
+                audioSampleRate = samples.getSampleRate();
+                audioChannels = samples.getChannelCount();
+            } else if (samples.getSampleRate() != audioSampleRate || samples.getChannelCount() != audioChannels) {
+                Log.w(TAG, "Audio format changed to " + samples.getSampleRate() + "Hz/"
+                        + samples.getChannelCount() + "ch, dropping samples");
+                return;
+            }
+            recorder = audioRecorder;
+        }
+        if (recorder != null) {
+            recorder.onBuffer(ByteBuffer.wrap(samples.getData()));
+        }
+    }
+
+    void setPaused(boolean paused) {
+        synchronized (lock) {
+            if (paused) {
+                mediaClock.pause();
+            } else if (mediaClock.isPaused()) {
+                mediaClock.resume();
+                // Frames after the pause must not reference the ones before it
+                restartVideoLocked();
+            }
+        }
+    }
+
+    /**
+     * Drops video frames until the next key frame, and asks for one. Called before the recorder
+     * is attached to another encoder, whose frames don't reference those of the previous one.
+     */
+    void restartVideo() {
+        synchronized (lock) {
+            restartVideoLocked();
+        }
+    }
+
+    private void restartVideoLocked() {
+        videoStarted = false;
+        keyFrameRequested = true;
+        lastKeyFrameRequestMs = 0;
+    }
+
+    /**
+     * Finalizes the file. The audio encoder is drained first, the video track has no end of
+     * stream.
+     */
+    void release() {
+        AndroidMuxer muxer;
+        RecAudioRecorder recorder;
+        synchronized (lock) {
+            if (released) {
+                return;
+            }
+            released = true;
+            muxer = this.muxer;
+            recorder = audioRecorder;
+            this.muxer = null;
+            audioRecorder = null;
+        }
+        if (muxer == null) {
+            Log.w(TAG, "Stopped before the first key frame, nothing recorded");
+            return;
+        }
+        if (recorder != null && recorder.isRecording()) {
+            final Object drained = new Object();
+            final boolean[] ended = {false};
+            recorder.addAudioRecordListener(new RecAudioRecorder.AudioRecordListener() {
+                @Override
+                public void onAudioRecordStarted() {
+                }
+
+                @Override
+                public void onAudioRecordEnded() {
+                    synchronized (drained) {
+                        ended[0] = true;
+                        drained.notifyAll();
+                    }
+                }
+            });
+            recorder.stopRecording();
+            synchronized (drained) {
+                long deadlineMs = SystemClock.elapsedRealtime() + AUDIO_START_TIMEOUT_MS;
+                while (!ended[0] && SystemClock.elapsedRealtime() < deadlineMs) {
+                    try {
+                        drained.wait(deadlineMs - SystemClock.elapsedRealtime());
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        } else if (recorder != null) {
+            recorder.stopRecording();
+        }
+        muxer.forceStop();
+        muxer.release();
+        Log.i(TAG, "Recording finished. " + mediaClock.getStats());
+    }
+}
@@ -1,36 +1,61 @@
 package com.cloudwebrtc.webrtc.record;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
-import android.graphics.Matrix;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 
+import com.cloudwebrtc.webrtc.utils.EglUtils;
+
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
 import org.webrtc.VideoTrack;
-import org.webrtc.YuvHelper;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 import io.flutter.plugin.common.MethodChannel;
 
+/**
+ * Saves the next frame of a video track as a JPEG, PNG or WebP image.
+ * <p/>
+ * The frame is only retained on the WebRTC frame thread. It is drawn once on a capture thread
+ * by a {@link FrameReader}, read back and compressed there.
+ */
 public class FrameCapturer implements VideoSink {
-    private VideoTrack videoTrack;
-    private File file;
+    public static final int DEFAULT_QUALITY = 90;
+
+    private final VideoTrack videoTrack;
+    private final File file;
     private final MethodChannel.Result callback;
+    private final Bitmap.CompressFormat format;
+    private final int quality;
+    private final int targetWidth;
+    private final int targetHeight;
+    private final boolean mirror;
     private boolean gotFrame = false;
 
     public FrameCapturer(VideoTrack track, File file, MethodChannel.Result callback) {
+        this(track, file, callback, null, DEFAULT_QUALITY, 0, 0, false);
+    }
+
+    /**
+     * @param format       "jpeg", "png" or "webp"; null picks it from the file extension.
+     * @param quality      0-100, ignored for PNG.
+     * @param targetWidth  width of the image, 0 to derive it from |targetHeight| or the frame.
+     * @param targetHeight height of the image, 0 to derive it from |targetWidth| or the frame.
+     */
+    public FrameCapturer(VideoTrack track, File file, MethodChannel.Result callback, String format,
+                         int quality, int targetWidth, int targetHeight, boolean mirror) {
         videoTrack = track;
         this.file = file;
         this.callback = callback;
+        this.format = compressFormat(format, file);
+        this.quality = Math.max(0, Math.min(100, quality));
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.mirror = mirror;
         track.addSink(this);
     }
 
@@ -40,76 +65,58 @@ public class FrameCapturer implements VideoSink {
             return;
         gotFrame = true;
         videoFrame.retain();
-        VideoFrame.Buffer buffer = videoFrame.getBuffer();
-        VideoFrame.I420Buffer i420Buffer = buffer.toI420();
-        ByteBuffer y = i420Buffer.getDataY();
-        ByteBuffer u = i420Buffer.getDataU();
-        ByteBuffer v = i420Buffer.getDataV();
-        int width = i420Buffer.getWidth();
-        int height = i420Buffer.getHeight();
-        int[] strides = new int[] {
-            i420Buffer.getStrideY(),
-            i420Buffer.getStrideU(),
-            i420Buffer.getStrideV()
-        };
-        final int chromaWidth = (width + 1) / 2;
-        final int chromaHeight = (height + 1) / 2;
-        final int minSize = width * height + chromaWidth * chromaHeight * 2;
-        ByteBuffer yuvBuffer = ByteBuffer.allocateDirect(minSize);
-        YuvHelper.I420ToNV12(y, strides[0], v, strides[2], u, strides[1], yuvBuffer, width, height);
-        YuvImage yuvImage = new YuvImage(
-            yuvBuffer.array(),
-            ImageFormat.NV21,
-            width,
-            height,
-            strides
-        );
-        videoFrame.release();
         new Handler(Looper.getMainLooper()).post(() -> {
             videoTrack.removeSink(this);
         });
+        HandlerThread captureThread = new HandlerThread("FrameCapturer");
+        captureThread.start();
+        new Handler(captureThread.getLooper()).post(() -> {
+            try {
+                capture(videoFrame);
+            } finally {
+                videoFrame.release();
+                captureThread.quitSafely();
+            }
+        });
+    }
+
+    private void capture(VideoFrame frame) {
+        FrameReader reader = null;
+        Bitmap bitmap;
         try {
-            if (!file.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                file.getParentFile().mkdirs();
-                //noinspection ResultOfMethodCallIgnored
-                file.createNewFile();
+            reader = new FrameReader(EglUtils.getRootEglBaseContext());
+            bitmap = reader.read(frame, targetWidth, targetHeight, mirror);
+        } catch (RuntimeException e) {
+            if (reader != null) {
+                reader.release();
             }
-        } catch (IOException io) {
-            callback.error("IOException", io.getLocalizedMessage(), io);
+            callback.error("RenderException", e.getLocalizedMessage(), null);
             return;
         }
-        try (FileOutputStream outputStream = new FileOutputStream(file)) {
-            yuvImage.compressToJpeg(
-                new Rect(0, 0, width, height),
-                100,
-                outputStream
-            );
-            switch (videoFrame.getRotation()) {
-                case 0:
-                    break;
-                case 90:
-                case 180:
-                case 270:
-                    Bitmap original = BitmapFactory.decodeFile(file.toString());
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(videoFrame.getRotation());
-                    Bitmap rotated = Bitmap.createBitmap(original, 0, 0, original.getWidth(), original.getHeight(), matrix, true);
-                    FileOutputStream rotatedOutputStream = new FileOutputStream(file);
-                    rotated.compress(Bitmap.CompressFormat.JPEG, 100, rotatedOutputStream);
-                    break;
-                default:
-                    // Rotation is checked to always be 0, 90, 180 or 270 by VideoFrame
-                    throw new RuntimeException("Invalid rotation");
+        try {
+            File parent = file.getParentFile();
+            if (parent != null) {
+                //noinspection ResultOfMethodCallIgnored
+                parent.mkdirs();
+            }
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                if (!bitmap.compress(format, quality, outputStream)) {
+                    throw new IOException("Failed to encode " + format);
+                }
             }
             callback.success(null);
         } catch (IOException io) {
-            callback.error("IOException", io.getLocalizedMessage(), io);
-        } catch (IllegalArgumentException iae) {
-            callback.error("IllegalArgumentException", iae.getLocalizedMessage(), iae);
+            callback.error("IOException", io.getLocalizedMessage(), null);
         } finally {
-            file = null;
+            reader.release();
         }
     }
 
+    private static Bitmap.CompressFormat compressFormat(String format, File file) {
+        if (format == null) {
+            String name = file.getName().toLowerCase();
+            format = name.endsWith(".png") ? "png" : name.endsWith(".webp") ? "webp" : "jpeg";
+        }
+        return FrameReader.compressFormat(format);
+    }
 }
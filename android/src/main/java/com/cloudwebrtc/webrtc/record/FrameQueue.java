@@ -0,0 +1,179 @@
+package com.cloudwebrtc.webrtc.record;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.webrtc.VideoFrame;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded hand-off of video frames from the capture thread to a render thread.
+ * <p/>
+ * Every queued frame holds a reference to a camera texture or native buffer, so when the encoder
+ * falls behind the queue must not grow without bound. At most |capacity| frames are retained;
+ * beyond that either the oldest queued frame or the incoming one is dropped, depending on the
+ * {@link DropPolicy}. Drops are counted and reported at most once per second.
+ */
+class FrameQueue {
+
+    enum DropPolicy {
+        // Keep the latest frames, lowest latency
+        DROP_OLDEST,
+        // Keep the frames already queued, no gaps within a burst
+        DROP_NEWEST;
+
+        static DropPolicy fromString(String policy) {
+            return "dropNewest".equals(policy) ? DROP_NEWEST : DROP_OLDEST;
+        }
+    }
+
+    interface FrameConsumer {
+        /**
+         * Called on the handler thread. The consumer owns the frame and must release it.
+         */
+        void onFrame(VideoFrame frame);
+    }
+
+    interface DropListener {
+        /**
+         * Called on the capture thread with totals since the queue was created.
+         */
+        void onFramesDropped(long droppedFrames, long renderedFrames);
+    }
+
+    static final int DEFAULT_CAPACITY = 3;
+    private static final long DROP_REPORT_INTERVAL_MS = 1000;
+
+    private final Handler mHandler;
+    private final int mCapacity;
+    private final DropPolicy mPolicy;
+    private final FrameConsumer mConsumer;
+    private DropListener mDropListener;
+
+    private final Object mLock = new Object();
+    // Guarded by |mLock|
+    private final ArrayDeque<VideoFrame> mFrames = new ArrayDeque<>();
+    private boolean mDrainPosted;
+    private boolean mReleased;
+    private long mDroppedFrames;
+    private long mRenderedFrames;
+    private long mReportedDroppedFrames;
+    private long mLastReportMs;
+
+    private final Runnable mDrain = this::drainOne;
+
+    FrameQueue(Handler handler, int capacity, DropPolicy policy, FrameConsumer consumer) {
+        mHandler = handler;
+        mCapacity = Math.max(1, capacity);
+        mPolicy = policy;
+        mConsumer = consumer;
+    }
+
+    void setDropListener(DropListener listener) {
+        mDropListener = listener;
+    }
+
+    /**
+     * Queues |frame| for the consumer, retaining it, or drops a frame if the queue is full.
+     */
+    void offer(VideoFrame frame) {
+        VideoFrame dropped = null;
+        boolean report = false;
+        long droppedFrames;
+        long renderedFrames;
+        synchronized (mLock) {
+            if (mReleased) {
+                return;
+            }
+            if (mFrames.size() >= mCapacity) {
+                mDroppedFrames++;
+                if (mPolicy == DropPolicy.DROP_NEWEST) {
+                    frame = null;
+                } else {
+                    dropped = mFrames.pollFirst();
+                }
+                long nowMs = SystemClock.elapsedRealtime();
+                if (nowMs - mLastReportMs >= DROP_REPORT_INTERVAL_MS) {
+                    mLastReportMs = nowMs;
+                    mReportedDroppedFrames = mDroppedFrames;
+                    report = true;
+                }
+            }
+            if (frame != null) {
+                frame.retain();
+                mFrames.addLast(frame);
+                if (!mDrainPosted) {
+                    mDrainPosted = true;
+                    mHandler.post(mDrain);
+                }
+            }
+            droppedFrames = mDroppedFrames;
+            renderedFrames = mRenderedFrames;
+        }
+        if (dropped != null) {
+            dropped.release();
+        }
+        DropListener listener = mDropListener;
+        if (report && listener != null) {
+            listener.onFramesDropped(droppedFrames, renderedFrames);
+        }
+    }
+
+    /**
+     * Hands one frame to the consumer per message, so other work posted to the render thread
+     * (e.g. release) isn't stuck behind a backlog.
+     */
+    private void drainOne() {
+        VideoFrame frame;
+        synchronized (mLock) {
+            frame = mFrames.pollFirst();
+            if (frame != null) {
+                mRenderedFrames++;
+            }
+            mDrainPosted = !mFrames.isEmpty();
+            if (mDrainPosted) {
+                mHandler.post(mDrain);
+            }
+        }
+        if (frame != null) {
+            mConsumer.onFrame(frame);
+        }
+    }
+
+    long getDroppedFrames() {
+        synchronized (mLock) {
+            return mDroppedFrames;
+        }
+    }
+
+    long getRenderedFrames() {
+        synchronized (mLock) {
+            return mRenderedFrames;
+        }
+    }
+
+    /**
+     * Returns true if drops happened since the last report.
+     */
+    boolean hasUnreportedDrops() {
+        synchronized (mLock) {
+            return mDroppedFrames != mReportedDroppedFrames;
+        }
+    }
+
+    /**
+     * Releases the queued frames and rejects further ones.
+     */
+    void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            for (VideoFrame frame : mFrames) {
+                frame.release();
+            }
+            mFrames.clear();
+            mHandler.removeCallbacks(mDrain);
+            mDrainPosted = false;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.cloudwebrtc.webrtc.record;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.GlTextureFrameBuffer;
+import org.webrtc.GlUtil;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Draws video frames into an offscreen buffer of a target size and reads them back as a Bitmap.
+ * The rotation of the frame and the optional mirroring are applied by the draw.
+ * <p/>
+ * The GL context, frame buffer, pixel buffer and Bitmap are kept between frames of the same
+ * size. Must be created, used and released on the same thread.
+ */
+class FrameReader {
+    private final EglBase eglBase;
+    private final GlRectDrawer drawer = new GlRectDrawer();
+    private final VideoFrameDrawer frameDrawer = new VideoFrameDrawer();
+    private final GlTextureFrameBuffer frameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+    private final Matrix drawMatrix = new Matrix();
+    private ByteBuffer pixels;
+    private Bitmap bitmap;
+
+    FrameReader(EglBase.Context sharedContext) {
+        eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER);
+        try {
+            eglBase.createDummyPbufferSurface();
+            eglBase.makeCurrent();
+        } catch (RuntimeException e) {
+            eglBase.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Draws |frame| at |targetWidth|x|targetHeight|. A target of 0 is derived from the other one
+     * keeping the aspect ratio, or from the frame when both are 0.
+     *
+     * @return a Bitmap owned by the reader, valid until the next call or {@link #release()}.
+     */
+    Bitmap read(VideoFrame frame, int targetWidth, int targetHeight, boolean mirror) {
+        int width = frame.getRotatedWidth();
+        int height = frame.getRotatedHeight();
+        if (targetWidth > 0 && targetHeight > 0) {
+            width = targetWidth;
+            height = targetHeight;
+        } else if (targetWidth > 0) {
+            height = Math.max(1, Math.round((float) targetWidth * height / width));
+            width = targetWidth;
+        } else if (targetHeight > 0) {
+            width = Math.max(1, Math.round((float) targetHeight * width / height));
+            height = targetHeight;
+        }
+
+        drawMatrix.reset();
+        drawMatrix.preTranslate(0.5f, 0.5f);
+        drawMatrix.preScale(mirror ? -1f : 1f, 1f);
+        drawMatrix.preScale(1f, -1f); // We want the output to be upside down for Bitmap.
+        drawMatrix.preTranslate(-0.5f, -0.5f);
+
+        frameBuffer.setSize(width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.getFrameBufferId());
+        GLES20.glClearColor(0 /* red */, 0 /* green */, 0 /* blue */, 0 /* alpha */);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        // The frame drawer applies the rotation of the frame
+        frameDrawer.drawFrame(frame, drawer, drawMatrix, 0 /* viewportX */, 0 /* viewportY */, width, height);
+
+        int size = width * height * 4;
+        if (pixels == null || pixels.capacity() < size) {
+            pixels = ByteBuffer.allocateDirect(size);
+        }
+        pixels.clear();
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GlUtil.checkNoGLES2Error("FrameReader.read");
+
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.copyPixelsFromBuffer(pixels);
+        return bitmap;
+    }
+
+    void release() {
+        frameBuffer.release();
+        frameDrawer.release();
+        drawer.release();
+        eglBase.release();
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+        pixels = null;
+    }
+
+    /**
+     * "jpeg" (default), "png" or "webp".
+     */
+    static Bitmap.CompressFormat compressFormat(String format) {
+        if ("png".equals(format)) {
+            return Bitmap.CompressFormat.PNG;
+        }
+        if ("webp".equals(format)) {
+            return Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.JPEG;
+    }
+
+    static String extension(Bitmap.CompressFormat format) {
+        switch (format) {
+            case PNG:
+                return "png";
+            case WEBP:
+                return "webp";
+            default:
+                return "jpg";
+        }
+    }
+}
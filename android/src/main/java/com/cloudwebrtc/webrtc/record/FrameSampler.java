@@ -0,0 +1,216 @@
+package com.cloudwebrtc.webrtc.record;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.cloudwebrtc.webrtc.utils.AnyThreadSink;
+import com.cloudwebrtc.webrtc.utils.ConstraintsMap;
+import com.cloudwebrtc.webrtc.utils.EglUtils;
+
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+import org.webrtc.VideoTrack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
+
+/**
+ * Samples a downscaled image of a video track every interval, e.g. a thumbnail of each
+ * participant for moderation, without creating a {@link FrameCapturer} per image.
+ * <p/>
+ * The sink stays attached to the track. A frame is only retained when the interval has elapsed
+ * and the previous sample is done, then drawn, read back and compressed on the sampler thread,
+ * which keeps its GL context and buffers between samples. Each sample is written to a rotating
+ * set of files in a directory, or sent as bytes when no directory is given. Either way an event
+ * is sent on "FlutterWebRTC/frameSamplerEvents/|id|".
+ */
+public class FrameSampler implements VideoSink {
+    private static final String TAG = "FrameSampler";
+    public static final int DEFAULT_QUALITY = 80;
+    public static final int DEFAULT_MAX_FILES = 2;
+
+    private final int id;
+    private final VideoTrack track;
+    private final long intervalNs;
+    private final int targetWidth;
+    private final int targetHeight;
+    private final HandlerThread samplerThread;
+    private final Handler samplerThreadHandler;
+    private final EventChannel eventChannel;
+    private volatile EventChannel.EventSink eventSink;
+    private Bitmap.CompressFormat format = Bitmap.CompressFormat.JPEG;
+    private int quality = DEFAULT_QUALITY;
+    private boolean mirror;
+    private File directory;
+    private int maxFiles = DEFAULT_MAX_FILES;
+    private volatile boolean released;
+    // A sample is being drawn or compressed
+    private volatile boolean sampling;
+    // Frame thread only
+    private long lastSampleNs = -1;
+
+    // Sampler thread only
+    private FrameReader reader;
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private long samples;
+
+    /**
+     * @param targetWidth  width of the samples, 0 to derive it from |targetHeight| or the frame.
+     * @param targetHeight height of the samples, 0 to derive it from |targetWidth| or the frame.
+     */
+    public FrameSampler(int id, VideoTrack track, BinaryMessenger messenger, long intervalMs, int targetWidth, int targetHeight) {
+        this.id = id;
+        this.track = track;
+        this.intervalNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMs));
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        samplerThread = new HandlerThread(TAG + id);
+        samplerThread.start();
+        samplerThreadHandler = new Handler(samplerThread.getLooper());
+        eventChannel = new EventChannel(messenger, "FlutterWebRTC/frameSamplerEvents/" + id);
+        eventChannel.setStreamHandler(
+                new EventChannel.StreamHandler() {
+                    @Override
+                    public void onListen(Object arguments, EventChannel.EventSink eventSink) {
+                        FrameSampler.this.eventSink = new AnyThreadSink(eventSink);
+                    }
+
+                    @Override
+                    public void onCancel(Object arguments) {
+                        FrameSampler.this.eventSink = null;
+                    }
+                });
+    }
+
+    /**
+     * |format| is "jpeg" (default), "png" or "webp", |quality| 0-100. Call before {@link #start()}.
+     */
+    public void setOutput(String format, int quality, boolean mirror) {
+        this.format = FrameReader.compressFormat(format);
+        this.quality = Math.max(0, Math.min(100, quality));
+        this.mirror = mirror;
+    }
+
+    /**
+     * Writes the samples to |directory|, cycling through |maxFiles| files. Null sends the bytes
+     * of each sample in its event instead. Call before {@link #start()}.
+     */
+    public void setDirectory(File directory, int maxFiles) {
+        this.directory = directory;
+        this.maxFiles = maxFiles > 0 ? maxFiles : DEFAULT_MAX_FILES;
+        if (directory != null) {
+            //noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+        }
+    }
+
+    public void start() {
+        track.addSink(this);
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        if (released || sampling) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (lastSampleNs >= 0 && now - lastSampleNs < intervalNs) {
+            return;
+        }
+        if (directory == null && eventSink == null) {
+            // Nobody to send the bytes to
+            return;
+        }
+        lastSampleNs = now;
+        sampling = true;
+        frame.retain();
+        samplerThreadHandler.post(() -> {
+            try {
+                if (!released) {
+                    sample(frame);
+                }
+            } finally {
+                frame.release();
+                sampling = false;
+            }
+        });
+    }
+
+    private void sample(VideoFrame frame) {
+        Bitmap bitmap;
+        try {
+            if (reader == null) {
+                reader = new FrameReader(EglUtils.getRootEglBaseContext());
+            }
+            bitmap = reader.read(frame, targetWidth, targetHeight, mirror);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to draw sample", e);
+            sendError(e.getMessage());
+            return;
+        }
+        encoded.reset();
+        if (!bitmap.compress(format, quality, encoded)) {
+            sendError("Failed to encode " + format);
+            return;
+        }
+        ConstraintsMap params = new ConstraintsMap();
+        params.putString("eventType", "frame");
+        params.putInt("width", bitmap.getWidth());
+        params.putInt("height", bitmap.getHeight());
+        params.putLong("timestampMs", System.currentTimeMillis());
+        if (directory != null) {
+            File file = new File(directory, "sample_" + (samples % maxFiles) + "." + FrameReader.extension(format));
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                encoded.writeTo(outputStream);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write " + file, e);
+                sendError(e.getMessage());
+                return;
+            }
+            params.putString("path", file.getAbsolutePath());
+        } else {
+            params.putByte("data", encoded.toByteArray());
+        }
+        samples++;
+        EventChannel.EventSink sink = eventSink;
+        if (sink != null) {
+            sink.success(params.toMap());
+        }
+    }
+
+    private void sendError(String description) {
+        EventChannel.EventSink sink = eventSink;
+        if (sink == null) {
+            return;
+        }
+        ConstraintsMap params = new ConstraintsMap();
+        params.putString("eventType", "error");
+        params.putString("errorDescription", description);
+        sink.success(params.toMap());
+    }
+
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        track.removeSink(this);
+        eventSink = null;
+        eventChannel.setStreamHandler(null);
+        samplerThreadHandler.post(() -> {
+            if (reader != null) {
+                reader.release();
+                reader = null;
+            }
+            samplerThread.quitSafely();
+        });
+    }
+}
@@ -2,13 +2,10 @@ package com.cloudwebrtc.webrtc.record;
 
 import android.graphics.Matrix;
 import android.graphics.Point;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
-import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -17,18 +14,27 @@ import android.os.Message;
 import android.util.Log;
 import android.view.Surface;
 
+import com.cloudwebrtc.webrtc.muxer.CodecCapabilityCache;
+import com.cloudwebrtc.webrtc.muxer.MediaClock;
+
 import org.webrtc.EglBase;
 import org.webrtc.GlRectDrawer;
 import org.webrtc.RendererCommon;
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoFrameDrawer;
 import org.webrtc.VideoSink;
+import org.webrtc.audio.JavaAudioDeviceModule.AudioSamples;
+import org.webrtc.audio.JavaAudioDeviceModule.SamplesReadyCallback;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 
-class RTCFileRenderer implements VideoSink {
+/**
+ * Records a local video track to an MP4. Audio is taken from the samples WebRTC already captures
+ * for the call (see {@link AudioSamplesInterceptor}), so the microphone is opened only once.
+ */
+class RTCFileRenderer implements VideoSink, SamplesReadyCallback {
     private String audioMime = "audio/mp4a-latm";   //音频编码的Mime
     private static final String TAG = "VideoFileRenderer";
     private final HandlerThread renderThread;
@@ -52,15 +58,11 @@ class RTCFileRenderer implements VideoSink {
     private GlRectDrawer drawer;
     private Surface surface;
 
-    private AudioRecord mRecorder;   //录音器
     private MediaCodec mAudioEnc;   //编码器，用于音频编码
     private int audioRate = 128000;   //音频编码的密钥比特率
-    private int sampleRate = 48000;   //音频采样率
-    private int channelCount = 2;     //音频编码通道数
-    private int channelConfig = AudioFormat.CHANNEL_IN_STEREO;   //音频录制通道,默认为立体声
-    private int audioFormat = AudioFormat.ENCODING_PCM_16BIT; //音频录制格式，默认为PCM16Bit
+    // How long the video waits for the first audio samples before it is recorded without audio
+    private static final long AUDIO_START_TIMEOUT_MS = 2000;
     private AudioEncoder audioEncoder;
-    private int bufferSize;
     private int mAudioTrackIndex;
     private int mVideoTrackIndex;
     private String outputFile;
@@ -69,14 +71,24 @@ class RTCFileRenderer implements VideoSink {
     private Object lock = new Object();
 
     private boolean mirror;
+    // Timeline of the recording, shared by the video and audio encoders
+    private final MediaClock mediaClock = new MediaClock();
+    // Frames waiting for the render thread
+    private final FrameQueue frameQueue;
 
     RTCFileRenderer(String outputFile, int width, int height, final EglBase.Context sharedContext, boolean withAudio) throws IOException {
+        this(outputFile, width, height, sharedContext, withAudio, FrameQueue.DEFAULT_CAPACITY, FrameQueue.DropPolicy.DROP_OLDEST);
+    }
+
+    RTCFileRenderer(String outputFile, int width, int height, final EglBase.Context sharedContext, boolean withAudio,
+                    int frameQueueCapacity, FrameQueue.DropPolicy dropPolicy) throws IOException {
         this.outputFile = outputFile;
         this.outputFileWidth = width;
         this.outputFileHeight = height;
         renderThread = new HandlerThread(TAG + "RenderThread");
         renderThread.start();
         renderThreadHandler = new Handler(renderThread.getLooper());
+        frameQueue = new FrameQueue(renderThreadHandler, frameQueueCapacity, dropPolicy, this::renderFrameOnRenderThread);
         if (withAudio) {
             initAudioEncoder();
         } else {
@@ -122,7 +134,8 @@ class RTCFileRenderer implements VideoSink {
         // Create a MediaCodec mVideoEncoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
         try {
-            mVideoEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            mVideoEncoder = CodecCapabilityCache.createEncoder(MIME_TYPE, outputFileWidth, outputFileHeight,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
             mVideoEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             renderThreadHandler.post(() -> {
                 eglBase = EglBase.create(sharedContext, EglBase.CONFIG_RECORDABLE);
@@ -137,34 +150,58 @@ class RTCFileRenderer implements VideoSink {
         }
     }
 
+    /**
+     * Starts the audio thread. The encoder itself is configured with the format of the first
+     * samples delivered by WebRTC.
+     */
     private void initAudioEncoder() {
-        try {
-            //audio init
-            MediaFormat aFormat = MediaFormat.createAudioFormat(audioMime, sampleRate, channelCount);//创建音频的格式,参数 MIME,采样率,通道数
-            aFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);//编码方式
-            aFormat.setInteger(MediaFormat.KEY_BIT_RATE, audioRate);//比特率
-            mAudioEnc = MediaCodec.createEncoderByType(audioMime);//创建音频编码器
-            mAudioEnc.configure(aFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);//配置
-            bufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);//设置bufferSize为AudioRecord所需最小bufferSize的两倍 15360
-            mRecorder = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelConfig,
-                    audioFormat, bufferSize);//初始化录音器
-            mAudioEnc.start();
-            mRecorder.startRecording();
-            audioEncoder = new AudioEncoder();
-            audioThread = new Thread(audioEncoder);
-            audioThread.start();
-            Log.d(TAG, "Started audio thread");
-        } catch (Exception e) {
-            Log.wtf(TAG, e);
+        audioEncoder = new AudioEncoder();
+        audioThread = new Thread(audioEncoder, TAG + "AudioThread");
+        audioThread.start();
+        Log.d(TAG, "Started audio thread");
+    }
+
+    private void initAudioCodec(int sampleRate, int channelCount) throws IOException {
+        MediaFormat aFormat = MediaFormat.createAudioFormat(audioMime, sampleRate, channelCount);//创建音频的格式,参数 MIME,采样率,通道数
+        aFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);//编码方式
+        aFormat.setInteger(MediaFormat.KEY_BIT_RATE, audioRate);//比特率
+        mAudioEnc = CodecCapabilityCache.createEncoder(audioMime, 0, 0, 0);//创建音频编码器
+        mAudioEnc.configure(aFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);//配置
+        mAudioEnc.start();
+    }
+
+    /**
+     * Called on the WebRTC audio capture thread; the samples are encoded on the audio thread.
+     */
+    @Override
+    public void onWebRtcAudioRecordSamplesReady(AudioSamples audioSamples) {
+        if (audioEncoder != null) {
+            audioEncoder.onSamples(audioSamples);
         }
     }
 
     public void setPaused(boolean paused) {
         if (isPaused != paused) {
             isPaused = paused;
+            if (paused) {
+                mediaClock.pause();
+            } else {
+                mediaClock.resume();
+            }
+            if (audioEncoder != null) {
+                if (paused) {
+                    audioEncoder.pause();
+                } else {
+                    audioEncoder.resume();
+                }
+            }
         }
     }
 
+    public FrameQueue getFrameQueue() {
+        return frameQueue;
+    }
+
     public void setMirror(boolean mirror) {
         this.mirror = mirror;
     }
@@ -179,8 +216,7 @@ class RTCFileRenderer implements VideoSink {
             outputFileHeight = frame.getRotatedHeight();
             initVideoEncoder();
         }
-        frame.retain();
-        renderThreadHandler.post(() -> renderFrameOnRenderThread(frame));
+        frameQueue.offer(frame);
     }
 
     private void renderFrameOnRenderThread(VideoFrame frame) {
@@ -219,27 +255,33 @@ class RTCFileRenderer implements VideoSink {
         drawMatrix.preScale(scaleX, scaleY); // We want the output to be upside down for Bitmap.
         drawMatrix.preTranslate(-0.5f, -0.5f);
 
+        long ptsUs = mediaClock.getVideoPts(FlutterRecorder.DEFAULT_FRAME_RATE);
+        if (ptsUs < 0) {
+            // This frame slot is already encoded
+            frame.release();
+            return;
+        }
         frameDrawer.drawFrame(frame, drawer, this.drawMatrix, 0, 0, outputFileWidth, outputFileHeight);
         frame.release();
         drainEncoder(false);
-        eglBase.swapBuffers();
+        eglBase.swapBuffers(ptsUs * 1000);
     }
 
     /**
-     * Release all resources. All already posted frames will be rendered first.
+     * Release all resources. Frames still queued are dropped.
      */
     void release() {
         isRunning = false;
+        frameQueue.release();
+        if (frameQueue.getDroppedFrames() > 0) {
+            Log.i(TAG, "Dropped " + frameQueue.getDroppedFrames() + " of "
+                    + (frameQueue.getDroppedFrames() + frameQueue.getRenderedFrames()) + " frames");
+        }
         if (mAudioEnc != null) {
             mAudioEnc.stop();
             mAudioEnc.release();
             mAudioEnc = null;
         }
-        if (mRecorder != null) {
-            mRecorder.stop();
-            mRecorder.release();
-            mRecorder = null;
-        }
         if (mVideoEncoder != null) {
             drainEncoder(true);
             mVideoEncoder.stop();
@@ -260,19 +302,28 @@ class RTCFileRenderer implements VideoSink {
     }
 
     private boolean mMuxerStarted;
-    private long videoFrameStart = 0;
-    private long oncePauseTime = 0;
-    private long pauseDelayTime = 0;
 
     public void handleVideoPause() {
-        isPaused = true;
-        oncePauseTime = System.nanoTime();
+        setPaused(true);
     }
 
     public void handleVideoResume() {
-        oncePauseTime = System.nanoTime() - oncePauseTime;
-        pauseDelayTime += oncePauseTime;
-        isPaused = false;
+        setPaused(false);
+    }
+
+    /**
+     * WebRTC only delivers samples while the call is capturing audio; don't hold the video back
+     * forever when nothing arrives.
+     */
+    private void startMuxerWithoutAudio() {
+        synchronized (lock) {
+            if (mMuxerStarted || mMuxer == null) {
+                return;
+            }
+            Log.w(TAG, "No audio samples received, recording video only");
+            mMuxer.start();
+            mMuxerStarted = true;
+        }
     }
 
     private void drainEncoder(boolean endOfStream) {
@@ -307,6 +358,8 @@ class RTCFileRenderer implements VideoSink {
                     if (mVideoTrackIndex >= 0 && mAudioTrackIndex >= 0) {
                         mMuxer.start();
                         mMuxerStarted = true;
+                    } else {
+                        renderThreadHandler.postDelayed(this::startMuxerWithoutAudio, AUDIO_START_TIMEOUT_MS);
                     }
                 }
             } else if (encoderStatus < 0) {
@@ -328,10 +381,6 @@ class RTCFileRenderer implements VideoSink {
                         // It's usually necessary to adjust the ByteBuffer values to match BufferInfo.
                         encodedData.position(bufferInfo.offset);
                         encodedData.limit(bufferInfo.offset + bufferInfo.size);
-                        if (videoFrameStart == 0 && bufferInfo.presentationTimeUs != 0) {
-                            videoFrameStart = bufferInfo.presentationTimeUs;
-                        }
-                        bufferInfo.presentationTimeUs = bufferInfo.presentationTimeUs - videoFrameStart - (pauseDelayTime / 1000);
                         if (mMuxerStarted && mMuxer != null)
                             mMuxer.writeSampleData(mVideoTrackIndex, encodedData, bufferInfo);
                         isRunning = isRunning && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0;
@@ -352,18 +401,19 @@ class RTCFileRenderer implements VideoSink {
     //=============================================audio==================================================
     private static final int MSG_START_RECORDING = 0;
     private static final int MSG_STOP_RECORDING = 1;
-    private static final int MSG_AUDIO_STEP = 2;
-    private static final int MSG_QUIT = 3;
+    private static final int MSG_AUDIO_SAMPLES = 2;
     private static final int MSG_PAUSE = 4;
     private static final int MSG_RESUME = 5;
 
     class AudioEncoder implements Runnable {
-        private boolean isRecording = true;
-        private boolean cancelFlag = false;
-        private long baseTimeStamp = -1;
-        private long pauseDelayTime;
-        private long oncePauseTime;
+        private static final int TIMEOUT_USEC = 10000;
+        private volatile boolean isRecording = true;
         private boolean pausing = false;
+        private boolean audioDisabled = false;
+        private int sampleRate;
+        private int channelCount;
+        private long lastAudioPtsUs;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
         AudioHandler mHandler;
         private Object mReadyFence = new Object();
         private boolean isReady;
@@ -371,8 +421,8 @@ class RTCFileRenderer implements VideoSink {
         @Override
         public void run() {
             Looper.prepare();
-            mHandler = new AudioHandler(this);
             synchronized (mReadyFence) {
+                mHandler = new AudioHandler(this);
                 isReady = true;
                 mReadyFence.notify();
             }
@@ -398,6 +448,14 @@ class RTCFileRenderer implements VideoSink {
 
         }
 
+        public void onSamples(AudioSamples samples) {
+            synchronized (mReadyFence) {
+                if (isReady && isRecording) {
+                    mHandler.obtainMessage(MSG_AUDIO_SAMPLES, samples).sendToTarget();
+                }
+            }
+        }
+
         public void pause() {
             mHandler.sendEmptyMessage(MSG_PAUSE);
         }
@@ -407,92 +465,96 @@ class RTCFileRenderer implements VideoSink {
         }
 
         public void stopRecord() {
-            mHandler.sendEmptyMessage(MSG_STOP_RECORDING);
+            synchronized (mReadyFence) {
+                isRecording = false;
+                if (mHandler != null) {
+                    mHandler.sendEmptyMessage(MSG_STOP_RECORDING);
+                }
+            }
         }
 
         public void handleStartRecord() {
-            baseTimeStamp = System.nanoTime();
-            mHandler.sendEmptyMessage(MSG_AUDIO_STEP);
+            mediaClock.start();
         }
 
-        public void handleAudioStep() {
-            try {
-                if (!cancelFlag) {
-                    if (!pausing) {
-                        if (isRecording) {
-                            audioStep();
-                            mHandler.sendEmptyMessage(MSG_AUDIO_STEP);
-                        } else {
-                            drainEncoder();
-                            mHandler.sendEmptyMessage(MSG_QUIT);
-                        }
-                    } else {
-                        if (isRecording) {
-                            mHandler.sendEmptyMessage(MSG_AUDIO_STEP);
-                        } else {
-                            drainEncoder();
-                            mHandler.sendEmptyMessage(MSG_QUIT);
-                        }
-                    }
+        public void handleAudioSamples(AudioSamples samples) {
+            if (pausing || audioDisabled || !isRecording) {
+                return;
+            }
+            if (mAudioEnc == null) {
+                try {
+                    sampleRate = samples.getSampleRate();
+                    channelCount = samples.getChannelCount();
+                    initAudioCodec(sampleRate, channelCount);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Failed to create audio encoder", e);
+                    audioDisabled = true;
+                    return;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            } else if (samples.getSampleRate() != sampleRate || samples.getChannelCount() != channelCount) {
+                Log.w(TAG, "Audio format changed to " + samples.getSampleRate() + "Hz " + samples.getChannelCount() + "ch, dropping samples");
+                return;
             }
-
-        }
-
-        private void drainEncoder() throws IOException {
-            while (!audioStep()) {
+            byte[] data = samples.getData();
+            int index = mAudioEnc.dequeueInputBuffer(TIMEOUT_USEC);
+            if (index >= 0) {
+                final ByteBuffer buffer = getInputBuffer(mAudioEnc, index);
+                buffer.clear();
+                int length = Math.min(data.length, buffer.remaining());
+                // 16bit samples
+                long time = mediaClock.getAudioPts(length / (2 * channelCount), sampleRate);
+                if (time < 0) {
+                    // Paused
+                    length = 0;
+                } else {
+                    buffer.put(data, 0, length);
+                    lastAudioPtsUs = time;
+                }
+                mAudioEnc.queueInputBuffer(index, 0, length, lastAudioPtsUs, 0);
+            } else {
+                Log.w(TAG, "Audio encoder busy, dropping samples");
             }
+            drainOutput(0);
         }
 
         public void handleAudioPause() {
             pausing = true;
-            oncePauseTime = System.nanoTime();
         }
 
         public void handleAudioResume() {
-            oncePauseTime = System.nanoTime() - oncePauseTime;
-            pauseDelayTime += oncePauseTime;
             pausing = false;
         }
 
         public void handleStopRecord() {
-            isRecording = false;
-        }
-
-        //TODO Add End Flag
-        private boolean audioStep() throws IOException {
-            int index = mAudioEnc.dequeueInputBuffer(0);
-            if (index >= 0) {
-                final ByteBuffer buffer = getInputBuffer(mAudioEnc, index);
-                buffer.clear();
-                int length = mRecorder.read(buffer, bufferSize);//读入数据
-
-                if (length > 0) {
-                    if (baseTimeStamp != -1) {
-                        long nano = System.nanoTime();
-                        long time = (nano - baseTimeStamp - pauseDelayTime) / 1000;
-                        // System.out.println("TimeStampAudio=" + time + ";nanoTime=" + nano + ";baseTimeStamp=" + baseTimeStamp + ";pauseDelay=" + pauseDelayTime);
-                        mAudioEnc.queueInputBuffer(index, 0, length, time, isRecording ? 0 : MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    } else {
-                        mAudioEnc.queueInputBuffer(index, 0, length, 0, isRecording ? 0 : MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            if (mAudioEnc != null && !audioDisabled) {
+                int index = mAudioEnc.dequeueInputBuffer(TIMEOUT_USEC);
+                if (index >= 0) {
+                    mAudioEnc.queueInputBuffer(index, 0, 0, lastAudioPtsUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    // Bounded, in case the encoder never returns the end of stream
+                    for (int i = 0; i < 100 && !drainOutput(TIMEOUT_USEC); i++) {
                     }
                 }
             }
-            MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+            Looper.myLooper().quit();
+        }
+
+        /**
+         * Writes all available encoder output to the muxer. Returns true at the end of stream.
+         */
+        private boolean drainOutput(int timeoutUs) {
             int outIndex;
             do {
-                outIndex = mAudioEnc.dequeueOutputBuffer(mInfo, 0);
+                outIndex = mAudioEnc.dequeueOutputBuffer(mInfo, timeoutUs);
                 if (outIndex >= 0) {
                     if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        Log.e(TAG, "audio end");
+                        Log.d(TAG, "audio end");
                         mAudioEnc.releaseOutputBuffer(outIndex, false);
                         return true;
                     }
                     ByteBuffer buffer = getOutputBuffer(mAudioEnc, outIndex);
                     buffer.position(mInfo.offset);
-                    if (mMuxerStarted && mInfo.presentationTimeUs > 0) {
+                    if (mMuxerStarted && mAudioTrackIndex >= 0 && mInfo.size > 0
+                            && (mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
                         try {
                             mMuxer.writeSampleData(mAudioTrackIndex, buffer, mInfo);
                         } catch (Exception e) {
@@ -500,19 +562,23 @@ class RTCFileRenderer implements VideoSink {
                         }
                     }
                     mAudioEnc.releaseOutputBuffer(outIndex, false);
-                } else if (outIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-
                 } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     synchronized (lock) {
+                        if (mMuxerStarted) {
+                            // The video didn't wait any longer for audio
+                            Log.w(TAG, "Audio arrived after the recording started, ignoring it");
+                            audioDisabled = true;
+                            return true;
+                        }
                         mAudioTrackIndex = mMuxer.addTrack(mAudioEnc.getOutputFormat());
-                        Log.e(TAG, "add audio track-->" + mAudioTrackIndex);
+                        Log.d(TAG, "add audio track-->" + mAudioTrackIndex);
                         if (mAudioTrackIndex >= 0 && mVideoTrackIndex >= 0) {
                             mMuxer.start();
                             mMuxerStarted = true;
                         }
                     }
                 }
-            } while (outIndex >= 0);
+            } while (outIndex >= 0 || outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED);
             return false;
         }
 
@@ -555,8 +621,8 @@ class RTCFileRenderer implements VideoSink {
                 case MSG_STOP_RECORDING:
                     audioEncoder.handleStopRecord();
                     break;
-                case MSG_AUDIO_STEP:
-                    audioEncoder.handleAudioStep();
+                case MSG_AUDIO_SAMPLES:
+                    audioEncoder.handleAudioSamples((AudioSamples) msg.obj);
                     break;
                 case MSG_PAUSE:
                     audioEncoder.handleAudioPause();
@@ -564,9 +630,6 @@ class RTCFileRenderer implements VideoSink {
                 case MSG_RESUME:
                     audioEncoder.handleAudioResume();
                     break;
-                case MSG_QUIT:
-                    Looper.myLooper().quit();
-                    break;
             }
         }
 
@@ -592,10 +655,10 @@ class RTCFileRenderer implements VideoSink {
     }
 
     public void pauseRecording() {
-        audioEncoder.pause();
+        setPaused(true);
     }
 
     public void resumeRecording() {
-        audioEncoder.resume();
+        setPaused(false);
     }
 }
\ No newline at end of file
@@ -4,13 +4,16 @@ import android.util.Log;
 import android.util.Size;
 
 import com.cloudwebrtc.webrtc.GetUserMediaImpl;
+import com.cloudwebrtc.webrtc.utils.AnyThreadSink;
+import com.cloudwebrtc.webrtc.utils.ConstraintsMap;
 import com.cloudwebrtc.webrtc.utils.EglUtils;
+import com.cloudwebrtc.webrtc.video.TeeVideoDecoderFactory;
+import com.cloudwebrtc.webrtc.video.TeeVideoEncoderFactory;
 
 import org.webrtc.Logging;
 import org.webrtc.VideoTrack;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Map;
 
 import io.flutter.plugin.common.BinaryMessenger;
@@ -19,10 +22,13 @@ import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.PluginRegistry;
 
 
-public class RTCRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwitchCallback {
+public class RTCRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwitchCallback, FrameQueue.DropListener,
+        EncodedVideoRecorder.ErrorListener {
     private static final String TAG = "MediaRecorderImpl";
+    private static final int DEFAULT_VIDEO_BITRATE = 1200000;
     private final Integer id;
     private VideoTrack videoTrack;
+    private boolean videoTrackIsLocal = true;
     private volatile RTCFileRenderer videoFileRenderer;
     private boolean isRunning = false;
     private File recordFile;
@@ -34,9 +40,28 @@ public class RTCRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwit
     private GetUserMediaImpl getUserMediaImpl;
     private boolean audioOnly;
     private BinaryMessenger messenger;
+    // Microphone samples captured by WebRTC for the call, recorded along with the video
+    private final AudioSamplesInterceptor recordSamplesInterceptor;
+    private int frameQueueCapacity = FrameQueue.DEFAULT_CAPACITY;
+    private FrameQueue.DropPolicy frameDropPolicy = FrameQueue.DropPolicy.DROP_OLDEST;
+    private int videoBitrate = DEFAULT_VIDEO_BITRATE;
+    // When set, a local track is recorded from the bitstream encoded for sending
+    private TeeVideoEncoderFactory sendEncoderFactory;
+    // When set, a remote track is recorded from the bitstream received
+    private TeeVideoDecoderFactory receiveDecoderFactory;
+    // Remote audio played out, recorded along with a remote track
+    private AudioSamplesInterceptor playbackSamplesInterceptor;
+    // When set, the track is encoded once for all recorders of it that share encoders
+    private SharedEncoders sharedEncoders;
+    private volatile EncodedVideoRecorder encodedVideoRecorder;
+    // Audio source of |encodedVideoRecorder|
+    private AudioSamplesInterceptor encodedAudioInterceptor;
+    // Encoder feeding |encodedVideoRecorder| when shared
+    private volatile SharedEncodeSession sharedEncodeSession;
 
-    public RTCRecorder(Integer id, Size size, GetUserMediaImpl getUserMediaImpl, BinaryMessenger messenger, boolean audioOnly) {
+    public RTCRecorder(Integer id, Size size, GetUserMediaImpl getUserMediaImpl, BinaryMessenger messenger, boolean audioOnly, AudioSamplesInterceptor recordSamplesInterceptor) {
         this.id = id;
+        this.recordSamplesInterceptor = recordSamplesInterceptor;
         this.size = size;
         this.getUserMediaImpl = getUserMediaImpl;
         this.messenger = messenger;
@@ -51,7 +76,7 @@ public class RTCRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwit
                 new EventChannel.StreamHandler() {
                     @Override
                     public void onListen(Object arguments, EventChannel.EventSink eventSink) {
-                        RTCRecorder.this.eventSink = eventSink;
+                        RTCRecorder.this.eventSink = new AnyThreadSink(eventSink);
                     }
 
                     @Override
@@ -61,6 +86,63 @@ public class RTCRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwit
                 });
     }
 
+    /**
+     * Bounds the frames waiting for the encoder of the next recording to |capacity|. |policy| is
+     * "dropOldest" (default) or "dropNewest".
+     */
+    public void setFrameQueue(int capacity, String policy) {
+        frameQueueCapacity = capacity > 0 ? capacity : FrameQueue.DEFAULT_CAPACITY;
+        frameDropPolicy = FrameQueue.DropPolicy.fromString(policy);
+    }
+
+    /**
+     * Encodes the video of the next recording at |bitrate| bps, or the default when not positive.
+     * Only applies to encoders shared through {@link #setSharedEncoders}. Ignored while recording.
+     */
+    public void setVideoBitrate(int bitrate) {
+        if (isRunning) {
+            return;
+        }
+        videoBitrate = bitrate > 0 ? bitrate : DEFAULT_VIDEO_BITRATE;
+    }
+
+    /**
+     * Records the next recording from the H.264 bitstream |factory| encodes for sending the
+     * track, instead of encoding it again. The track must be sent while recording. Null disables.
+     * Ignored while recording.
+     */
+    public void setSendEncoderFactory(TeeVideoEncoderFactory factory) {
+        if (isRunning) {
+            return;
+        }
+        sendEncoderFactory = factory;
+    }
+
+    /**
+     * Records the next recording of a remote track from the bitstream received, as decoded by
+     * |factory|, instead of decoding and encoding it again. The audio played out, taken from
+     * |playbackSamplesInterceptor|, is recorded with it. A null |factory| disables. Ignored while
+     * recording.
+     */
+    public void setReceiveDecoderFactory(TeeVideoDecoderFactory factory, AudioSamplesInterceptor playbackSamplesInterceptor) {
+        if (isRunning) {
+            return;
+        }
+        receiveDecoderFactory = factory;
+        this.playbackSamplesInterceptor = playbackSamplesInterceptor;
+    }
+
+    /**
+     * Lets the next recording share the encoder of other recordings of the same track, size,
+     * bitrate and mirroring from |encoders|. Null disables. Ignored while recording.
+     */
+    public void setSharedEncoders(SharedEncoders encoders) {
+        if (isRunning) {
+            return;
+        }
+        sharedEncoders = encoders;
+    }
+
     public void addVideoTrack(VideoTrack videoTrack, boolean isLocal, boolean isMirror, String label) {
         VideoTrack oldVideoTrack = this.videoTrack;
         this.mirror = isMirror;
@@ -70,42 +152,85 @@ public class RTCRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwit
                 videoFileRenderer.release();
                 videoFileRenderer = null;
             }
+            if (oldVideoTrack != null && encodedVideoRecorder != null) {
+                releaseEncodedVideoRecorder(oldVideoTrack);
+            }
             this.videoTrack = videoTrack;
         }
+        videoTrackIsLocal = isLocal;
     }
 
     public void removeVideoTrack(VideoTrack videoTrack, boolean isLocal, boolean isMirror, String label) {
         addVideoTrack(null, isLocal, isMirror, label);
     }
 
-    public void startRecording(File file) throws IOException {
+    public void startRecording(File file) throws Exception {
         recordFile = file;
         if (isRunning)
             return;
         isRunning = true;
         //noinspection ResultOfMethodCallIgnored
         file.getParentFile().mkdirs();
-        if (videoTrack != null) {
+        boolean passthrough = (videoTrackIsLocal ? sendEncoderFactory : receiveDecoderFactory) != null;
+        if (videoTrack != null && (passthrough || sharedEncoders != null)) {
+            AudioSamplesInterceptor audioInterceptor = videoTrackIsLocal ? recordSamplesInterceptor : playbackSamplesInterceptor;
+            encodedVideoRecorder = new EncodedVideoRecorder(
+                    file.getAbsolutePath(),
+                    audioInterceptor != null,
+                    this
+            );
+            if (passthrough) {
+                videoTrack.addSink(encodedVideoRecorder);
+                if (videoTrackIsLocal) {
+                    sendEncoderFactory.addSink(encodedVideoRecorder);
+                } else {
+                    receiveDecoderFactory.addSink(encodedVideoRecorder);
+                }
+            } else {
+                sharedEncodeSession = attachSharedEncoder(encodedVideoRecorder);
+            }
+            if (audioInterceptor != null) {
+                audioInterceptor.attachCallback(id, encodedVideoRecorder);
+            }
+            encodedAudioInterceptor = audioInterceptor;
+        } else if (videoTrack != null) {
             videoFileRenderer = new RTCFileRenderer(
                     file.getAbsolutePath(),
                     size.getWidth(),
                     size.getHeight(),
                     EglUtils.getRootEglBaseContext(),
-                    true
+                    recordSamplesInterceptor != null,
+                    frameQueueCapacity,
+                    frameDropPolicy
             );
+            videoFileRenderer.getFrameQueue().setDropListener(this);
             videoFileRenderer.setMirror(mirror);
             videoTrack.addSink(videoFileRenderer);
-            videoFileRenderer.startRecord();
+            if (recordSamplesInterceptor != null) {
+                videoFileRenderer.startRecord();
+                recordSamplesInterceptor.attachCallback(id, videoFileRenderer);
+            }
         } else {
             Log.e(TAG, "Video track is null");
         }
 
     }
 
+    private SharedEncodeSession attachSharedEncoder(EncodedVideoRecorder recorder) {
+        return sharedEncoders.attach(videoTrack,
+                size != null ? size.getWidth() : -1,
+                size != null ? size.getHeight() : -1,
+                videoBitrate,
+                mirror,
+                recorder);
+    }
+
     public void setPaused(boolean paused) {
         if (!isRunning)
             return;
-        if (videoFileRenderer != null) {
+        if (encodedVideoRecorder != null) {
+            encodedVideoRecorder.setPaused(paused);
+        } else if (videoFileRenderer != null) {
             videoFileRenderer.setPaused(paused);
         } else {
             Log.e(TAG, "Video file recorder is null");
@@ -127,14 +252,45 @@ public class RTCRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwit
         }
         isRunning = false;
         Logging.d(TAG, "stopRecording");
+        if (videoTrack != null && encodedVideoRecorder != null) {
+            releaseEncodedVideoRecorder(videoTrack);
+        }
         if (videoTrack != null && videoFileRenderer != null) {
             videoTrack.removeSink(videoFileRenderer);
+            if (recordSamplesInterceptor != null) {
+                recordSamplesInterceptor.detachCallback(id);
+            }
             videoFileRenderer.stopAudRecord();
             videoFileRenderer.release();
+            FrameQueue frameQueue = videoFileRenderer.getFrameQueue();
+            if (frameQueue.hasUnreportedDrops()) {
+                onFramesDropped(frameQueue.getDroppedFrames(), frameQueue.getRenderedFrames());
+            }
             videoFileRenderer = null;
         }
     }
 
+    private void releaseEncodedVideoRecorder(VideoTrack track) {
+        EncodedVideoRecorder recorder = encodedVideoRecorder;
+        encodedVideoRecorder = null;
+        track.removeSink(recorder);
+        if (sharedEncodeSession != null) {
+            sharedEncoders.detach(sharedEncodeSession, recorder);
+            sharedEncodeSession = null;
+        }
+        if (sendEncoderFactory != null) {
+            sendEncoderFactory.removeSink(recorder);
+        }
+        if (receiveDecoderFactory != null) {
+            receiveDecoderFactory.removeSink(recorder);
+        }
+        if (encodedAudioInterceptor != null) {
+            encodedAudioInterceptor.detachCallback(id);
+            encodedAudioInterceptor = null;
+        }
+        recorder.release();
+    }
+
     public void pauseRecording() {
         if (videoFileRenderer != null) {
             videoFileRenderer.pauseRecording();
@@ -161,6 +317,31 @@ public class RTCRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwit
         getUserMediaImpl.removeCameraSwitchListener(this);
     }
 
+    @Override
+    public void onFramesDropped(long droppedFrames, long renderedFrames) {
+        EventChannel.EventSink sink = eventSink;
+        if (sink == null) {
+            return;
+        }
+        ConstraintsMap params = new ConstraintsMap();
+        params.putString("eventType", "framesDropped");
+        params.putLong("droppedFrames", droppedFrames);
+        params.putLong("renderedFrames", renderedFrames);
+        sink.success(params.toMap());
+    }
+
+    @Override
+    public void onRecordError(String description) {
+        EventChannel.EventSink sink = eventSink;
+        if (sink == null) {
+            return;
+        }
+        ConstraintsMap params = new ConstraintsMap();
+        params.putString("eventType", "error");
+        params.putString("errorDescription", description);
+        sink.success(params.toMap());
+    }
+
     public void willSwitchCamera(boolean isFacing, String trackId) {
         if (videoTrack == null || !videoTrack.id().equals(trackId)) {
             return;
@@ -176,6 +357,15 @@ public class RTCRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwit
             return;
         }
         mirror = isFacing;
+        SharedEncodeSession session = sharedEncodeSession;
+        EncodedVideoRecorder recorder = encodedVideoRecorder;
+        if (session != null && recorder != null && session.key.mirror != mirror) {
+            // Mirroring is fixed per session, so move to the session of the new camera. Its
+            // frames only decode from its next key frame on.
+            sharedEncoders.detach(session, recorder);
+            recorder.restartVideo();
+            sharedEncodeSession = attachSharedEncoder(recorder);
+        }
         if (videoFileRenderer != null) {
             videoFileRenderer.setMirror(mirror);
             videoTrack.addSink(videoFileRenderer);
@@ -0,0 +1,296 @@
+package com.cloudwebrtc.webrtc.record;
+
+import android.graphics.Matrix;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.cloudwebrtc.webrtc.muxer.BaseMuxer;
+import com.cloudwebrtc.webrtc.muxer.MediaClock;
+import com.cloudwebrtc.webrtc.muxer.VideoEncoder;
+import com.cloudwebrtc.webrtc.video.EncodedFrameSink;
+
+import org.webrtc.EglBase;
+import org.webrtc.EncodedImage;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+import org.webrtc.VideoSink;
+import org.webrtc.VideoTrack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One H.264 encode of a video track, shared by every recorder of that track with the same size,
+ * bitrate and mirroring. See {@link SharedEncoders}.
+ * <p/>
+ * Frames are rendered once into the input surface of a {@link VideoEncoder} and each encoded
+ * frame is handed to all attached {@link EncodedFrameSink}s, with the codec config prepended to
+ * key frames as WebRTC's own encoders do. A sink attached mid-stream asks for a key frame.
+ */
+class SharedEncodeSession implements VideoSink {
+    private static final String TAG = "SharedEncodeSession";
+    private static final String MIME_TYPE = "video/avc";
+    private static final String CODEC_NAME = "H264";
+
+    /**
+     * Sessions are shared between recorders asking for the same key.
+     */
+    static final class Key {
+        final String trackId;
+        final int width;
+        final int height;
+        final String mimeType;
+        final int bitrate;
+        final boolean mirror;
+
+        Key(String trackId, int width, int height, int bitrate, boolean mirror) {
+            this.trackId = trackId;
+            this.width = width;
+            this.height = height;
+            this.mimeType = MIME_TYPE;
+            this.bitrate = bitrate;
+            this.mirror = mirror;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return trackId.equals(other.trackId) && width == other.width && height == other.height
+                    && mimeType.equals(other.mimeType) && bitrate == other.bitrate && mirror == other.mirror;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = trackId.hashCode();
+            result = 31 * result + width;
+            result = 31 * result + height;
+            result = 31 * result + mimeType.hashCode();
+            result = 31 * result + bitrate;
+            result = 31 * result + (mirror ? 1 : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return trackId + " " + width + "x" + height + " " + mimeType + " " + bitrate + "bps" + (mirror ? " mirrored" : "");
+        }
+    }
+
+    final Key key;
+    private final VideoTrack track;
+    private final EglBase.Context sharedContext;
+    private final HandlerThread renderThread;
+    private final Handler renderThreadHandler;
+    private final FrameQueue frameQueue;
+    private final CopyOnWriteArrayList<EncodedFrameSink> sinks = new CopyOnWriteArrayList<>();
+    // Only paces the frames to the target frame rate, the sinks keep their own timelines
+    private final MediaClock mediaClock = new MediaClock();
+    private final Matrix drawMatrix = new Matrix();
+    private volatile boolean released;
+    // Size of the encoded frames, the size of the first frame unless given by the key
+    private volatile int width;
+    private volatile int height;
+
+    // Render thread only
+    private EglBase eglBase;
+    private GlRectDrawer drawer;
+    private VideoFrameDrawer frameDrawer;
+    // Created on the render thread, also asked for key frames from the codec thread
+    private volatile VideoEncoder encoder;
+
+    // Codec config of the running encoder, written on the codec thread
+    private volatile byte[] codecConfig;
+
+    SharedEncodeSession(Key key, VideoTrack track, EglBase.Context sharedContext) {
+        this.key = key;
+        this.track = track;
+        this.sharedContext = sharedContext;
+        this.width = key.width;
+        this.height = key.height;
+        renderThread = new HandlerThread(TAG + "RenderThread");
+        renderThread.start();
+        renderThreadHandler = new Handler(renderThread.getLooper());
+        frameQueue = new FrameQueue(renderThreadHandler, FrameQueue.DEFAULT_CAPACITY,
+                FrameQueue.DropPolicy.DROP_OLDEST, this::renderFrameOnRenderThread);
+        track.addSink(this);
+    }
+
+    void addSink(EncodedFrameSink sink) {
+        sinks.addIfAbsent(sink);
+    }
+
+    void removeSink(EncodedFrameSink sink) {
+        sinks.remove(sink);
+    }
+
+    boolean hasSinks() {
+        return !sinks.isEmpty();
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        if (released) {
+            return;
+        }
+        if (width <= 0 || height <= 0) {
+            width = frame.getRotatedWidth();
+            height = frame.getRotatedHeight();
+        }
+        frameQueue.offer(frame);
+    }
+
+    private void renderFrameOnRenderThread(VideoFrame frame) {
+        if (released || (encoder == null && !initEncoder())) {
+            frame.release();
+            return;
+        }
+        if (mediaClock.getVideoPts(FlutterRecorder.DEFAULT_FRAME_RATE) < 0) {
+            // This frame slot is already encoded
+            frame.release();
+            return;
+        }
+        if (frameDrawer == null) {
+            frameDrawer = new VideoFrameDrawer();
+        }
+        drawMatrix.reset();
+        if (key.mirror) {
+            drawMatrix.preTranslate(0.5f, 0.5f);
+            drawMatrix.preScale(-1.0f, 1.0f);
+            drawMatrix.preTranslate(-0.5f, -0.5f);
+        }
+        frameDrawer.drawFrame(frame, drawer, drawMatrix, 0, 0, width, height);
+        long timestampNs = frame.getTimestampNs();
+        frame.release();
+        // The capture time becomes the presentation time of the encoded frame
+        eglBase.swapBuffers(timestampNs);
+    }
+
+    private boolean initEncoder() {
+        try {
+            encoder = new VideoEncoder(width, height, key.bitrate, FlutterRecorder.DEFAULT_FRAME_RATE,
+                    new SinkMuxer(), true);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to create encoder for " + key, e);
+            released = true;
+            return false;
+        }
+        eglBase = EglBase.create(sharedContext, EglBase.CONFIG_RECORDABLE);
+        eglBase.createSurface(encoder.getInputSurface());
+        eglBase.makeCurrent();
+        drawer = new GlRectDrawer();
+        Log.i(TAG, "Encoding " + key + " at " + width + "x" + height);
+        return true;
+    }
+
+    /**
+     * Stops encoding. Called once the last sink is removed.
+     */
+    void release() {
+        released = true;
+        track.removeSink(this);
+        frameQueue.release();
+        renderThreadHandler.post(() -> {
+            if (encoder != null) {
+                encoder.release();
+                encoder = null;
+            }
+            if (drawer != null) {
+                drawer.release();
+                drawer = null;
+            }
+            if (frameDrawer != null) {
+                frameDrawer.release();
+                frameDrawer = null;
+            }
+            if (eglBase != null) {
+                eglBase.release();
+                eglBase = null;
+            }
+            renderThread.quitSafely();
+        });
+    }
+
+    /**
+     * Hands the encoder output to the sinks instead of writing a file.
+     */
+    private class SinkMuxer extends BaseMuxer {
+        SinkMuxer() {
+            super(key.toString(), FORMAT.MPEG4, 1);
+        }
+
+        @Override
+        public int addTrack(MediaFormat trackFormat) {
+            ByteBuffer sps = trackFormat.getByteBuffer("csd-0");
+            ByteBuffer pps = trackFormat.getByteBuffer("csd-1");
+            if (sps != null && pps != null) {
+                byte[] config = new byte[sps.remaining() + pps.remaining()];
+                sps.duplicate().get(config, 0, sps.remaining());
+                pps.duplicate().get(config, sps.remaining(), pps.remaining());
+                codecConfig = config;
+            }
+            return super.addTrack(trackFormat);
+        }
+
+        @Override
+        public void writeSampleData(MediaCodec encoder, int trackIndex, int bufferIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            super.writeSampleData(encoder, trackIndex, bufferIndex, encodedData, bufferInfo);
+            try {
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0) {
+                    dispatch(encodedData, bufferInfo);
+                }
+            } finally {
+                encoder.releaseOutputBuffer(bufferIndex, false);
+            }
+        }
+
+        private void dispatch(ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+            boolean keyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            ByteBuffer frame = encodedData.duplicate();
+            frame.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+            frame = frame.slice();
+            byte[] config = codecConfig;
+            if (keyFrame && config != null) {
+                ByteBuffer withConfig = ByteBuffer.allocateDirect(config.length + bufferInfo.size);
+                withConfig.put(config).put(frame);
+                withConfig.flip();
+                frame = withConfig;
+            }
+            long timestampNs = bufferInfo.presentationTimeUs * 1000;
+            EncodedImage image = EncodedImage.builder()
+                    .setBuffer(frame, null)
+                    .setEncodedWidth(width)
+                    .setEncodedHeight(height)
+                    .setCaptureTimeNs(timestampNs)
+                    .setFrameType(keyFrame ? EncodedImage.FrameType.VideoFrameKey : EncodedImage.FrameType.VideoFrameDelta)
+                    .setRotation(0)
+                    .createEncodedImage();
+            boolean keyFrameNeeded = false;
+            for (EncodedFrameSink sink : sinks) {
+                try {
+                    sink.onEncodedFrame(image, CODEC_NAME, timestampNs);
+                    keyFrameNeeded |= sink.needsKeyFrame();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Encoded frame sink failed", e);
+                }
+                // Every sink reads from the start of the frame
+                image.buffer.rewind();
+            }
+            VideoEncoder videoEncoder = SharedEncodeSession.this.encoder;
+            if (keyFrameNeeded && videoEncoder != null) {
+                videoEncoder.requestSyncFrame();
+            }
+        }
+
+        @Override
+        public void forceStop() {
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.cloudwebrtc.webrtc.record;
+
+import android.util.Log;
+
+import com.cloudwebrtc.webrtc.utils.EglUtils;
+import com.cloudwebrtc.webrtc.video.EncodedFrameSink;
+
+import org.webrtc.VideoTrack;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference-counted encode sessions, so that concurrent recordings of the same track (e.g. a
+ * file and a rolling buffer) encode its frames once.
+ * <p/>
+ * Sessions are keyed by track, size, codec, bitrate and mirroring. The first recorder to attach creates the
+ * session, the last one to detach releases its encoder.
+ */
+public class SharedEncoders {
+    private static final String TAG = "SharedEncoders";
+
+    private final Map<SharedEncodeSession.Key, SharedEncodeSession> sessions = new HashMap<>();
+
+    /**
+     * Attaches |sink| to the session encoding |track| with these settings, creating it if needed.
+     * A |width| or |height| of -1 encodes at the size of the track's frames. |mirror| flips the
+     * frames horizontally.
+     */
+    synchronized SharedEncodeSession attach(VideoTrack track, int width, int height, int bitrate, boolean mirror,
+                                            EncodedFrameSink sink) {
+        SharedEncodeSession.Key key = new SharedEncodeSession.Key(track.id(), width, height, bitrate, mirror);
+        SharedEncodeSession session = sessions.get(key);
+        if (session == null) {
+            session = new SharedEncodeSession(key, track, EglUtils.getRootEglBaseContext());
+            sessions.put(key, session);
+        } else {
+            Log.i(TAG, "Sharing encoder " + key);
+        }
+        session.addSink(sink);
+        return session;
+    }
+
+    /**
+     * Detaches |sink|, releasing the session once nothing is attached to it anymore.
+     */
+    synchronized void detach(SharedEncodeSession session, EncodedFrameSink sink) {
+        session.removeSink(sink);
+        if (!session.hasSinks()) {
+            sessions.remove(session.key);
+            session.release();
+        }
+    }
+}
@@ -9,6 +9,8 @@ import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
+import com.cloudwebrtc.webrtc.muxer.CodecCapabilityCache;
+
 import org.webrtc.EglBase;
 import org.webrtc.GlRectDrawer;
 import org.webrtc.VideoFrame;
@@ -49,11 +51,15 @@ class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
     private GlRectDrawer drawer;
     private Surface surface;
     private MediaCodec audioEncoder;
+    // Frames waiting for the render thread
+    private final FrameQueue frameQueue;
 
     VideoFileRenderer(String outputFile, final EglBase.Context sharedContext, boolean withAudio) throws IOException {
         renderThread = new HandlerThread(TAG + "RenderThread");
         renderThread.start();
         renderThreadHandler = new Handler(renderThread.getLooper());
+        frameQueue = new FrameQueue(renderThreadHandler, FrameQueue.DEFAULT_CAPACITY,
+                FrameQueue.DropPolicy.DROP_OLDEST, this::renderFrameOnRenderThread);
         if (withAudio) {
             audioThread = new HandlerThread(TAG + "AudioThread");
             audioThread.start();
@@ -88,7 +94,8 @@ class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
         try {
-            encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+            encoder = CodecCapabilityCache.createEncoder(MIME_TYPE, outputFileWidth, outputFileHeight,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
             encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             renderThreadHandler.post(() -> {
                 eglBase = EglBase.create(sharedContext, EglBase.CONFIG_RECORDABLE);
@@ -104,13 +111,12 @@ class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
 
     @Override
     public void onFrame(VideoFrame frame) {
-        frame.retain();
         if (outputFileWidth == -1) {
             outputFileWidth = frame.getRotatedWidth();
             outputFileHeight = frame.getRotatedHeight();
             initVideoEncoder();
         }
-        renderThreadHandler.post(() -> renderFrameOnRenderThread(frame));
+        frameQueue.offer(frame);
     }
 
     private void renderFrameOnRenderThread(VideoFrame frame) {
@@ -124,10 +130,14 @@ class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
     }
 
     /**
-     * Release all resources. All already posted frames will be rendered first.
+     * Release all resources. Frames still queued are dropped.
      */
     void release() {
         isRunning = false;
+        frameQueue.release();
+        if (frameQueue.getDroppedFrames() > 0) {
+            Log.i(TAG, "Dropped " + frameQueue.getDroppedFrames() + " frames");
+        }
         if (audioThreadHandler != null)
             audioThreadHandler.post(() -> {
                 if (audioEncoder != null) {
@@ -268,7 +278,7 @@ class VideoFileRenderer implements VideoSink, SamplesReadyCallback {
             return;
         audioThreadHandler.post(() -> {
             if (audioEncoder == null) try {
-                audioEncoder = MediaCodec.createEncoderByType("audio/mp4a-latm");
+                audioEncoder = CodecCapabilityCache.createEncoder("audio/mp4a-latm", 0, 0, 0);
                 MediaFormat format = new MediaFormat();
                 format.setString(MediaFormat.KEY_MIME, "audio/mp4a-latm");
                 format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, audioSamples.getChannelCount());
@@ -0,0 +1,26 @@
+package com.cloudwebrtc.webrtc.video;
+
+import org.webrtc.EncodedImage;
+
+/**
+ * Receives the encoded frames of one video track from {@link TeeVideoEncoderFactory} or
+ * {@link TeeVideoDecoderFactory}. All methods are called on codec threads.
+ */
+public interface EncodedFrameSink {
+    /**
+     * Returns true if the frame with the VideoFrame timestamp |timestampNs| belongs to the
+     * recorded track.
+     */
+    boolean isRecordedFrame(long timestampNs);
+
+    /**
+     * Returns true to get a key frame as soon as possible.
+     */
+    boolean needsKeyFrame();
+
+    /**
+     * |image| is only valid for the duration of the call. |codecName| is e.g. "H264" and
+     * |timestampNs| is the System.nanoTime based capture or render time of the frame.
+     */
+    void onEncodedFrame(EncodedImage image, String codecName, long timestampNs);
+}
@@ -9,8 +9,18 @@ import com.cloudwebrtc.webrtc.audio.MixerSinkCallback;
 import com.cloudwebrtc.webrtc.audio.RecAudioRecorder;
 import com.cloudwebrtc.webrtc.muxer.AndroidMuxer;
 import com.cloudwebrtc.webrtc.muxer.BaseMuxer;
+import com.cloudwebrtc.webrtc.muxer.EncoderPool;
+import com.cloudwebrtc.webrtc.muxer.FragmentedMp4Muxer;
+import com.cloudwebrtc.webrtc.muxer.HlsMuxer;
+import com.cloudwebrtc.webrtc.muxer.MediaClock;
+import com.cloudwebrtc.webrtc.muxer.Mp4FastStart;
+import com.cloudwebrtc.webrtc.muxer.ReplayBufferMuxer;
+import com.cloudwebrtc.webrtc.muxer.RtmpMuxer;
+import com.cloudwebrtc.webrtc.muxer.RtmpPublisher;
 import com.cloudwebrtc.webrtc.record.AudioSamplesInterceptor;
 import com.cloudwebrtc.webrtc.record.FlutterRecorder;
+import com.cloudwebrtc.webrtc.utils.AnyThreadSink;
+import com.cloudwebrtc.webrtc.utils.ConstraintsMap;
 import com.cloudwebrtc.webrtc.utils.EglUtils;
 
 import org.webrtc.EglBase;
@@ -27,13 +37,14 @@ import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.PluginRegistry;
 
-public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwitchCallback, VideoMixer.OnFrameCallback {
+public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.CameraSwitchCallback, VideoMixer.OnFrameCallback, BaseMuxer.SegmentListener, RtmpPublisher.ConnectionListener {
     private static final String TAG = "flutterVideoRecorder";
     private final static boolean DEBUG = true;
     private VideoMixer videoMixer;
     private boolean isRunning;
     private File recordFile;
-    private AndroidMuxer mMuxer;
+    private String streamUrl;
+    private BaseMuxer mMuxer;
     private Size size;
     private int recordId;
     private int fps;
@@ -44,9 +55,25 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
 
     private static final int DEFAULT_VIDEO_BITRATE = 800000;
     private static final int DEFAULT_AUDIO_BITRATE = 96000;
+    // Limits of the adaptive video bitrate; the configured bitrate is used for a single tile
+    private static final int MIN_VIDEO_BITRATE = 300000;
+    private static final int MAX_VIDEO_BITRATE = 4000000;
 
     private final int DEFAULT_SAMPLE_RATE = 48000;
     private final int DEFAULT_CHANNELS = 1;
+    // Drain encoders from MediaCodec callback threads so a slow encoder never stalls mixing
+    private static final boolean ASYNC_ENCODING = true;
+    // Perform MediaMuxer writes on a dedicated I/O thread so storage stalls don't reach the encoders
+    private static final boolean USE_MUXER_WRITER_THREAD = true;
+    private static final long FRAGMENT_DURATION_US = 2000000;
+    private static final long HLS_SEGMENT_DURATION_US = 6000000;
+    // Rolling mpeg4/webm output, disabled when both are 0
+    private long segmentDurationUs;
+    private long maxSegmentBytes;
+    // Move the moov box of mpeg4 recordings to the front once stopped
+    private boolean fastStart;
+    // Length of the in-memory replay kept by the "replay" format
+    private long replayWindowUs = ReplayBufferMuxer.DEFAULT_WINDOW_US;
 
     private AudioMixerController mixerController;
 
@@ -54,8 +81,12 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
     private MixerSinkCallback playbackSink;
 
     private RecAudioRecorder audioRecorder;
+    private EncoderPool encoderPool;
+    // Timeline shared by the audio and video encoders of the current session
+    private MediaClock mediaClock;
 
     private boolean disposed;
+    private boolean paused;
 
     private EventChannel.EventSink eventSink;
     private Object mixerLock = new Object();
@@ -91,13 +122,93 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
         return fps;
     }
 
+    /**
+     * Takes this recorder's encoders from |pool|, which starts preparing them right away so that
+     * starting the recording doesn't wait for codec setup.
+     */
+    public void setEncoderPool(EncoderPool pool) {
+        encoderPool = pool;
+        if (pool != null) {
+            pool.prepare(getEncoderConfig());
+        }
+    }
+
+    /**
+     * Splits the next mpeg4 or webm recording into files of at most |durationUs| or |maxBytes|,
+     * 0 meaning no limit. Each finished file is reported as a segmentFinished event.
+     */
+    public void setSegmentation(long durationUs, long maxBytes) {
+        segmentDurationUs = Math.max(0, durationUs);
+        maxSegmentBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Rewrites the next mpeg4 recording for progressive playback once it is stopped. This runs in
+     * the background; a fastStartFinished event tells when the file can be uploaded.
+     */
+    public void setFastStart(boolean fastStart) {
+        this.fastStart = fastStart;
+    }
+
+    /**
+     * Sets how much of the most recent media the "replay" format keeps, from the next start.
+     */
+    public void setReplayWindow(long windowUs) {
+        replayWindowUs = windowUs > 0 ? windowUs : ReplayBufferMuxer.DEFAULT_WINDOW_US;
+    }
+
+    /**
+     * Writes the replay buffer of a "replay" recorder to an MP4 at |path|. |result| gets the
+     * saved duration, and a replaySaved event is sent as well.
+     */
+    public void saveReplay(String path, MethodChannel.Result result) {
+        if (!isRunning || !(mMuxer instanceof ReplayBufferMuxer)) {
+            result.error("saveReplay", "Recorder is not buffering a replay", null);
+            return;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        new File(path).getParentFile().mkdirs();
+        ((ReplayBufferMuxer) mMuxer).save(path, new ReplayBufferMuxer.SaveCallback() {
+            @Override
+            public void onReplaySaved(String path, long durationUs) {
+                ConstraintsMap params = new ConstraintsMap();
+                params.putString("eventType", "replaySaved");
+                params.putString("path", path);
+                params.putInt("durationMs", (int) (durationUs / 1000));
+                sendEvent(params);
+                result.success(params.toMap());
+            }
+
+            @Override
+            public void onReplayFailed(String path, String error) {
+                result.error("saveReplay", "Failed to save replay: " + error, null);
+            }
+        });
+    }
+
+    private EncoderPool.Config getEncoderConfig() {
+        return new EncoderPool.Config(size.getWidth(), size.getHeight(), videoBitrate, fps,
+                DEFAULT_CHANNELS, audioBitrate, DEFAULT_SAMPLE_RATE, getMuxerFormat(), ASYNC_ENCODING);
+    }
+
+    private BaseMuxer.FORMAT getMuxerFormat() {
+        if (streamUrl != null) {
+            return BaseMuxer.FORMAT.RTMP;
+        } else if (format.equalsIgnoreCase("hls")) {
+            return BaseMuxer.FORMAT.HLS;
+        } else if (format.equalsIgnoreCase("webm")) {
+            return BaseMuxer.FORMAT.WEBM;
+        }
+        return BaseMuxer.FORMAT.MPEG4;
+    }
+
     private void registerEventChannel() {
         eventChannel = new EventChannel(messenger, "FlutterWebRTC/mediaRecorderEvents/" + this.recordId);
         eventChannel.setStreamHandler(
                         new EventChannel.StreamHandler() {
                             @Override
                             public void onListen(Object arguments, EventChannel.EventSink eventSink) {
-                                FlutterVideoRecorder.this.eventSink = eventSink;
+                                FlutterVideoRecorder.this.eventSink = new AnyThreadSink(eventSink);
                             }
 
                             @Override
@@ -110,6 +221,8 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
     private VideoMixer getVideoMixer() {
         if (videoMixer == null) {
             videoMixer = new VideoMixer("VideoMixer", fps, size,  videoBitrate);
+            videoMixer.setAsyncEncoding(ASYNC_ENCODING);
+            videoMixer.setBitrateLimits(Math.min(MIN_VIDEO_BITRATE, videoBitrate), Math.max(MAX_VIDEO_BITRATE, videoBitrate));
             videoMixer.init((EglBase14.Context) EglUtils.getRootEglBaseContext(), EglBase.CONFIG_RECORDABLE);
         }
         return videoMixer;
@@ -117,7 +230,29 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
 
     private BaseMuxer getMuxer() {
         if (mMuxer == null) {
-            mMuxer = AndroidMuxer.create(recordFile.getAbsolutePath(), format.equalsIgnoreCase("mpeg4") ? BaseMuxer.FORMAT.MPEG4 : BaseMuxer.FORMAT.WEBM, 2);
+            if (streamUrl != null) {
+                RtmpMuxer rtmpMuxer = RtmpMuxer.create(streamUrl, 2);
+                rtmpMuxer.setConnectionListener(this);
+                mMuxer = rtmpMuxer;
+            } else if (format.equalsIgnoreCase("hls")) {
+                // |recordFile| is the playlist; segments are written next to it
+                HlsMuxer hlsMuxer = HlsMuxer.create(recordFile.getAbsolutePath(), 2, HLS_SEGMENT_DURATION_US, 0, USE_MUXER_WRITER_THREAD);
+                hlsMuxer.setSegmentListener(this);
+                mMuxer = hlsMuxer;
+            } else if (format.equalsIgnoreCase("fmp4")) {
+                // Fragmented MP4 stays playable up to the last fragment if recording is interrupted
+                mMuxer = FragmentedMp4Muxer.create(recordFile.getAbsolutePath(), 2, FRAGMENT_DURATION_US, USE_MUXER_WRITER_THREAD);
+            } else if (format.equalsIgnoreCase("replay")) {
+                // Nothing reaches the disk until saveReplay(); |recordFile| is only a default path
+                int capacity = ReplayBufferMuxer.getCapacityFor(replayWindowUs, 2 * videoBitrate + audioBitrate);
+                mMuxer = ReplayBufferMuxer.create(recordFile.getAbsolutePath(), 2, replayWindowUs, capacity);
+            } else if (segmentDurationUs > 0 || maxSegmentBytes > 0) {
+                AndroidMuxer androidMuxer = AndroidMuxer.createSegmented(recordFile.getAbsolutePath(), getMuxerFormat(), 2, USE_MUXER_WRITER_THREAD, segmentDurationUs, maxSegmentBytes);
+                androidMuxer.setSegmentListener(this);
+                mMuxer = androidMuxer;
+            } else {
+                mMuxer = AndroidMuxer.create(recordFile.getAbsolutePath(), format.equalsIgnoreCase("mpeg4") ? BaseMuxer.FORMAT.MPEG4 : BaseMuxer.FORMAT.WEBM, 2, USE_MUXER_WRITER_THREAD);
+            }
         }
         return mMuxer;
     }
@@ -132,11 +267,11 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
         getVideoMixer().removeVideoTrack(videoTrack, isLocal, isMirror, label);
     }
 
-    private void initVideo() throws IOException  {
-        getVideoMixer().start(getMuxer());
+    private void initVideo(EncoderPool.EncoderPair encoders) throws IOException  {
+        getVideoMixer().start(getMuxer(), encoders != null ? encoders.videoEncoder : null);
     }
 
-    private void initAudio() throws Exception {
+    private void initAudio(EncoderPool.EncoderPair encoders) throws Exception {
         synchronized (mixerLock) {
             mixerController = new AudioMixerController(DEFAULT_CHANNELS, DEFAULT_SAMPLE_RATE);
             if (recordSamplesInterceptor != null) {
@@ -149,7 +284,13 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
                 playbackSink = new MixerSinkCallback(2, 1, 5.0f, DEFAULT_SAMPLE_RATE, mixerController, false);
                 playbackSamplesInterceptor.attachCallback(recordId, playbackSink);
             }
-            audioRecorder = new RecAudioRecorder(getMuxer(), audioBitrate, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNELS);
+            if (encoders != null) {
+                encoders.audioEncoder.setMuxer(getMuxer());
+                audioRecorder = new RecAudioRecorder(encoders.audioEncoder, DEFAULT_SAMPLE_RATE);
+            } else {
+                audioRecorder = new RecAudioRecorder(getMuxer(), audioBitrate, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNELS, ASYNC_ENCODING);
+            }
+            audioRecorder.setMediaClock(mediaClock);
             mixerController.setMixerOutputReceiver(audioRecorder);
             mixerController.start();
         }
@@ -162,14 +303,85 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
             return;
         //noinspection ResultOfMethodCallIgnored
         file.getParentFile().mkdirs();
-        initVideo();
-        initAudio();
+        start();
+    }
+
+    /**
+     * Publishes the mix live to |url| (rtmp://host/app/streamKey) instead of recording to a file.
+     */
+    public void startStreaming(String url) throws Exception {
+        if (isRunning)
+            return;
+        streamUrl = url;
+        start();
+    }
+
+    private void start() throws Exception {
+        EncoderPool.EncoderPair encoders = encoderPool != null ? encoderPool.acquire(getEncoderConfig()) : null;
+        mediaClock = new MediaClock();
+        // Both tracks are stamped from 0 at session start
+        getMuxer().setPtsOrigin(0);
+        getVideoMixer().setMediaClock(mediaClock);
+        initVideo(encoders);
+        initAudio(encoders);
+        mediaClock.start();
         isRunning = true;
     }
 
+    /**
+     * Detaches the audio sinks and pauses the video mixer, so the encoders idle and nothing is
+     * mixed while paused. The media clock removes the gap from the timeline, and the video
+     * resumes with a key frame.
+     */
     public void setPaused(boolean paused) {
-        if (!isRunning)
+        if (!isRunning || this.paused == paused)
             return;
+        this.paused = paused;
+        if (paused) {
+            mediaClock.pause();
+            detachAudioSinks();
+            getVideoMixer().pause();
+        } else {
+            synchronized (mixerLock) {
+                // Leave out what was captured just before the pause
+                if (recordSink != null) {
+                    recordSink.clear();
+                }
+                if (playbackSink != null) {
+                    playbackSink.clear();
+                }
+            }
+            mediaClock.resume();
+            try {
+                attachAudioSinks();
+            } catch (Exception e) {
+                Logging.e(TAG, "Failed to resume audio", e);
+            }
+            getVideoMixer().resume();
+        }
+        if (DEBUG) Logging.d(TAG, paused ? "PAUSED" : "RESUMED");
+    }
+
+    private void attachAudioSinks() throws Exception {
+        synchronized (mixerLock) {
+            if (recordSamplesInterceptor != null && recordSink != null) {
+                recordSamplesInterceptor.attachCallback(recordId, recordSink);
+            }
+            if (playbackSamplesInterceptor != null && playbackSink != null) {
+                playbackSamplesInterceptor.attachCallback(recordId, playbackSink);
+            }
+        }
+    }
+
+    private void detachAudioSinks() {
+        synchronized (mixerLock) {
+            if (recordSamplesInterceptor != null) {
+                recordSamplesInterceptor.detachCallback(recordId);
+            }
+            if (playbackSamplesInterceptor != null) {
+                playbackSamplesInterceptor.detachCallback(recordId);
+            }
+        }
     }
 
 
@@ -186,13 +398,8 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
         if (!isRunning) {
             return;
         }
+        detachAudioSinks();
         synchronized (mixerLock) {
-            if (recordSamplesInterceptor != null) {
-                recordSamplesInterceptor.detachCallback(recordId);
-            }
-            if (playbackSamplesInterceptor != null) {
-                playbackSamplesInterceptor.detachCallback(recordId);
-            }
             recordSink = null;
             playbackSink = null;
             if (mixerController != null) {
@@ -218,10 +425,43 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
         synchronized (mMuxer) {
             mMuxer.release();
         }
+        if (fastStart && mMuxer instanceof AndroidMuxer && !((AndroidMuxer) mMuxer).isSegmented()
+                && getMuxerFormat() == BaseMuxer.FORMAT.MPEG4) {
+            runFastStart(recordFile);
+        }
+        // A restarted recording writes to a new muxer, to a file unless streaming is started again
+        mMuxer = null;
+        streamUrl = null;
         isRunning = false;
+        paused = false;
+        if (mediaClock != null) {
+            Logging.d(TAG, "Media clock: " + mediaClock.getStats());
+        }
+        if (encoderPool != null && !disposed) {
+            // Have a fresh pair ready in case the recording is restarted
+            encoderPool.prepare(getEncoderConfig());
+        }
         if (DEBUG) Logging.d(TAG, "DID STOP RECORDING");
     }
 
+    private void runFastStart(final File file) {
+        new Thread(() -> {
+            long startNs = System.nanoTime();
+            ConstraintsMap params = new ConstraintsMap();
+            params.putString("eventType", "fastStartFinished");
+            params.putString("path", file.getAbsolutePath());
+            try {
+                boolean processed = Mp4FastStart.process(file);
+                Logging.d(TAG, "Fast start " + (processed ? "done" : "skipped") + " in "
+                        + (System.nanoTime() - startNs) / 1000000 + " ms");
+            } catch (IOException e) {
+                // The original file is left as it was and is still playable
+                Logging.e(TAG, "Fast start failed for " + file, e);
+            }
+            sendEvent(params);
+        }, "Mp4FastStart").start();
+    }
+
     public void dispose() {
         if (disposed) {
             return;
@@ -237,6 +477,36 @@ public class FlutterVideoRecorder implements FlutterRecorder, GetUserMediaImpl.C
     }
 
 
+    @Override
+    public void onSegmentFinished(String segmentPath, int index, long durationUs) {
+        ConstraintsMap params = new ConstraintsMap();
+        params.putString("eventType", "segmentFinished");
+        params.putString("path", segmentPath);
+        params.putInt("index", index);
+        params.putInt("durationMs", (int) (durationUs / 1000));
+        sendEvent(params);
+    }
+
+    @Override
+    public void onConnected() {
+        if (DEBUG) Logging.d(TAG, "RTMP CONNECTED");
+    }
+
+    @Override
+    public void onDisconnected(String reason) {
+        ConstraintsMap params = new ConstraintsMap();
+        params.putString("eventType", "error");
+        params.putString("errorDescription", "Streaming failed: " + reason);
+        sendEvent(params);
+    }
+
+    private void sendEvent(ConstraintsMap params) {
+        EventChannel.EventSink sink = eventSink;
+        if (sink != null) {
+            sink.success(params.toMap());
+        }
+    }
+
     public void didCaptureMixedFrame() {
 
     }
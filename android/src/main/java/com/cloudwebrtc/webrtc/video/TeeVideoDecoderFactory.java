@@ -0,0 +1,192 @@
+package com.cloudwebrtc.webrtc.video;
+
+import androidx.annotation.Nullable;
+
+import org.webrtc.EglBase;
+import org.webrtc.EncodedImage;
+import org.webrtc.HardwareVideoDecoderFactory;
+import org.webrtc.Logging;
+import org.webrtc.PlatformSoftwareVideoDecoderFactory;
+import org.webrtc.SoftwareVideoDecoderFactory;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoDecoder;
+import org.webrtc.VideoDecoderFactory;
+import org.webrtc.VideoDecoderFallback;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Video decoder factory of the PeerConnectionFactory that lets recorders mux the bitstream
+ * received from a remote peer as is, instead of decoding, rendering and encoding it again.
+ * <p/>
+ * Builds the same decoders as DefaultVideoDecoderFactory, but wraps the hardware decoder before
+ * it is combined with the software fallback: the combined decoder is native and its input can't
+ * be observed from Java. A decoder doesn't know which receiver it serves, so each
+ * {@link EncodedFrameSink} is bound to the decoder whose recent render times are all frames of
+ * its track.
+ */
+public class TeeVideoDecoderFactory implements VideoDecoderFactory {
+    private static final String TAG = "TeeVideoDecoderFactory";
+    // Render times are in milliseconds and may collide between streams, require a few in a row
+    private static final int FRAMES_TO_BIND = 3;
+
+    private final VideoDecoderFactory hardwareVideoDecoderFactory;
+    private final VideoDecoderFactory softwareVideoDecoderFactory = new SoftwareVideoDecoderFactory();
+    private final VideoDecoderFactory platformSoftwareVideoDecoderFactory;
+    private final CopyOnWriteArrayList<EncodedFrameSink> sinks = new CopyOnWriteArrayList<>();
+    // Guarded by |sinks|
+    private final Map<EncodedFrameSink, TeeVideoDecoder> bindings = new HashMap<>();
+
+    public TeeVideoDecoderFactory(EglBase.Context eglContext) {
+        hardwareVideoDecoderFactory = new HardwareVideoDecoderFactory(eglContext);
+        platformSoftwareVideoDecoderFactory = new PlatformSoftwareVideoDecoderFactory(eglContext);
+    }
+
+    public void addSink(EncodedFrameSink sink) {
+        sinks.addIfAbsent(sink);
+    }
+
+    public void removeSink(EncodedFrameSink sink) {
+        synchronized (sinks) {
+            sinks.remove(sink);
+            bindings.remove(sink);
+        }
+    }
+
+    @Nullable
+    @Override
+    public VideoDecoder createDecoder(VideoCodecInfo codecType) {
+        VideoDecoder softwareDecoder = softwareVideoDecoderFactory.createDecoder(codecType);
+        VideoDecoder hardwareDecoder = hardwareVideoDecoderFactory.createDecoder(codecType);
+        if (softwareDecoder == null) {
+            softwareDecoder = platformSoftwareVideoDecoderFactory.createDecoder(codecType);
+        }
+        if (hardwareDecoder != null) {
+            hardwareDecoder = new TeeVideoDecoder(hardwareDecoder, codecType.name);
+        }
+        if (hardwareDecoder != null && softwareDecoder != null) {
+            // Both hardware and software supported, wrap it in a software fallback
+            return new VideoDecoderFallback(
+                    /* fallback= */ softwareDecoder, /* primary= */ hardwareDecoder);
+        }
+        return hardwareDecoder != null ? hardwareDecoder : softwareDecoder;
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        LinkedHashSet<VideoCodecInfo> supportedCodecInfos = new LinkedHashSet<>();
+        supportedCodecInfos.addAll(Arrays.asList(softwareVideoDecoderFactory.getSupportedCodecs()));
+        supportedCodecInfos.addAll(Arrays.asList(hardwareVideoDecoderFactory.getSupportedCodecs()));
+        supportedCodecInfos.addAll(Arrays.asList(platformSoftwareVideoDecoderFactory.getSupportedCodecs()));
+        return supportedCodecInfos.toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
+    }
+
+    private class TeeVideoDecoder implements VideoDecoder {
+        private final VideoDecoder decoder;
+        private final String codecName;
+        private final CopyOnWriteArrayList<EncodedFrameSink> boundSinks = new CopyOnWriteArrayList<>();
+        // Render times of the last frames decoded, in VideoFrame nanoseconds
+        private final long[] recentTimestampsNs = new long[FRAMES_TO_BIND];
+        private int decodedFrames;
+
+        TeeVideoDecoder(VideoDecoder decoder, String codecName) {
+            this.decoder = decoder;
+            this.codecName = codecName;
+        }
+
+        @Override
+        public VideoCodecStatus initDecode(Settings settings, Callback callback) {
+            return decoder.initDecode(settings, callback);
+        }
+
+        /**
+         * Called on the decoder thread of the receive stream.
+         */
+        @Override
+        public VideoCodecStatus decode(EncodedImage frame, DecodeInfo info) {
+            bindSinks();
+            // The decoded frame is delivered to the track with the render time as timestamp
+            long timestampNs = info.renderTimeMs * 1000000L;
+            boolean keyFrame = false;
+            for (EncodedFrameSink sink : boundSinks) {
+                try {
+                    sink.onEncodedFrame(frame, codecName, timestampNs);
+                    keyFrame |= sink.needsKeyFrame();
+                } catch (RuntimeException e) {
+                    Logging.e(TAG, "Encoded frame sink failed", e);
+                }
+            }
+            recentTimestampsNs[decodedFrames++ % FRAMES_TO_BIND] = timestampNs;
+            VideoCodecStatus status = decoder.decode(frame, info);
+            if (keyFrame && status == VideoCodecStatus.OK) {
+                // Java decoders can't send a PLI themselves. A decode without output makes the
+                // receive stream request a key frame, at the cost of this frame not being shown.
+                return VideoCodecStatus.NO_OUTPUT;
+            }
+            return status;
+        }
+
+        private void bindSinks() {
+            if (decodedFrames < FRAMES_TO_BIND) {
+                return;
+            }
+            for (EncodedFrameSink sink : sinks) {
+                if (boundSinks.contains(sink) || !isRecordedStream(sink)) {
+                    continue;
+                }
+                synchronized (sinks) {
+                    if (sinks.contains(sink) && !bindings.containsKey(sink)) {
+                        bindings.put(sink, this);
+                        boundSinks.add(sink);
+                        Logging.d(TAG, "Recording from " + decoder.getImplementationName() + " (" + codecName + ")");
+                    }
+                }
+            }
+            if (!boundSinks.isEmpty()) {
+                // Sinks that were removed meanwhile
+                for (EncodedFrameSink sink : boundSinks) {
+                    if (!sinks.contains(sink)) {
+                        boundSinks.remove(sink);
+                    }
+                }
+            }
+        }
+
+        /**
+         * The frames decoded before the current one have reached the track by now.
+         */
+        private boolean isRecordedStream(EncodedFrameSink sink) {
+            for (long timestampNs : recentTimestampsNs) {
+                if (!sink.isRecordedFrame(timestampNs)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            synchronized (sinks) {
+                // Let the sinks follow the track to the decoder that replaces this one
+                for (EncodedFrameSink sink : boundSinks) {
+                    if (bindings.get(sink) == this) {
+                        bindings.remove(sink);
+                    }
+                }
+                boundSinks.clear();
+            }
+            decodedFrames = 0;
+            return decoder.release();
+        }
+
+        @Override
+        public String getImplementationName() {
+            return decoder.getImplementationName();
+        }
+    }
+}
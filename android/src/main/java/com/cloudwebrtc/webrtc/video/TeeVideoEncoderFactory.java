@@ -0,0 +1,178 @@
+package com.cloudwebrtc.webrtc.video;
+
+import androidx.annotation.Nullable;
+
+import org.webrtc.EglBase;
+import org.webrtc.EncodedImage;
+import org.webrtc.HardwareVideoEncoderFactory;
+import org.webrtc.Logging;
+import org.webrtc.SoftwareVideoEncoderFactory;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoEncoderFallback;
+import org.webrtc.VideoFrame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Video encoder factory of the PeerConnectionFactory that lets recorders reuse the bitstream
+ * already encoded for sending, instead of encoding the same frames a second time.
+ * <p/>
+ * Builds the same hardware-with-software-fallback encoders as DefaultVideoEncoderFactory, but
+ * wraps the hardware encoder before it is combined with the fallback: the combined encoder is
+ * native and its output can't be observed from Java. Each {@link EncodedFrameSink} is bound to
+ * the first encoder that encodes a frame of its track, since the same track may be sent to
+ * several peers.
+ */
+public class TeeVideoEncoderFactory implements VideoEncoderFactory {
+    private static final String TAG = "TeeVideoEncoderFactory";
+    private static final EncodedImage.FrameType[] KEY_FRAME = {EncodedImage.FrameType.VideoFrameKey};
+
+    private final VideoEncoderFactory hardwareVideoEncoderFactory;
+    private final VideoEncoderFactory softwareVideoEncoderFactory = new SoftwareVideoEncoderFactory();
+    private final CopyOnWriteArrayList<EncodedFrameSink> sinks = new CopyOnWriteArrayList<>();
+    // Guarded by |sinks|
+    private final Map<EncodedFrameSink, TeeVideoEncoder> bindings = new HashMap<>();
+
+    public TeeVideoEncoderFactory(EglBase.Context eglContext, boolean enableIntelVp8Encoder, boolean enableH264HighProfile) {
+        hardwareVideoEncoderFactory = new HardwareVideoEncoderFactory(eglContext, enableIntelVp8Encoder, enableH264HighProfile);
+    }
+
+    public void addSink(EncodedFrameSink sink) {
+        sinks.addIfAbsent(sink);
+    }
+
+    public void removeSink(EncodedFrameSink sink) {
+        synchronized (sinks) {
+            sinks.remove(sink);
+            bindings.remove(sink);
+        }
+    }
+
+    @Nullable
+    @Override
+    public VideoEncoder createEncoder(VideoCodecInfo info) {
+        final VideoEncoder softwareEncoder = softwareVideoEncoderFactory.createEncoder(info);
+        VideoEncoder hardwareEncoder = hardwareVideoEncoderFactory.createEncoder(info);
+        if (hardwareEncoder != null) {
+            hardwareEncoder = new TeeVideoEncoder(hardwareEncoder, info.name);
+        }
+        if (hardwareEncoder != null && softwareEncoder != null) {
+            // Both hardware and software supported, wrap it in a software fallback
+            return new VideoEncoderFallback(
+                    /* fallback= */ softwareEncoder, /* primary= */ hardwareEncoder);
+        }
+        return hardwareEncoder != null ? hardwareEncoder : softwareEncoder;
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        LinkedHashSet<VideoCodecInfo> supportedCodecInfos = new LinkedHashSet<>();
+        supportedCodecInfos.addAll(Arrays.asList(softwareVideoEncoderFactory.getSupportedCodecs()));
+        supportedCodecInfos.addAll(Arrays.asList(hardwareVideoEncoderFactory.getSupportedCodecs()));
+        return supportedCodecInfos.toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
+    }
+
+    private class TeeVideoEncoder implements VideoEncoder {
+        private final VideoEncoder encoder;
+        private final String codecName;
+        private final CopyOnWriteArrayList<EncodedFrameSink> boundSinks = new CopyOnWriteArrayList<>();
+
+        TeeVideoEncoder(VideoEncoder encoder, String codecName) {
+            this.encoder = encoder;
+            this.codecName = codecName;
+        }
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback callback) {
+            return encoder.initEncode(settings, (image, codecSpecificInfo) -> {
+                for (EncodedFrameSink sink : boundSinks) {
+                    try {
+                        sink.onEncodedFrame(image, codecName, image.captureTimeNs);
+                    } catch (RuntimeException e) {
+                        Logging.e(TAG, "Encoded frame sink failed", e);
+                    }
+                }
+                callback.onEncodedFrame(image, codecSpecificInfo);
+            });
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            bindSinks(frame.getTimestampNs());
+            boolean keyFrame = false;
+            for (EncodedFrameSink sink : boundSinks) {
+                keyFrame |= sink.needsKeyFrame();
+            }
+            return encoder.encode(frame, keyFrame ? new EncodeInfo(KEY_FRAME) : info);
+        }
+
+        private void bindSinks(long timestampNs) {
+            for (EncodedFrameSink sink : sinks) {
+                if (boundSinks.contains(sink) || !sink.isRecordedFrame(timestampNs)) {
+                    continue;
+                }
+                synchronized (sinks) {
+                    if (sinks.contains(sink) && !bindings.containsKey(sink)) {
+                        bindings.put(sink, this);
+                        boundSinks.add(sink);
+                        Logging.d(TAG, "Recording from " + encoder.getImplementationName() + " (" + codecName + ")");
+                    }
+                }
+            }
+            if (!boundSinks.isEmpty()) {
+                // Sinks that were removed meanwhile
+                for (EncodedFrameSink sink : boundSinks) {
+                    if (!sinks.contains(sink)) {
+                        boundSinks.remove(sink);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            synchronized (sinks) {
+                // Let the sinks follow the track to the encoder that replaces this one
+                for (EncodedFrameSink sink : boundSinks) {
+                    if (bindings.get(sink) == this) {
+                        bindings.remove(sink);
+                    }
+                }
+                boundSinks.clear();
+            }
+            return encoder.release();
+        }
+
+        @Override
+        public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+            return encoder.setRateAllocation(allocation, framerate);
+        }
+
+        @Override
+        public ScalingSettings getScalingSettings() {
+            return encoder.getScalingSettings();
+        }
+
+        @Override
+        public ResolutionBitrateLimits[] getResolutionBitrateLimits() {
+            return encoder.getResolutionBitrateLimits();
+        }
+
+        @Override
+        public boolean isHardwareEncoder() {
+            return encoder.isHardwareEncoder();
+        }
+
+        @Override
+        public String getImplementationName() {
+            return encoder.getImplementationName();
+        }
+    }
+}
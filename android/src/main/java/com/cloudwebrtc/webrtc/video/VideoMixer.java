@@ -13,6 +13,8 @@ import android.view.Surface;
 import com.cloudwebrtc.webrtc.GetUserMediaImpl;
 import com.cloudwebrtc.webrtc.audio.AudioMixerController;
 import com.cloudwebrtc.webrtc.muxer.BaseMuxer;
+import com.cloudwebrtc.webrtc.muxer.BitrateController;
+import com.cloudwebrtc.webrtc.muxer.MediaClock;
 import com.cloudwebrtc.webrtc.muxer.VideoEncoder;
 import com.cloudwebrtc.webrtc.utils.EglUtils;
 
@@ -76,6 +78,8 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
     private final EglSurfaceCreation eglSurfaceCreationRunnable = new EglSurfaceCreation();
 
     private boolean started;
+    // Render thread only: sinks are detached and no frame is grabbed while paused
+    private boolean paused;
 
 
     private boolean hasReceivedFirstFrame;
@@ -87,7 +91,17 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
     private Size size;
     private int bitrate;
 
+    // Adaptive bitrate is enabled when both limits are set.
+    private int minBitrate;
+    private int maxBitrate;
+    private BitrateController bitrateController;
+    // Session clock shared with the audio encoder; frames are stamped by surface latch time without one.
+    private volatile MediaClock mediaClock;
+
     private VideoEncoder encoder;
+    // When true the encoder delivers output from its own callback thread and renderFrames()
+    // never waits on encoder output.
+    private boolean asyncEncoding;
     private AudioMixerController mAudioMixerController;
     private class EglSurfaceCreation implements Runnable {
         private Object surface;
@@ -157,7 +171,7 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
             if (DEBUG) logD("Grabbing frame ...");
             renderFrames();
             synchronized (handlerLock) {
-                if (renderThreadHandler != null) {
+                if (renderThreadHandler != null && !paused) {
                     renderThreadHandler.removeCallbacks(frameGrabberRunnable);
                     scheduleFrameGrabber();
                 }
@@ -216,17 +230,60 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
         }
     }
 
+    public void setAsyncEncoding(boolean asyncEncoding) {
+        this.asyncEncoding = asyncEncoding;
+    }
+
+    /**
+     * Enables adaptive bitrate between |minBitrate| and |maxBitrate|, starting from the bitrate
+     * passed to the constructor for a single tile. Must be called before start().
+     */
+    public void setBitrateLimits(int minBitrate, int maxBitrate) {
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+    }
+
+    public void setMediaClock(MediaClock mediaClock) {
+        this.mediaClock = mediaClock;
+    }
+
     public void start(final BaseMuxer muxer) {
+        start(muxer, null);
+    }
+
+    /**
+     * Starts mixing into |muxer|. When |preparedEncoder| is not null it is used instead of
+     * creating one on the render thread; it must match the size and frame rate of this mixer and
+     * not be bound to a muxer yet.
+     */
+    public void start(final BaseMuxer muxer, final VideoEncoder preparedEncoder) {
         postToRenderThread(new Runnable() {
             @Override
             public void run() {
                 try{
                     if (started) return;
-                    encoder = new VideoEncoder(size.getWidth(), size.getHeight(), bitrate, fps, muxer);
+                    int initialBitrate = bitrate;
+                    if (minBitrate > 0 && maxBitrate > 0) {
+                        bitrateController = new BitrateController(bitrate, minBitrate, maxBitrate);
+                        bitrateController.setTileCount(renderers.size());
+                        initialBitrate = bitrateController.getLayoutBitrate();
+                    }
+                    if (preparedEncoder != null) {
+                        encoder = preparedEncoder;
+                        encoder.setMuxer(muxer);
+                        if (initialBitrate != bitrate) {
+                            encoder.setBitrate(initialBitrate);
+                        }
+                    } else {
+                        encoder = new VideoEncoder(size.getWidth(), size.getHeight(), initialBitrate, fps, muxer, asyncEncoding);
+                    }
+                    encoder.setBitrateController(bitrateController);
                     eglBase.createSurface(encoder.getInputSurface());
                     GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
                     updateLayout();
-                    scheduleFrameGrabber();
+                    if (!paused) {
+                        scheduleFrameGrabber();
+                    }
                     started = true;
                 } catch (Exception e) {
 
@@ -239,6 +296,52 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
         release();
     }
 
+    /**
+     * Stops grabbing frames and detaches from the tracks, so nothing is drawn or encoded until
+     * {@link #resume()}. The gap is taken out of the timeline by the media clock.
+     */
+    public void pause() {
+        postToRenderThread(() -> {
+            if (paused) {
+                return;
+            }
+            paused = true;
+            synchronized (handlerLock) {
+                if (renderThreadHandler != null) {
+                    renderThreadHandler.removeCallbacks(frameGrabberRunnable);
+                }
+            }
+            for (VideoMixerRenderer renderer : renderers) {
+                VideoTrack track = renderer.getTrack();
+                if (track != null) {
+                    track.removeSink(renderer);
+                }
+            }
+        });
+    }
+
+    /**
+     * Attaches to the tracks again and starts the resumed part with a key frame.
+     */
+    public void resume() {
+        postToRenderThread(() -> {
+            if (!paused) {
+                return;
+            }
+            paused = false;
+            for (VideoMixerRenderer renderer : renderers) {
+                VideoTrack track = renderer.getTrack();
+                if (track != null) {
+                    track.addSink(renderer);
+                }
+            }
+            if (started) {
+                encoder.requestSyncFrame();
+                scheduleFrameGrabber();
+            }
+        });
+    }
+
     private void scheduleFrameGrabber() {
         long frameRate = 1000/ fps;
         if (DEBUG) logD("FRAME RATE : "+frameRate);
@@ -267,6 +370,10 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
                 renderer = new VideoMixerRenderer(label, track, local);
                 renderer.setMirrorHorizontally(isMirror);
                 renderer.init((EglBase14.Context) EglUtils.getRootEglBaseContext(), EglBase.CONFIG_RECORDABLE);
+                if (paused) {
+                    // Attached by resume()
+                    track.removeSink(renderer);
+                }
                 renderers.add(renderer);
                 if (DEBUG) logD("ADDED VIDEO TRACK");
                 updateLayout();
@@ -295,6 +402,10 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
 
     private void updateLayout() {
 
+        if (bitrateController != null) {
+            bitrateController.setTileCount(renderers.size());
+        }
+
         if (eglBase == null || !eglBase.hasSurface()) {
             if (DEBUG) logD("Can't update layout - No surface");
             return;
@@ -471,6 +582,16 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
             if (DEBUG) logD("Can't update layout - No surface");
             return;
         }
+        long presentationTimeNs = -1;
+        MediaClock clock = mediaClock;
+        if (clock != null) {
+            long ptsUs = clock.getVideoPts(fps);
+            if (ptsUs < 0) {
+                // Paused, or this frame slot is already encoded
+                return;
+            }
+            presentationTimeNs = ptsUs * 1000;
+        }
         eglBase.makeCurrent();
 
         GLES20.glClearColor(0 /* red */, 0 /* green */, 0 /* blue */, 0 /* alpha */);
@@ -478,7 +599,11 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
         for(VideoMixerRenderer renderer : renderers) {
             renderer.renderFrame();
         }
-        eglBase.swapBuffers();
+        if (presentationTimeNs >= 0) {
+            eglBase.swapBuffers(presentationTimeNs);
+        } else {
+            eglBase.swapBuffers();
+        }
         encoder.drainEncoder(false);
         if (!hasReceivedFirstFrame) {
             hasReceivedFirstFrame = true;
@@ -507,7 +632,7 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
             }
             renderer.setMirrorHorizontally(isFacing);
             VideoTrack track = renderer.getTrack();
-            if (track != null) {
+            if (track != null && !paused) {
                 track.addSink(renderer);
             }
         });
@@ -520,7 +645,7 @@ public class VideoMixer implements GetUserMediaImpl.CameraSwitchCallback{
                 return;
             }
             VideoTrack track = renderer.getTrack();
-            if (track != null) {
+            if (track != null && !paused) {
                 track.addSink(renderer);
             }
         });
@@ -0,0 +1,113 @@
+package com.cloudwebrtc.webrtc.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PcmConverterTest {
+    // Uneven splits, some ending between two output frames
+    private static final int[] SPLITS = {5, 1, 97, 5, 333, 2, 41};
+
+    @Test
+    public void downmixesAndDecimates() {
+        short[] input = stereoRamp(480);
+        PcmConverter converter = new PcmConverter(16000, 1);
+
+        int count = converter.convert(toBytes(input), 48000, 2);
+
+        assertEquals(160, count);
+        short[] output = converter.getOutput();
+        for (int i = 0; i < count; i++) {
+            int frame = 3 * i;
+            assertEquals("frame " + i, (input[2 * frame] + input[2 * frame + 1]) / 2, output[i]);
+        }
+    }
+
+    @Test
+    public void decimationIsContinuousAcrossBuffers() {
+        short[] input = stereoRamp(sum(SPLITS));
+
+        assertArrayEquals(convertWhole(input, 48000, 2, 16000, 1),
+                convertSplit(input, 48000, 2, 16000, 1, false));
+    }
+
+    @Test
+    public void interpolationIsContinuousAcrossBuffers() {
+        short[] input = stereoRamp(sum(SPLITS));
+
+        short[] whole = convertWhole(input, 24000, 2, 16000, 1);
+        // One output frame every 1.5 input frames, starting on the first one
+        assertEquals(2 * (sum(SPLITS) - 1) / 3 + 1, whole.length);
+        assertArrayEquals(whole, convertSplit(input, 24000, 2, 16000, 1, false));
+        assertArrayEquals(whole, convertSplit(input, 24000, 2, 16000, 1, true));
+    }
+
+    @Test
+    public void restartsOnFormatChange() {
+        short[] input = stereoRamp(100);
+        PcmConverter converter = new PcmConverter(16000, 1);
+        converter.convert(toBytes(Arrays.copyOf(input, 10)), 24000, 2);
+
+        int count = converter.convert(toBytes(input), 48000, 2);
+
+        short[] expected = convertWhole(input, 48000, 2, 16000, 1);
+        assertArrayEquals(expected, Arrays.copyOf(converter.getOutput(), count));
+    }
+
+    private static short[] convertWhole(short[] input, int inputRate, int inputChannels,
+                                        int outputRate, int outputChannels) {
+        PcmConverter converter = new PcmConverter(outputRate, outputChannels);
+        int count = converter.convert(toBytes(input), inputRate, inputChannels);
+        return Arrays.copyOf(converter.getOutput(), count);
+    }
+
+    private static short[] convertSplit(short[] input, int inputRate, int inputChannels,
+                                        int outputRate, int outputChannels, boolean byteBuffers) {
+        PcmConverter converter = new PcmConverter(outputRate, outputChannels);
+        short[] result = new short[0];
+        int start = 0;
+        for (int frames : SPLITS) {
+            byte[] bytes = toBytes(Arrays.copyOfRange(input, start * inputChannels, (start + frames) * inputChannels));
+            int count = byteBuffers
+                    ? converter.convert(ByteBuffer.wrap(bytes), inputRate, inputChannels)
+                    : converter.convert(bytes, inputRate, inputChannels);
+            int length = result.length;
+            result = Arrays.copyOf(result, length + count);
+            System.arraycopy(converter.getOutput(), 0, result, length, count);
+            start += frames;
+        }
+        return result;
+    }
+
+    /**
+     * Left and right channels ramping in opposite directions, so that a wrong channel or an
+     * offset frame shows up.
+     */
+    private static short[] stereoRamp(int frames) {
+        short[] samples = new short[2 * frames];
+        for (int i = 0; i < frames; i++) {
+            samples[2 * i] = (short) (i * 37 - 16000);
+            samples[2 * i + 1] = (short) (16000 - i * 11);
+        }
+        return samples;
+    }
+
+    private static byte[] toBytes(short[] samples) {
+        ByteBuffer bytes = ByteBuffer.allocate(2 * samples.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(samples);
+        return bytes.array();
+    }
+
+    private static int sum(int[] values) {
+        int sum = 0;
+        for (int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,54 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class Amf0Test {
+
+    @Test
+    public void roundTripsCommandValues() {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("app", "live");
+        properties.put("audioCodecs", 3191);
+        properties.put("fpad", false);
+        byte[] encoded = new Amf0.Writer().string("connect").number(1).value(properties).nul().toByteArray();
+
+        List<Object> decoded = Amf0.decodeAll(ByteBuffer.wrap(encoded));
+
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("app", "live");
+        expected.put("audioCodecs", 3191.0);
+        expected.put("fpad", false);
+        assertEquals(Arrays.asList("connect", 1.0, expected, null), decoded);
+    }
+
+    @Test
+    public void writesMapsWithAnyKeyTypeAsObjects() {
+        Map<Integer, Object> properties = new LinkedHashMap<>();
+        properties.put(1, "one");
+
+        List<Object> decoded = Amf0.decodeAll(ByteBuffer.wrap(new Amf0.Writer().value(properties).toByteArray()));
+
+        Map<String, Object> expected = new LinkedHashMap<>();
+        expected.put("1", "one");
+        assertEquals(Arrays.asList(expected), decoded);
+    }
+
+    @Test
+    public void decodesEcmaArraysAndStrictArrays() {
+        Map<String, Object> metaData = new LinkedHashMap<>();
+        metaData.put("width", 640.0);
+        byte[] ecmaArray = new Amf0.Writer().ecmaArray(metaData).toByteArray();
+        byte[] strictArray = {0x0a, 0, 0, 0, 2, 0x05, 0x01, 0x01};
+
+        assertEquals(metaData, Amf0.decode(ByteBuffer.wrap(ecmaArray)));
+        assertEquals(Arrays.asList(null, true), Amf0.decode(ByteBuffer.wrap(strictArray)));
+    }
+}
@@ -0,0 +1,103 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BitrateControllerTest {
+    private static final int FPS = 30;
+    private static final int BASE = 1000000;
+
+    private final List<Integer> mChanges = new ArrayList<>();
+    private BitrateController mController;
+    private int mQueueDepth;
+    private long mFrame;
+
+    @Before
+    public void setUp() {
+        mController = new BitrateController(BASE, 100000, 20000000);
+        mController.setListener(mChanges::add);
+        mController.setQueueDepthSource(() -> mQueueDepth);
+        // Opens the first measurement window, so that every second below closes one
+        mController.onEncodedFrame(0, 0);
+    }
+
+    @Test
+    public void singleSaturatedWindowKeepsBitrate() {
+        runSeconds(1f, 2);
+        runSeconds(0.75f, 1);
+        runSeconds(1f, 2);
+
+        assertEquals(BASE, mController.getBitrate());
+        assertTrue(mChanges.isEmpty());
+    }
+
+    @Test
+    public void sustainedSaturationStopsAtMultipleOfLayout() {
+        runSeconds(1f, 3);
+        assertEquals((int) (BASE * 1.25f), mController.getBitrate());
+
+        runSeconds(1f, 60);
+        int bitrate = mController.getBitrate();
+        assertTrue("bounded by the layout, not the ceiling: " + bitrate,
+                bitrate > 1.9f * BASE && bitrate <= 2 * BASE);
+        assertEquals(bitrate, (int) mChanges.get(mChanges.size() - 1));
+    }
+
+    @Test
+    public void backlogPreventsIncrease() {
+        mQueueDepth = 1;
+        runSeconds(1f, 10);
+
+        assertEquals(BASE, mController.getBitrate());
+    }
+
+    @Test
+    public void congestionBacksOff() {
+        mQueueDepth = 8;
+        runSeconds(1f, 1);
+
+        assertEquals((int) (BASE * 0.8f), mController.getBitrate());
+    }
+
+    @Test
+    public void undershootLowersToMeasuredWithHeadroom() {
+        runSeconds(0.3f, 1);
+
+        int bitrate = mController.getBitrate();
+        assertTrue("was " + bitrate, Math.abs(bitrate - BASE * 0.45f) < BASE * 0.01f);
+    }
+
+    @Test
+    public void layoutChangeAppliesAtOnceAndRestartsSaturationCount() {
+        runSeconds(1f, 2);
+        mController.setTileCount(3);
+        runSeconds(1f, 1);
+
+        assertEquals(2 * BASE, mController.getLayoutBitrate());
+        assertEquals(2 * BASE, mController.getBitrate());
+        assertEquals(1, mChanges.size());
+
+        // The layout change restarted measurement, the windows before it no longer count
+        runSeconds(1f, 2);
+        assertEquals(2 * BASE, mController.getBitrate());
+        runSeconds(1f, 1);
+        assertEquals((int) (2 * BASE * 1.25f), mController.getBitrate());
+    }
+
+    /**
+     * Encodes |seconds| of content using |ratio| of the current bitrate.
+     */
+    private void runSeconds(float ratio, int seconds) {
+        for (int i = 0; i < seconds * FPS; i++) {
+            mFrame++;
+            int size = (int) (mController.getBitrate() * ratio / 8 / FPS);
+            mController.onEncodedFrame(size, mFrame * 1000000L / FPS);
+        }
+    }
+}
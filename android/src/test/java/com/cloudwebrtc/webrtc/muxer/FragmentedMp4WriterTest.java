@@ -0,0 +1,182 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x11, (byte) 0x88};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private static final long VIDEO_FRAME_US = 40000;
+    private static final int VIDEO_FRAMES_PER_FRAGMENT = 25;
+    private static final long AUDIO_FRAME_US = 20000;
+    private static final int AUDIO_FRAMES_PER_FRAGMENT = 50;
+    private static final int FRAGMENTS = 3;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesHeaderWithoutSamples() throws IOException {
+        ByteBuffer file = write(false);
+
+        assertEquals("ftyp", Mp4Boxes.list(file).get(0).type);
+        Mp4Boxes.Box moov = Mp4Boxes.find(file, "moov");
+        List<Mp4Boxes.Box> children = Mp4Boxes.children(file, moov);
+        assertEquals(Arrays.asList("mvhd", "trak", "trak", "mvex"), Mp4Boxes.types(children));
+
+        Mp4Boxes.Box stbl = Mp4Boxes.find(file, "moov", "trak", "mdia", "minf", "stbl");
+        Mp4Boxes.Box stsd = Mp4Boxes.find(Mp4Boxes.children(file, stbl), "stsd");
+        // Full box header and entry count, then the sample entry
+        assertEquals("avc1", Mp4Boxes.type(file, stsd.body + 12));
+        Mp4Boxes.Box stts = Mp4Boxes.find(Mp4Boxes.children(file, stbl), "stts");
+        assertEquals(0, file.getInt(stts.body + 4));
+
+        List<Mp4Boxes.Box> trex = Mp4Boxes.children(file, Mp4Boxes.find(children, "mvex"));
+        assertEquals(2, trex.size());
+        assertEquals(1, file.getInt(trex.get(0).body + 4));
+        assertEquals(2, file.getInt(trex.get(1).body + 4));
+    }
+
+    @Test
+    public void fragmentsStartOnVideoSyncSamples() throws IOException {
+        ByteBuffer file = write(true);
+
+        List<Mp4Boxes.Box> boxes = Mp4Boxes.list(file);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"),
+                Mp4Boxes.types(boxes));
+
+        for (int f = 0; f < FRAGMENTS; f++) {
+            Mp4Boxes.Box moof = boxes.get(2 + 2 * f);
+            Mp4Boxes.Box mdat = boxes.get(3 + 2 * f);
+            List<Mp4Boxes.Box> children = Mp4Boxes.children(file, moof);
+            assertEquals(Arrays.asList("mfhd", "traf", "traf"), Mp4Boxes.types(children));
+            assertEquals(f + 1, file.getInt(children.get(0).body + 4));
+
+            int videoBytes = checkTraf(file, moof, children.get(1), 1, 90000 * f,
+                    VIDEO_FRAMES_PER_FRAGMENT, 3600, f * VIDEO_FRAMES_PER_FRAGMENT, true);
+            int audioBytes = checkTraf(file, moof, children.get(2), 2, 48000 * f,
+                    AUDIO_FRAMES_PER_FRAGMENT, 960, f * AUDIO_FRAMES_PER_FRAGMENT, false);
+            assertEquals(videoBytes + audioBytes, mdat.end - mdat.body);
+        }
+    }
+
+    /**
+     * Checks a 'traf' box and the samples its 'trun' points at, returning their total size.
+     */
+    private static int checkTraf(ByteBuffer file, Mp4Boxes.Box moof, Mp4Boxes.Box traf, int trackId,
+                                 long baseDecodeTime, int sampleCount, int sampleDuration,
+                                 int firstSample, boolean video) {
+        List<Mp4Boxes.Box> children = Mp4Boxes.children(file, traf);
+        assertEquals(Arrays.asList("tfhd", "tfdt", "trun"), Mp4Boxes.types(children));
+
+        Mp4Boxes.Box tfhd = children.get(0);
+        assertEquals("default-base-is-moof", 0x020000, file.getInt(tfhd.body));
+        assertEquals(trackId, file.getInt(tfhd.body + 4));
+
+        Mp4Boxes.Box tfdt = children.get(1);
+        assertEquals("version 1", 1, file.get(tfdt.body));
+        assertEquals(baseDecodeTime, file.getLong(tfdt.body + 4));
+
+        Mp4Boxes.Box trun = children.get(2);
+        assertEquals(0x000701, file.getInt(trun.body));
+        assertEquals(sampleCount, file.getInt(trun.body + 4));
+        int dataPos = moof.start + file.getInt(trun.body + 8);
+        int entry = trun.body + 12;
+        int total = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            int index = firstSample + i;
+            byte[] expected = video ? avccFrame(index) : audioFrame(index);
+            assertEquals(sampleDuration, file.getInt(entry));
+            assertEquals(expected.length, file.getInt(entry + 4));
+            boolean sync = !video || i == 0;
+            assertEquals(sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC, file.getInt(entry + 8));
+
+            byte[] actual = new byte[expected.length];
+            ByteBuffer view = file.duplicate();
+            view.position(dataPos);
+            view.get(actual);
+            assertArrayEquals("sample " + index + " of track " + trackId, expected, actual);
+            dataPos += expected.length;
+            entry += 12;
+            total += expected.length;
+        }
+        assertEquals(trun.end, entry);
+        return total;
+    }
+
+    private ByteBuffer write(boolean withSamples) throws IOException {
+        Path path = folder.newFile("out.mp4").toPath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, 1000000,
+                    FragmentedMp4Writer.DEFAULT_MAX_FRAGMENT_BYTES);
+            int video = writer.addVideoTrack(640, 480, SPS, PPS);
+            int audio = writer.addAudioTrack(48000, 1, AUDIO_SPECIFIC_CONFIG);
+            writer.start();
+            if (withSamples) {
+                int audioFrames = FRAGMENTS * AUDIO_FRAMES_PER_FRAGMENT;
+                int nextAudio = 0;
+                for (int i = 0; i < FRAGMENTS * VIDEO_FRAMES_PER_FRAGMENT; i++) {
+                    long ptsUs = i * VIDEO_FRAME_US;
+                    boolean keyFrame = i % VIDEO_FRAMES_PER_FRAGMENT == 0;
+                    ByteBuffer frame = ByteBuffer.wrap(annexBFrame(i, keyFrame));
+                    writer.writeSample(video, frame, 0, frame.limit(), ptsUs, keyFrame);
+                    // Audio up to the next video frame, after video on equal timestamps
+                    while (nextAudio < audioFrames && nextAudio * AUDIO_FRAME_US < ptsUs + VIDEO_FRAME_US) {
+                        ByteBuffer samples = ByteBuffer.wrap(audioFrame(nextAudio));
+                        writer.writeSample(audio, samples, 0, samples.limit(), nextAudio * AUDIO_FRAME_US, true);
+                        nextAudio++;
+                    }
+                }
+            }
+            writer.finish();
+        }
+        return Mp4Boxes.read(path);
+    }
+
+    private static byte[] videoNal(int index) {
+        boolean keyFrame = index % VIDEO_FRAMES_PER_FRAGMENT == 0;
+        // No zero bytes, so that no start code can show up in the payload
+        return keyFrame
+                ? new byte[] {0x65, (byte) (index + 16), 1, 2, 3}
+                : new byte[] {0x41, (byte) (index + 16), 4, 5};
+    }
+
+    private static byte[] annexBFrame(int index, boolean keyFrame) {
+        byte[] nal = videoNal(index);
+        ByteBuffer frame = ByteBuffer.allocate(
+                (keyFrame ? 8 + SPS.length + PPS.length : 0) + 4 + nal.length);
+        if (keyFrame) {
+            // Parameter sets are carried in avcC and must be dropped from the samples
+            frame.put(START_CODE).put(SPS).put(START_CODE).put(PPS);
+        }
+        frame.put(START_CODE).put(nal);
+        return frame.array();
+    }
+
+    private static byte[] avccFrame(int index) {
+        byte[] nal = videoNal(index);
+        return ByteBuffer.allocate(4 + nal.length).putInt(nal.length).put(nal).array();
+    }
+
+    private static byte[] audioFrame(int index) {
+        return new byte[] {(byte) (index + 16), 0x21, 0x22};
+    }
+}
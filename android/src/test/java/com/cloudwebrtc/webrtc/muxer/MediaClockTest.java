@@ -0,0 +1,140 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MediaClockTest {
+    private static final int SAMPLE_RATE = 48000;
+    // 10 ms buffers
+    private static final int SAMPLES = 480;
+
+    private long mNowNs = 5000000000L;
+    private MediaClock mClock;
+
+    @Before
+    public void setUp() {
+        mClock = new MediaClock(() -> mNowNs);
+        mClock.start();
+    }
+
+    @Test
+    public void removesPausedTimeFromTimeline() {
+        advanceMs(1000);
+        mClock.pause();
+        long pausedAtNs = mNowNs;
+        advanceMs(5000);
+
+        assertEquals("frozen while paused", 1000000, mClock.getMediaTimeUs());
+        assertEquals(-1, mClock.getAudioPts(SAMPLES, SAMPLE_RATE));
+        assertEquals(-1, mClock.getVideoPts(30));
+        assertEquals(-1, mClock.toMediaTimeUs(mNowNs));
+
+        mClock.resume();
+        advanceMs(1000);
+
+        assertEquals(2000000, mClock.getMediaTimeUs());
+        assertEquals(2000000, mClock.toMediaTimeUs(mNowNs));
+        assertEquals("captured before the resume", -1, mClock.toMediaTimeUs(pausedAtNs + 1000000));
+        assertEquals(5000000, mClock.getStats().pausedUs);
+    }
+
+    @Test
+    public void pausedTimeAccumulatesOverSeveralPauses() {
+        for (int i = 0; i < 3; i++) {
+            advanceMs(100);
+            mClock.pause();
+            // Pausing twice doesn't restart the pause
+            advanceMs(200);
+            mClock.pause();
+            advanceMs(200);
+            mClock.resume();
+        }
+
+        assertEquals(300000, mClock.getMediaTimeUs());
+        assertEquals(1200000, mClock.getStats().pausedUs);
+    }
+
+    @Test
+    public void keepsAudioAndVideoContinuousAcrossPause() {
+        long audioPtsUs = -1;
+        long videoPtsUs = -1;
+        for (int i = 0; i < 100; i++) {
+            advanceMs(10);
+            audioPtsUs = mClock.getAudioPts(SAMPLES, SAMPLE_RATE);
+            long ptsUs = mClock.getVideoPts(30);
+            if (ptsUs >= 0) {
+                videoPtsUs = ptsUs;
+            }
+        }
+        mClock.pause();
+        advanceMs(5000);
+        mClock.resume();
+        advanceMs(10);
+
+        assertEquals("next audio buffer", audioPtsUs + 10000, mClock.getAudioPts(SAMPLES, SAMPLE_RATE));
+        advanceMs(30);
+        assertEquals("next video slot", videoPtsUs + 33333, mClock.getVideoPts(30));
+        MediaClock.Stats stats = mClock.getStats();
+        assertEquals(0, stats.audioResyncs);
+        assertEquals(0, stats.videoSlotsSkipped);
+    }
+
+    @Test
+    public void steersSmallAudioDriftGradually() {
+        // The audio clock runs fast: 481 samples are captured every 10 ms
+        long lastPtsUs = -1;
+        for (int i = 0; i < 1000; i++) {
+            advanceMs(10);
+            long ptsUs = mClock.getAudioPts(SAMPLES + 1, SAMPLE_RATE);
+            if (lastPtsUs >= 0) {
+                long stepUs = ptsUs - lastPtsUs;
+                assertTrue("buffer " + i + " moved " + stepUs + " us", Math.abs(stepUs - 10020) <= 100);
+            }
+            lastPtsUs = ptsUs;
+        }
+
+        MediaClock.Stats stats = mClock.getStats();
+        assertEquals(0, stats.audioResyncs);
+        // Unsteered, the drift would have reached 208 ms
+        assertTrue("max drift " + stats.maxAudioDriftUs, stats.maxAudioDriftUs <= 21000);
+    }
+
+    @Test
+    public void resyncsAudioAfterGap() {
+        for (int i = 0; i < 10; i++) {
+            advanceMs(10);
+            assertEquals(10000 * i, mClock.getAudioPts(SAMPLES, SAMPLE_RATE));
+        }
+        // Buffers went missing
+        advanceMs(500);
+
+        long ptsUs = mClock.getAudioPts(SAMPLES, SAMPLE_RATE);
+
+        assertEquals("placed at its capture time", mClock.getMediaTimeUs() - 10000, ptsUs);
+        assertEquals(1, mClock.getStats().audioResyncs);
+    }
+
+    @Test
+    public void rejectsVideoFrameForUsedSlot() {
+        assertEquals(0, mClock.getVideoPts(30));
+        advanceMs(10);
+        assertEquals(-1, mClock.getVideoPts(30));
+        advanceMs(30);
+        assertEquals(33333, mClock.getVideoPts(30));
+        // Rendering fell behind, slots 2 and 3 stay empty
+        advanceMs(100);
+        assertEquals(133333, mClock.getVideoPts(30));
+
+        MediaClock.Stats stats = mClock.getStats();
+        assertEquals(3, stats.videoFrames);
+        assertEquals(1, stats.videoFramesRejected);
+        assertEquals(2, stats.videoSlotsSkipped);
+    }
+
+    private void advanceMs(long ms) {
+        mNowNs += ms * 1000000;
+    }
+}
@@ -0,0 +1,112 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal ISO BMFF box reader for checking muxer output in tests.
+ */
+final class Mp4Boxes {
+
+    static final class Box {
+        final String type;
+        // Offsets in the file
+        final int start;
+        final int body;
+        final int end;
+
+        Box(String type, int start, int body, int end) {
+            this.type = type;
+            this.start = start;
+            this.body = body;
+            this.end = end;
+        }
+
+        int size() {
+            return end - start;
+        }
+    }
+
+    private Mp4Boxes() {
+    }
+
+    static ByteBuffer read(Path path) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(path));
+    }
+
+    /**
+     * Lists the boxes between |start| and |end| of |file|.
+     */
+    static List<Box> list(ByteBuffer file, int start, int end) {
+        List<Box> boxes = new ArrayList<>();
+        int pos = start;
+        while (pos < end) {
+            long size = file.getInt(pos) & 0xffffffffL;
+            int header = 8;
+            if (size == 1) {
+                size = file.getLong(pos + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if (size < header || pos + size > end) {
+                throw new AssertionError("Bad box size " + size + " at " + pos);
+            }
+            boxes.add(new Box(type(file, pos + 4), pos, pos + header, (int) (pos + size)));
+            pos += size;
+        }
+        return boxes;
+    }
+
+    static List<Box> list(ByteBuffer file) {
+        return list(file, 0, file.limit());
+    }
+
+    static List<Box> children(ByteBuffer file, Box parent) {
+        return list(file, parent.body, parent.end);
+    }
+
+    /**
+     * Children of a full box, after its version and flags.
+     */
+    static List<Box> fullBoxChildren(ByteBuffer file, Box parent) {
+        return list(file, parent.body + 4, parent.end);
+    }
+
+    static Box find(List<Box> boxes, String type) {
+        for (Box box : boxes) {
+            if (box.type.equals(type)) {
+                return box;
+            }
+        }
+        throw new AssertionError("No " + type + " box");
+    }
+
+    /**
+     * Follows |path| of box types down from the top level boxes of |file|.
+     */
+    static Box find(ByteBuffer file, String... path) {
+        Box box = find(list(file), path[0]);
+        for (int i = 1; i < path.length; i++) {
+            box = find(children(file, box), path[i]);
+        }
+        return box;
+    }
+
+    static List<String> types(List<Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    static String type(ByteBuffer file, int pos) {
+        return new String(new char[] {
+                (char) file.get(pos), (char) file.get(pos + 1), (char) file.get(pos + 2), (char) file.get(pos + 3)});
+    }
+}
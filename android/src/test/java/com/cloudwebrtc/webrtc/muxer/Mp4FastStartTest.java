@@ -0,0 +1,184 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4FastStartTest {
+    private static final int FTYP_SIZE = 16;
+    private static final int CHUNK_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void movesMoovBeforeMdatAndPatchesChunkOffsets() throws IOException {
+        File input = folder.newFile("in.mp4");
+        byte[] original = buildMoovLast();
+        Files.write(input.toPath(), original);
+        File output = new File(folder.getRoot(), "out.mp4");
+
+        assertTrue(Mp4FastStart.process(input, output));
+
+        ByteBuffer in = ByteBuffer.wrap(original);
+        ByteBuffer out = Mp4Boxes.read(output.toPath());
+        assertEquals(original.length, out.limit());
+        List<Mp4Boxes.Box> boxes = Mp4Boxes.list(out);
+        assertEquals(Arrays.asList("ftyp", "moov", "mdat", "free"), Mp4Boxes.types(boxes));
+        int shift = boxes.get(1).size();
+
+        long[] oldStco = chunkOffsets(in, 0, "stco");
+        long[] newStco = chunkOffsets(out, 0, "stco");
+        long[] oldCo64 = chunkOffsets(in, 1, "co64");
+        long[] newCo64 = chunkOffsets(out, 1, "co64");
+        assertEquals(3, newStco.length);
+        assertEquals(2, newCo64.length);
+        for (int i = 0; i < newStco.length; i++) {
+            assertEquals(oldStco[i] + shift, newStco[i]);
+            assertChunkMoved(in, oldStco[i], out, newStco[i]);
+        }
+        for (int i = 0; i < newCo64.length; i++) {
+            assertEquals(oldCo64[i] + shift, newCo64[i]);
+            assertChunkMoved(in, oldCo64[i], out, newCo64[i]);
+        }
+        // Boxes after 'moov' keep their content
+        assertEquals(Mp4Boxes.list(in).get(3).size(), boxes.get(3).size());
+    }
+
+    @Test
+    public void replacesFileInPlace() throws IOException {
+        File file = folder.newFile("rec.mp4");
+        Files.write(file.toPath(), buildMoovLast());
+
+        assertTrue(Mp4FastStart.process(file));
+
+        ByteBuffer out = Mp4Boxes.read(file.toPath());
+        assertEquals(Arrays.asList("ftyp", "moov", "mdat", "free"), Mp4Boxes.types(Mp4Boxes.list(out)));
+        assertFalse(new File(folder.getRoot(), "rec.mp4.faststart").exists());
+    }
+
+    @Test
+    public void leavesFastStartFilesAlone() throws IOException {
+        File file = folder.newFile("rec.mp4");
+        Files.write(file.toPath(), buildMoovLast());
+        assertTrue(Mp4FastStart.process(file));
+        byte[] fastStart = Files.readAllBytes(file.toPath());
+
+        File output = new File(folder.getRoot(), "out.mp4");
+        assertFalse(Mp4FastStart.process(file, output));
+        assertFalse(output.exists());
+        assertArrayEquals(fastStart, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void rejectsTruncatedFiles() throws IOException {
+        byte[] original = buildMoovLast();
+        File input = folder.newFile("in.mp4");
+        Files.write(input.toPath(), Arrays.copyOf(original, original.length - 10));
+
+        assertFalse(Mp4FastStart.process(input, new File(folder.getRoot(), "out.mp4")));
+    }
+
+    private static void assertChunkMoved(ByteBuffer in, long oldOffset, ByteBuffer out, long newOffset) {
+        byte[] expected = new byte[CHUNK_SIZE];
+        byte[] actual = new byte[CHUNK_SIZE];
+        ByteBuffer view = in.duplicate();
+        view.position((int) oldOffset);
+        view.get(expected);
+        view = out.duplicate();
+        view.position((int) newOffset);
+        view.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * Chunk offsets of the |type| table of track |trak|.
+     */
+    private static long[] chunkOffsets(ByteBuffer file, int trak, String type) {
+        // 'mvhd' comes first
+        Mp4Boxes.Box track = Mp4Boxes.children(file, Mp4Boxes.find(file, "moov")).get(1 + trak);
+        Mp4Boxes.Box stbl = Mp4Boxes.find(Mp4Boxes.children(file,
+                Mp4Boxes.find(Mp4Boxes.children(file,
+                        Mp4Boxes.find(Mp4Boxes.children(file, track), "mdia")), "minf")), "stbl");
+        Mp4Boxes.Box table = Mp4Boxes.find(Mp4Boxes.children(file, stbl), type);
+        int count = file.getInt(table.body + 4);
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = "co64".equals(type)
+                    ? file.getLong(table.body + 8 + i * 8)
+                    : file.getInt(table.body + 8 + i * 4) & 0xffffffffL;
+        }
+        return offsets;
+    }
+
+    /**
+     * ftyp, mdat with five chunks, moov with one track indexing three chunks through 'stco' and
+     * one indexing two through 'co64', then a trailing 'free' box, as MediaMuxer lays it out.
+     */
+    private static byte[] buildMoovLast() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(box("ftyp", ByteBuffer.allocate(8).put("isom".getBytes()).putInt(0).array()));
+
+        byte[] media = new byte[5 * CHUNK_SIZE];
+        for (int i = 0; i < media.length; i++) {
+            media[i] = (byte) (i * 7 + i / CHUNK_SIZE);
+        }
+        file.write(box("mdat", media));
+        long mediaStart = FTYP_SIZE + 8;
+
+        long[] stco = {mediaStart, mediaStart + 2 * CHUNK_SIZE, mediaStart + 4 * CHUNK_SIZE};
+        long[] co64 = {mediaStart + CHUNK_SIZE, mediaStart + 3 * CHUNK_SIZE};
+        byte[] moov = box("moov", concat(
+                box("mvhd", new byte[100]),
+                trak(table("stco", stco)),
+                trak(table("co64", co64))));
+        file.write(moov);
+        file.write(box("free", new byte[] {1, 2, 3}));
+        return file.toByteArray();
+    }
+
+    private static byte[] trak(byte[] chunkOffsets) throws IOException {
+        byte[] stbl = box("stbl", concat(box("stsd", new byte[8]), chunkOffsets));
+        return box("trak", concat(box("tkhd", new byte[84]), box("mdia", box("minf", stbl))));
+    }
+
+    private static byte[] table(String type, long[] offsets) {
+        boolean wide = "co64".equals(type);
+        ByteBuffer body = ByteBuffer.allocate(8 + offsets.length * (wide ? 8 : 4));
+        body.putInt(0);
+        body.putInt(offsets.length);
+        for (long offset : offsets) {
+            if (wide) {
+                body.putLong(offset);
+            } else {
+                body.putInt((int) offset);
+            }
+        }
+        return box(type, body.array());
+    }
+
+    private static byte[] box(String type, byte[] body) {
+        return ByteBuffer.allocate(8 + body.length).putInt(8 + body.length).put(type.getBytes()).put(body).array();
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+}
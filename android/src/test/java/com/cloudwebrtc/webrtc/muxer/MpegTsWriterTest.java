@@ -0,0 +1,266 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MpegTsWriterTest {
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x100;
+    private static final int AUDIO_PID = 0x101;
+    private static final long PTS_OFFSET = 63000;
+
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    // AAC LC, 48 kHz, mono
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x11, (byte) 0x88};
+    private static final byte[] AUD = {0, 0, 0, 1, 9, (byte) 0xf0};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * One 188 byte transport stream packet.
+     */
+    private static final class TsPacket {
+        final int pid;
+        final boolean payloadUnitStart;
+        final int continuity;
+        final boolean randomAccess;
+        final long pcrBase;
+        final byte[] payload;
+
+        TsPacket(ByteBuffer ts, int start) {
+            assertEquals("sync byte", 0x47, ts.get(start) & 0xff);
+            payloadUnitStart = (ts.get(start + 1) & 0x40) != 0;
+            pid = ((ts.get(start + 1) & 0x1f) << 8) | (ts.get(start + 2) & 0xff);
+            int control = ts.get(start + 3) & 0xff;
+            continuity = control & 0x0f;
+            int position = start + 4;
+            boolean randomAccess = false;
+            long pcrBase = -1;
+            if ((control & 0x20) != 0) {
+                int length = ts.get(position) & 0xff;
+                if (length > 0) {
+                    int flags = ts.get(position + 1) & 0xff;
+                    randomAccess = (flags & 0x40) != 0;
+                    if ((flags & 0x10) != 0) {
+                        pcrBase = ((ts.getInt(position + 2) & 0xffffffffL) << 1) | ((ts.get(position + 6) & 0x80) >> 7);
+                    }
+                }
+                position += 1 + length;
+            }
+            this.randomAccess = randomAccess;
+            this.pcrBase = pcrBase;
+            payload = Arrays.copyOfRange(ts.array(), position, start + 188);
+        }
+    }
+
+    @Test
+    public void startsSegmentsWithProgramTables() throws IOException {
+        MpegTsWriter writer = newWriter(true, true);
+        List<TsPacket> packets = write(writer, w -> { });
+
+        assertEquals(2, packets.size());
+        TsPacket pat = packets.get(0);
+        assertEquals(0, pat.pid);
+        byte[] patSection = section(pat);
+        assertEquals("table_id", 0, patSection[0]);
+        assertEquals("program_number", 1, ((patSection[8] & 0xff) << 8) | (patSection[9] & 0xff));
+        assertEquals(PMT_PID, ((patSection[10] & 0x1f) << 8) | (patSection[11] & 0xff));
+
+        TsPacket pmt = packets.get(1);
+        assertEquals(PMT_PID, pmt.pid);
+        byte[] pmtSection = section(pmt);
+        assertEquals("table_id", 2, pmtSection[0]);
+        assertEquals("PCR_PID", VIDEO_PID, ((pmtSection[8] & 0x1f) << 8) | (pmtSection[9] & 0xff));
+        assertEquals("H.264", 0x1b, pmtSection[12]);
+        assertEquals(VIDEO_PID, ((pmtSection[13] & 0x1f) << 8) | (pmtSection[14] & 0xff));
+        assertEquals("AAC", 0x0f, pmtSection[17]);
+        assertEquals(AUDIO_PID, ((pmtSection[18] & 0x1f) << 8) | (pmtSection[19] & 0xff));
+    }
+
+    @Test
+    public void packetizesKeyFrameWithParameterSets() throws IOException {
+        byte[] idr = nal(0x65, 1000);
+        byte[] frame = concat(START_CODE, idr);
+        MpegTsWriter writer = newWriter(true, true);
+        List<TsPacket> packets = write(writer, w -> w.writeVideo(ByteBuffer.wrap(frame), 0, frame.length, 1000000, true));
+
+        List<TsPacket> video = packets(packets, VIDEO_PID);
+        assertTrue(video.get(0).payloadUnitStart);
+        assertTrue(video.get(0).randomAccess);
+        // The PCR is the unshifted time, so that it leads the PTS
+        assertEquals(90000, video.get(0).pcrBase);
+        for (int i = 1; i < video.size(); i++) {
+            assertFalse(video.get(i).payloadUnitStart);
+            assertEquals(-1, video.get(i).pcrBase);
+        }
+
+        byte[] pes = reassemble(video);
+        assertArrayEquals(new byte[] {0, 0, 1, (byte) 0xe0, 0, 0}, Arrays.copyOf(pes, 6));
+        assertEquals("PTS only", 0x80, pes[7] & 0xff);
+        assertEquals(90000 + PTS_OFFSET, pts(pes));
+        assertArrayEquals(concat(AUD, START_CODE, SPS, START_CODE, PPS, frame),
+                Arrays.copyOfRange(pes, 9 + pes[8], pes.length));
+    }
+
+    @Test
+    public void packetizesAudioWithAdtsHeaders() throws IOException {
+        byte[] aac = nal(0x21, 300);
+        MpegTsWriter writer = newWriter(false, true);
+        List<TsPacket> packets = write(writer, w -> w.writeAudio(ByteBuffer.wrap(aac), 0, aac.length, 20000));
+
+        byte[] pmtSection = section(packets.get(1));
+        assertEquals("PCR_PID", AUDIO_PID, ((pmtSection[8] & 0x1f) << 8) | (pmtSection[9] & 0xff));
+        List<TsPacket> audio = packets(packets, AUDIO_PID);
+        assertEquals("audio carries the PCR without video", 1800, audio.get(0).pcrBase);
+
+        byte[] pes = reassemble(audio);
+        assertEquals((byte) 0xc0, pes[3]);
+        int pesLength = ((pes[4] & 0xff) << 8) | (pes[5] & 0xff);
+        assertEquals(pes.length - 6, pesLength);
+        assertEquals(1800 + PTS_OFFSET, pts(pes));
+        byte[] adts = Arrays.copyOfRange(pes, 14, 21);
+        assertEquals(0xff, adts[0] & 0xff);
+        assertEquals(0xf1, adts[1] & 0xff);
+        assertEquals("AAC LC", 1, (adts[2] & 0xc0) >> 6);
+        assertEquals("48 kHz", 3, (adts[2] & 0x3c) >> 2);
+        int frameLength = ((adts[3] & 0x03) << 11) | ((adts[4] & 0xff) << 3) | ((adts[5] & 0xe0) >> 5);
+        assertEquals(aac.length + 7, frameLength);
+        assertArrayEquals(aac, Arrays.copyOfRange(pes, 21, pes.length));
+    }
+
+    @Test
+    public void continuityCountersRunAcrossSegments() throws IOException {
+        MpegTsWriter writer = newWriter(true, true);
+        List<TsPacket> packets = write(writer, w -> {
+            for (int i = 0; i < 20; i++) {
+                byte[] frame = concat(START_CODE, nal(i == 0 ? 0x65 : 0x41, 150 + 40 * i));
+                w.writeVideo(ByteBuffer.wrap(frame), 0, frame.length, i * 40000L, i == 0);
+                byte[] aac = nal(0x21, 100);
+                w.writeAudio(ByteBuffer.wrap(aac), 0, aac.length, i * 40000L);
+            }
+        });
+        packets.addAll(write(writer, w -> {
+            byte[] frame = concat(START_CODE, nal(0x65, 500));
+            w.writeVideo(ByteBuffer.wrap(frame), 0, frame.length, 800000, true);
+        }));
+
+        Map<Integer, Integer> next = new HashMap<>();
+        for (TsPacket packet : packets) {
+            Integer expected = next.get(packet.pid);
+            if (expected != null) {
+                assertEquals("continuity of PID " + packet.pid, (int) expected, packet.continuity);
+            }
+            next.put(packet.pid, (packet.continuity + 1) & 0x0f);
+        }
+        // Program tables at the start of both segments
+        assertEquals(2, packets(packets, 0).size());
+        assertEquals(2, packets(packets, PMT_PID).size());
+    }
+
+    private MpegTsWriter newWriter(boolean video, boolean audio) {
+        MpegTsWriter writer = new MpegTsWriter(video, audio);
+        writer.setVideoConfig(SPS, PPS);
+        writer.setAudioConfig(AUDIO_SPECIFIC_CONFIG);
+        return writer;
+    }
+
+    private interface Samples {
+        void write(MpegTsWriter writer) throws IOException;
+    }
+
+    /**
+     * Writes a segment starting with the program tables, followed by |samples|.
+     */
+    private List<TsPacket> write(MpegTsWriter writer, Samples samples) throws IOException {
+        Path path = folder.newFile().toPath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            writer.startSegment(channel);
+            samples.write(writer);
+            writer.flush();
+        }
+        ByteBuffer ts = ByteBuffer.wrap(Files.readAllBytes(path));
+        assertEquals(0, ts.limit() % 188);
+        List<TsPacket> packets = new ArrayList<>();
+        for (int start = 0; start < ts.limit(); start += 188) {
+            packets.add(new TsPacket(ts, start));
+        }
+        return packets;
+    }
+
+    private static List<TsPacket> packets(List<TsPacket> packets, int pid) {
+        List<TsPacket> result = new ArrayList<>();
+        for (TsPacket packet : packets) {
+            if (packet.pid == pid) {
+                result.add(packet);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The section of a PSI packet, with its CRC checked and stripped.
+     */
+    private static byte[] section(TsPacket packet) {
+        assertTrue(packet.payloadUnitStart);
+        assertEquals("pointer_field", 0, packet.payload[0]);
+        int sectionLength = ((packet.payload[2] & 0x0f) << 8) | (packet.payload[3] & 0xff);
+        byte[] section = Arrays.copyOfRange(packet.payload, 1, 1 + 3 + sectionLength);
+        assertEquals("CRC", 0, MpegTsWriter.crc32(section));
+        return Arrays.copyOf(section, section.length - 4);
+    }
+
+    private static byte[] reassemble(List<TsPacket> packets) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (TsPacket packet : packets) {
+            out.write(packet.payload, 0, packet.payload.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static long pts(byte[] pes) {
+        return ((long) (pes[9] & 0x0e) << 29) | ((pes[10] & 0xff) << 22) | ((pes[11] & 0xfe) << 14)
+                | ((pes[12] & 0xff) << 7) | ((pes[13] & 0xfe) >> 1);
+    }
+
+    /**
+     * A NAL unit of |size| bytes with |header| as first byte and no zero bytes in the payload.
+     */
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            nal[i] = (byte) (1 + i % 255);
+        }
+        return nal;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,77 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MuxerWriterTest {
+
+    @Test
+    public void keepsWritingAfterFailedTask() {
+        List<Long> written = Collections.synchronizedList(new ArrayList<Long>());
+        List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<RuntimeException>());
+        MuxerWriter writer = new MuxerWriter("test", packet -> written.add(packet.presentationTimeUs), 4, 16);
+        writer.setErrorListener(failures::add);
+        writer.start();
+
+        assertTrue(writer.submit(0, ByteBuffer.wrap(new byte[8]), 0, 8, 1, 0));
+        writer.post(() -> {
+            throw new IllegalStateException("stop failed");
+        });
+        assertTrue(writer.submit(0, ByteBuffer.wrap(new byte[8]), 0, 8, 2, 0));
+        writer.quit();
+
+        assertEquals(2, written.size());
+        assertEquals(1, failures.size());
+        assertEquals("stop failed", failures.get(0).getMessage());
+        MuxerWriter.Stats stats = writer.getStats();
+        assertEquals(2, stats.packetsWritten);
+        assertEquals(1, stats.taskErrors);
+        assertEquals(0, stats.queueDepth);
+    }
+
+    @Test
+    public void writesInSubmissionOrderThenRefusesPackets() {
+        List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+        MuxerWriter writer = new MuxerWriter("test", packet -> order.add(packet.presentationTimeUs), 2, 16);
+        writer.start();
+
+        for (int i = 0; i < 10; i++) {
+            // Waits for the pool, which only holds two packets
+            if (!writer.submit(0, ByteBuffer.wrap(new byte[4]), 0, 4, i, 0)) {
+                i--;
+            }
+        }
+        writer.post(() -> order.add(-1L));
+        writer.quit();
+
+        assertEquals(11, order.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, (long) order.get(i));
+        }
+        assertEquals(-1L, (long) order.get(10));
+        assertFalse(writer.submit(0, ByteBuffer.wrap(new byte[4]), 0, 4, 10, 0));
+    }
+
+    @Test
+    public void countsFailedWrites() {
+        MuxerWriter writer = new MuxerWriter("test", packet -> {
+            throw new IOException("disk full");
+        }, 2, 16);
+        writer.start();
+
+        assertTrue(writer.submit(0, ByteBuffer.wrap(new byte[4]), 0, 4, 0, 0));
+        writer.quit();
+
+        assertEquals(1, writer.getStats().writeErrors);
+        assertEquals(0, writer.getStats().packetsWritten);
+    }
+}
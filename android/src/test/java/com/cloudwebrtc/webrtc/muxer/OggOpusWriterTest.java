@@ -0,0 +1,198 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class OggOpusWriterTest {
+    private static final int SERIAL = 0x1234abcd;
+    // CELT, 20 ms, one frame
+    private static final byte TOC_20MS = (byte) (31 << 3);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesHeaderPages() throws IOException {
+        byte[] head = OggOpusWriter.createOpusHead(1, OggOpusWriter.DEFAULT_PRE_SKIP, 48000);
+        List<Page> pages = write(head, new byte[0][]);
+
+        assertEquals(3, pages.size());
+        Page identification = pages.get(0);
+        assertEquals("beginning of stream", 0x02, identification.headerType);
+        assertEquals(0, identification.granulePosition);
+        assertArrayEquals(head, identification.data);
+        assertEquals("OpusTags", new String(pages.get(1).data, 0, 8));
+        assertEquals(0, pages.get(1).headerType);
+        for (int i = 0; i < pages.size(); i++) {
+            assertEquals(SERIAL, pages.get(i).serial);
+            assertEquals(i, pages.get(i).sequence);
+        }
+    }
+
+    @Test
+    public void lacesPacketsIn255ByteSegments() throws IOException {
+        byte[][] packets = {packet(600), packet(510), packet(1)};
+        List<Page> pages = write(head(), packets);
+
+        Page audio = pages.get(2);
+        // A multiple of 255 is closed by an empty segment, so packets split where they should
+        assertArrayEquals(new int[]{255, 255, 90, 255, 255, 0, 1}, audio.lacing);
+        assertArrayEquals(concat(packets), audio.data);
+    }
+
+    @Test
+    public void countsGranulePositionFromPackets() throws IOException {
+        // 60 packets of 960 samples, pages close after a second
+        byte[][] packets = new byte[60][];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = packet(40);
+        }
+        List<Page> pages = write(head(), packets);
+
+        assertEquals(4, pages.size());
+        assertEquals(50, pages.get(2).lacing.length);
+        assertEquals(48000, pages.get(2).granulePosition);
+        assertEquals(57600, pages.get(3).granulePosition);
+    }
+
+    @Test
+    public void flagsOnlyLastPageAsEndOfStream() throws IOException {
+        byte[][] packets = new byte[120][];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = packet(40);
+        }
+        List<Page> pages = write(head(), packets);
+
+        for (int i = 0; i < pages.size() - 1; i++) {
+            assertEquals("page " + i, 0, pages.get(i).headerType & 0x04);
+        }
+        assertEquals(0x04, pages.get(pages.size() - 1).headerType);
+    }
+
+    @Test
+    public void countsSamplesFromToc() {
+        assertEquals(960, samples(TOC_20MS));
+        assertEquals("SILK 60 ms", 2880, samples((byte) (3 << 3)));
+        assertEquals("hybrid 10 ms", 480, samples((byte) (12 << 3)));
+        assertEquals("CELT 2.5 ms", 120, samples((byte) (16 << 3)));
+        assertEquals("two frames", 1920, samples((byte) (TOC_20MS | 1)));
+        assertEquals("code 3, five frames", 4800, samples((byte) (TOC_20MS | 3), (byte) 5));
+        assertEquals("code 3 without count", 0, samples((byte) (TOC_20MS | 3)));
+    }
+
+    /**
+     * Writes |packets| and parses the pages back, checking the CRC of each.
+     */
+    private List<Page> write(byte[] head, byte[][] packets) throws IOException {
+        File file = folder.newFile("out.opus");
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            OggOpusWriter writer = new OggOpusWriter(out.getChannel(), head, SERIAL);
+            writer.start();
+            for (byte[] packet : packets) {
+                // Not at the start of the buffer
+                ByteBuffer buffer = ByteBuffer.allocate(packet.length + 3);
+                buffer.position(3);
+                buffer.put(packet);
+                writer.writePacket(buffer, 3, packet.length);
+            }
+            writer.finish();
+            assertEquals(file.length(), writer.getBytesWritten());
+        }
+        ByteBuffer ogg = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        List<Page> pages = new ArrayList<>();
+        while (ogg.hasRemaining()) {
+            pages.add(new Page(ogg));
+        }
+        return pages;
+    }
+
+    private static byte[] head() {
+        return OggOpusWriter.createOpusHead(1, OggOpusWriter.DEFAULT_PRE_SKIP, 48000);
+    }
+
+    private static byte[] packet(int size) {
+        byte[] packet = new byte[size];
+        packet[0] = TOC_20MS;
+        for (int i = 1; i < size; i++) {
+            packet[i] = (byte) (size + i);
+        }
+        return packet;
+    }
+
+    private static byte[] concat(byte[][] packets) {
+        byte[] all = new byte[0];
+        for (byte[] packet : packets) {
+            int length = all.length;
+            all = Arrays.copyOf(all, length + packet.length);
+            System.arraycopy(packet, 0, all, length, packet.length);
+        }
+        return all;
+    }
+
+    private static int samples(byte... packet) {
+        return OggOpusWriter.getPacketSamples(ByteBuffer.wrap(packet), 0, packet.length);
+    }
+
+    private static class Page {
+        final int headerType;
+        final long granulePosition;
+        final int serial;
+        final int sequence;
+        final int[] lacing;
+        final byte[] data;
+
+        Page(ByteBuffer ogg) {
+            int start = ogg.position();
+            byte[] capture = new byte[4];
+            ogg.get(capture);
+            assertEquals("OggS", new String(capture));
+            assertEquals("version", 0, ogg.get());
+            headerType = ogg.get() & 0xff;
+            granulePosition = ogg.getLong();
+            serial = ogg.getInt();
+            sequence = ogg.getInt();
+            int crcPosition = ogg.position();
+            int crc = ogg.getInt();
+            lacing = new int[ogg.get() & 0xff];
+            int size = 0;
+            for (int i = 0; i < lacing.length; i++) {
+                lacing[i] = ogg.get() & 0xff;
+                size += lacing[i];
+            }
+            data = new byte[size];
+            ogg.get(data);
+
+            byte[] page = Arrays.copyOfRange(ogg.array(), start, ogg.position());
+            Arrays.fill(page, crcPosition - start, crcPosition - start + 4, (byte) 0);
+            assertEquals("CRC of page " + sequence, crc(page), crc);
+        }
+
+        /**
+         * Bitwise CRC-32 of RFC 3533: polynomial 0x04c11db7, not reflected, starting from 0.
+         */
+        private static int crc(byte[] data) {
+            int crc = 0;
+            for (byte b : data) {
+                crc ^= (b & 0xff) << 24;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+                }
+            }
+            return crc;
+        }
+    }
+}
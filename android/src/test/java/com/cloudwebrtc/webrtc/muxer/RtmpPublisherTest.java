@@ -0,0 +1,168 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RtmpPublisherTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x11, (byte) 0x88};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final long TIMEOUT_MS = 5000;
+
+    private RtmpStandInServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new RtmpStandInServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void publishesFlvTags() throws Exception {
+        // Larger than the 4096 byte chunks, so that it is split
+        byte[] idr = nal(0x65, 10000);
+        byte[] inter = nal(0x41, 300);
+        byte[] aac = {0x21, 0x10, 0x05, 0x20};
+
+        RtmpPublisher publisher = new RtmpPublisher(server.url("live", "key"));
+        CountDownLatch connected = new CountDownLatch(1);
+        publisher.setConnectionListener(new RtmpPublisher.ConnectionListener() {
+            @Override
+            public void onConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnected(String reason) {
+            }
+        });
+        publisher.start();
+        Map<String, Object> metaData = new LinkedHashMap<>();
+        metaData.put("width", 640);
+        metaData.put("height", 480);
+        publisher.sendMetaData(metaData);
+        publisher.sendAvcSequenceHeader(SPS, PPS);
+        publisher.sendAacSequenceHeader(AUDIO_SPECIFIC_CONFIG);
+        byte[] keyFrame = concat(START_CODE, SPS, START_CODE, PPS, START_CODE, idr);
+        assertTrue(publisher.sendVideo(ByteBuffer.wrap(keyFrame), 0, keyFrame.length, 0, true));
+        assertTrue(publisher.sendAudio(ByteBuffer.wrap(aac), 0, aac.length, 21));
+        byte[] interFrame = concat(START_CODE, inter);
+        assertTrue(publisher.sendVideo(ByteBuffer.wrap(interFrame), 0, interFrame.length, 40, false));
+        assertTrue(connected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        publisher.stop();
+        server.awaitClosed(TIMEOUT_MS);
+
+        assertEquals(3, server.clientVersion);
+        assertArrayEquals("C2 echoes S1", server.s1, server.c2);
+
+        List<RtmpStandInServer.Message> commands = new ArrayList<>();
+        List<RtmpStandInServer.Message> media = new ArrayList<>();
+        for (RtmpStandInServer.Message message : server.messages()) {
+            if (message.typeId == 20) {
+                commands.add(message);
+            } else if (message.typeId != 1) {
+                media.add(message);
+            }
+        }
+        List<String> names = new ArrayList<>();
+        for (RtmpStandInServer.Message command : commands) {
+            names.add((String) command.amf().get(0));
+        }
+        assertEquals(Arrays.asList("connect", "releaseStream", "FCPublish", "createStream", "publish",
+                "FCUnpublish", "deleteStream"), names);
+        Map<?, ?> connect = (Map<?, ?>) commands.get(0).amf().get(2);
+        assertEquals("live", connect.get("app"));
+        assertEquals(server.tcUrl("live"), connect.get("tcUrl"));
+        RtmpStandInServer.Message publish = commands.get(4);
+        assertEquals(RtmpStandInServer.STREAM_ID, publish.streamId);
+        assertEquals(Arrays.asList("publish", 5.0, null, "key", "live"), publish.amf());
+
+        assertEquals(6, media.size());
+        for (RtmpStandInServer.Message message : media) {
+            assertEquals(RtmpStandInServer.STREAM_ID, message.streamId);
+        }
+
+        RtmpStandInServer.Message script = media.get(0);
+        assertEquals(FlvPacketizer.TAG_TYPE_SCRIPT, script.typeId);
+        List<Object> onMetaData = script.amf();
+        assertEquals("@setDataFrame", onMetaData.get(0));
+        assertEquals("onMetaData", onMetaData.get(1));
+        assertEquals(640.0, ((Map<?, ?>) onMetaData.get(2)).get("width"));
+
+        checkTag(media.get(1), FlvPacketizer.TAG_TYPE_VIDEO, 0,
+                concat(new byte[] {0x17, 0, 0, 0, 0}, AvcUtils.buildAvcDecoderConfigurationRecord(SPS, PPS)));
+        checkTag(media.get(2), FlvPacketizer.TAG_TYPE_AUDIO, 0,
+                concat(new byte[] {(byte) 0xaf, 0}, AUDIO_SPECIFIC_CONFIG));
+        // Parameter sets are only sent in the sequence header
+        checkTag(media.get(3), FlvPacketizer.TAG_TYPE_VIDEO, 0,
+                concat(new byte[] {0x17, 1, 0, 0, 0}, lengthPrefixed(idr)));
+        checkTag(media.get(4), FlvPacketizer.TAG_TYPE_AUDIO, 21,
+                concat(new byte[] {(byte) 0xaf, 1}, aac));
+        checkTag(media.get(5), FlvPacketizer.TAG_TYPE_VIDEO, 40,
+                concat(new byte[] {0x27, 1, 0, 0, 0}, lengthPrefixed(inter)));
+
+        RtmpPublisher.Stats stats = publisher.getStats();
+        assertEquals(6, stats.packetsSent);
+        assertEquals(0, stats.videoFramesDropped);
+        assertEquals(0, stats.audioFramesDropped);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUrlWithoutStreamKey() {
+        new RtmpPublisher("rtmp://127.0.0.1/live");
+    }
+
+    private static void checkTag(RtmpStandInServer.Message message, int typeId, long timestamp, byte[] body) {
+        assertEquals(typeId, message.typeId);
+        assertEquals(timestamp, message.timestamp);
+        assertArrayEquals(body, message.payload);
+    }
+
+    /**
+     * A NAL unit of |size| bytes with |header| as first byte and no zero bytes in the payload.
+     */
+    private static byte[] nal(int header, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) header;
+        for (int i = 1; i < size; i++) {
+            nal[i] = (byte) (1 + i % 255);
+        }
+        return nal;
+    }
+
+    private static byte[] lengthPrefixed(byte[] nal) {
+        return ByteBuffer.allocate(4 + nal.length).putInt(nal.length).put(nal).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            out.put(part);
+        }
+        return out.array();
+    }
+}
@@ -0,0 +1,244 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process RTMP server accepting a single publisher on the loopback interface. It answers the
+ * handshake and the connect/createStream/publish commands and records every message it receives.
+ */
+final class RtmpStandInServer implements Runnable {
+    static final int STREAM_ID = 1;
+
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int OUT_CHUNK_SIZE = 256;
+    private static final int SOCKET_TIMEOUT_MS = 5000;
+
+    static final class Message {
+        final int typeId;
+        final long timestamp;
+        final int streamId;
+        final byte[] payload;
+
+        Message(int typeId, long timestamp, int streamId, byte[] payload) {
+            this.typeId = typeId;
+            this.timestamp = timestamp;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+
+        List<Object> amf() {
+            return Amf0.decodeAll(ByteBuffer.wrap(payload));
+        }
+    }
+
+    private static class ChunkStream {
+        long timestamp;
+        int length;
+        int typeId;
+        int streamId;
+        byte[] payload;
+        int received;
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Thread mThread = new Thread(this, "RtmpStandInServer");
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+    private final List<Message> mMessages = Collections.synchronizedList(new ArrayList<Message>());
+    private final Map<Integer, ChunkStream> mChunkStreams = new HashMap<>();
+    private volatile Throwable mFailure;
+    private int mInChunkSize = 128;
+
+    private DataInputStream mIn;
+    private OutputStream mOut;
+    byte[] c1;
+    byte[] s1;
+    byte[] c2;
+    int clientVersion;
+
+    RtmpStandInServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    String url(String app, String streamKey) {
+        return "rtmp://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + app + "/" + streamKey;
+    }
+
+    String tcUrl(String app) {
+        return "rtmp://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + app;
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Waits for the publisher to close the connection, rethrowing what failed on the server.
+     */
+    void awaitClosed(long timeoutMs) throws Exception {
+        if (!mFinished.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+            throw new AssertionError("Publisher did not close the connection");
+        }
+        if (mFailure != null) {
+            throw new AssertionError("Server failed", mFailure);
+        }
+    }
+
+    List<Message> messages() {
+        synchronized (mMessages) {
+            return new ArrayList<>(mMessages);
+        }
+    }
+
+    void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = mServerSocket.accept()) {
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mOut = socket.getOutputStream();
+            handshake();
+            writeMessage(2, 5, 0, ByteBuffer.allocate(4).putInt(2500000).array());
+            writeMessage(2, 1, 0, ByteBuffer.allocate(4).putInt(OUT_CHUNK_SIZE).array());
+            while (true) {
+                Message message;
+                try {
+                    message = readMessage();
+                } catch (EOFException e) {
+                    return;
+                }
+                mMessages.add(message);
+                if (message.typeId == 1) {
+                    mInChunkSize = ByteBuffer.wrap(message.payload).getInt() & 0x7fffffff;
+                } else if (message.typeId == 20) {
+                    answer(message.amf());
+                }
+            }
+        } catch (Throwable e) {
+            mFailure = e;
+        } finally {
+            mFinished.countDown();
+        }
+    }
+
+    private void handshake() throws IOException {
+        clientVersion = mIn.readUnsignedByte();
+        c1 = new byte[HANDSHAKE_SIZE];
+        mIn.readFully(c1);
+        s1 = new byte[HANDSHAKE_SIZE];
+        new Random(1).nextBytes(s1);
+        mOut.write(3);
+        mOut.write(s1);
+        // S2 echoes C1
+        mOut.write(c1);
+        mOut.flush();
+        c2 = new byte[HANDSHAKE_SIZE];
+        mIn.readFully(c2);
+    }
+
+    private void answer(List<Object> command) throws IOException {
+        String name = (String) command.get(0);
+        double transactionId = (Double) command.get(1);
+        if ("connect".equals(name)) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("level", "status");
+            info.put("code", "NetConnection.Connect.Success");
+            sendCommand(0, new Amf0.Writer().string("_result").number(transactionId)
+                    .object(new LinkedHashMap<String, Object>()).object(info));
+        } else if ("createStream".equals(name)) {
+            sendCommand(0, new Amf0.Writer().string("_result").number(transactionId).nul().number(STREAM_ID));
+        } else if ("publish".equals(name)) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("level", "status");
+            info.put("code", "NetStream.Publish.Start");
+            info.put("description", "Publishing " + command.get(3));
+            sendCommand(STREAM_ID, new Amf0.Writer().string("onStatus").number(0).nul().object(info));
+        }
+    }
+
+    private void sendCommand(int streamId, Amf0.Writer writer) throws IOException {
+        writeMessage(3, 20, streamId, writer.toByteArray());
+    }
+
+    private void writeMessage(int csid, int typeId, int streamId, byte[] body) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.put((byte) csid);
+        header.put(new byte[3]);                // timestamp
+        header.put((byte) (body.length >> 16)).put((byte) (body.length >> 8)).put((byte) body.length);
+        header.put((byte) typeId);
+        header.putInt(Integer.reverseBytes(streamId));
+        mOut.write(header.array());
+        // Chunked at the default size until the Set Chunk Size message went out
+        int chunkSize = typeId == 1 || typeId == 5 ? 128 : OUT_CHUNK_SIZE;
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            if (offset > 0) {
+                mOut.write(0xc0 | csid);
+            }
+            mOut.write(body, offset, Math.min(chunkSize, body.length - offset));
+        }
+        mOut.flush();
+    }
+
+    private Message readMessage() throws IOException {
+        while (true) {
+            int basic = mIn.readUnsignedByte();
+            int fmt = basic >> 6;
+            int csid = basic & 0x3f;
+            if (csid < 2) {
+                throw new IOException("Unexpected multi-byte chunk stream id");
+            }
+            ChunkStream stream = mChunkStreams.get(csid);
+            if (stream == null) {
+                stream = new ChunkStream();
+                mChunkStreams.put(csid, stream);
+            }
+            if (fmt <= 2) {
+                long timestamp = readInt24();
+                if (fmt <= 1) {
+                    stream.length = (int) readInt24();
+                    stream.typeId = mIn.readUnsignedByte();
+                    if (fmt == 0) {
+                        stream.streamId = Integer.reverseBytes(mIn.readInt());
+                    }
+                }
+                if (timestamp == 0xffffff) {
+                    timestamp = mIn.readInt() & 0xffffffffL;
+                }
+                stream.timestamp = fmt == 0 ? timestamp : stream.timestamp + timestamp;
+            }
+            if (stream.received == 0) {
+                stream.payload = new byte[stream.length];
+            }
+            int chunk = Math.min(mInChunkSize, stream.length - stream.received);
+            mIn.readFully(stream.payload, stream.received, chunk);
+            stream.received += chunk;
+            if (stream.received == stream.length) {
+                stream.received = 0;
+                return new Message(stream.typeId, stream.timestamp, stream.streamId, stream.payload);
+            }
+        }
+    }
+
+    private long readInt24() throws IOException {
+        return (mIn.readUnsignedByte() << 16) | (mIn.readUnsignedByte() << 8) | mIn.readUnsignedByte();
+    }
+}
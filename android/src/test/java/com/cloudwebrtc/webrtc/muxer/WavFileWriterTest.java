@@ -0,0 +1,97 @@
+package com.cloudwebrtc.webrtc.muxer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class WavFileWriterTest {
+    private static final int HEADER_SIZE = 44;
+    // Small chunks, so that the data spans several mappings
+    private static final int CHUNK_BYTES = 64;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesHeader() throws IOException {
+        File file = folder.newFile("out.wav");
+        WavFileWriter writer = new WavFileWriter(file, 48000, 2, CHUNK_BYTES);
+        writer.finish();
+
+        ByteBuffer wav = read(file);
+        assertEquals(HEADER_SIZE, wav.limit());
+        assertEquals("RIFF", fourCc(wav, 0));
+        assertEquals(36, wav.getInt(4));
+        assertEquals("WAVE", fourCc(wav, 8));
+        assertEquals("fmt ", fourCc(wav, 12));
+        assertEquals(16, wav.getInt(16));
+        assertEquals("PCM", 1, wav.getShort(20));
+        assertEquals(2, wav.getShort(22));
+        assertEquals(48000, wav.getInt(24));
+        assertEquals("byte rate", 48000 * 4, wav.getInt(28));
+        assertEquals("block align", 4, wav.getShort(32));
+        assertEquals("bits per sample", 16, wav.getShort(34));
+        assertEquals("data", fourCc(wav, 36));
+        assertEquals(0, wav.getInt(40));
+    }
+
+    @Test
+    public void trimsLastChunkToData() throws IOException {
+        byte[] pcm = pcm(3 * CHUNK_BYTES + 10);
+        File file = folder.newFile("out.wav");
+        WavFileWriter writer = new WavFileWriter(file, 16000, 1, CHUNK_BYTES);
+        // Both write methods, split across chunk boundaries
+        writer.write(ByteBuffer.wrap(pcm, 0, 100));
+        writer.write(pcm, 100, pcm.length - 100);
+        assertEquals(pcm.length, writer.getDataBytes());
+        writer.finish();
+
+        ByteBuffer wav = read(file);
+        assertEquals(HEADER_SIZE + pcm.length, wav.limit());
+        assertEquals(36 + pcm.length, wav.getInt(4));
+        assertEquals(pcm.length, wav.getInt(40));
+        assertArrayEquals(pcm, Arrays.copyOfRange(wav.array(), HEADER_SIZE, wav.limit()));
+    }
+
+    @Test
+    public void padsOddDataSize() throws IOException {
+        byte[] pcm = pcm(2 * CHUNK_BYTES + 5);
+        File file = folder.newFile("out.wav");
+        WavFileWriter writer = new WavFileWriter(file, 16000, 1, CHUNK_BYTES);
+        writer.write(pcm, 0, pcm.length);
+        writer.finish();
+
+        ByteBuffer wav = read(file);
+        assertEquals(HEADER_SIZE + pcm.length + 1, wav.limit());
+        assertEquals("RIFF size counts the pad byte", 36 + pcm.length + 1, wav.getInt(4));
+        assertEquals("data size leaves it out", pcm.length, wav.getInt(40));
+        assertArrayEquals(pcm, Arrays.copyOfRange(wav.array(), HEADER_SIZE, HEADER_SIZE + pcm.length));
+        assertEquals(0, wav.get(wav.limit() - 1));
+    }
+
+    private static byte[] pcm(int length) {
+        byte[] pcm = new byte[length];
+        for (int i = 0; i < length; i++) {
+            pcm[i] = (byte) (1 + i % 251);
+        }
+        return pcm;
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String fourCc(ByteBuffer wav, int offset) {
+        return new String(wav.array(), offset, 4);
+    }
+}
@@ -1,3 +1,7 @@
+import 'dart:async';
+import 'dart:math';
+import 'dart:typed_data';
+
 import 'package:flutter/foundation.dart';
 import 'package:flutter/services.dart';
 import 'package:flutter_webrtc/flutter_webrtc.dart';
@@ -5,6 +9,61 @@ import 'package:flutter_webrtc/flutter_webrtc.dart';
 import 'interface/media_stream.dart';
 import 'interface/mediadevices.dart';
 
+/// Audio streamed by [Helper.streamPcm].
+enum PcmSource {
+  /// The microphone.
+  record,
+
+  /// The remote audio played out.
+  playback,
+
+  /// The microphone and the remote audio, mixed.
+  mixed,
+}
+
+/// A chunk of 16 bit PCM from [Helper.streamPcm].
+class PcmChunk {
+  PcmChunk(
+      {required this.timestamp,
+      required this.sequence,
+      required this.dropped,
+      required this.sampleRate,
+      required this.channels,
+      required this.samples});
+
+  /// Parses a message of the platform: a 16 byte little endian header
+  /// followed by the samples.
+  factory PcmChunk.fromMessage(ByteData message, int sampleRate, int channels) {
+    // Copied, which also aligns the samples
+    final bytes = Uint8List.fromList(message.buffer
+        .asUint8List(message.offsetInBytes + 16, message.lengthInBytes - 16));
+    return PcmChunk(
+      timestamp: DateTime.fromMillisecondsSinceEpoch(
+          message.getInt64(0, Endian.little)),
+      sequence: message.getInt32(8, Endian.little),
+      dropped: message.getInt32(12, Endian.little),
+      sampleRate: sampleRate,
+      channels: channels,
+      samples: bytes.buffer.asInt16List(),
+    );
+  }
+
+  /// When the last sample was captured.
+  final DateTime timestamp;
+
+  /// Index of the chunk, counting dropped ones.
+  final int sequence;
+
+  /// Chunks dropped since the stream started.
+  final int dropped;
+
+  final int sampleRate;
+  final int channels;
+
+  /// Interleaved samples.
+  final Int16List samples;
+}
+
 class Helper {
   static Future<List<MediaDeviceInfo>> enumerateDevices(String type) async {
     var devices = await navigator.mediaDevices.enumerateDevices();
@@ -119,4 +178,76 @@ class Helper {
     }
     track.enabled = !mute;
   }
+
+  /// Streams 16 bit PCM of [source] at [sampleRate] and [channels], in chunks
+  /// of [chunkDuration]. Android only.
+  ///
+  /// At most [credits] chunks are on their way at once: one more is allowed
+  /// each time a chunk has been delivered to the listener, and none while the
+  /// subscription is paused. The platform drops the chunks completed in the
+  /// meantime instead of queuing them; see [PcmChunk.dropped].
+  static Stream<PcmChunk> streamPcm(
+      {PcmSource source = PcmSource.record,
+      int sampleRate = 16000,
+      int channels = 1,
+      Duration chunkDuration = const Duration(milliseconds: 100),
+      int credits = 4}) {
+    if (kIsWeb) {
+      return Stream.error(UnsupportedError('streamPcm is Android only'));
+    }
+    final streamId = Random().nextInt(0x7FFFFFFF);
+    final channel = BasicMessageChannel<ByteData?>(
+        'FlutterWebRTC/pcmStream/$streamId', BinaryCodec());
+    var withheld = 0;
+    void grant(int count) {
+      channel.send(ByteData(4)..setInt32(0, count, Endian.little));
+    }
+
+    late StreamController<PcmChunk> controller;
+    controller = StreamController<PcmChunk>(
+      // Delivered before the credit is returned
+      sync: true,
+      onListen: () async {
+        channel.setMessageHandler((ByteData? message) async {
+          if (message == null || controller.isClosed) {
+            return null;
+          }
+          controller.add(PcmChunk.fromMessage(message, sampleRate, channels));
+          if (controller.isPaused) {
+            withheld++;
+          } else {
+            grant(1);
+          }
+          return null;
+        });
+        try {
+          await WebRTC.methodChannel()
+              .invokeMethod<void>('createPcmStream', <String, dynamic>{
+            'streamId': streamId,
+            'source': source.toString().split('.').last,
+            'sampleRate': sampleRate,
+            'channels': channels,
+            'chunkMs': chunkDuration.inMilliseconds,
+            'credits': credits,
+          });
+        } on PlatformException catch (e) {
+          channel.setMessageHandler(null);
+          controller.addError(e);
+          await controller.close();
+        }
+      },
+      onResume: () {
+        if (withheld > 0) {
+          grant(withheld);
+          withheld = 0;
+        }
+      },
+      onCancel: () async {
+        channel.setMessageHandler(null);
+        await WebRTC.methodChannel().invokeMethod<void>(
+            'disposePcmStream', <String, dynamic>{'streamId': streamId});
+      },
+    );
+    return controller.stream;
+  }
 }
@@ -24,5 +24,6 @@ abstract class RTCFactory {
     MediaFormat format = MediaFormat.mpeg4,
     MultiPartyRecorderType type = MultiPartyRecorderType.local,
     videoSize,
+    bool prewarmEncoders = false,
   });
 }
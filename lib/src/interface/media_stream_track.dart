@@ -1,4 +1,5 @@
 import 'dart:async';
+import 'dart:typed_data';
 import 'package:flutter/material.dart';
 import 'package:flutter_webrtc/src/helper.dart';
 
@@ -184,7 +185,41 @@ abstract class MediaStreamTrack extends ValueNotifier<MediaStreamTrackValue> {
     throw UnimplementedError();
   }
 
-  Future<dynamic> captureFrame() {
+  /// Captures the next frame of this video track, scaled to [width] x
+  /// [height] (one of them may be omitted to keep the aspect ratio) and
+  /// compressed as [format] ('jpeg', 'png' or 'webp') at [quality] (90 by
+  /// default).
+  ///
+  /// The image is written to [filePath], with the format taken from its
+  /// extension unless [format] is given, or to a temporary png file. The
+  /// options other than [filePath] are Android only.
+  Future<dynamic> captureFrame(
+      {String? filePath,
+      String? format,
+      int? quality,
+      int? width,
+      int? height,
+      bool mirror = false}) {
+    throw UnimplementedError();
+  }
+
+  /// Samples a frame of this video track every [interval] while the stream
+  /// is listened to, scaled to [width] x [height] (one of them may be omitted
+  /// to keep the aspect ratio) and compressed as [format] ('jpeg', 'png' or
+  /// 'webp').
+  ///
+  /// With a [directory], samples are written there cycling through [maxFiles]
+  /// files and [FrameSample.path] is set; otherwise [FrameSample.data] holds
+  /// the bytes. Android only.
+  Stream<FrameSample> sampleFrames(
+      {Duration interval = const Duration(seconds: 5),
+      int? width,
+      int? height,
+      String format = 'jpeg',
+      int quality = 80,
+      bool mirror = false,
+      String? directory,
+      int maxFiles = 2}) {
     throw UnimplementedError();
   }
 
@@ -210,3 +245,33 @@ abstract class MediaStreamTrack extends ValueNotifier<MediaStreamTrackValue> {
     return 'Track(id: $id, kind: $kind, label: $label, enabled: $enabled, muted: $muted)';
   }
 }
+
+/// An image sampled by [MediaStreamTrack.sampleFrames].
+class FrameSample {
+  FrameSample(
+      {required this.width,
+      required this.height,
+      required this.timestamp,
+      this.path,
+      this.data});
+
+  factory FrameSample.fromMap(Map<dynamic, dynamic> map) {
+    return FrameSample(
+      width: map['width'],
+      height: map['height'],
+      timestamp: DateTime.fromMillisecondsSinceEpoch(map['timestampMs']),
+      path: map['path'],
+      data: map['data'],
+    );
+  }
+
+  final int width;
+  final int height;
+  final DateTime timestamp;
+
+  /// File the sample was written to, when sampling to a directory.
+  final String? path;
+
+  /// Compressed image, when not sampling to a directory.
+  final Uint8List? data;
+}
@@ -12,6 +12,32 @@ enum MultiPartyRecorderType {
 enum MediaFormat {
   mpeg4,
   webm,
+  fmp4,
+  hls,
+
+  /// Keeps the most recent media in memory without writing anything to disk;
+  /// use [MultiPartyRecorder.saveReplay] to store it as an mpeg4 file.
+  /// Android only.
+  replay,
+
+  /// Opus in an Ogg file, for recorders created with `audioOnly`; mpeg4
+  /// records AAC in an m4a file for them. Android only.
+  ogg,
+
+  /// Uncompressed 16 bit PCM in a wav file, for recorders created with
+  /// `audioOnly`. A recording cut short by the app being killed stays
+  /// playable, missing at most its last 40 seconds. Android only.
+  wav,
+}
+
+/// What a local recorder drops when frames arrive faster than they are
+/// encoded.
+enum FrameDropPolicy {
+  /// Keep the latest frames, for the lowest latency.
+  dropOldest,
+
+  /// Keep the frames already waiting.
+  dropNewest,
 }
 
 class MultiPartyRecorderMetaData {
@@ -174,6 +200,27 @@ class RecorderException implements Exception {
   String toString() => '$runtimeType($code, $description)';
 }
 
+/// A completed output segment, reported while recording to segmented formats
+/// such as [MediaFormat.hls].
+class RecorderSegment {
+  RecorderSegment(this.path, this.index, this.duration);
+
+  factory RecorderSegment.fromMap(Map<dynamic, dynamic> map) {
+    return RecorderSegment(
+      map['path'],
+      map['index'],
+      Duration(milliseconds: map['durationMs']),
+    );
+  }
+
+  final String path;
+  final int index;
+  final Duration duration;
+
+  @override
+  String toString() => '$runtimeType($index, $path, $duration)';
+}
+
 /// The state of a [MultiPartyRecorder].
 class RecorderValue {
   const RecorderValue({
@@ -251,6 +298,7 @@ abstract class MultiPartyRecorder extends ValueNotifier<RecorderValue> {
     this.format = MediaFormat.mpeg4,
     this.type = MultiPartyRecorderType.local,
     this.videoSize,
+    this.prewarmEncoders = false,
   }) : super(const RecorderValue.uninitialized());
   final MultiPartyRecorderType? type;
   final MediaFormat? format;
@@ -258,6 +306,22 @@ abstract class MultiPartyRecorder extends ValueNotifier<RecorderValue> {
   final int? fps;
   final bool? audioOnly;
 
+  /// Whether the encoders are prepared as soon as the recorder is created, so
+  /// that [start] doesn't wait for codec setup. Only used by mixed recorders
+  /// on Android.
+  final bool prewarmEncoders;
+
+  /// Called when a segment has been completed on disk and can be uploaded.
+  ValueChanged<RecorderSegment>? onSegmentFinished;
+
+  /// Called with the file path once a recording started with `fastStart` has
+  /// been rewritten for progressive playback and can be uploaded.
+  ValueChanged<String>? onFastStartFinished;
+
+  /// Called at most once per second while a local recorder drops frames, with
+  /// the totals since recording started.
+  void Function(int droppedFrames, int renderedFrames)? onFramesDropped;
+
   static String stringFromMultiPartyRecorderType(MultiPartyRecorderType type) {
     switch (type) {
       case MultiPartyRecorderType.local:
@@ -273,6 +337,25 @@ abstract class MultiPartyRecorder extends ValueNotifier<RecorderValue> {
         return 'mpeg4';
       case MediaFormat.webm:
         return 'webm';
+      case MediaFormat.fmp4:
+        return 'fmp4';
+      case MediaFormat.hls:
+        return 'hls';
+      case MediaFormat.replay:
+        return 'replay';
+      case MediaFormat.ogg:
+        return 'ogg';
+      case MediaFormat.wav:
+        return 'wav';
+    }
+  }
+
+  static String stringFromFrameDropPolicy(FrameDropPolicy policy) {
+    switch (policy) {
+      case FrameDropPolicy.dropOldest:
+        return 'dropOldest';
+      case FrameDropPolicy.dropNewest:
+        return 'dropNewest';
     }
   }
 
@@ -282,7 +365,58 @@ abstract class MultiPartyRecorder extends ValueNotifier<RecorderValue> {
 
   Future<void> setPaused(bool paused);
 
-  Future<void> start(String filePath);
+  /// Starts recording to [filePath]. On Android, a mixed recorder given an
+  /// `rtmp://host/app/streamKey` url publishes live to it instead.
+  ///
+  /// When [segmentDuration] or [maxSegmentBytes] is set, an mpeg4 or webm
+  /// recording is split at the first key frame past either limit into files
+  /// named `<name>_<index>.<ext>` next to [filePath]; each finished file is
+  /// reported through [onSegmentFinished].
+  ///
+  /// With [MediaFormat.replay], the last [replayDuration] (60 seconds by
+  /// default) is kept instead and [filePath] is not written.
+  ///
+  /// When [fastStart] is set, an mpeg4 recording is rewritten after [stop] so
+  /// that playback can start before the whole file is downloaded; see
+  /// [onFastStartFinished].
+  ///
+  /// A local recorder keeps at most [frameQueueSize] frames (3 by default)
+  /// waiting for the encoder and drops frames according to [frameDropPolicy]
+  /// beyond that; see [onFramesDropped].
+  ///
+  /// When [reuseSendEncoder] is set, a local recorder muxes the H.264 video
+  /// already encoded to send the track instead of encoding it again. The track
+  /// must be sent over a peer connection while recording.
+  ///
+  /// When [reuseReceivedStream] is set, a local recorder given a remote track
+  /// muxes the H.264 video received from the peer, before it is decoded,
+  /// along with the audio played out.
+  ///
+  /// When [shareEncoder] is set, local recorders of the same track that also
+  /// set it encode its video once, e.g. a file and a rolling buffer. They
+  /// share an encoder when they also ask for the same [videoBitrate] in bps
+  /// (1.2 Mbps by default) and mirror the video alike.
+  ///
+  /// When [splitAudioSources] is set, a [MediaFormat.wav] recorder writes the
+  /// microphone to [filePath] and the remote audio to `<name>_remote.wav` next
+  /// to it instead of mixing them.
+  Future<void> start(String filePath,
+      {Duration? segmentDuration,
+      int? maxSegmentBytes,
+      Duration? replayDuration,
+      bool fastStart = false,
+      int? frameQueueSize,
+      FrameDropPolicy frameDropPolicy = FrameDropPolicy.dropOldest,
+      bool reuseSendEncoder = false,
+      bool reuseReceivedStream = false,
+      bool shareEncoder = false,
+      int? videoBitrate,
+      bool splitAudioSources = false});
+
+  /// Writes the media buffered by a [MediaFormat.replay] recorder to an mpeg4
+  /// file at [filePath], starting at a key frame, and returns its duration.
+  /// Recording continues while the file is written.
+  Future<Duration> saveReplay(String filePath);
 
   Future<void> startWeb({
     Function(dynamic blob, bool isLastOne)? onDataChunk,
@@ -70,6 +70,7 @@ class RTCFactoryNative extends RTCFactory {
     MediaFormat format = MediaFormat.mpeg4,
     MultiPartyRecorderType type = MultiPartyRecorderType.local,
     videoSize,
+    bool prewarmEncoders = false,
   }) {
     return MultiPartyRecorderNative(
       fps: fps,
@@ -77,6 +78,7 @@ class RTCFactoryNative extends RTCFactory {
       format: format,
       type: type,
       videoSize: videoSize,
+      prewarmEncoders: prewarmEncoders,
     );
   }
 
@@ -1,5 +1,6 @@
 import 'dart:async';
 import 'dart:io';
+import 'dart:math';
 
 import 'package:flutter/services.dart';
 import 'package:path_provider/path_provider.dart';
@@ -32,6 +33,7 @@ class MediaStreamTrackNative extends MediaStreamTrack {
   }
 
   final MethodChannel _channel = WebRTC.methodChannel();
+  static final _random = Random();
   bool _isReleased = false;
 
   final bool _muted = false;
@@ -174,17 +176,96 @@ class MediaStreamTrackNative extends MediaStreamTrack {
   }
 
   @override
-  Future<dynamic> captureFrame([String? filePath]) async {
-    var filePath = await getTemporaryDirectory();
+  Future<dynamic> captureFrame(
+      {String? filePath,
+      String? format,
+      int? quality,
+      int? width,
+      int? height,
+      bool mirror = false}) async {
+    File file;
+    if (filePath != null) {
+      file = File(filePath);
+    } else {
+      format ??= 'png';
+      var directory = await getTemporaryDirectory();
+      file = File(directory.path + '/captureFrame.$format');
+    }
     await _channel.invokeMethod<void>(
       'captureFrame',
-      <String, dynamic>{'trackId': value.id, 'path': filePath},
+      <String, dynamic>{
+        'trackId': value.id,
+        'path': file.path,
+        'format': format,
+        'quality': quality,
+        'width': width,
+        'height': height,
+        'mirror': mirror,
+      },
     );
-    return File(filePath.path + '/captureFrame.png')
+    return file
         .readAsBytes()
         .then((value) => value.buffer);
   }
 
+  @override
+  Stream<FrameSample> sampleFrames(
+      {Duration interval = const Duration(seconds: 5),
+      int? width,
+      int? height,
+      String format = 'jpeg',
+      int quality = 80,
+      bool mirror = false,
+      String? directory,
+      int maxFiles = 2}) {
+    final samplerId = _random.nextInt(0x7FFFFFFF);
+    StreamSubscription<dynamic>? subscription;
+    late StreamController<FrameSample> controller;
+    controller = StreamController<FrameSample>(
+      onListen: () async {
+        try {
+          await _channel
+              .invokeMethod<void>('createFrameSampler', <String, dynamic>{
+            'samplerId': samplerId,
+            'trackId': value.id,
+            'intervalMs': interval.inMilliseconds,
+            'width': width,
+            'height': height,
+            'format': format,
+            'quality': quality,
+            'mirror': mirror,
+            'directory': directory,
+            'maxFiles': maxFiles,
+          });
+        } on PlatformException catch (e) {
+          controller.addError(e);
+          await controller.close();
+          return;
+        }
+        subscription =
+            EventChannel('FlutterWebRTC/frameSamplerEvents/$samplerId')
+                .receiveBroadcastStream()
+                .listen((dynamic event) {
+          final Map<dynamic, dynamic> map = event;
+          switch (map['eventType']) {
+            case 'frame':
+              controller.add(FrameSample.fromMap(map));
+              break;
+            case 'error':
+              controller.addError(Exception(map['errorDescription']));
+              break;
+          }
+        }, onError: controller.addError);
+      },
+      onCancel: () async {
+        await subscription?.cancel();
+        await _channel.invokeMethod<void>(
+            'disposeFrameSampler', <String, dynamic>{'samplerId': samplerId});
+      },
+    );
+    return controller.stream;
+  }
+
   @override
   Future<void> applyConstraints([Map<String, dynamic>? constraints]) {
     if (constraints == null) return Future.value();
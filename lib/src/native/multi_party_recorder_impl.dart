@@ -15,13 +15,15 @@ class MultiPartyRecorderNative extends MultiPartyRecorder {
       bool? audioOnly,
       MediaFormat format = MediaFormat.mpeg4,
       Size? videoSize,
-      MultiPartyRecorderType? type = MultiPartyRecorderType.local})
+      MultiPartyRecorderType? type = MultiPartyRecorderType.local,
+      bool prewarmEncoders = false})
       : super(
             fps: fps,
             audioOnly: audioOnly,
             format: format,
             videoSize: videoSize,
-            type: type) {
+            type: type,
+            prewarmEncoders: prewarmEncoders) {
     _initialize();
   }
 
@@ -50,6 +52,7 @@ class MultiPartyRecorderNative extends MultiPartyRecorder {
         'audioOnly': audioOnly,
         'fps': fps,
         'recorderId': _recorderId,
+        'prewarmEncoders': prewarmEncoders,
         'format': MultiPartyRecorder.stringFromMediaFormat(format!)
       });
       if (!isInitialized) {
@@ -58,10 +61,12 @@ class MultiPartyRecorderNative extends MultiPartyRecorder {
       }
       value = value.copyWith(
         isInitialized: isInitialized,
-        videoSize: Size(
-          videoSize!.width,
-          videoSize!.height,
-        ),
+        videoSize: videoSize != null
+            ? Size(
+                videoSize!.width,
+                videoSize!.height,
+              )
+            : null,
       );
     } on PlatformException catch (e) {
       throw RecorderException(e.code, description: e.message);
@@ -145,7 +150,18 @@ class MultiPartyRecorderNative extends MultiPartyRecorder {
   }
 
   @override
-  Future<void> start(String filePath) async {
+  Future<void> start(String filePath,
+      {Duration? segmentDuration,
+      int? maxSegmentBytes,
+      Duration? replayDuration,
+      bool fastStart = false,
+      int? frameQueueSize,
+      FrameDropPolicy frameDropPolicy = FrameDropPolicy.dropOldest,
+      bool reuseSendEncoder = false,
+      bool reuseReceivedStream = false,
+      bool shareEncoder = false,
+      int? videoBitrate,
+      bool splitAudioSources = false}) async {
     if (!value.isInitialized || _isReleased) {
       throw RecorderException(
         'Uninitialized MultiPartyRecorder',
@@ -164,7 +180,21 @@ class MultiPartyRecorderNative extends MultiPartyRecorder {
     try {
       print('should start media recorder');
       await _channel.invokeMethod('startMultiPartyRecorder',
-          <String, dynamic>{'path': filePath, 'recorderId': _recorderId});
+          <String, dynamic>{
+            'path': filePath,
+            'recorderId': _recorderId,
+            'segmentDurationMs': segmentDuration?.inMilliseconds,
+            'maxSegmentBytes': maxSegmentBytes,
+            'replayDurationMs': replayDuration?.inMilliseconds,
+            'fastStart': fastStart,
+            'frameQueueSize': frameQueueSize,
+            'frameDropPolicy': MultiPartyRecorder.stringFromFrameDropPolicy(frameDropPolicy),
+            'reuseSendEncoder': reuseSendEncoder,
+            'reuseReceivedStream': reuseReceivedStream,
+            'shareEncoder': shareEncoder,
+            'videoBitrate': videoBitrate,
+            'splitAudioSources': splitAudioSources,
+          });
       _filePath = filePath;
       value = value.copyWith(isRecordingVideo: true);
       print('media_recorder_started:${value.isRecordingVideo}');
@@ -173,6 +203,24 @@ class MultiPartyRecorderNative extends MultiPartyRecorder {
     }
   }
 
+  @override
+  Future<Duration> saveReplay(String filePath) async {
+    if (!value.isRecordingVideo) {
+      throw RecorderException(
+        'No replay is being buffered.',
+        description: 'saveReplay was called before start.',
+      );
+    }
+    try {
+      final response = await _channel.invokeMethod<Map<dynamic, dynamic>>(
+          'saveMultiPartyRecorderReplay',
+          <String, dynamic>{'path': filePath, 'recorderId': _recorderId});
+      return Duration(milliseconds: response!['durationMs']);
+    } on PlatformException catch (e) {
+      throw RecorderException(e.code, description: e.message);
+    }
+  }
+
   @override
   Future<void> startWeb({
     Function(dynamic blob, bool isLastOne)? onDataChunk,
@@ -258,7 +306,7 @@ class MultiPartyRecorderNative extends MultiPartyRecorder {
   }
 
   EventChannel _eventChannelFor(int recorderId) {
-    return EventChannel('FlutterWebRTC/MultiPartyRecorderEvents/$recorderId');
+    return EventChannel('FlutterWebRTC/mediaRecorderEvents/$recorderId');
   }
 
   void _listener(dynamic event) {
@@ -270,6 +318,15 @@ class MultiPartyRecorderNative extends MultiPartyRecorder {
       case 'error':
         value = value.copyWith(errorDescription: event['errorDescription']);
         break;
+      case 'segmentFinished':
+        onSegmentFinished?.call(RecorderSegment.fromMap(map));
+        break;
+      case 'fastStartFinished':
+        onFastStartFinished?.call(map['path']);
+        break;
+      case 'framesDropped':
+        onFramesDropped?.call(map['droppedFrames'], map['renderedFrames']);
+        break;
     }
   }
 
@@ -60,6 +60,7 @@ class RTCFactoryWeb extends RTCFactory {
     MediaFormat format = MediaFormat.mpeg4,
     MultiPartyRecorderType type = MultiPartyRecorderType.local,
     videoSize,
+    bool prewarmEncoders = false,
   }) {
     return MultiPartyRecorderWeb(
       fps: fps,
@@ -67,6 +68,7 @@ class RTCFactoryWeb extends RTCFactory {
       format: format,
       type: type,
       videoSize: videoSize,
+      prewarmEncoders: prewarmEncoders,
     );
   }
 
@@ -123,7 +123,13 @@ class MediaStreamTrackWeb extends MediaStreamTrack {
   }
 
   @override
-  Future<dynamic> captureFrame() async {
+  Future<dynamic> captureFrame(
+      {String? filePath,
+      String? format,
+      int? quality,
+      int? width,
+      int? height,
+      bool mirror = false}) async {
     final imageCapture = html.ImageCapture(jsTrack);
     final bitmap = await imageCapture.grabFrame();
     // final html.CanvasElement canvas = html.Element.canvas();
@@ -140,12 +140,14 @@ class MultiPartyRecorderWeb extends MultiPartyRecorder {
     MediaFormat? format,
     Size? videoSize,
     MultiPartyRecorderType? type,
+    bool prewarmEncoders = false,
   }) : super(
             fps: fps,
             audioOnly: audioOnly,
             format: format,
             type: type,
-            videoSize: videoSize) {
+            videoSize: videoSize,
+            prewarmEncoders: prewarmEncoders) {
     _initialize();
   }
 
@@ -265,7 +267,23 @@ class MultiPartyRecorderWeb extends MultiPartyRecorder {
   }
 
   @override
-  Future<void> start(String filePath) async {}
+  Future<void> start(String filePath,
+      {Duration? segmentDuration,
+      int? maxSegmentBytes,
+      Duration? replayDuration,
+      bool fastStart = false,
+      int? frameQueueSize,
+      FrameDropPolicy frameDropPolicy = FrameDropPolicy.dropOldest,
+      bool reuseSendEncoder = false,
+      bool reuseReceivedStream = false,
+      bool shareEncoder = false,
+      int? videoBitrate,
+      bool splitAudioSources = false}) async {}
+
+  @override
+  Future<Duration> saveReplay(String filePath) async {
+    throw UnimplementedError('The web implementation does not support replay');
+  }
 
   @override
   Future<void> startWeb({
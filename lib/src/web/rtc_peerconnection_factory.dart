@@ -30,13 +30,15 @@ MultiPartyRecorder multiPartyRecorder({
   MediaFormat format = MediaFormat.mpeg4,
   MultiPartyRecorderType type = MultiPartyRecorderType.local,
   Size? videoSize,
+  bool prewarmEncoders = false,
 }) {
   return RTCFactoryWeb.instance.multiPartyRecorder(
       fps: fps,
       audioOnly: audioOnly,
       format: format,
       type: type,
-      videoSize: videoSize);
+      videoSize: videoSize,
+      prewarmEncoders: prewarmEncoders);
 }
 
 VideoRenderer videoRenderer() {